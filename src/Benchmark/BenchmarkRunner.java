@@ -0,0 +1,197 @@
+package Benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * This runs small operations over and over and reports how long each call
+ * takes and how many bytes of heap it allocates.  Each benchmark is warmed up
+ * first so the JIT has compiled it, then timed over several fixed length
+ * iterations, and the spread between iterations is reported with the mean so
+ * a noisy run can be told apart from a real change.
+ *
+ * Allocation is read from the JVM's per thread allocation counter, which
+ * HotSpot keeps for free, so measuring it doesn't change what is measured.
+ * Every result is written to a field so the JIT can't drop the work as dead
+ * code
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class BenchmarkRunner {
+    /** This is how many calls are made between reads of the clock */
+    private static final int BATCH_SIZE = 256;
+
+    /** This is how many untimed iterations run before the timed ones */
+    private final int warmupIterations;
+
+    /** This is how many timed iterations run */
+    private final int iterations;
+
+    /** This is how long each iteration runs for, in nanoseconds */
+    private final long iterationNanos;
+
+    /** This is the JVM's counter of bytes allocated by each thread, or null if it has none */
+    private final com.sun.management.ThreadMXBean allocationCounter;
+
+    /** This is the last result of the operation being run */
+    private Object sink;
+
+    /** This is where the last result is published after each iteration */
+    private volatile Object published;
+
+    /**
+     * This constructor creates a runner
+     *
+     * @param warmupIterations the number of untimed iterations
+     * @param iterations the number of timed iterations
+     * @param iterationMillis how long each iteration runs for in milliseconds
+     */
+    public BenchmarkRunner(int warmupIterations, int iterations, long iterationMillis) {
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+        this.iterationNanos = iterationMillis * 1000000L;
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean counter = null;
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            counter = (com.sun.management.ThreadMXBean) threads;
+            if (counter.isThreadAllocatedMemorySupported()) {
+                counter.setThreadAllocatedMemoryEnabled(true);
+            } else {
+                counter = null;
+            }
+        }
+        this.allocationCounter = counter;
+    }
+
+    /**
+     * This method warms up and then times an operation
+     *
+     * @param name the name to report the result under
+     * @param operation the operation to time
+     * @return the result
+     */
+    public Result run(String name, Operation operation) {
+        for (int i = 0; i < warmupIterations; i++) {
+            iterate(operation, null);
+        }
+        double[] nanosPerOp = new double[iterations];
+        long totalOps = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < iterations; i++) {
+            long[] counts = new long[3];
+            iterate(operation, counts);
+            nanosPerOp[i] = (double) counts[1] / counts[0];
+            totalOps += counts[0];
+            totalBytes += counts[2];
+        }
+        double mean = 0;
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for (double value : nanosPerOp) {
+            mean += value / iterations;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        double bytesPerOp = allocationCounter == null ? -1 : (double) totalBytes / totalOps;
+        return new Result(name, mean, (max - min) / 2, bytesPerOp);
+    }
+
+    /**
+     * This method calls an operation for one iteration
+     *
+     * @param operation the operation to call
+     * @param counts where to put the number of calls, the nanoseconds they
+     *               took and the bytes they allocated, or null when warming up
+     */
+    private void iterate(Operation operation, long[] counts) {
+        long threadId = Thread.currentThread().getId();
+        long bytesBefore = allocationCounter == null ? 0
+                : allocationCounter.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        long end = start + iterationNanos;
+        long now;
+        int index = 0;
+        do {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                sink = operation.run(index++);
+            }
+            now = System.nanoTime();
+        } while (now < end);
+        if (counts != null) {
+            counts[0] = index;
+            counts[1] = now - start;
+            counts[2] = allocationCounter == null ? 0
+                    : allocationCounter.getThreadAllocatedBytes(threadId) - bytesBefore;
+        }
+        published = sink;
+    }
+
+    /**
+     * This is something to be timed.  The index counts up from 0 with each
+     * call, so an operation can work through a set of inputs
+     */
+    public interface Operation {
+        /**
+         * This method does the work being timed once
+         *
+         * @param index the number of calls made before this one in the iteration
+         * @return the result of the work, so it can't be thrown away
+         */
+        Object run(int index);
+    }
+
+    /**
+     * This is how an operation performed
+     */
+    public static final class Result {
+        /** This is the name of the operation */
+        private final String name;
+
+        /** This is the mean time of a call over the iterations, in nanoseconds */
+        private final double nanosPerOp;
+
+        /** This is half the spread between the fastest and slowest iteration, in nanoseconds */
+        private final double error;
+
+        /** This is the mean number of bytes a call allocated, or -1 if unknown */
+        private final double bytesPerOp;
+
+        /**
+         * This constructor creates a result
+         *
+         * @param name the name of the operation
+         * @param nanosPerOp the mean time of a call in nanoseconds
+         * @param error half the spread between iterations in nanoseconds
+         * @param bytesPerOp the mean bytes allocated by a call, or -1 if unknown
+         */
+        public Result(String name, double nanosPerOp, double error, double bytesPerOp) {
+            this.name = name;
+            this.nanosPerOp = nanosPerOp;
+            this.error = error;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getNanosPerOp() {
+            return nanosPerOp;
+        }
+
+        public double getError() {
+            return error;
+        }
+
+        public double getBytesPerOp() {
+            return bytesPerOp;
+        }
+
+        public String toString() {
+            return String.format("%-36s %10.1f ns/op %8s %10s B/op", name, nanosPerOp,
+                    String.format("+- %.1f", error),
+                    bytesPerOp < 0 ? "?" : String.format("%.1f", bytesPerOp));
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package Benchmark;
+
+import Message.Header;
+import Message.Message;
+import Message.MessageEncoder;
+import Message.MessageView;
+import Message.Query;
+import Message.ResourceRecord;
+import Utilities.ParserUtility;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This times parsing and encoding each part of a message over the responses
+ * in a PacketCorpus: headers, questions, resource records and whole
+ * messages, the wire format view, and names with and without compression
+ * pointers.  Each operation works through every input of its kind in turn,
+ * so the numbers are an average over the mix of responses rather than the
+ * best case of one.  Running it before and after a change to the hot paths
+ * shows whether the change helped
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class MessageBenchmark {
+    /** This is how long each iteration runs for by default, in milliseconds */
+    public static final long DEFAULT_ITERATION_MILLIS = 500;
+
+    /** This is how many untimed iterations run first */
+    private static final int WARMUP_ITERATIONS = 5;
+
+    /** This is how many timed iterations run */
+    private static final int ITERATIONS = 5;
+
+    /** This is the responses the operations work through */
+    private final PacketCorpus corpus = new PacketCorpus();
+
+    /** These are the packets, one buffer each so their positions can be moved freely */
+    private final ByteBuffer[] packets;
+
+    /** This is the buffer the encoding operations write into */
+    private final ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+
+    /** This is the encoder the encoding operations use */
+    private final MessageEncoder encoder = new MessageEncoder();
+
+    /** This is the view the wire format operation wraps */
+    private final MessageView view = new MessageView();
+
+    /** These are the questions of every response */
+    private final Query[] questions;
+
+    /** These are the records of every response */
+    private final ResourceRecord[] records;
+
+    /** These are the packets each record is in */
+    private final int[] recordPackets;
+
+    /** These are where each record starts in its packet */
+    private final int[] recordOffsets;
+
+    /**
+     * This constructor prepares the inputs for every operation
+     */
+    public MessageBenchmark() {
+        int size = corpus.size();
+        this.packets = new ByteBuffer[size];
+        this.questions = new Query[size];
+        ArrayList<ResourceRecord> recordList = new ArrayList<ResourceRecord>();
+        ArrayList<Integer> packetList = new ArrayList<Integer>();
+        ArrayList<Integer> offsetList = new ArrayList<Integer>();
+        for (int i = 0; i < size; i++) {
+            packets[i] = corpus.getPacket(i);
+            Message message = corpus.getMessage(i);
+            questions[i] = message.getQuestions().get(0);
+            view.wrap(packets[i]);
+            for (int record = 0; record < view.getRecordCount(); record++) {
+                recordList.add(view.toResourceRecord(record));
+                packetList.add(i);
+                offsetList.add(view.getRecordNameOffset(record));
+            }
+        }
+        this.records = recordList.toArray(new ResourceRecord[0]);
+        this.recordPackets = new int[records.length];
+        this.recordOffsets = new int[records.length];
+        for (int i = 0; i < records.length; i++) {
+            recordPackets[i] = packetList.get(i);
+            recordOffsets[i] = offsetList.get(i);
+        }
+    }
+
+    /**
+     * This method runs every operation and prints each result as it finishes
+     *
+     * @param iterationMillis how long each iteration runs for in milliseconds
+     * @param report where to print the results
+     * @return the results
+     */
+    public List<BenchmarkRunner.Result> run(long iterationMillis, PrintStream report) {
+        BenchmarkRunner runner = new BenchmarkRunner(WARMUP_ITERATIONS, ITERATIONS,
+                iterationMillis);
+        ArrayList<BenchmarkRunner.Result> results = new ArrayList<BenchmarkRunner.Result>();
+        int size = corpus.size();
+        report.println(corpus.size() + " responses, " + records.length + " records, "
+                + WARMUP_ITERATIONS + " warmup and " + ITERATIONS + " timed iterations of "
+                + iterationMillis + "ms");
+        results.add(report(report, runner.run("Header.parse",
+                i -> new Header(packet(i % size, 0)))));
+        results.add(report(report, runner.run("Header.encode", i -> {
+            out.clear();
+            corpus.getMessage(i % size).getHeader().writeTo(out);
+            return out;
+        })));
+        results.add(report(report, runner.run("Query.parse",
+                i -> new Query(packet(i % size, 12)))));
+        results.add(report(report, runner.run("Query.encode", i -> {
+            out.clear();
+            encoder.writeQuestion(questions[i % size], out);
+            return out;
+        })));
+        results.add(report(report, runner.run("ResourceRecord.parse", i -> {
+            int record = i % records.length;
+            return new ResourceRecord(packet(recordPackets[record], recordOffsets[record]));
+        })));
+        results.add(report(report, runner.run("ResourceRecord.encode", i -> {
+            out.clear();
+            encoder.writeRecord(records[i % records.length], out);
+            return out;
+        })));
+        results.add(report(report, runner.run("Message.parse",
+                i -> new Message(packet(i % size, 0)))));
+        results.add(report(report, runner.run("Message.encode", i -> {
+            out.clear();
+            encoder.encode(corpus.getMessage(i % size), out);
+            return out;
+        })));
+        results.add(report(report, runner.run("MessageView.wrap",
+                i -> view.wrap(packet(i % size, 0)))));
+        results.add(report(report, runner.run("ParserUtility.parseName plain",
+                i -> parseName(false, i))));
+        results.add(report(report, runner.run("ParserUtility.parseName compressed",
+                i -> parseName(true, i))));
+        return results;
+    }
+
+    /**
+     * This method prints a result and hands it back
+     *
+     * @param report where to print the result
+     * @param result the result
+     * @return the result
+     */
+    private static BenchmarkRunner.Result report(PrintStream report,
+                                                 BenchmarkRunner.Result result) {
+        report.println(result);
+        return result;
+    }
+
+    /**
+     * This method returns a packet with its position moved to an offset
+     *
+     * @param index the packet
+     * @param offset where to move the position to
+     * @return the packet's buffer
+     */
+    private ByteBuffer packet(int index, int offset) {
+        ByteBuffer packet = packets[index];
+        packet.position(offset);
+        return packet;
+    }
+
+    /**
+     * This method parses one of the corpus's names
+     *
+     * @param compressed true to parse a name that uses compression pointers
+     * @param index the number of names parsed before this one
+     * @return the name
+     */
+    private String parseName(boolean compressed, int index) {
+        int name = index % corpus.getNameCount(compressed);
+        return ParserUtility.parseName("", packet(corpus.getNamePacket(compressed, name),
+                corpus.getNameOffset(compressed, name)));
+    }
+
+    /**
+     * This method runs the benchmarks
+     *
+     * @param args optionally how long each iteration runs for in milliseconds
+     */
+    public static void main(String[] args) {
+        long iterationMillis = DEFAULT_ITERATION_MILLIS;
+        if (args.length > 0) {
+            try {
+                iterationMillis = Long.parseLong(args[0]);
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid iteration length: " + args[0]);
+                return;
+            }
+        }
+        new MessageBenchmark().run(iterationMillis, System.out);
+    }
+}
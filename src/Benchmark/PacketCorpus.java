@@ -0,0 +1,148 @@
+package Benchmark;
+
+import DNS.CannedResponses;
+import Message.Message;
+import Message.MessageEncoder;
+import Message.MessageView;
+import Message.Type;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * This holds the responses in CannedResponses, each both as a Message and
+ * encoded with compression the way a server would send it, so benchmarks
+ * measure the same responses a local load test is answered with.  It also
+ * knows where the names in the encoded packets are, split into names
+ * written out in full and names that are or end in a compression pointer
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class PacketCorpus {
+    /** These are the responses as Messages */
+    private final Message[] messages;
+
+    /** These are the responses encoded, each from index 0 to its limit */
+    private final ByteBuffer[] packets;
+
+    /** This is the packet each name is in, for the names written in full */
+    private final int[] plainNamePackets;
+
+    /** This is where each name written in full starts */
+    private final int[] plainNameOffsets;
+
+    /** This is the packet each name is in, for the compressed names */
+    private final int[] compressedNamePackets;
+
+    /** This is where each compressed name starts */
+    private final int[] compressedNameOffsets;
+
+    /**
+     * This constructor builds and encodes the responses
+     */
+    public PacketCorpus() {
+        this.messages = CannedResponses.build().toArray(new Message[0]);
+        this.packets = new ByteBuffer[messages.length];
+        MessageEncoder encoder = new MessageEncoder();
+        for (int i = 0; i < messages.length; i++) {
+            ByteBuffer packet = ByteBuffer.allocate(Message.MIN_UDP_PAYLOAD_SIZE * 2);
+            encoder.encode(messages[i], packet);
+            packet.flip();
+            packets[i] = packet;
+        }
+        ArrayList<int[]> plain = new ArrayList<int[]>();
+        ArrayList<int[]> compressed = new ArrayList<int[]>();
+        MessageView view = new MessageView();
+        for (int i = 0; i < packets.length; i++) {
+            view.wrap(packets[i]);
+            //The question comes first, so its name never has anything to point back to
+            plain.add(new int[]{i, 12});
+            for (int record = 0; record < view.getRecordCount(); record++) {
+                if (view.getRecordType(record) != Type.OPT.getValue()) {
+                    compressed.add(new int[]{i, view.getRecordNameOffset(record)});
+                }
+            }
+        }
+        this.plainNamePackets = column(plain, 0);
+        this.plainNameOffsets = column(plain, 1);
+        this.compressedNamePackets = column(compressed, 0);
+        this.compressedNameOffsets = column(compressed, 1);
+    }
+
+    /**
+     * This method returns how many responses there are
+     *
+     * @return the number of responses
+     */
+    public int size() {
+        return messages.length;
+    }
+
+    /**
+     * This method returns a response as a Message
+     *
+     * @param index the response to return
+     * @return the response
+     */
+    public Message getMessage(int index) {
+        return messages[index];
+    }
+
+    /**
+     * This method returns a response encoded, in a buffer of its own so the
+     * caller is free to move its position
+     *
+     * @param index the response to return
+     * @return a buffer over the response from index 0
+     */
+    public ByteBuffer getPacket(int index) {
+        return packets[index].duplicate();
+    }
+
+    /**
+     * This method returns how many names there are of one kind
+     *
+     * @param compressed true for names that use compression pointers
+     * @return the number of names
+     */
+    public int getNameCount(boolean compressed) {
+        return compressed ? compressedNameOffsets.length : plainNameOffsets.length;
+    }
+
+    /**
+     * This method returns which packet a name is in
+     *
+     * @param compressed true for names that use compression pointers
+     * @param index the name
+     * @return the packet's index
+     */
+    public int getNamePacket(boolean compressed, int index) {
+        return compressed ? compressedNamePackets[index] : plainNamePackets[index];
+    }
+
+    /**
+     * This method returns where a name starts in its packet
+     *
+     * @param compressed true for names that use compression pointers
+     * @param index the name
+     * @return the offset of the name from the start of the packet
+     */
+    public int getNameOffset(boolean compressed, int index) {
+        return compressed ? compressedNameOffsets[index] : plainNameOffsets[index];
+    }
+
+    /**
+     * This method takes one column out of a list of pairs
+     *
+     * @param rows the pairs
+     * @param column the column to take
+     * @return the values in the column
+     */
+    private static int[] column(ArrayList<int[]> rows, int column) {
+        int[] values = new int[rows.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = rows.get(i)[column];
+        }
+        return values;
+    }
+}
@@ -0,0 +1,231 @@
+package Cache;
+
+import Message.Message;
+import Message.Query;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This is a bounded in-memory cache of answers keyed by name, type and
+ * class.  Lookups are a single ConcurrentHashMap read so any number of
+ * threads can hit it at once.  When the cache is full the oldest entries are
+ * evicted with the CLOCK algorithm, which gives an entry that was hit since
+ * the hand last passed it a second chance, approximating LRU without taking a
+ * lock on reads.
+ *
+ * A cache can be told to keep entries for a while after they expire so
+ * they can still be served stale, as RFC 8767 describes, when the upstream
+ * can't be reached.  Expired entries are never returned by get, only by
+ * getStale
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class AnswerCache implements AnswerStore {
+    /** This is the default number of entries kept */
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    /** This is the longest any answer is kept, one day, in seconds */
+    public static final long MAX_TTL = 86400;
+
+    /** This is the longest a negative answer is kept, three hours as RFC 2308 suggests */
+    public static final long MAX_NEGATIVE_TTL = 10800;
+
+    /** This is how long expired entries are kept for serving stale by default, one day as RFC 8767 suggests, in seconds */
+    public static final long DEFAULT_MAX_STALE = 86400;
+
+    /** This is the most entries the cache will hold */
+    private final int maxEntries;
+
+    /** This is how long an entry is kept after it expires, in milliseconds */
+    private final long maxStaleMillis;
+
+    /** These are the entries by key */
+    private final ConcurrentHashMap<CacheKey, CacheEntry> entries;
+
+    /** This is the order entries were inserted in, swept by the clock hand */
+    private final ConcurrentLinkedQueue<CacheEntry> clock =
+            new ConcurrentLinkedQueue<CacheEntry>();
+
+    /** This is the length of the clock, since the queue has to walk itself to count */
+    private final AtomicInteger clockSize = new AtomicInteger();
+
+    /**
+     * This constructor creates a cache with the default size
+     */
+    public AnswerCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * This constructor creates a cache that holds at most maxEntries entries
+     * and drops entries as soon as they expire
+     *
+     * @param maxEntries the most entries to hold
+     */
+    public AnswerCache(int maxEntries) {
+        this(maxEntries, 0);
+    }
+
+    /**
+     * This constructor creates a cache that holds at most maxEntries entries
+     * and keeps them for up to maxStale seconds after they expire
+     *
+     * @param maxEntries the most entries to hold
+     * @param maxStale how long to keep expired entries in seconds
+     */
+    public AnswerCache(int maxEntries, long maxStale) {
+        this.maxEntries = maxEntries;
+        this.maxStaleMillis = maxStale * 1000;
+        this.entries = new ConcurrentHashMap<CacheKey, CacheEntry>(
+                Math.min(maxEntries, 1 << 16));
+    }
+
+    /**
+     * This method looks up an entry, dropping it if it has expired, and
+     * counts the hit
+     *
+     * @param key the key to look up
+     * @return the entry, or null if there isn't a live one
+     */
+    public CacheEntry get(CacheKey key) {
+        CacheEntry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (entry.isExpired(now)) {
+            if (isTooStale(entry, now)) {
+                entries.remove(key, entry);
+            }
+            return null;
+        }
+        entry.markReferenced();
+        entry.recordHit();
+        return entry;
+    }
+
+    /**
+     * This method looks up an entry that may have expired, as long as it
+     * expired no longer ago than the cache keeps stale entries
+     *
+     * @param key the key to look up
+     * @return the entry, or null if there isn't one young enough
+     */
+    public CacheEntry getStale(CacheKey key) {
+        CacheEntry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (isTooStale(entry, System.currentTimeMillis())) {
+            entries.remove(key, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    public long getMaxStaleMillis() {
+        return maxStaleMillis;
+    }
+
+    /**
+     * This method checks whether an entry expired too long ago to be served
+     * even stale
+     *
+     * @param entry the entry to check
+     * @param now the current time in milliseconds since the epoch
+     * @return true if the entry should be dropped
+     */
+    private boolean isTooStale(CacheEntry entry, long now) {
+        return entry.isExpired(now - maxStaleMillis);
+    }
+
+    /**
+     * This method stores an entry, replacing any entry for the same key
+     *
+     * @param entry the entry to store
+     */
+    public void put(CacheEntry entry) {
+        entries.put(entry.getKey(), entry);
+        clock.add(entry);
+        clockSize.incrementAndGet();
+        evict();
+    }
+
+    /**
+     * This method caches a response if it can be cached, for as long as
+     * CacheEntry.fromResponse says
+     *
+     * @param question the question the response answers
+     * @param response the response to cache
+     * @return the entry that was stored, or null if the response wasn't
+     * cacheable
+     */
+    public CacheEntry put(Query question, Message response) {
+        CacheEntry entry = CacheEntry.fromResponse(question, response);
+        if (entry != null) {
+            put(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * This method removes an entry
+     *
+     * @param key the key of the entry to remove
+     */
+    public void remove(CacheKey key) {
+        entries.remove(key);
+    }
+
+    /**
+     * This method returns how many entries are held, including expired ones
+     * that haven't been swept yet
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * This method moves the clock hand until the cache is back under its
+     * limit.  Entries that were replaced or removed are dropped from the
+     * clock when the hand reaches them, and entries hit since the last pass
+     * are moved to the back once
+     */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        while (entries.size() > maxEntries) {
+            CacheEntry entry = clock.poll();
+            if (entry == null) {
+                return;
+            }
+            if (entries.get(entry.getKey()) != entry) {
+                clockSize.decrementAndGet();
+                continue;
+            }
+            if (entry.isReferenced() && !entry.isExpired(now)) {
+                entry.clearReferenced();
+                clock.add(entry);
+            } else {
+                clockSize.decrementAndGet();
+                entries.remove(entry.getKey(), entry);
+            }
+        }
+        //Replaced entries pile up in the clock when the cache isn't full
+        if (clockSize.get() > 2 * maxEntries) {
+            sweepClock();
+        }
+    }
+
+    /**
+     * This method drops every entry from the clock that is no longer in the
+     * cache
+     */
+    private void sweepClock() {
+        clock.removeIf(entry -> entries.get(entry.getKey()) != entry);
+        clockSize.set(clock.size());
+    }
+}
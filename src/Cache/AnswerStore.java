@@ -0,0 +1,68 @@
+package Cache;
+
+import Message.Message;
+import Message.Query;
+
+/**
+ * This is anywhere answers can be cached, whether as objects on the heap or
+ * in wire format off it
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public interface AnswerStore {
+    /**
+     * This method looks up an entry that hasn't expired and counts the hit
+     *
+     * @param key the key to look up
+     * @return the entry, or null if there isn't a live one
+     */
+    CacheEntry get(CacheKey key);
+
+    /**
+     * This method looks up an entry that may have expired, as long as it
+     * expired no longer ago than stale entries are kept
+     *
+     * @param key the key to look up
+     * @return the entry, or null if there isn't one young enough
+     */
+    CacheEntry getStale(CacheKey key);
+
+    /**
+     * This method stores an entry, replacing any entry for the same key
+     *
+     * @param entry the entry to store
+     */
+    void put(CacheEntry entry);
+
+    /**
+     * This method caches a response if it can be cached
+     *
+     * @param question the question the response answers
+     * @param response the response to cache
+     * @return the entry that was stored, or null if the response wasn't
+     * cacheable
+     */
+    CacheEntry put(Query question, Message response);
+
+    /**
+     * This method removes an entry
+     *
+     * @param key the key of the entry to remove
+     */
+    void remove(CacheKey key);
+
+    /**
+     * This method returns how many entries are held
+     *
+     * @return the number of entries
+     */
+    int size();
+
+    /**
+     * This method returns how long entries are kept after they expire
+     *
+     * @return the time in milliseconds, 0 if they aren't kept
+     */
+    long getMaxStaleMillis();
+}
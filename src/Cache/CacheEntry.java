@@ -0,0 +1,367 @@
+package Cache;
+
+import Message.Header;
+import Message.Message;
+import Message.Query;
+import Message.ResourceRecord;
+import Message.Type;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * This is one cached RRset along with when it stops being valid.  Negative
+ * entries, for names or types that don't exist, have no records and keep the
+ * SOA from the authority section instead.  The records themselves never
+ * change, so entries can be read by any number of threads at once
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class CacheEntry {
+    /** This is the most hits counted, so a hot entry stops being written to once it is known to be hot */
+    public static final int MAX_COUNTED_HITS = 64;
+
+    /** This updates the hit count without an AtomicInteger per entry */
+    private static final AtomicIntegerFieldUpdater<CacheEntry> HITS =
+            AtomicIntegerFieldUpdater.newUpdater(CacheEntry.class, "hits");
+
+    /** This claims the refresh of an entry for a single caller */
+    private static final AtomicIntegerFieldUpdater<CacheEntry> REFRESHING =
+            AtomicIntegerFieldUpdater.newUpdater(CacheEntry.class, "refreshing");
+
+    /** This is the key the entry is stored under */
+    private final CacheKey key;
+
+    /** These are the answer records for the key */
+    private final ArrayList<ResourceRecord> records;
+
+    /** This is the authority section kept for negative entries */
+    private final ArrayList<ResourceRecord> authorityRecords;
+
+    /** This is the return code of the response the records came from */
+    private final int returnCode;
+
+    /** This is the time in milliseconds since the epoch the entry expires */
+    private final long expiresAt;
+
+    /** This is the time in milliseconds since the epoch the entry was made */
+    private final long createdAt;
+
+    /** This is set on every hit and cleared by the eviction clock */
+    private volatile boolean referenced;
+
+    /** This is how many times the entry was hit, up to MAX_COUNTED_HITS */
+    private volatile int hits;
+
+    /** This is 1 once someone has started refreshing the entry */
+    private volatile int refreshing;
+
+    /** This is the time in milliseconds since the epoch a refresh last failed */
+    private volatile long refreshFailedAt;
+
+    /**
+     * This constructor creates an entry that expires at an absolute time
+     *
+     * @param key the key the entry is stored under
+     * @param records the answer records
+     * @param authorityRecords the authority records, the SOA for negative
+     *                         entries
+     * @param returnCode the return code of the response
+     * @param expiresAt the time in milliseconds since the epoch it expires
+     */
+    public CacheEntry(CacheKey key, ArrayList<ResourceRecord> records,
+                      ArrayList<ResourceRecord> authorityRecords,
+                      int returnCode, long expiresAt) {
+        this(key, records, authorityRecords, returnCode,
+                System.currentTimeMillis(), expiresAt, 0, false, 0);
+    }
+
+    /**
+     * This constructor recreates an entry that was stored somewhere else,
+     * along with how it has been used so far
+     *
+     * @param key the key the entry is stored under
+     * @param records the answer records
+     * @param authorityRecords the authority records
+     * @param returnCode the return code of the response
+     * @param createdAt the time in milliseconds since the epoch it was made
+     * @param expiresAt the time in milliseconds since the epoch it expires
+     * @param hits how many times it has been hit
+     * @param refreshing true if a refresh has already been started
+     * @param refreshFailedAt the time in milliseconds since the epoch a
+     *                        refresh last failed, or 0
+     */
+    CacheEntry(CacheKey key, ArrayList<ResourceRecord> records,
+               ArrayList<ResourceRecord> authorityRecords, int returnCode,
+               long createdAt, long expiresAt, int hits, boolean refreshing,
+               long refreshFailedAt) {
+        this.key = key;
+        this.records = records;
+        this.authorityRecords = authorityRecords;
+        this.returnCode = returnCode;
+        this.createdAt = createdAt;
+        this.expiresAt = expiresAt;
+        this.hits = hits;
+        this.refreshing = refreshing ? 1 : 0;
+        this.refreshFailedAt = refreshFailedAt;
+    }
+
+    /**
+     * This method turns a response into an entry if it can be cached.
+     * Successful responses with answers are kept for the smallest TTL among
+     * their answers.  NXDOMAIN and NODATA responses are kept as negative
+     * entries for the smaller of the SOA's TTL and minimum field, as RFC 2308
+     * describes, and are not cached at all without an SOA
+     *
+     * @param question the question the response answers
+     * @param response the response to cache
+     * @return the entry, or null if the response can't be cached
+     */
+    public static CacheEntry fromResponse(Query question, Message response) {
+        if (response.getHeader().isTruncated()) {
+            return null;
+        }
+        int returnCode = response.getHeader().getReturnCode();
+        ArrayList<ResourceRecord> answers = response.getAnswerResourceRecords();
+        if (returnCode == Header.NO_ERROR && !answers.isEmpty()) {
+            long ttl = AnswerCache.MAX_TTL;
+            for (ResourceRecord record : answers) {
+                ttl = Math.min(ttl, record.getTtl());
+            }
+            return create(question, answers, new ArrayList<ResourceRecord>(),
+                    returnCode, ttl);
+        }
+        if (returnCode != Header.NO_ERROR && returnCode != Header.NAME_ERROR) {
+            return null;
+        }
+        for (ResourceRecord record : response.getAuthorityResourceRecords()) {
+            if (record.getType() == Type.SOA) {
+                long ttl = Math.min(AnswerCache.MAX_NEGATIVE_TTL,
+                        Math.min(record.getTtl(), record.getSoaMinimum()));
+                ArrayList<ResourceRecord> authority =
+                        new ArrayList<ResourceRecord>(1);
+                authority.add(record);
+                return create(question, new ArrayList<ResourceRecord>(),
+                        authority, returnCode, ttl);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * This method makes an entry that lasts ttl seconds from now
+     *
+     * @param question the question the records answer
+     * @param answers the answer records
+     * @param authority the authority records
+     * @param returnCode the return code of the response
+     * @param ttl how long to keep the entry in seconds
+     * @return the entry, or null if the TTL was 0
+     */
+    private static CacheEntry create(Query question, ArrayList<ResourceRecord> answers,
+                                     ArrayList<ResourceRecord> authority,
+                                     int returnCode, long ttl) {
+        if (ttl <= 0) {
+            return null;
+        }
+        return new CacheEntry(new CacheKey(question), answers, authority,
+                returnCode, System.currentTimeMillis() + ttl * 1000);
+    }
+
+    public CacheKey getKey() {
+        return key;
+    }
+
+    public ArrayList<ResourceRecord> getRecords() {
+        return records;
+    }
+
+    public ArrayList<ResourceRecord> getAuthorityRecords() {
+        return authorityRecords;
+    }
+
+    /**
+     * This method checks whether the entry caches the absence of an answer,
+     * either NXDOMAIN or NODATA
+     *
+     * @return true if the entry is negative
+     */
+    public boolean isNegative() {
+        return records.isEmpty();
+    }
+
+    public int getReturnCode() {
+        return returnCode;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * This method checks whether the entry has run out its TTL
+     *
+     * @param now the current time in milliseconds since the epoch
+     * @return true if the entry has expired
+     */
+    public boolean isExpired(long now) {
+        return now >= expiresAt;
+    }
+
+    /**
+     * This method works out how many whole seconds the entry has left
+     *
+     * @param now the current time in milliseconds since the epoch
+     * @return the seconds left, never less than 0
+     */
+    public long getRemainingTtl(long now) {
+        return Math.max(0, (expiresAt - now) / 1000);
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    /**
+     * This method checks whether the entry is hot and close enough to
+     * expiring that it should be refreshed before it does
+     *
+     * @param now the current time in milliseconds since the epoch
+     * @param fraction how much of the TTL may be left, between 0 and 1
+     * @param minHits how many hits make an entry hot
+     * @return true if the entry should be refreshed now
+     */
+    public boolean shouldRefresh(long now, double fraction, int minHits) {
+        return hits >= minHits && refreshing == 0 && !isExpired(now)
+                && expiresAt - now <= fraction * (expiresAt - createdAt);
+    }
+
+    /**
+     * This method claims the refresh of the entry, so however many threads
+     * see it is due only one of them sends a query
+     *
+     * @return true for the one caller that should refresh the entry
+     */
+    public boolean startRefresh() {
+        return REFRESHING.compareAndSet(this, 0, 1);
+    }
+
+    public long getRefreshFailedAt() {
+        return refreshFailedAt;
+    }
+
+    /**
+     * This method records that the upstream couldn't give a new answer for
+     * the entry
+     *
+     * @param now the current time in milliseconds since the epoch
+     */
+    public void markRefreshFailed(long now) {
+        refreshFailedAt = now;
+    }
+
+    /**
+     * This method builds a response to a question out of an entry that may
+     * have expired, with every TTL capped at a short fixed time, marked as
+     * stale
+     *
+     * @param question the question being answered
+     * @param ttl the most TTL to give any record, in seconds
+     * @return the response message
+     */
+    public Message toStaleResponse(Query question, long ttl) {
+        Message response = toResponse(question, countDown(records, ttl),
+                countDown(authorityRecords, ttl));
+        response.setCached(System.currentTimeMillis() - createdAt, true);
+        return response;
+    }
+
+    /**
+     * This method builds a response to a question out of the entry, with
+     * every TTL counted down to the time left, marked with the entry's age
+     *
+     * @param question the question being answered
+     * @param now the current time in milliseconds since the epoch
+     * @return the response message
+     */
+    public Message toResponse(Query question, long now) {
+        long ttl = getRemainingTtl(now);
+        Message response = toResponse(question, countDown(records, ttl),
+                countDown(authorityRecords, ttl));
+        response.setCached(now - createdAt, false);
+        return response;
+    }
+
+    /**
+     * This method builds a response with the entry's return code around
+     * records whose TTLs have already been set
+     *
+     * @param question the question being answered
+     * @param answers the answer records
+     * @param authority the authority records
+     * @return the response message
+     */
+    private Message toResponse(Query question, ArrayList<ResourceRecord> answers,
+                               ArrayList<ResourceRecord> authority) {
+        ArrayList<Query> questions = new ArrayList<Query>(1);
+        questions.add(question);
+        Header header = new Header(true, 0, false, false, true, true, 0,
+                returnCode, 1, answers.size(), authority.size(), 0);
+        return new Message(header, questions, answers, authority,
+                new ArrayList<ResourceRecord>());
+    }
+
+    /**
+     * This method copies records with their TTLs capped at the time left
+     *
+     * @param source the records to copy
+     * @param ttl the seconds the entry has left
+     * @return the copies
+     */
+    private static ArrayList<ResourceRecord> countDown(
+            ArrayList<ResourceRecord> source, long ttl) {
+        ArrayList<ResourceRecord> copies =
+                new ArrayList<ResourceRecord>(source.size());
+        for (ResourceRecord record : source) {
+            copies.add(record.withTtl(Math.min(ttl, record.getTtl())));
+        }
+        return copies;
+    }
+
+    boolean isRefreshing() {
+        return refreshing != 0;
+    }
+
+    boolean isReferenced() {
+        return referenced;
+    }
+
+    /**
+     * This method marks the entry as recently used, only writing the flag
+     * when it isn't already set so hot entries don't keep dirtying the cache
+     * line
+     */
+    void markReferenced() {
+        if (!referenced) {
+            referenced = true;
+        }
+    }
+
+    void clearReferenced() {
+        referenced = false;
+    }
+
+    /**
+     * This method counts a hit, stopping at MAX_COUNTED_HITS so the hottest
+     * entries aren't contended on by every thread reading them
+     */
+    void recordHit() {
+        if (hits < MAX_COUNTED_HITS) {
+            HITS.incrementAndGet(this);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package Cache;
+
+import Message.Class;
+import Message.DomainName;
+import Message.Query;
+import Message.Type;
+
+/**
+ * This is the key answers are cached under.  Names are held as DomainNames,
+ * which compare without regard to case, so every spelling of a name finds
+ * the same entry
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public final class CacheKey {
+    /** This is the name asked about */
+    private final DomainName name;
+
+    /** This is the type of record asked for */
+    private final Type type;
+
+    /** This is the class of record asked for */
+    private final Class dnsClass;
+
+    /** This is the hash, worked out once since keys are looked up constantly */
+    private final int hash;
+
+    /**
+     * This constructor works out the hash from the name's own hash and the
+     * wire values of the type and class, never their order in the enums, so
+     * the hash stays the same across builds and can be kept in a snapshot
+     *
+     * @param name the name asked about
+     * @param type the type of record
+     * @param dnsClass the class of record
+     *
+     * @throws IllegalArgumentException when the type or class is null, as
+     * it is for one Type and Class don't know
+     */
+    public CacheKey(DomainName name, Type type, Class dnsClass) {
+        if (type == null || dnsClass == null) {
+            throw new IllegalArgumentException("No cache key for a type or class that isn't known");
+        }
+        this.name = name;
+        this.type = type;
+        this.dnsClass = dnsClass;
+        this.hash = (name.hashCode() * 31 + type.getValue()) * 31
+                + dnsClass.getValue();
+    }
+
+    /**
+     * This constructor creates a key from a name in its dotted form
+     *
+     * @param name the name, in any case and with or without a trailing dot
+     * @param type the type of record
+     * @param dnsClass the class of record
+     *
+     * @throws IllegalArgumentException when the name isn't valid or the type
+     * or class is null
+     */
+    public CacheKey(String name, Type type, Class dnsClass) {
+        this(DomainName.of(name), type, dnsClass);
+    }
+
+    /**
+     * This constructor creates the key for the question a query asks
+     *
+     * @param question the question to make a key for
+     *
+     * @throws IllegalArgumentException when the name isn't valid or the type
+     * or class is null
+     */
+    public CacheKey(Query question) {
+        this(question.getName(), question.getType(), question.getDnsClass());
+    }
+
+    public DomainName getName() {
+        return name;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Class getDnsClass() {
+        return dnsClass;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof CacheKey)) {
+            return false;
+        }
+        CacheKey key = (CacheKey) other;
+        return hash == key.hash && type == key.type
+                && dnsClass == key.dnsClass && name.equals(key.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * This method returns the readable String for the key
+     *
+     * @return the readable String
+     */
+    public String toString() {
+        return name + " " + type + " " + dnsClass;
+    }
+}
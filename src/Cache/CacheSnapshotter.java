@@ -0,0 +1,100 @@
+package Cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This writes a snapshot of an OffHeapAnswerCache to a file every so often,
+ * and once more when it is closed, so a restarted process can load the
+ * snapshot and start warm
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class CacheSnapshotter implements Closeable {
+    /** This is how often a snapshot is written by default, in milliseconds */
+    public static final long DEFAULT_INTERVAL_MILLIS = 60000;
+
+    /** This is the cache being written */
+    private final OffHeapAnswerCache cache;
+
+    /** This is the file the snapshots go to */
+    private final Path file;
+
+    /** This runs the periodic snapshots */
+    private final ScheduledExecutorService timer;
+
+    /** This is how many snapshots have been written */
+    private final AtomicInteger snapshots = new AtomicInteger();
+
+    /** This is true once the snapshotter has been closed */
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /** This is why the last snapshot failed, or null if it didn't */
+    private volatile Exception lastFailure;
+
+    /**
+     * This constructor starts writing snapshots of a cache every interval
+     *
+     * @param cache the cache to write
+     * @param file the file to write the snapshots to
+     * @param intervalMillis the time between snapshots in milliseconds
+     */
+    public CacheSnapshotter(OffHeapAnswerCache cache, Path file, long intervalMillis) {
+        this.cache = cache;
+        this.file = file;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "CacheSnapshotter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(this::snapshot, intervalMillis, intervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * This method writes a snapshot now, keeping the failure rather than
+     * throwing it, since an exception thrown from the periodic task would
+     * quietly cancel every snapshot after it
+     *
+     * @return true if the snapshot was written
+     */
+    public synchronized boolean snapshot() {
+        try {
+            cache.writeSnapshot(file);
+            lastFailure = null;
+            snapshots.incrementAndGet();
+            return true;
+        } catch (IOException | RuntimeException e) {
+            lastFailure = e;
+            return false;
+        }
+    }
+
+    public int getSnapshots() {
+        return snapshots.get();
+    }
+
+    public Exception getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * This method stops the periodic snapshots and writes a last one.
+     * Closing again does nothing, so both a shutdown hook and the code that
+     * opened the snapshotter can close it
+     */
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        timer.shutdown();
+        snapshot();
+    }
+}
@@ -0,0 +1,63 @@
+package Cache;
+
+import Message.DomainName;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * This is a zone cut, the name of a zone along with the addresses of the
+ * servers it was delegated to and when that delegation stops being valid
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class Delegation {
+    /** This is the name of the delegated zone */
+    private final DomainName zone;
+
+    /** These are the addresses of the zone's nameservers */
+    private final List<InetSocketAddress> servers;
+
+    /** This is the time in milliseconds since the epoch the delegation expires */
+    private final long expiresAt;
+
+    /**
+     * This constructor creates a delegation that expires at an absolute time
+     *
+     * @param zone the name of the zone
+     * @param servers the addresses of its nameservers
+     * @param expiresAt the time in milliseconds since the epoch it expires
+     */
+    public Delegation(DomainName zone, List<InetSocketAddress> servers,
+                      long expiresAt) {
+        this.zone = zone;
+        this.servers = servers;
+        this.expiresAt = expiresAt;
+    }
+
+    public DomainName getZone() {
+        return zone;
+    }
+
+    public List<InetSocketAddress> getServers() {
+        return servers;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * This method checks whether the delegation has run out its TTL
+     *
+     * @param now the current time in milliseconds since the epoch
+     * @return true if the delegation has expired
+     */
+    public boolean isExpired(long now) {
+        return now >= expiresAt;
+    }
+
+    public String toString() {
+        return zone + " " + servers;
+    }
+}
@@ -0,0 +1,127 @@
+package Cache;
+
+import Message.DomainName;
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This is a cache of zone cuts learned from referrals, keyed by the name of
+ * the zone.  Finding where to start a lookup walks up from the name towards
+ * the root, so a name under a zone that was already delegated skips every
+ * level above it.  The root delegation comes from the hints and never
+ * expires
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class DelegationCache {
+    /** This is the default number of delegations kept */
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    /** This is the most delegations the cache will hold */
+    private final int maxEntries;
+
+    /** These are the delegations by zone */
+    private final ConcurrentHashMap<DomainName, Delegation> delegations;
+
+    /**
+     * This constructor creates a cache with the default size that starts from
+     * the root servers
+     *
+     * @param rootServers the addresses of the root servers
+     */
+    public DelegationCache(List<InetSocketAddress> rootServers) {
+        this(rootServers, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * This constructor creates a cache that holds at most maxEntries
+     * delegations besides the root
+     *
+     * @param rootServers the addresses of the root servers
+     * @param maxEntries the most delegations to hold
+     */
+    public DelegationCache(List<InetSocketAddress> rootServers, int maxEntries) {
+        if (rootServers.isEmpty()) {
+            throw new IllegalArgumentException("No root servers");
+        }
+        this.maxEntries = maxEntries;
+        this.delegations = new ConcurrentHashMap<DomainName, Delegation>();
+        delegations.put(DomainName.ROOT,
+                new Delegation(DomainName.ROOT, rootServers, Long.MAX_VALUE));
+    }
+
+    /**
+     * This method finds the deepest live delegation that a name falls under
+     *
+     * @param name the name being looked up
+     * @return the closest enclosing delegation, the root if nothing else
+     */
+    public Delegation findClosest(DomainName name) {
+        long now = System.currentTimeMillis();
+        for (DomainName zone = name; zone != null; zone = zone.getParent()) {
+            Delegation delegation = delegations.get(zone);
+            if (delegation != null) {
+                if (!delegation.isExpired(now)) {
+                    return delegation;
+                }
+                delegations.remove(zone, delegation);
+            }
+        }
+        //The root is never removed so the walk always ends there
+        return delegations.get(DomainName.ROOT);
+    }
+
+    /**
+     * This method stores a delegation learned from a referral, replacing any
+     * older one for the same zone.  When the cache is full expired
+     * delegations are dropped first, and if it is still full the new one
+     * isn't kept
+     *
+     * @param delegation the delegation to store
+     */
+    public void put(Delegation delegation) {
+        if (delegation.getZone().isRoot()) {
+            return;
+        }
+        if (delegations.size() > maxEntries
+                && !delegations.containsKey(delegation.getZone())) {
+            removeExpired();
+            if (delegations.size() > maxEntries) {
+                return;
+            }
+        }
+        delegations.put(delegation.getZone(), delegation);
+    }
+
+    /**
+     * This method returns the live delegation for exactly one zone
+     *
+     * @param zone the zone to look for
+     * @return the delegation, or null if there isn't a live one
+     */
+    public Delegation get(DomainName zone) {
+        Delegation delegation = delegations.get(zone);
+        return delegation == null || delegation.isExpired(System.currentTimeMillis())
+                ? null : delegation;
+    }
+
+    public int size() {
+        return delegations.size();
+    }
+
+    /**
+     * This method drops every delegation that has expired
+     */
+    private void removeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Delegation> iterator = delegations.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isExpired(now)) {
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,967 @@
+package Cache;
+
+import Message.Message;
+import Message.MessageEncoder;
+import Message.Query;
+import Message.ResourceRecord;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This is a cache of answers that keeps its records off the Java heap in
+ * their uncompressed wire format, so a cache holding millions of records
+ * adds almost nothing for the garbage collector to trace.  The only objects
+ * on the heap are an index per stripe of primitive arrays, holding the hash
+ * of each key and where its record sits, and the records are only turned
+ * back into objects when they are hit.
+ *
+ * The cache is split into stripes by hash, each with its own lock, so
+ * lookups in different stripes never wait on each other and lookups in the
+ * same stripe only wait for writes.  Each stripe appends its records to a
+ * ring of direct buffers.  When the ring is full the oldest buffer is
+ * emptied and reused, dropping every record still in it, so eviction is
+ * first in first out by buffer rather than the CLOCK order AnswerCache uses.
+ * A record that is replaced leaves its old bytes behind until its buffer is
+ * reused.
+ *
+ * Like AnswerCache, a cache can be told to keep entries for a while after
+ * they expire so they can still be served stale.
+ *
+ * Since records hold their expiry as an absolute time, the buffers can be
+ * written to a snapshot file as they are and mapped straight back in when
+ * the process restarts.  Loading a snapshot only walks the record headers to
+ * rebuild the index, and the records themselves are read from the mapped
+ * file the first time they are hit
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class OffHeapAnswerCache implements AnswerStore {
+    /** This is the default number of bytes of records kept, 64MB */
+    public static final long DEFAULT_CAPACITY_BYTES = 64L * 1024 * 1024;
+
+    /** This is the number of stripes, which must be a power of 2 */
+    private static final int STRIPE_COUNT = 16;
+
+    /** This is the number of buffers in each stripe's ring */
+    private static final int SEGMENT_COUNT = 8;
+
+    /** This is the largest record kept, so one record can't take a whole buffer */
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+    /** This is the smallest buffer, so every record that is kept fits in one */
+    private static final int MIN_SEGMENT_SIZE = MAX_RECORD_SIZE;
+
+    /** This is the largest buffer, so locations fit the index */
+    private static final int MAX_SEGMENT_SIZE = 1 << 30;
+
+    /** This is the number of index slots a stripe starts with, a power of 2 */
+    private static final int INITIAL_INDEX_SIZE = 1024;
+
+    /** This marks an index slot that has never been used */
+    private static final long EMPTY = 0;
+
+    /** This marks an index slot whose record was removed */
+    private static final long REMOVED = -1;
+
+    /** These are where the fields of a record's header start */
+    private static final int LENGTH = 0;
+    private static final int HASH = 4;
+    private static final int CREATED_AT = 8;
+    private static final int EXPIRES_AT = 16;
+    private static final int REFRESH_FAILED_AT = 24;
+    private static final int HITS = 32;
+    private static final int REFRESHING = 33;
+    private static final int RETURN_CODE = 34;
+    private static final int FLAGS = 35;
+    private static final int ANSWER_COUNT = 36;
+    private static final int AUTHORITY_COUNT = 38;
+    private static final int TYPE = 40;
+    private static final int CLASS = 42;
+    private static final int NAME = 44;
+
+    /** This flag marks a record in a snapshot that had been replaced or removed */
+    private static final byte DEAD = 1;
+
+    /** This is the first 4 bytes of every snapshot, "DDNS" */
+    private static final int SNAPSHOT_MAGIC = 0x44444E53;
+
+    /** This is the version of the snapshot format, which changes with the record layout or key hash */
+    public static final int SNAPSHOT_VERSION = 2;
+
+    /** This is where the records start in a snapshot, past the header and every stripe's state */
+    private static final int SNAPSHOT_HEADER_SIZE = 4096;
+
+    /** This is the buffer each thread builds and reads records in */
+    private static final ThreadLocal<ByteBuffer> SCRATCH =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAX_RECORD_SIZE));
+
+    /** This is the encoder each thread writes records with */
+    private static final ThreadLocal<MessageEncoder> ENCODER =
+            ThreadLocal.withInitial(MessageEncoder::new);
+
+    /** These are the stripes, picked by the top bits of a key's hash */
+    private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+
+    /** This is how long an entry is kept after it expires, in milliseconds */
+    private final long maxStaleMillis;
+
+    /**
+     * This constructor creates a cache with the default capacity
+     */
+    public OffHeapAnswerCache() {
+        this(DEFAULT_CAPACITY_BYTES);
+    }
+
+    /**
+     * This constructor creates a cache that holds about capacityBytes of
+     * records and drops entries as soon as they expire
+     *
+     * @param capacityBytes the bytes of off-heap memory to use
+     */
+    public OffHeapAnswerCache(long capacityBytes) {
+        this(capacityBytes, 0);
+    }
+
+    /**
+     * This constructor creates a cache that holds about capacityBytes of
+     * records and keeps them for up to maxStale seconds after they expire.
+     * Memory is only taken as the buffers fill, and never less than one
+     * record's worth per buffer
+     *
+     * @param capacityBytes the bytes of off-heap memory to use
+     * @param maxStale how long to keep expired entries in seconds
+     */
+    public OffHeapAnswerCache(long capacityBytes, long maxStale) {
+        long segmentSize = capacityBytes / (STRIPE_COUNT * SEGMENT_COUNT);
+        segmentSize = Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, segmentSize));
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe((int) segmentSize);
+        }
+        this.maxStaleMillis = maxStale * 1000;
+    }
+
+    /**
+     * This method looks up an entry, dropping it if it expired too long ago
+     * to be served even stale, and counts the hit
+     *
+     * @param key the key to look up
+     * @return the entry, or null if there isn't a live one
+     */
+    public CacheEntry get(CacheKey key) {
+        return get(key, false);
+    }
+
+    /**
+     * This method looks up an entry that may have expired, as long as it
+     * expired no longer ago than the cache keeps stale entries
+     *
+     * @param key the key to look up
+     * @return the entry, or null if there isn't one young enough
+     */
+    public CacheEntry getStale(CacheKey key) {
+        return get(key, true);
+    }
+
+    /**
+     * This method copies a record out of its stripe and decodes it once the
+     * lock has been let go
+     *
+     * @param key the key to look up
+     * @param stale true to return the entry even if it has expired
+     * @return the entry, or null if there isn't a usable one
+     */
+    private CacheEntry get(CacheKey key, boolean stale) {
+        int hash = key.hashCode();
+        Stripe stripe = stripeFor(hash);
+        ByteBuffer scratch = SCRATCH.get();
+        long now = System.currentTimeMillis();
+        long location;
+        boolean tooStale = false;
+        stripe.lock.readLock().lock();
+        try {
+            int slot = stripe.find(key, hash);
+            if (slot < 0) {
+                return null;
+            }
+            location = stripe.locations[slot] - 1;
+            ByteBuffer segment = stripe.segments[segmentOf(location)];
+            int offset = offsetOf(location);
+            long expiresAt = segment.getLong(offset + EXPIRES_AT);
+            if (now - maxStaleMillis >= expiresAt) {
+                tooStale = true;
+            } else if (now >= expiresAt && !stale) {
+                return null;
+            } else {
+                if (!stale) {
+                    //Hits are counted without the write lock so one can be lost to a race, which only delays a refresh
+                    int hits = segment.get(offset + HITS);
+                    if (hits < CacheEntry.MAX_COUNTED_HITS) {
+                        segment.put(offset + HITS, (byte) (hits + 1));
+                    }
+                }
+                ByteBuffer record = segment.duplicate();
+                record.limit(offset + segment.getInt(offset + LENGTH)).position(offset);
+                scratch.clear();
+                scratch.put(record);
+                scratch.flip();
+            }
+        } finally {
+            stripe.lock.readLock().unlock();
+        }
+        if (tooStale) {
+            stripe.removeAt(hash, location);
+            return null;
+        }
+        return decode(key, hash, location, scratch);
+    }
+
+    public long getMaxStaleMillis() {
+        return maxStaleMillis;
+    }
+
+    /**
+     * This method stores an entry, replacing any entry for the same key.  An
+     * entry too large to keep is left out
+     *
+     * @param entry the entry to store
+     */
+    public void put(CacheEntry entry) {
+        ByteBuffer record = encode(entry);
+        if (record != null) {
+            int hash = entry.getKey().hashCode();
+            stripeFor(hash).put(entry.getKey(), hash, record);
+        }
+    }
+
+    /**
+     * This method caches a response if it can be cached, for as long as
+     * CacheEntry.fromResponse says
+     *
+     * @param question the question the response answers
+     * @param response the response to cache
+     * @return the entry that was stored, or null if the response wasn't
+     * cacheable
+     */
+    public CacheEntry put(Query question, Message response) {
+        CacheEntry entry = CacheEntry.fromResponse(question, response);
+        if (entry == null) {
+            return null;
+        }
+        ByteBuffer record = encode(entry);
+        if (record == null) {
+            return null;
+        }
+        int hash = entry.getKey().hashCode();
+        stripeFor(hash).put(entry.getKey(), hash, record);
+        return entry;
+    }
+
+    /**
+     * This method removes an entry
+     *
+     * @param key the key of the entry to remove
+     */
+    public void remove(CacheKey key) {
+        int hash = key.hashCode();
+        Stripe stripe = stripeFor(hash);
+        stripe.lock.writeLock().lock();
+        try {
+            int slot = stripe.find(key, hash);
+            if (slot >= 0) {
+                stripe.clear(slot);
+            }
+        } finally {
+            stripe.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * This method returns how many entries are held, including expired ones
+     * whose buffers haven't been reused yet
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.readLock().lock();
+            try {
+                size += stripe.live;
+            } finally {
+                stripe.lock.readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * This method returns how many bytes of off-heap memory the buffers
+     * taken so far hold
+     *
+     * @return the number of bytes
+     */
+    public long getAllocatedBytes() {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.readLock().lock();
+            try {
+                for (ByteBuffer segment : stripe.segments) {
+                    if (segment != null) {
+                        bytes += segment.capacity();
+                    }
+                }
+            } finally {
+                stripe.lock.readLock().unlock();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * This method writes every buffer to a snapshot file.  The snapshot is
+     * written next to the file and then moved over it, so a crash part way
+     * through leaves the last snapshot in place.  Each stripe is copied under
+     * its read lock, so lookups carry on while the copy is taken and only
+     * stores to that stripe wait for it
+     *
+     * @param file the file to write
+     *
+     * @throws IOException when the file can't be written
+     */
+    public void writeSnapshot(Path file) throws IOException {
+        int segmentSize = stripes[0].segmentSize;
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE);
+        header.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putInt(STRIPE_COUNT)
+                .putInt(SEGMENT_COUNT).putInt(segmentSize).putLong(System.currentTimeMillis());
+        ByteBuffer[] copies = new ByteBuffer[SEGMENT_COUNT];
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < STRIPE_COUNT; i++) {
+                Stripe stripe = stripes[i];
+                stripe.lock.readLock().lock();
+                try {
+                    header.putInt(stripe.current);
+                    for (int s = 0; s < SEGMENT_COUNT; s++) {
+                        header.putInt(stripe.segmentEnds[s]);
+                        if (copies[s] == null) {
+                            copies[s] = ByteBuffer.allocateDirect(segmentSize);
+                        }
+                        copies[s].clear();
+                        if (stripe.segments[s] != null) {
+                            ByteBuffer segment = stripe.segments[s].duplicate();
+                            segment.limit(stripe.segmentEnds[s]).position(0);
+                            copies[s].put(segment);
+                            stripe.markDead(s, copies[s]);
+                        }
+                        copies[s].flip();
+                    }
+                } finally {
+                    stripe.lock.readLock().unlock();
+                }
+                for (int s = 0; s < SEGMENT_COUNT; s++) {
+                    writeFully(channel, copies[s], segmentPosition(segmentSize, i, s));
+                }
+            }
+            header.flip();
+            writeFully(channel, header, 0);
+            //The file is made full length so every buffer can be mapped whole
+            writeFully(channel, ByteBuffer.allocate(1),
+                    segmentPosition(segmentSize, STRIPE_COUNT, 0) - 1);
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * This method replaces the contents of the cache with a snapshot, mapping
+     * each buffer from the file rather than reading it.  The file is mapped
+     * copy on write, so hits and new records never change it.  Records that
+     * expired too long ago to serve stale are left out of the index.  This is
+     * meant for startup, before the cache is in use
+     *
+     * @param file the snapshot to load
+     * @return the number of entries loaded
+     *
+     * @throws IOException when the file can't be read, or isn't a snapshot
+     * this cache can use
+     */
+    public int loadSnapshot(Path file) throws IOException {
+        int segmentSize = stripes[0].segmentSize;
+        Stripe[] loaded = new Stripe[STRIPE_COUNT];
+        int entries = 0;
+        //Copy on write mappings need a channel that could write, though the file never changes
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new IOException("Snapshot is truncated: " + file);
+                }
+            }
+            header.flip();
+            if (header.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a cache snapshot: " + file);
+            }
+            int version = header.getInt();
+            if (version != SNAPSHOT_VERSION) {
+                throw new IOException("Snapshot version " + version + " isn't version "
+                        + SNAPSHOT_VERSION + ": " + file);
+            }
+            if (header.getInt() != STRIPE_COUNT || header.getInt() != SEGMENT_COUNT
+                    || header.getInt() != segmentSize) {
+                throw new IOException("Snapshot was taken with a different capacity: " + file);
+            }
+            header.getLong();
+            if (channel.size() < segmentPosition(segmentSize, STRIPE_COUNT, 0)) {
+                throw new IOException("Snapshot is truncated: " + file);
+            }
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < STRIPE_COUNT; i++) {
+                Stripe stripe = new Stripe(segmentSize);
+                stripe.current = header.getInt();
+                if (stripe.current < 0 || stripe.current >= SEGMENT_COUNT) {
+                    throw new IOException("Snapshot is corrupt: " + file);
+                }
+                for (int s = 0; s < SEGMENT_COUNT; s++) {
+                    int end = header.getInt();
+                    if (end < 0 || end > segmentSize) {
+                        throw new IOException("Snapshot is corrupt: " + file);
+                    }
+                    stripe.segmentEnds[s] = end;
+                    if (end > 0) {
+                        stripe.segments[s] = channel.map(FileChannel.MapMode.PRIVATE,
+                                segmentPosition(segmentSize, i, s), segmentSize);
+                    }
+                }
+                //Oldest first, so the index ends up the way the stores left it
+                for (int k = 1; k <= SEGMENT_COUNT; k++) {
+                    int s = (stripe.current + k) % SEGMENT_COUNT;
+                    if (!stripe.index(s, now - maxStaleMillis)) {
+                        throw new IOException("Snapshot is corrupt: " + file);
+                    }
+                }
+                loaded[i] = stripe;
+                entries += stripe.live;
+            }
+        }
+        System.arraycopy(loaded, 0, stripes, 0, STRIPE_COUNT);
+        return entries;
+    }
+
+    /**
+     * This method works out where a buffer is kept in a snapshot
+     *
+     * @param segmentSize the size of each buffer
+     * @param stripe the stripe the buffer belongs to
+     * @param segment the buffer's place in the stripe's ring
+     * @return the position in the file
+     */
+    private static long segmentPosition(int segmentSize, int stripe, int segment) {
+        return SNAPSHOT_HEADER_SIZE + ((long) stripe * SEGMENT_COUNT + segment) * segmentSize;
+    }
+
+    /**
+     * This method writes the whole of a buffer to a file at a position
+     *
+     * @param channel the file to write
+     * @param buffer the bytes to write
+     * @param position where in the file to write them
+     *
+     * @throws IOException when the file can't be written
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * This method picks the stripe for a hash from its top bits, leaving the
+     * bottom bits for the index
+     *
+     * @param hash the hash of the key
+     * @return the stripe
+     */
+    private Stripe stripeFor(int hash) {
+        return stripes[stripeOf(hash)];
+    }
+
+    /**
+     * This method works out which stripe a hash belongs to
+     *
+     * @param hash the hash of the key
+     * @return the stripe's place in the cache
+     */
+    static int stripeOf(int hash) {
+        return (hash * 0x9E3779B9) >>> 28;
+    }
+
+    private static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offsetOf(long location) {
+        return (int) location;
+    }
+
+    /**
+     * This method writes an entry as a record into this thread's scratch
+     * buffer.  The records are written without compression so each record
+     * can be read on its own
+     *
+     * @param entry the entry to write
+     * @return the scratch buffer holding the record, or null if it is too
+     * large to keep
+     */
+    private static ByteBuffer encode(CacheEntry entry) {
+        ByteBuffer record = SCRATCH.get();
+        MessageEncoder encoder = ENCODER.get();
+        CacheKey key = entry.getKey();
+        record.clear();
+        try {
+            record.putInt(LENGTH, 0);
+            record.putInt(HASH, key.hashCode());
+            record.putLong(CREATED_AT, entry.getCreatedAt());
+            record.putLong(EXPIRES_AT, entry.getExpiresAt());
+            record.putLong(REFRESH_FAILED_AT, entry.getRefreshFailedAt());
+            record.put(HITS, (byte) Math.min(entry.getHits(), CacheEntry.MAX_COUNTED_HITS));
+            record.put(REFRESHING, (byte) (entry.isRefreshing() ? 1 : 0));
+            record.put(RETURN_CODE, (byte) entry.getReturnCode());
+            record.putShort(TYPE, (short) key.getType().getValue());
+            record.putShort(CLASS, (short) key.getDnsClass().getValue());
+            record.position(NAME);
+            key.getName().writeTo(record);
+            record.putShort(ANSWER_COUNT, (short) writeRecords(encoder, entry.getRecords(), record));
+            record.putShort(AUTHORITY_COUNT,
+                    (short) writeRecords(encoder, entry.getAuthorityRecords(), record));
+        } catch (BufferOverflowException | IllegalArgumentException e) {
+            return null;
+        }
+        record.putInt(LENGTH, record.position());
+        record.flip();
+        return record;
+    }
+
+    /**
+     * This method writes records one after another
+     *
+     * @param encoder the encoder to write with
+     * @param records the records to write
+     * @param out the buffer to write into
+     * @return the number of records written, leaving out types that can't be
+     * encoded
+     */
+    private static int writeRecords(MessageEncoder encoder, ArrayList<ResourceRecord> records,
+                                    ByteBuffer out) {
+        int written = 0;
+        for (ResourceRecord record : records) {
+            if (encoder.writeRecord(record, out)) {
+                written++;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * This method turns a record copied out of a stripe back into an entry
+     *
+     * @param key the key the record was found under
+     * @param hash the hash of the key
+     * @param location where the record sits, so changes can be written back
+     * @param record the copy of the record
+     * @return the entry
+     */
+    private CacheEntry decode(CacheKey key, int hash, long location, ByteBuffer record) {
+        int answerCount = record.getShort(ANSWER_COUNT) & 0xFFFF;
+        int authorityCount = record.getShort(AUTHORITY_COUNT) & 0xFFFF;
+        record.position(NAME + key.getName().getWireLength());
+        ArrayList<ResourceRecord> answers = new ArrayList<ResourceRecord>(answerCount);
+        for (int i = 0; i < answerCount; i++) {
+            answers.add(new ResourceRecord(record));
+        }
+        ArrayList<ResourceRecord> authority = new ArrayList<ResourceRecord>(authorityCount);
+        for (int i = 0; i < authorityCount; i++) {
+            authority.add(new ResourceRecord(record));
+        }
+        return new StoredEntry(key, answers, authority, record.get(RETURN_CODE),
+                record.getLong(CREATED_AT), record.getLong(EXPIRES_AT),
+                record.get(HITS), record.get(REFRESHING) != 0,
+                record.getLong(REFRESH_FAILED_AT), hash, location);
+    }
+
+    /**
+     * This is an entry decoded from a record, which writes the start of a
+     * refresh and a failed refresh back to the record so the next hit sees
+     * them
+     */
+    private final class StoredEntry extends CacheEntry {
+        /** This is the hash of the entry's key */
+        private final int hash;
+
+        /** This is where the record the entry came from sits */
+        private final long location;
+
+        private StoredEntry(CacheKey key, ArrayList<ResourceRecord> records,
+                            ArrayList<ResourceRecord> authorityRecords, int returnCode,
+                            long createdAt, long expiresAt, int hits, boolean refreshing,
+                            long refreshFailedAt, int hash, long location) {
+            super(key, records, authorityRecords, returnCode, createdAt, expiresAt,
+                    hits, refreshing, refreshFailedAt);
+            this.hash = hash;
+            this.location = location;
+        }
+
+        /**
+         * This method claims the refresh in the record itself, so of all the
+         * copies decoded from it only one starts a refresh.  A record that has
+         * since been replaced or dropped isn't refreshed
+         *
+         * @return true for the one caller that should refresh the entry
+         */
+        @Override
+        public boolean startRefresh() {
+            Stripe stripe = stripeFor(hash);
+            stripe.lock.writeLock().lock();
+            try {
+                ByteBuffer segment = stripe.recordAt(getKey(), hash, location);
+                int offset = offsetOf(location);
+                if (segment == null || segment.get(offset + REFRESHING) != 0) {
+                    return false;
+                }
+                segment.put(offset + REFRESHING, (byte) 1);
+            } finally {
+                stripe.lock.writeLock().unlock();
+            }
+            return super.startRefresh();
+        }
+
+        /**
+         * This method records the failed refresh in the record as well as in
+         * this copy
+         *
+         * @param now the current time in milliseconds since the epoch
+         */
+        @Override
+        public void markRefreshFailed(long now) {
+            super.markRefreshFailed(now);
+            Stripe stripe = stripeFor(hash);
+            stripe.lock.writeLock().lock();
+            try {
+                ByteBuffer segment = stripe.recordAt(getKey(), hash, location);
+                if (segment != null) {
+                    segment.putLong(offsetOf(location) + REFRESH_FAILED_AT, now);
+                }
+            } finally {
+                stripe.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * This is one stripe of the cache, its ring of buffers and the index of
+     * the records in them.  Every field is guarded by the stripe's lock
+     */
+    private static final class Stripe {
+        /** This guards the stripe, shared for lookups and exclusive for changes */
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        /** These are the buffers records are appended to, taken as they are needed */
+        private final ByteBuffer[] segments = new ByteBuffer[SEGMENT_COUNT];
+
+        /** This is where the records in each buffer end */
+        private final int[] segmentEnds = new int[SEGMENT_COUNT];
+
+        /** This is the size of each buffer */
+        private final int segmentSize;
+
+        /** This is the buffer records are being appended to */
+        private int current;
+
+        /** These are where each key's record sits plus 1, or EMPTY or REMOVED */
+        private long[] locations = new long[INITIAL_INDEX_SIZE];
+
+        /** These are the hashes of the keys in the index */
+        private int[] hashes = new int[INITIAL_INDEX_SIZE];
+
+        /** This is how many slots hold a record */
+        private int live;
+
+        /** This is how many slots aren't EMPTY, counting removed ones */
+        private int filled;
+
+        private Stripe(int segmentSize) {
+            this.segmentSize = segmentSize;
+        }
+
+        /**
+         * This method finds the index slot holding a key
+         *
+         * @param key the key to find
+         * @param hash the hash of the key
+         * @return the slot, or -1 if the key isn't held
+         */
+        private int find(CacheKey key, int hash) {
+            int mask = locations.length - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                long location = locations[slot];
+                if (location == EMPTY) {
+                    return -1;
+                }
+                if (location != REMOVED && hashes[slot] == hash
+                        && matches(location - 1, key)) {
+                    return slot;
+                }
+            }
+        }
+
+        /**
+         * This method checks whether the record at a location is for a key
+         *
+         * @param location where the record sits
+         * @param key the key to compare with
+         * @return true if the record is for the key
+         */
+        private boolean matches(long location, CacheKey key) {
+            ByteBuffer segment = segments[segmentOf(location)];
+            int offset = offsetOf(location);
+            return segment.getShort(offset + TYPE) == (short) key.getType().getValue()
+                    && segment.getShort(offset + CLASS) == (short) key.getDnsClass().getValue()
+                    && key.getName().matches(segment, offset + NAME);
+        }
+
+        /**
+         * This method finds the buffer holding a key's record, as long as
+         * the key still maps to the record at that location
+         *
+         * @param key the key of the record
+         * @param hash the hash of the key
+         * @param location where the record was
+         * @return the buffer, or null if the record was replaced or dropped
+         */
+        private ByteBuffer recordAt(CacheKey key, int hash, long location) {
+            int slot = find(key, hash);
+            if (slot < 0 || locations[slot] - 1 != location) {
+                return null;
+            }
+            return segments[segmentOf(location)];
+        }
+
+        /**
+         * This method appends a record and points its key at it, reusing the
+         * oldest buffer when the current one is full
+         *
+         * @param key the key of the record
+         * @param hash the hash of the key
+         * @param record the record, from its position to its limit
+         */
+        private void put(CacheKey key, int hash, ByteBuffer record) {
+            int length = record.remaining();
+            lock.writeLock().lock();
+            try {
+                if (segments[current] == null) {
+                    segments[current] = ByteBuffer.allocateDirect(segmentSize);
+                }
+                if (segmentEnds[current] + length > segmentSize) {
+                    current = (current + 1) % SEGMENT_COUNT;
+                    recycle(current);
+                }
+                ByteBuffer segment = segments[current];
+                int offset = segmentEnds[current];
+                segment.position(offset);
+                segment.put(record);
+                segmentEnds[current] = offset + length;
+                long location = ((long) current << 32) | offset;
+                int slot = find(key, hash);
+                if (slot >= 0) {
+                    locations[slot] = location + 1;
+                } else {
+                    add(hash, location);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * This method adds a location to the index for a key that isn't in
+         * it yet
+         *
+         * @param hash the hash of the record's key
+         * @param location where the record sits
+         */
+        private void add(int hash, long location) {
+            if (filled + 1 > locations.length * 3 / 4) {
+                resize();
+            }
+            int mask = locations.length - 1;
+            int slot = hash & mask;
+            while (locations[slot] != EMPTY && locations[slot] != REMOVED) {
+                slot = (slot + 1) & mask;
+            }
+            if (locations[slot] == EMPTY) {
+                filled++;
+            }
+            locations[slot] = location + 1;
+            hashes[slot] = hash;
+            live++;
+        }
+
+        /**
+         * This method empties a buffer for reuse, first dropping from the
+         * index every record in it that is still the one its key maps to
+         *
+         * @param segmentIndex the buffer to empty
+         */
+        private void recycle(int segmentIndex) {
+            ByteBuffer segment = segments[segmentIndex];
+            if (segment == null) {
+                segments[segmentIndex] = ByteBuffer.allocateDirect(segmentSize);
+                return;
+            }
+            int offset = 0;
+            while (offset < segmentEnds[segmentIndex]) {
+                long location = ((long) segmentIndex << 32) | offset;
+                int slot = slotOf(segment.getInt(offset + HASH), location);
+                if (slot >= 0) {
+                    clear(slot);
+                }
+                offset += segment.getInt(offset + LENGTH);
+            }
+            segmentEnds[segmentIndex] = 0;
+        }
+
+        /**
+         * This method removes a record if its key still maps to it, taking
+         * the write lock
+         *
+         * @param hash the hash of the record's key
+         * @param location where the record sits
+         */
+        private void removeAt(int hash, long location) {
+            lock.writeLock().lock();
+            try {
+                int slot = slotOf(hash, location);
+                if (slot >= 0) {
+                    clear(slot);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * This method marks the records in a copy of a buffer that the index
+         * no longer points to, and clears any refresh in progress since it
+         * won't outlive the process
+         *
+         * @param segmentIndex the buffer the copy was taken from
+         * @param copy the copy, from 0 to the end of its records
+         */
+        private void markDead(int segmentIndex, ByteBuffer copy) {
+            int offset = 0;
+            while (offset < copy.position()) {
+                long location = ((long) segmentIndex << 32) | offset;
+                if (slotOf(copy.getInt(offset + HASH), location) < 0) {
+                    copy.put(offset + FLAGS, DEAD);
+                }
+                copy.put(offset + REFRESHING, (byte) 0);
+                offset += copy.getInt(offset + LENGTH);
+            }
+        }
+
+        /**
+         * This method adds the live records of a buffer loaded from a
+         * snapshot to the index, checking each length as it goes
+         *
+         * @param segmentIndex the buffer to index
+         * @param expiredBefore records that expired before this time are left out
+         * @return false if a record runs past the end of the buffer
+         */
+        private boolean index(int segmentIndex, long expiredBefore) {
+            ByteBuffer segment = segments[segmentIndex];
+            int end = segmentEnds[segmentIndex];
+            int offset = 0;
+            while (offset < end) {
+                int length = segment.getInt(offset + LENGTH);
+                if (length <= NAME || length > end - offset) {
+                    return false;
+                }
+                if (segment.get(offset + FLAGS) != DEAD
+                        && segment.getLong(offset + EXPIRES_AT) > expiredBefore) {
+                    add(segment.getInt(offset + HASH), ((long) segmentIndex << 32) | offset);
+                }
+                offset += length;
+            }
+            return true;
+        }
+
+        /**
+         * This method finds the index slot pointing at a location
+         *
+         * @param hash the hash of the record's key
+         * @param location where the record sits
+         * @return the slot, or -1 if no slot points there
+         */
+        private int slotOf(int hash, long location) {
+            int mask = locations.length - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                if (locations[slot] == EMPTY) {
+                    return -1;
+                }
+                if (locations[slot] == location + 1) {
+                    return slot;
+                }
+            }
+        }
+
+        /**
+         * This method marks a slot removed, leaving its bytes to be
+         * overwritten when their buffer is reused
+         *
+         * @param slot the slot to clear
+         */
+        private void clear(int slot) {
+            locations[slot] = REMOVED;
+            live--;
+        }
+
+        /**
+         * This method rebuilds the index without its removed slots, doubling
+         * it if it is more than half full of records
+         */
+        private void resize() {
+            long[] oldLocations = locations;
+            int[] oldHashes = hashes;
+            int size = oldLocations.length;
+            if (live + 1 > size / 2) {
+                size *= 2;
+            }
+            locations = new long[size];
+            hashes = new int[size];
+            int mask = size - 1;
+            for (int i = 0; i < oldLocations.length; i++) {
+                if (oldLocations[i] != EMPTY && oldLocations[i] != REMOVED) {
+                    int slot = oldHashes[i] & mask;
+                    while (locations[slot] != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    locations[slot] = oldLocations[i];
+                    hashes[slot] = oldHashes[i];
+                }
+            }
+            filled = live;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package Cache;
+
+import Message.Class;
+import Message.DomainName;
+import Message.Header;
+import Message.Message;
+import Message.MessageEncoder;
+import Message.MessageView;
+import Message.Query;
+import Message.ResourceRecord;
+import Message.Type;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is a cache of replies kept fully encoded, so a server can answer a
+ * repeated question by copying bytes rather than building and encoding a
+ * Message.  On a hit the stored reply is copied out and then patched for the
+ * query being answered: the id and recursion desired flag are the query's,
+ * the question is copied from the query so its case matches, each TTL is
+ * counted down by the time the reply has been stored, and an OPT record is
+ * added if the query had one.
+ *
+ * Replies are only served for most of the TTL of the answer they came
+ * from, counted from when that answer was received upstream rather than
+ * from when the reply was stored.  The last part is left to the resolver
+ * behind the server, so a cache there sees the hits it needs to refresh a
+ * popular name before it expires, and a reply built from expired records
+ * is never stored at all
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class ResponseCache {
+    /** This is the default number of replies kept */
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    /** This is how much of a reply's TTL it is served for */
+    private static final double SERVE_FRACTION = 0.9;
+
+    /** This is the size of the header */
+    private static final int HEADER_SIZE = 12;
+
+    /** This is the size of an OPT record with no options */
+    private static final int OPT_SIZE = 11;
+
+    /** This is the view each thread reads queries through */
+    private static final ThreadLocal<MessageView> VIEW =
+            ThreadLocal.withInitial(MessageView::new);
+
+    /** This is the encoder each thread stores replies with */
+    private static final ThreadLocal<MessageEncoder> ENCODER =
+            ThreadLocal.withInitial(MessageEncoder::new);
+
+    /** This is the buffer each thread encodes replies into before they are stored */
+    private static final ThreadLocal<ByteBuffer> SCRATCH =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(64 * 1024));
+
+    /** These are the replies by question */
+    private final ConcurrentHashMap<CacheKey, Entry> entries;
+
+    /** This is the most replies kept */
+    private final int maxEntries;
+
+    /** This is the largest UDP payload the server says it takes in its OPT record */
+    private final int udpPayloadSize;
+
+    /** This is true while a thread is making room, so only one does at a time */
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    /** This is how many queries were answered from the cache */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** This is how many queries weren't */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * This constructor creates an empty cache
+     *
+     * @param maxEntries the most replies to keep
+     * @param udpPayloadSize the payload size to advertise in the OPT record
+     *                       of replies to queries that have one
+     */
+    public ResponseCache(int maxEntries, int udpPayloadSize) {
+        this.maxEntries = maxEntries;
+        this.udpPayloadSize = udpPayloadSize;
+        this.entries = new ConcurrentHashMap<CacheKey, Entry>(Math.min(maxEntries, 1 << 16));
+    }
+
+    /**
+     * This method answers a query from the cache if it can, writing the
+     * reply into a buffer.  Anything other than a plain query with one
+     * question, or a reply that wouldn't fit in the client's payload size, is
+     * left to the caller
+     *
+     * @param query the query, from index 0 to its limit, which isn't changed
+     * @param out the buffer to write the reply into from its position
+     * @return true if the reply was written
+     */
+    public boolean answer(ByteBuffer query, ByteBuffer out) {
+        MessageView view = VIEW.get();
+        Entry entry;
+        CacheKey key;
+        boolean edns = false;
+        int clientPayloadSize;
+        try {
+            view.wrap(query);
+            if (view.isResponse() || (query.get(2) & 0x78) != 0 || view.getQuestionCount() != 1
+                    || view.getAnswerCount() != 0 || view.getAuthorityCount() != 0) {
+                misses.incrementAndGet();
+                return false;
+            }
+            Type type = Type.parseType(view.getQuestionType(0));
+            if (type == null || type == Type.OPT) {
+                misses.incrementAndGet();
+                return false;
+            }
+            key = new CacheKey(view.getQuestionDomainName(0), type,
+                    Class.parseClass(view.getQuestionClass(0)));
+            for (int i = 0; i < view.getRecordCount(); i++) {
+                edns |= view.getRecordType(i) == Type.OPT.getValue();
+            }
+            clientPayloadSize = Math.min(view.getUdpPayloadSize(), udpPayloadSize);
+            entry = entries.get(key);
+        } catch (RuntimeException e) {
+            misses.incrementAndGet();
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (entry == null || now >= entry.serveUntil) {
+            if (entry != null) {
+                entries.remove(key, entry);
+            }
+            misses.incrementAndGet();
+            return false;
+        }
+        int length = entry.wire.length + (edns ? OPT_SIZE : 0);
+        if (length > clientPayloadSize || length > out.remaining()) {
+            misses.incrementAndGet();
+            return false;
+        }
+        int start = out.position();
+        out.put(entry.wire);
+        out.put(start, query.get(0));
+        out.put(start + 1, query.get(1));
+        out.put(start + 2, (byte) (entry.wire[2] & ~1 | query.get(2) & 1));
+        //The question in a query is never compressed, so it is as long as the stored one
+        for (int i = HEADER_SIZE; i < entry.questionEnd; i++) {
+            out.put(start + i, query.get(i));
+        }
+        long elapsed = (now - entry.storedAt) / 1000;
+        for (int offset : entry.ttlOffsets) {
+            long ttl = (out.getInt(start + offset) & 0xFFFFFFFFL) - elapsed;
+            out.putInt(start + offset, (int) Math.max(0, ttl));
+        }
+        if (edns) {
+            out.putShort(start + 10, (short) (out.getShort(start + 10) + 1));
+            out.put((byte) 0).putShort((short) Type.OPT.getValue())
+                    .putShort((short) udpPayloadSize).putInt(0).putShort((short) 0);
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * This method stores a reply built from an answer straight from a
+     * server
+     *
+     * @param question the question the reply answers
+     * @param reply the reply as it was sent
+     */
+    public void put(Query question, Message reply) {
+        put(question, reply, 0);
+    }
+
+    /**
+     * This method stores a reply if it can be cached, which takes a
+     * successful reply with answers or a negative reply with an SOA.  The
+     * answer's TTL is the smallest TTL in the reply plus its age, with the
+     * SOA's minimum field also counting for a negative reply, and the reply
+     * is kept for most of that counted from when the answer was received
+     *
+     * @param question the question the reply answers
+     * @param reply the reply as it was sent
+     * @param cacheAgeMillis how long the answer had been cached before the
+     *                       reply was built from it, 0 for a fresh answer
+     */
+    public void put(Query question, Message reply, long cacheAgeMillis) {
+        Header header = reply.getHeader();
+        int returnCode = header.getReturnCode();
+        if (header.isTruncated()
+                || (returnCode != Header.NO_ERROR && returnCode != Header.NAME_ERROR)) {
+            return;
+        }
+        boolean negative = reply.getAnswerResourceRecords().isEmpty();
+        long ttl = AnswerCache.MAX_TTL;
+        boolean hasSoa = false;
+        ArrayList<ResourceRecord> additional = new ArrayList<ResourceRecord>();
+        for (ResourceRecord record : reply.getAdditionalResourceRecords()) {
+            if (record.getType() != Type.OPT) {
+                additional.add(record);
+                ttl = Math.min(ttl, record.getTtl());
+            }
+        }
+        for (ResourceRecord record : reply.getAnswerResourceRecords()) {
+            ttl = Math.min(ttl, record.getTtl());
+        }
+        for (ResourceRecord record : reply.getAuthorityResourceRecords()) {
+            ttl = Math.min(ttl, record.getTtl());
+            if (record.getType() == Type.SOA) {
+                hasSoa = true;
+                if (negative) {
+                    ttl = Math.min(ttl, record.getSoaMinimum());
+                }
+            }
+        }
+        //An answer that has been cached a while is only served for what's left of its window
+        long serveMillis = (long) ((ttl * 1000 + cacheAgeMillis) * SERVE_FRACTION)
+                - cacheAgeMillis;
+        if ((negative && !hasSoa) || serveMillis <= 0) {
+            return;
+        }
+        ArrayList<Query> questions = new ArrayList<Query>(1);
+        questions.add(question);
+        Message stored = new Message(header, questions, reply.getAnswerResourceRecords(),
+                reply.getAuthorityResourceRecords(), additional);
+        ByteBuffer scratch = SCRATCH.get();
+        scratch.clear();
+        try {
+            ENCODER.get().encode(stored, scratch);
+        } catch (BufferOverflowException | IllegalArgumentException e) {
+            return;
+        }
+        scratch.flip();
+        if (scratch.remaining() + OPT_SIZE > udpPayloadSize) {
+            return;
+        }
+        MessageView view = VIEW.get().wrap(scratch);
+        int[] ttlOffsets = new int[view.getRecordCount()];
+        for (int i = 0; i < ttlOffsets.length; i++) {
+            //The TTL sits between the class and the data length, just before the data
+            ttlOffsets[i] = view.getRecordDataOffset(i) - 6;
+        }
+        byte[] wire = new byte[scratch.remaining()];
+        scratch.get(wire);
+        wire[0] = 0;
+        wire[1] = 0;
+        long now = System.currentTimeMillis();
+        int questionEnd = HEADER_SIZE + DomainName.of(question.getName()).getWireLength() + 4;
+        entries.put(new CacheKey(question),
+                new Entry(wire, ttlOffsets, questionEnd, now, now + serveMillis));
+        if (entries.size() > maxEntries) {
+            evict(now);
+        }
+    }
+
+    /**
+     * This method makes room by dropping replies that are past serving, and
+     * then, if that wasn't enough, whichever replies the map happens to list
+     * first
+     *
+     * @param now the current time in milliseconds since the epoch
+     */
+    private void evict(long now) {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            Iterator<Entry> values = entries.values().iterator();
+            while (values.hasNext()) {
+                if (now >= values.next().serveUntil) {
+                    values.remove();
+                }
+            }
+            //A tenth is dropped at once so this doesn't run on every store
+            int target = maxEntries - maxEntries / 10;
+            values = entries.values().iterator();
+            while (entries.size() > target && values.hasNext()) {
+                values.next();
+                values.remove();
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * This method removes the reply for a question
+     *
+     * @param key the question's key
+     */
+    public void remove(CacheKey key) {
+        entries.remove(key);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * This is one stored reply with what is needed to patch it
+     */
+    private static final class Entry {
+        /** This is the encoded reply with an id of 0 and no OPT record */
+        private final byte[] wire;
+
+        /** These are where each record's TTL is in the reply */
+        private final int[] ttlOffsets;
+
+        /** This is where the question ends, the header and question being copied from the query */
+        private final int questionEnd;
+
+        /** This is when the reply was stored, in milliseconds since the epoch */
+        private final long storedAt;
+
+        /** This is when the reply stops being served, in milliseconds since the epoch */
+        private final long serveUntil;
+
+        private Entry(byte[] wire, int[] ttlOffsets, int questionEnd, long storedAt,
+                      long serveUntil) {
+            this.wire = wire;
+            this.ttlOffsets = ttlOffsets;
+            this.questionEnd = questionEnd;
+            this.storedAt = storedAt;
+            this.serveUntil = serveUntil;
+        }
+    }
+}
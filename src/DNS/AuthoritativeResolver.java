@@ -0,0 +1,146 @@
+package DNS;
+
+import Message.DomainName;
+import Message.Header;
+import Message.Message;
+import Message.Query;
+import Message.ResourceRecord;
+import Zone.Zone;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This resolver answers authoritatively for the zones it serves and hands
+ * every other question to the resolver behind it, or refuses it if there
+ * isn't one.  The zone for a question is found by walking up from the name
+ * asked about, one hash lookup per label, so the closest enclosing zone
+ * answers when zones are nested.  Zones can be replaced while the resolver
+ * is in use, which is how a reloaded zone file is put in service.
+ *
+ * Questions of types Type doesn't know are still answered from a zone,
+ * with NODATA or NXDOMAIN, since whether the name exists doesn't depend on
+ * the type.  Outside every zone they can't be handed on, so they get
+ * NOTIMP, or REFUSED without a fallback
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class AuthoritativeResolver implements Resolver {
+    /** These are the zones served, by origin */
+    private final ConcurrentHashMap<DomainName, Zone> zones =
+            new ConcurrentHashMap<DomainName, Zone>();
+
+    /** This is the resolver for questions outside every zone, or null to refuse them */
+    private final Resolver fallback;
+
+    /**
+     * This constructor creates a resolver that serves some zones
+     *
+     * @param zones the zones to serve
+     * @param fallback the resolver for every other question, or null to
+     *                 refuse them
+     */
+    public AuthoritativeResolver(List<Zone> zones, Resolver fallback) {
+        for (Zone zone : zones) {
+            putZone(zone);
+        }
+        this.fallback = fallback;
+    }
+
+    /**
+     * This method starts serving a zone, replacing any zone with the same
+     * origin
+     *
+     * @param zone the zone to serve
+     */
+    public void putZone(Zone zone) {
+        zones.put(zone.getOrigin(), zone);
+    }
+
+    /**
+     * This method stops serving a zone
+     *
+     * @param origin the origin of the zone
+     */
+    public void removeZone(DomainName origin) {
+        zones.remove(origin);
+    }
+
+    /**
+     * This method finds the closest zone that holds a name
+     *
+     * @param name the name to look for
+     * @return the zone, or null if no zone served holds the name
+     */
+    public Zone findZone(DomainName name) {
+        for (DomainName zone = name; zone != null; zone = zone.getParent()) {
+            Zone found = zones.get(zone);
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * This method answers from the zone holding the name asked about, and
+     * otherwise asks the fallback or refuses
+     *
+     * @param question the question to answer
+     * @return the future that completes with the response
+     */
+    public CompletableFuture<Message> resolve(Query question) {
+        Zone zone = findZone(DomainName.of(question.getName()));
+        if (zone != null) {
+            return CompletableFuture.completedFuture(zone.lookup(question));
+        }
+        if (fallback == null) {
+            return CompletableFuture.completedFuture(emptyReply(question, Header.REFUSED));
+        }
+        if (question.getType() == null) {
+            return CompletableFuture.completedFuture(
+                    emptyReply(question, Header.NOT_IMPLEMENTED));
+        }
+        return fallback.resolve(question);
+    }
+
+    /**
+     * This method says recursion is only available when there is a fallback
+     * to answer names outside the zones
+     *
+     * @return true if there is a fallback
+     */
+    @Override
+    public boolean offersRecursion() {
+        return fallback != null;
+    }
+
+    /**
+     * This method takes questions of any type, since the zones can say
+     * whether their names exist whatever the type
+     *
+     * @return true
+     */
+    @Override
+    public boolean answersUnknownTypes() {
+        return true;
+    }
+
+    /**
+     * This method builds a response that carries only a return code
+     *
+     * @param question the question to echo
+     * @param returnCode the return code
+     * @return the response
+     */
+    private static Message emptyReply(Query question, int returnCode) {
+        ArrayList<Query> questions = new ArrayList<Query>(1);
+        questions.add(question);
+        Header header = new Header(true, 0, false, false, false, false, 0,
+                returnCode, 1, 0, 0, 0);
+        return new Message(header, questions, new ArrayList<ResourceRecord>(),
+                new ArrayList<ResourceRecord>(), new ArrayList<ResourceRecord>());
+    }
+}
@@ -0,0 +1,214 @@
+package DNS;
+
+import Message.Class;
+import Message.Message;
+import Message.Query;
+import Message.ResourceRecord;
+import Message.Type;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+
+/**
+ * This class resolves a stream of names through one Resolver, keeping up to
+ * a fixed number of queries in flight and writing each result as soon as it
+ * arrives.  Each input line holds a name and optionally a type, and each
+ * output line holds the name, type, return code and answer data.  A line
+ * naming a type that isn't implemented is written back with an error
+ * instead of being asked about as some other type
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class BatchLookup {
+    /** This is the resolver every query goes through */
+    private final Resolver resolver;
+
+    /** This is the type used for lines that don't name one */
+    private final Type defaultType;
+
+    /** This is the most queries allowed in flight at once */
+    private final int concurrency;
+
+    /** This is where results are written */
+    private final PrintWriter out;
+
+    /** This limits how many queries are in flight */
+    private final Semaphore window;
+
+    /** These are the latencies of the answered queries in nanoseconds */
+    private long[] latencies = new long[1024];
+
+    /** This is how many latencies have been recorded */
+    private int answered;
+
+    /** This is how many queries failed or timed out */
+    private int failed;
+
+    /** This is how many lines were turned away without being sent */
+    private int rejected;
+
+    /**
+     * This constructor sets up a batch run over an already open resolver
+     *
+     * @param resolver the resolver to send queries to
+     * @param defaultType the type for lines that don't name one
+     * @param concurrency the most queries to keep in flight
+     * @param out where to write each result
+     */
+    public BatchLookup(Resolver resolver, Type defaultType, int concurrency,
+                       PrintWriter out) {
+        this.resolver = resolver;
+        this.defaultType = defaultType;
+        this.concurrency = concurrency;
+        this.out = out;
+        this.window = new Semaphore(concurrency);
+    }
+
+    /**
+     * This method reads every line of the input, resolves it and waits for
+     * the last answer before returning a summary of the run
+     *
+     * @param input the names to resolve, one per line
+     * @return the summary of the run
+     *
+     * @throws IOException when the input can't be read
+     * @throws InterruptedException when interrupted while waiting for answers
+     */
+    public String run(BufferedReader input)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        int sent = 0;
+        String line;
+        while ((line = input.readLine()) != null) {
+            Query question;
+            try {
+                question = parseLine(line, defaultType);
+            } catch (IllegalArgumentException e) {
+                reject(line.trim(), e.getMessage());
+                continue;
+            }
+            if (question == null) {
+                continue;
+            }
+            String name = question.getName();
+            Type type = question.getType();
+            window.acquire();
+            long queryStart = System.nanoTime();
+            resolver.resolve(question)
+                    .whenComplete((response, error) -> {
+                        complete(name, type, response, error,
+                                System.nanoTime() - queryStart);
+                        window.release();
+                    });
+            sent++;
+        }
+        //Taking every permit means every query has finished
+        window.acquire(concurrency);
+        window.release(concurrency);
+        long elapsed = System.nanoTime() - start;
+        synchronized (this) {
+            out.flush();
+            return summarize(sent, elapsed);
+        }
+    }
+
+    /**
+     * This method reads one input line, a name and optionally a type
+     *
+     * @param line the line
+     * @param defaultType the type for a line that doesn't name one
+     * @return the question, or null for a blank line or a comment
+     *
+     * @throws IllegalArgumentException when the line names a type that
+     *                                  isn't implemented
+     */
+    public static Query parseLine(String line, Type defaultType) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+            return null;
+        }
+        String[] fields = line.split("\\s+");
+        Type type = fields.length > 1 ? Type.fromName(fields[1]) : defaultType;
+        if (type == null) {
+            throw new IllegalArgumentException("Unknown type " + fields[1]);
+        }
+        return new Query(fields[0], type, Class.IN);
+    }
+
+    /**
+     * This method writes a line that couldn't be sent, with why
+     *
+     * @param line the line
+     * @param reason why it couldn't be sent
+     */
+    private synchronized void reject(String line, String reason) {
+        rejected++;
+        out.println(line + " ERROR " + reason);
+    }
+
+    /**
+     * This method writes the result of one query and records its latency
+     *
+     * @param name the name that was looked up
+     * @param type the type that was looked up
+     * @param response the response, or null if the query failed
+     * @param error why the query failed, or null if it was answered
+     * @param latency how long the query took in nanoseconds
+     */
+    private synchronized void complete(String name, Type type, Message response,
+                                       Throwable error, long latency) {
+        if (error != null) {
+            failed++;
+            out.println(name + " " + type + " ERROR " + error.getMessage());
+            return;
+        }
+        if (answered == latencies.length) {
+            latencies = Arrays.copyOf(latencies, answered * 2);
+        }
+        latencies[answered++] = latency;
+        StringBuilder result = new StringBuilder();
+        result.append(name).append(' ').append(type).append(' ')
+                .append(response.getHeader().getReturnCode());
+        for (ResourceRecord record : response.getAnswerResourceRecords()) {
+            result.append(' ').append(record.getResourceData());
+        }
+        out.println(result);
+    }
+
+    /**
+     * This method builds the summary line with throughput and latency
+     * percentiles for the run
+     *
+     * @param sent the number of queries sent
+     * @param elapsed how long the run took in nanoseconds
+     * @return the readable summary
+     */
+    private String summarize(int sent, long elapsed) {
+        long[] sorted = Arrays.copyOf(latencies, answered);
+        Arrays.sort(sorted);
+        double seconds = elapsed / 1e9;
+        return String.format("Sent: %d Answered: %d Failed: %d Rejected: %d Time: %.3fs "
+                        + "Throughput: %.1f qps p50: %.3fms p99: %.3fms",
+                sent, answered, failed, rejected, seconds,
+                seconds > 0 ? answered / seconds : 0.0,
+                percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.99) / 1e6);
+    }
+
+    /**
+     * This method picks a percentile out of sorted latencies
+     *
+     * @param sorted the sorted latencies
+     * @param fraction the percentile as a fraction between 0 and 1
+     * @return the latency at that percentile, or 0 when there are none
+     */
+    static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
@@ -0,0 +1,348 @@
+package DNS;
+
+import Cache.AnswerStore;
+import Cache.CacheEntry;
+import Cache.CacheKey;
+import Message.Header;
+import Message.Message;
+import Message.Query;
+import Metrics.QueryMetrics;
+import Metrics.QueryMetrics.CacheOutcome;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This resolver answers from an AnswerStore when it can and only asks the
+ * resolver behind it on a miss, caching whatever comes back.
+ *
+ * An entry that has been hit often and is down to the last part of its TTL
+ * is refreshed in the background while it keeps being served, so a popular
+ * name is replaced before it expires and nobody waits for it.
+ *
+ * When the cache keeps expired entries, a question whose entry has expired
+ * is served stale as RFC 8767 describes.  The question still goes upstream,
+ * but if no answer arrives within the stale answer timeout, or the upstream
+ * fails, the expired records are returned with a short TTL.  The upstream
+ * answer is cached whenever it arrives.  After a failed attempt, the stale
+ * records are served straight away for a while without asking again
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class CachingResolver implements Resolver {
+    /** This is how much of an entry's TTL may be left when it is refreshed by default */
+    public static final double DEFAULT_REFRESH_FRACTION = 0.1;
+
+    /** This is how many hits make an entry worth refreshing by default */
+    public static final int DEFAULT_REFRESH_MIN_HITS = 2;
+
+    /** This is how long to wait for upstream before answering stale by default, 1.8 seconds as RFC 8767 suggests */
+    public static final long DEFAULT_STALE_ANSWER_TIMEOUT_MILLIS = 1800;
+
+    /** This is the stale answer timeout that turns serving stale off */
+    public static final long NEVER_SERVE_STALE = -1;
+
+    /** This is the TTL given to stale records, 30 seconds as RFC 8767 suggests */
+    private static final long STALE_TTL = 30;
+
+    /** This is how long stale records are served without asking upstream after a failure */
+    private static final long FAILURE_RECHECK_MILLIS = 30000;
+
+    /** This is the resolver asked on a cache miss */
+    private final Resolver upstream;
+
+    /** This is the cache answers are kept in */
+    private final AnswerStore cache;
+
+    /** This is how much of an entry's TTL may be left when it is refreshed, 0 for never */
+    private final double refreshFraction;
+
+    /** This is how many hits make an entry worth refreshing */
+    private final int refreshMinHits;
+
+    /** This is how long to wait for upstream before serving stale, or NEVER_SERVE_STALE */
+    private final long staleAnswerTimeoutMillis;
+
+    /** This is how many entries have been refreshed before they expired */
+    private final AtomicLong refreshes = new AtomicLong();
+
+    /** This is how many stale answers have been served */
+    private final AtomicLong staleAnswers = new AtomicLong();
+
+    /** This is where each lookup's outcome is recorded, or null */
+    private final QueryMetrics metrics;
+
+    /**
+     * This constructor puts a cache in front of another resolver, refreshing
+     * hot entries in their last tenth of TTL and serving stale after 1.8
+     * seconds if the cache keeps expired entries
+     *
+     * @param upstream the resolver to ask on a miss
+     * @param cache the cache to answer from
+     */
+    public CachingResolver(Resolver upstream, AnswerStore cache) {
+        this(upstream, cache, DEFAULT_REFRESH_FRACTION, DEFAULT_REFRESH_MIN_HITS);
+    }
+
+    /**
+     * This constructor puts a cache in front of another resolver with its
+     * own refresh settings
+     *
+     * @param upstream the resolver to ask on a miss
+     * @param cache the cache to answer from
+     * @param refreshFraction how much of an entry's TTL may be left when it
+     *                        is refreshed, 0 to never refresh
+     * @param refreshMinHits how many hits make an entry worth refreshing, at
+     *                       most CacheEntry.MAX_COUNTED_HITS
+     */
+    public CachingResolver(Resolver upstream, AnswerStore cache,
+                           double refreshFraction, int refreshMinHits) {
+        this(upstream, cache, refreshFraction, refreshMinHits,
+                DEFAULT_STALE_ANSWER_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * This constructor puts a cache in front of another resolver with its
+     * own refresh and serve stale settings.  Stale answers are only served
+     * if the cache keeps expired entries
+     *
+     * @param upstream the resolver to ask on a miss
+     * @param cache the cache to answer from
+     * @param refreshFraction how much of an entry's TTL may be left when it
+     *                        is refreshed, 0 to never refresh
+     * @param refreshMinHits how many hits make an entry worth refreshing, at
+     *                       most CacheEntry.MAX_COUNTED_HITS
+     * @param staleAnswerTimeoutMillis how long to wait for upstream before
+     *                                 answering stale, 0 to answer stale at
+     *                                 once, or NEVER_SERVE_STALE
+     */
+    public CachingResolver(Resolver upstream, AnswerStore cache,
+                           double refreshFraction, int refreshMinHits,
+                           long staleAnswerTimeoutMillis) {
+        this(upstream, cache, refreshFraction, refreshMinHits, staleAnswerTimeoutMillis, null);
+    }
+
+    /**
+     * This constructor puts a cache in front of another resolver with its
+     * own settings, recording whether each lookup was a hit, a miss or
+     * answered stale
+     *
+     * @param upstream the resolver to ask on a miss
+     * @param cache the cache to answer from
+     * @param refreshFraction how much of an entry's TTL may be left when it
+     *                        is refreshed, 0 to never refresh
+     * @param refreshMinHits how many hits make an entry worth refreshing, at
+     *                       most CacheEntry.MAX_COUNTED_HITS
+     * @param staleAnswerTimeoutMillis how long to wait for upstream before
+     *                                 answering stale, 0 to answer stale at
+     *                                 once, or NEVER_SERVE_STALE
+     * @param metrics where to record each lookup, or null for nowhere
+     */
+    public CachingResolver(Resolver upstream, AnswerStore cache,
+                           double refreshFraction, int refreshMinHits,
+                           long staleAnswerTimeoutMillis, QueryMetrics metrics) {
+        this.upstream = upstream;
+        this.metrics = metrics;
+        this.cache = cache;
+        this.refreshFraction = refreshFraction;
+        this.refreshMinHits = Math.min(refreshMinHits, CacheEntry.MAX_COUNTED_HITS);
+        this.staleAnswerTimeoutMillis = cache.getMaxStaleMillis() > 0
+                ? staleAnswerTimeoutMillis : NEVER_SERVE_STALE;
+    }
+
+    /**
+     * This method answers from the cache if there is a live entry, starting
+     * a refresh if the entry is due one, otherwise it asks upstream and
+     * caches the response
+     *
+     * @param question the question to answer
+     * @return the future that completes with the response, or fails when
+     * the question can't be a cache key
+     */
+    public CompletableFuture<Message> resolve(Query question) {
+        long start = System.nanoTime();
+        CacheKey key;
+        try {
+            key = new CacheKey(question);
+        } catch (IllegalArgumentException e) {
+            CompletableFuture<Message> failed = new CompletableFuture<Message>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        CacheEntry entry = cache.get(key);
+        if (entry != null) {
+            long now = System.currentTimeMillis();
+            if (refreshFraction > 0
+                    && entry.shouldRefresh(now, refreshFraction, refreshMinHits)
+                    && entry.startRefresh()) {
+                refresh(question, entry);
+            }
+            Message response = entry.toResponse(question, now);
+            recordLookup(CacheOutcome.HIT, start);
+            return CompletableFuture.completedFuture(response);
+        }
+        if (staleAnswerTimeoutMillis != NEVER_SERVE_STALE) {
+            CacheEntry stale = cache.getStale(key);
+            if (stale != null) {
+                return resolveOrServeStale(question, stale, start);
+            }
+        }
+        //A miss is recorded whether upstream answers or fails
+        return upstream.resolve(question).whenComplete((response, error) -> {
+            if (error == null) {
+                cache.put(question, response);
+            }
+            recordLookup(CacheOutcome.MISS, start);
+        });
+    }
+
+    /**
+     * This method asks upstream again for an entry that is still being
+     * served.  If the refresh fails the old entry just runs out its TTL
+     *
+     * @param question the question to ask again
+     * @param entry the entry being refreshed
+     */
+    private void refresh(Query question, CacheEntry entry) {
+        refreshes.incrementAndGet();
+        upstream.resolve(question).whenComplete((response, error) -> {
+            if (isUsable(response, error)) {
+                cache.put(question, response);
+            } else {
+                entry.markRefreshFailed(System.currentTimeMillis());
+            }
+        });
+    }
+
+    /**
+     * This method asks upstream for an expired entry and answers with
+     * whichever comes first, the upstream answer or the stale records once
+     * the stale answer timeout passes.  A failed upstream is answered stale
+     * straight away
+     *
+     * @param question the question to answer
+     * @param stale the expired entry
+     * @param start when the lookup started, in System.nanoTime
+     * @return the future that completes with the fresh or the stale response
+     */
+    private CompletableFuture<Message> resolveOrServeStale(Query question,
+                                                           CacheEntry stale, long start) {
+        Message staleResponse = stale.toStaleResponse(question, STALE_TTL);
+        if (System.currentTimeMillis() - stale.getRefreshFailedAt()
+                < FAILURE_RECHECK_MILLIS) {
+            staleAnswers.incrementAndGet();
+            recordLookup(CacheOutcome.STALE, start);
+            return CompletableFuture.completedFuture(staleResponse);
+        }
+        CompletableFuture<Message> result = new CompletableFuture<Message>();
+        ScheduledFuture<?> staleTimer = null;
+        if (staleAnswerTimeoutMillis == 0) {
+            serveStale(result, staleResponse, start);
+        } else {
+            staleTimer = StaleTimer.TIMER.schedule(
+                    () -> serveStale(result, staleResponse, start),
+                    staleAnswerTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        ScheduledFuture<?> timer = staleTimer;
+        upstream.resolve(question).whenComplete((response, error) -> {
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            if (isUsable(response, error)) {
+                cache.put(question, response);
+                if (result.complete(response)) {
+                    recordLookup(CacheOutcome.MISS, start);
+                }
+            } else {
+                stale.markRefreshFailed(System.currentTimeMillis());
+                serveStale(result, staleResponse, start);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * This method answers with the stale response unless an answer was
+     * already given
+     *
+     * @param result the future the caller is waiting on
+     * @param staleResponse the stale response
+     * @param start when the lookup started, in System.nanoTime
+     */
+    private void serveStale(CompletableFuture<Message> result, Message staleResponse,
+                            long start) {
+        if (result.complete(staleResponse)) {
+            staleAnswers.incrementAndGet();
+            recordLookup(CacheOutcome.STALE, start);
+        }
+    }
+
+    /**
+     * This method records how a lookup turned out, if there are metrics
+     *
+     * @param outcome how the lookup turned out
+     * @param start when the lookup started, in System.nanoTime
+     */
+    private void recordLookup(CacheOutcome outcome, long start) {
+        if (metrics != null) {
+            metrics.recordCacheLookup(outcome, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * This method checks whether an upstream answer can replace a cached
+     * one, which a failure or a server error can't
+     *
+     * @param response the response, or null if the query failed
+     * @param error why the query failed, or null
+     * @return true for an answer or NXDOMAIN
+     */
+    private static boolean isUsable(Message response, Throwable error) {
+        if (error != null) {
+            return false;
+        }
+        int returnCode = response.getHeader().getReturnCode();
+        return returnCode == Header.NO_ERROR || returnCode == Header.NAME_ERROR;
+    }
+
+    public long getStaleAnswers() {
+        return staleAnswers.get();
+    }
+
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    public AnswerStore getCache() {
+        return cache;
+    }
+
+    /**
+     * This class holds the timer for stale answers, so its thread is only
+     * started once something serves stale
+     */
+    private static class StaleTimer {
+        /** This fires the stale answers every CachingResolver waits on */
+        private static final ScheduledExecutorService TIMER = newTimer();
+
+        /**
+         * This method creates the timer with a daemon thread that drops
+         * cancelled tasks straight away
+         *
+         * @return the timer
+         */
+        private static ScheduledExecutorService newTimer() {
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "CachingResolver-stale-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.setRemoveOnCancelPolicy(true);
+            return timer;
+        }
+    }
+}
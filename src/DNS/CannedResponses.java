@@ -0,0 +1,152 @@
+package DNS;
+
+import Message.Class;
+import Message.Header;
+import Message.Message;
+import Message.Query;
+import Message.ResourceRecord;
+import Message.Type;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This is a set of responses shaped like the ones a resolver sees most: a
+ * plain A answer, a chain of CNAMEs ending in addresses, an MX answer with
+ * the mail servers' addresses, and a referral listing a zone's servers with
+ * their glue.  They are what a StubServer answers with when load testing
+ * locally, and what the message benchmarks parse and encode
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class CannedResponses {
+    /**
+     * This method builds a fresh copy of every response, so callers are free
+     * to change them
+     *
+     * @return the responses
+     */
+    public static List<Message> build() {
+        List<Message> responses = new ArrayList<Message>();
+        responses.add(addressResponse());
+        responses.add(cnameChainResponse());
+        responses.add(mxResponse());
+        responses.add(referralResponse());
+        return responses;
+    }
+
+    /**
+     * This method builds a response with two addresses for a name
+     *
+     * @return the response
+     */
+    private static Message addressResponse() {
+        Query question = new Query("www.example.com.", Type.A, Class.IN);
+        ArrayList<ResourceRecord> answers = new ArrayList<ResourceRecord>();
+        answers.add(record("www.example.com.", Type.A, 300, "93.184.216.34"));
+        answers.add(record("www.example.com.", Type.A, 300, "93.184.216.35"));
+        return response(question, answers, new ArrayList<ResourceRecord>(),
+                new ArrayList<ResourceRecord>(), true);
+    }
+
+    /**
+     * This method builds a response where the name asked about leads through
+     * two CNAMEs to a CDN's addresses
+     *
+     * @return the response
+     */
+    private static Message cnameChainResponse() {
+        Query question = new Query("www.shop.example.org.", Type.A, Class.IN);
+        ArrayList<ResourceRecord> answers = new ArrayList<ResourceRecord>();
+        answers.add(record("www.shop.example.org.", Type.CNAME, 3600,
+                "shop.example.org.cdn.example.net."));
+        answers.add(record("shop.example.org.cdn.example.net.", Type.CNAME, 300,
+                "e1234.a.cdn.example.net."));
+        answers.add(record("e1234.a.cdn.example.net.", Type.A, 20, "203.0.113.10"));
+        answers.add(record("e1234.a.cdn.example.net.", Type.A, 20, "203.0.113.11"));
+        answers.add(record("e1234.a.cdn.example.net.", Type.A, 20, "203.0.113.12"));
+        return response(question, answers, new ArrayList<ResourceRecord>(),
+                new ArrayList<ResourceRecord>(), true);
+    }
+
+    /**
+     * This method builds an MX response with the addresses of the mail
+     * servers in the additional section
+     *
+     * @return the response
+     */
+    private static Message mxResponse() {
+        Query question = new Query("example.com.", Type.MX, Class.IN);
+        ArrayList<ResourceRecord> answers = new ArrayList<ResourceRecord>();
+        answers.add(record("example.com.", Type.MX, 3600, "10 mx1.example.com."));
+        answers.add(record("example.com.", Type.MX, 3600, "20 mx2.example.com."));
+        answers.add(record("example.com.", Type.MX, 3600, "30 backup-mx.example.net."));
+        ArrayList<ResourceRecord> authority = new ArrayList<ResourceRecord>();
+        authority.add(record("example.com.", Type.NS, 86400, "ns1.example.com."));
+        authority.add(record("example.com.", Type.NS, 86400, "ns2.example.com."));
+        ArrayList<ResourceRecord> additional = new ArrayList<ResourceRecord>();
+        additional.add(record("mx1.example.com.", Type.A, 3600, "192.0.2.25"));
+        additional.add(record("mx2.example.com.", Type.A, 3600, "192.0.2.26"));
+        additional.add(record("ns1.example.com.", Type.A, 86400, "192.0.2.53"));
+        additional.add(record("ns2.example.com.", Type.A, 86400, "198.51.100.53"));
+        return response(question, answers, authority, additional, true);
+    }
+
+    /**
+     * This method builds the referral a TLD server gives for a name in a
+     * zone below it, with glue for the zone's servers
+     *
+     * @return the response
+     */
+    private static Message referralResponse() {
+        Query question = new Query("www.example.co.uk.", Type.A, Class.IN);
+        ArrayList<ResourceRecord> authority = new ArrayList<ResourceRecord>();
+        ArrayList<ResourceRecord> additional = new ArrayList<ResourceRecord>();
+        String[] addresses = {"192.0.2.1", "192.0.2.2", "198.51.100.1", "203.0.113.1"};
+        for (int i = 0; i < addresses.length; i++) {
+            String server = "ns" + (i + 1) + ".dns.example.co.uk.";
+            authority.add(record("example.co.uk.", Type.NS, 172800, server));
+            additional.add(record(server, Type.A, 172800, addresses[i]));
+        }
+        return response(question, new ArrayList<ResourceRecord>(), authority, additional,
+                false);
+    }
+
+    /**
+     * This method creates an Internet class record
+     *
+     * @param name the owner of the record
+     * @param type the type of the record
+     * @param ttl the TTL of the record in seconds
+     * @param data the readable data of the record
+     * @return the record
+     */
+    private static ResourceRecord record(String name, Type type, long ttl, String data) {
+        return new ResourceRecord(name, type, Class.IN, ttl, data);
+    }
+
+    /**
+     * This method puts sections together into a response with an OPT record
+     * at the end of the additional section
+     *
+     * @param question the question answered
+     * @param answers the answer section
+     * @param authority the authority section
+     * @param additional the additional section, which the OPT record is added to
+     * @param recursionAvailable true for a recursive server's answer, false
+     *                           for an authoritative server's referral
+     * @return the response
+     */
+    private static Message response(Query question, ArrayList<ResourceRecord> answers,
+                                    ArrayList<ResourceRecord> authority,
+                                    ArrayList<ResourceRecord> additional,
+                                    boolean recursionAvailable) {
+        additional.add(ResourceRecord.opt(1232));
+        ArrayList<Query> questions = new ArrayList<Query>(1);
+        questions.add(question);
+        Header header = new Header(true, 0, false, false, recursionAvailable,
+                recursionAvailable, 0, Header.NO_ERROR, 1, answers.size(),
+                authority.size(), additional.size());
+        return new Message(header, questions, answers, authority, additional);
+    }
+}
@@ -0,0 +1,107 @@
+package DNS;
+
+import Cache.CacheKey;
+import Message.Message;
+import Message.Query;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * This resolver makes sure only one query for each name, type and class is
+ * in flight upstream at a time.  The first question for a key goes to the
+ * resolver behind it, and any identical question asked before the answer
+ * arrives waits on that same answer instead of sending another query, so a
+ * burst of clients asking for a record that just expired costs the upstream
+ * a single query.  Every caller is handed the same response, which must not
+ * be changed
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class CoalescingResolver implements Resolver {
+    /** This is the resolver that actually answers the questions */
+    private final Resolver upstream;
+
+    /** These are the answers still on their way, keyed by question */
+    private final ConcurrentHashMap<CacheKey, CompletableFuture<Message>> inFlight =
+            new ConcurrentHashMap<CacheKey, CompletableFuture<Message>>();
+
+    /**
+     * This constructor puts coalescing in front of another resolver
+     *
+     * @param upstream the resolver to send the first of each question to
+     */
+    public CoalescingResolver(Resolver upstream) {
+        this.upstream = upstream;
+    }
+
+    /**
+     * This method joins the query already in flight for the same question,
+     * or sends a new one if there isn't one
+     *
+     * @param question the question to answer
+     * @return the future that completes with the response, a separate future
+     * for each caller so one caller can't complete or cancel it for the rest,
+     * or a failed one when the question can't be a key
+     */
+    public CompletableFuture<Message> resolve(Query question) {
+        CacheKey key;
+        try {
+            key = new CacheKey(question);
+        } catch (IllegalArgumentException e) {
+            CompletableFuture<Message> failed = new CompletableFuture<Message>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        CompletableFuture<Message> shared = inFlight.get(key);
+        if (shared == null) {
+            CompletableFuture<Message> leader = new CompletableFuture<Message>();
+            shared = inFlight.putIfAbsent(key, leader);
+            if (shared == null) {
+                shared = leader;
+                send(key, question, leader);
+            }
+        }
+        return shared.thenApply(Function.identity());
+    }
+
+    /**
+     * This method asks upstream and hands the answer to everyone waiting on
+     * it.  The key is released before the waiters run so a question asked
+     * after the answer arrived goes upstream again rather than getting a
+     * stale answer
+     *
+     * @param key the key the query is in flight under
+     * @param question the question to ask
+     * @param leader the future every caller is waiting on
+     */
+    private void send(CacheKey key, Query question, CompletableFuture<Message> leader) {
+        CompletableFuture<Message> response;
+        try {
+            response = upstream.resolve(question);
+        } catch (RuntimeException e) {
+            inFlight.remove(key, leader);
+            leader.completeExceptionally(e);
+            return;
+        }
+        response.whenComplete((message, error) -> {
+            inFlight.remove(key, leader);
+            if (error != null) {
+                leader.completeExceptionally(error);
+            } else {
+                leader.complete(message);
+            }
+        });
+    }
+
+    /**
+     * This method returns how many different questions are waiting on
+     * upstream
+     *
+     * @return the number of queries in flight
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+}
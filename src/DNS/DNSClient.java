@@ -0,0 +1,756 @@
+package DNS;
+
+import Message.Class;
+import Message.Header;
+import Message.Message;
+import Message.MessageEncoder;
+import Message.MessageView;
+import Message.Query;
+import Message.Type;
+import Metrics.QueryMetrics;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is a non-blocking DNS client that keeps many queries in flight on a
+ * single DatagramChannel.  Every query gets a transaction id that is unique
+ * among the queries currently waiting, and responses are matched back to
+ * their query by that id, the address they came from and the question they
+ * carry.  One I/O thread does all the receiving, so the futures handed out
+ * are completed on that thread.  A truncated answer is thrown away and the
+ * question is asked again over TCP.
+ *
+ * A query that isn't answered within the server's retransmission timeout,
+ * worked out from the RTTs measured to that server, is sent again with the
+ * timeout doubled and jittered each time, until the query's deadline passes
+ * and it fails with a SocketTimeoutException
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class DNSClient implements Resolver, Closeable {
+    /** This is the port DNS servers listen on */
+    public static final int DNS_PORT = 53;
+
+    /** This is the default time to keep sending a query before giving up */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 2000;
+
+    /**
+     * This is the UDP payload size advertised with EDNS(0) by default, the
+     * size recommended to avoid IP fragmentation on almost every path
+     */
+    public static final int DEFAULT_UDP_PAYLOAD_SIZE = 1232;
+
+    /** This is the socket receive buffer size asked of the operating system */
+    private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    /** This is the most servers RTTs are kept for before starting over */
+    private static final int MAX_RTT_ESTIMATES = 10000;
+
+    /** This is how far each retransmission timeout is randomly moved either way */
+    private static final double JITTER = 0.25;
+
+    /** This is the number of different transaction ids a header can hold */
+    private static final int ID_SPACE = 65536;
+
+    /** This is the encoder each sending thread reuses */
+    private static final ThreadLocal<MessageEncoder> ENCODER =
+            ThreadLocal.withInitial(MessageEncoder::new);
+
+    /** This is the buffer each sending thread encodes its queries into */
+    private static final ThreadLocal<ByteBuffer> SEND_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(Message.MIN_UDP_PAYLOAD_SIZE));
+
+    /** This is the server queries are sent to when none is given */
+    private final InetSocketAddress defaultUpstream;
+
+    /** This is how long to keep sending each query in milliseconds */
+    private final long timeoutMillis;
+
+    /** This is the UDP payload size advertised in queries this client builds */
+    private final int udpPayloadSize;
+
+    /** This is the channel every query is sent and received on */
+    private final DatagramChannel channel;
+
+    /** This is the selector the I/O thread waits on */
+    private final Selector selector;
+
+    /** This is the selection key for the channel */
+    private final SelectionKey selectionKey;
+
+    /** These are the queries waiting for an answer, keyed by transaction id */
+    private final Map<Integer, PendingQuery> pending =
+            new ConcurrentHashMap<Integer, PendingQuery>();
+
+    /** These are the queries the channel was too busy to take right away */
+    private final ConcurrentLinkedQueue<PendingQuery> backlog =
+            new ConcurrentLinkedQueue<PendingQuery>();
+
+    /** These are the RTTs measured to each server, which set its retransmission timeout */
+    private final Map<InetSocketAddress, Upstream> rttEstimates =
+            new ConcurrentHashMap<InetSocketAddress, Upstream>();
+
+    /** This is how many queries have been sent again */
+    private final AtomicLong retransmissions = new AtomicLong();
+
+    /** This is how many queries ran out of time */
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /** This fires the retransmissions and timeouts for queries that weren't answered */
+    private final ScheduledExecutorService timer;
+
+    /** This is the thread that reads responses off the channel */
+    private final Thread ioThread;
+
+    /** This carries queries whose UDP answers came back truncated */
+    private final TcpTransport tcpTransport;
+
+    /** This is the view the I/O thread reuses to check each response */
+    private final MessageView responseView = new MessageView();
+
+    /** This is where answers and timeouts are recorded, or null */
+    private final QueryMetrics metrics;
+
+    /** This is false once the client has been closed */
+    private volatile boolean running = true;
+
+    /**
+     * This constructor creates a client that sends to port 53 of the given
+     * server and uses the default timeout
+     *
+     * @param dnsIP the IP of the DNS server to send queries to
+     *
+     * @throws IOException when the channel can't be opened
+     */
+    public DNSClient(InetAddress dnsIP) throws IOException {
+        this(new InetSocketAddress(dnsIP, DNS_PORT), DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * This constructor creates a client bound to an ephemeral local port so
+     * that any number of clients can run on the same host
+     *
+     * @param defaultUpstream the server to send queries to when none is given
+     * @param timeoutMillis how long to keep sending each query
+     *
+     * @throws IOException when the channel can't be opened
+     */
+    public DNSClient(InetSocketAddress defaultUpstream, long timeoutMillis)
+            throws IOException {
+        this(defaultUpstream, timeoutMillis, DEFAULT_UDP_PAYLOAD_SIZE);
+    }
+
+    /**
+     * This constructor creates a client that advertises a UDP payload size
+     * with EDNS(0) and sizes its receive buffer to match
+     *
+     * @param defaultUpstream the server to send queries to when none is given
+     * @param timeoutMillis how long to keep sending each query
+     * @param udpPayloadSize the largest UDP answer to ask for, 512 to leave
+     *                       EDNS(0) off
+     *
+     * @throws IOException when the channel can't be opened
+     */
+    public DNSClient(InetSocketAddress defaultUpstream, long timeoutMillis,
+                     int udpPayloadSize) throws IOException {
+        this(defaultUpstream, timeoutMillis, udpPayloadSize, null);
+    }
+
+    /**
+     * This constructor creates a client that records how each server it
+     * asks is doing in a set of metrics
+     *
+     * @param defaultUpstream the server to send queries to when none is given
+     * @param timeoutMillis how long to keep sending each query
+     * @param udpPayloadSize the largest UDP answer to ask for, 512 to leave
+     *                       EDNS(0) off
+     * @param metrics where to record answers and timeouts, or null for nowhere
+     *
+     * @throws IOException when the channel can't be opened
+     */
+    public DNSClient(InetSocketAddress defaultUpstream, long timeoutMillis,
+                     int udpPayloadSize, QueryMetrics metrics) throws IOException {
+        this.defaultUpstream = defaultUpstream;
+        this.metrics = metrics;
+        this.timeoutMillis = timeoutMillis;
+        this.udpPayloadSize = Math.max(Message.MIN_UDP_PAYLOAD_SIZE, udpPayloadSize);
+        this.channel = DatagramChannel.open();
+        this.channel.configureBlocking(false);
+        //A large receive buffer lets bursts of answers queue while the I/O thread catches up
+        this.channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+        this.channel.bind(null);
+        this.selector = Selector.open();
+        this.selectionKey = channel.register(selector, SelectionKey.OP_READ);
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "DNSClient-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        //Nearly every timer is cancelled by its answer, so they shouldn't pile up in the queue
+        timer.setRemoveOnCancelPolicy(true);
+        this.timer = timer;
+        this.tcpTransport = new TcpTransport(timeoutMillis);
+        this.ioThread = new Thread(this::ioLoop, "DNSClient-io");
+        this.ioThread.setDaemon(true);
+        this.ioThread.start();
+    }
+
+    /**
+     * This method sends a recursive query for a name to the default server
+     *
+     * @param name the name to look up
+     * @param type the type of record to look for
+     * @return the future that completes with the response
+     */
+    public CompletableFuture<Message> query(String name, Type type) {
+        return query(newQuery(name, type, Class.IN));
+    }
+
+    /**
+     * This method sends a recursive query for a question to the default
+     * server
+     *
+     * @param question the question to ask
+     * @return the future that completes with the response
+     */
+    public CompletableFuture<Message> resolve(Query question) {
+        return resolve(question, defaultUpstream);
+    }
+
+    /**
+     * This method sends a recursive query for a question to a given server
+     *
+     * @param question the question to ask
+     * @param upstream the server to ask
+     * @return the future that completes with the response
+     */
+    public CompletableFuture<Message> resolve(Query question,
+                                              InetSocketAddress upstream) {
+        return query(newQuery(question.getName(), question.getType(),
+                question.getDnsClass()), upstream);
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * This method builds a recursive query, with an OPT record when this
+     * client takes answers larger than 512 bytes
+     *
+     * @param name the name to look up
+     * @param type the type of record to look for
+     * @param dnsClass the class of record to look for
+     * @return the query message
+     */
+    private Message newQuery(String name, Type type, Class dnsClass) {
+        Message message = new Message(name, type, dnsClass, true);
+        if (udpPayloadSize > Message.MIN_UDP_PAYLOAD_SIZE) {
+            message.setUdpPayloadSize(udpPayloadSize);
+        }
+        return message;
+    }
+
+    public int getUdpPayloadSize() {
+        return udpPayloadSize;
+    }
+
+    /**
+     * This method sends a query message to the default server
+     *
+     * @param message the query to send
+     * @return the future that completes with the response
+     */
+    public CompletableFuture<Message> query(Message message) {
+        return query(message, defaultUpstream);
+    }
+
+    /**
+     * This method sends a query message to a server without blocking.  The
+     * header id of the message is replaced with one that isn't in use
+     *
+     * @param message the query to send
+     * @param upstream the server to send it to
+     * @return the future that completes with the response, or exceptionally
+     * with a SocketTimeoutException if nothing comes back in time
+     */
+    public CompletableFuture<Message> query(Message message,
+                                            InetSocketAddress upstream) {
+        return query(message, upstream,
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+    }
+
+    /**
+     * This method sends a query message to a server, giving up at a deadline
+     * that may have been set by an earlier attempt at the same question
+     *
+     * @param message the query to send
+     * @param upstream the server to send it to
+     * @param deadline when to stop sending the query, from System.nanoTime
+     * @return the future that completes with the response, or exceptionally
+     * with a SocketTimeoutException if nothing comes back by the deadline
+     */
+    private CompletableFuture<Message> query(Message message, InetSocketAddress upstream,
+                                             long deadline) {
+        CompletableFuture<Message> future = new CompletableFuture<Message>();
+        if (!running) {
+            future.completeExceptionally(new ClosedChannelException());
+            return future;
+        }
+        if (message.getQuestions().isEmpty()) {
+            future.completeExceptionally(
+                    new IllegalArgumentException("Message has no question"));
+            return future;
+        }
+        PendingQuery pendingQuery = new PendingQuery(message, upstream, future);
+        if (!assignId(pendingQuery)) {
+            future.completeExceptionally(
+                    new IOException("No free transaction ids"));
+            return future;
+        }
+        pendingQuery.sentAt = System.nanoTime();
+        pendingQuery.deadline = deadline;
+        pendingQuery.retransmitTimeout = rttEstimate(upstream).getRetransmitTimeoutMillis();
+        scheduleRetransmit(pendingQuery);
+        transmit(pendingQuery);
+        return future;
+    }
+
+    /**
+     * This method encodes a query and sends it, or queues it for the I/O
+     * thread when the channel is busy
+     *
+     * @param pendingQuery the query to send
+     */
+    private void transmit(PendingQuery pendingQuery) {
+        try {
+            ByteBuffer packet = SEND_BUFFER.get();
+            packet.clear();
+            ENCODER.get().encode(pendingQuery.message, packet);
+            packet.flip();
+            //Only send directly when nothing is queued so packets go out in order
+            if (!backlog.isEmpty() || channel.send(packet, pendingQuery.upstream) == 0) {
+                //The shared send buffer is reused so a queued packet needs its own copy
+                ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+                copy.put(packet).flip();
+                pendingQuery.packet = copy;
+                backlog.add(pendingQuery);
+                selector.wakeup();
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(pendingQuery, e);
+        }
+    }
+
+    /**
+     * This method arms the timer for a query's next retransmission, never
+     * later than its deadline.  Each wait is moved by up to a quarter either
+     * way so queries that were lost together aren't sent again together
+     *
+     * @param pendingQuery the query to arm the timer for
+     */
+    private void scheduleRetransmit(PendingQuery pendingQuery) {
+        double jitter = 1 + JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        long delay = Math.min(
+                (long) (TimeUnit.MILLISECONDS.toNanos(pendingQuery.retransmitTimeout) * jitter),
+                pendingQuery.deadline - System.nanoTime());
+        pendingQuery.timeout = timer.schedule(() -> retransmit(pendingQuery),
+                Math.max(0, delay), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * This method sends a query that hasn't been answered again with the
+     * same id, doubling its timeout, or fails it once its deadline has passed
+     *
+     * @param pendingQuery the query that wasn't answered in time
+     */
+    private void retransmit(PendingQuery pendingQuery) {
+        if (pending.get(pendingQuery.id) != pendingQuery) {
+            return;
+        }
+        if (System.nanoTime() - pendingQuery.deadline >= 0) {
+            expire(pendingQuery);
+            return;
+        }
+        pendingQuery.attempts++;
+        pendingQuery.retransmitTimeout = Math.min(Upstream.MAX_RTO_MILLIS,
+                pendingQuery.retransmitTimeout * 2);
+        retransmissions.incrementAndGet();
+        rttEstimate(pendingQuery.upstream).recordRetransmit();
+        scheduleRetransmit(pendingQuery);
+        transmit(pendingQuery);
+    }
+
+    /**
+     * This method returns the RTT estimate for a server, starting one if the
+     * server is new
+     *
+     * @param upstream the server
+     * @return the server's estimate
+     */
+    private Upstream rttEstimate(InetSocketAddress upstream) {
+        Upstream estimate = rttEstimates.get(upstream);
+        if (estimate == null) {
+            //Iterative lookups meet endless servers, so the estimates are bounded
+            if (rttEstimates.size() >= MAX_RTT_ESTIMATES) {
+                rttEstimates.clear();
+            }
+            estimate = rttEstimates.computeIfAbsent(upstream, Upstream::new);
+        }
+        return estimate;
+    }
+
+    /**
+     * This method returns how a server has been doing, measured from this
+     * client's queries to it: RTTs from answers to queries sent only once,
+     * retransmissions and timeouts.  There is one estimate for each address,
+     * so anything ranking servers shares it rather than timing queries again
+     *
+     * @param upstream the server
+     * @return the server's estimate
+     */
+    public Upstream getUpstream(InetSocketAddress upstream) {
+        return rttEstimate(upstream);
+    }
+
+    /**
+     * This method returns the retransmission timeout currently used for a
+     * server's first attempt
+     *
+     * @param upstream the server
+     * @return the timeout in milliseconds
+     */
+    public long getRetransmitTimeoutMillis(InetSocketAddress upstream) {
+        return rttEstimate(upstream).getRetransmitTimeoutMillis();
+    }
+
+    public long getRetransmissions() {
+        return retransmissions.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * This method returns how many queries are waiting for an answer
+     *
+     * @return the number of queries in flight
+     */
+    public int getInFlight() {
+        return pending.size();
+    }
+
+    /**
+     * This method picks a random transaction id that no other waiting query
+     * is using and stores the query under it
+     *
+     * @param pendingQuery the query needing an id
+     * @return false if every id is already taken
+     */
+    private boolean assignId(PendingQuery pendingQuery) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int id = random.nextInt(ID_SPACE);
+        for (int i = 0; i < ID_SPACE; i++) {
+            int candidate = (id + i) & 0xFFFF;
+            if (pending.putIfAbsent(candidate, pendingQuery) == null) {
+                pendingQuery.id = candidate;
+                pendingQuery.message.getHeader().setId(candidate);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * This is the loop run by the I/O thread.  It reads every response that
+     * is ready and sends anything that was left in the backlog
+     */
+    private void ioLoop() {
+        ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(udpPayloadSize);
+        while (running) {
+            try {
+                selectionKey.interestOps(backlog.isEmpty()
+                        ? SelectionKey.OP_READ
+                        : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                selector.select();
+                selector.selectedKeys().clear();
+                if (!running) {
+                    break;
+                }
+                readResponses(receiveBuffer);
+                flushBacklog();
+            } catch (IOException e) {
+                if (running) {
+                    failAll(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * This method reads datagrams until the channel has none left and hands
+     * each to the query waiting on it
+     *
+     * @param receiveBuffer the buffer to read into
+     *
+     * @throws IOException when the channel can't be read
+     */
+    private void readResponses(ByteBuffer receiveBuffer) throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress from = channel.receive(receiveBuffer);
+            if (from == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            //Anything shorter than a header can't be matched to a query
+            if (receiveBuffer.remaining() < 12) {
+                continue;
+            }
+            int id = receiveBuffer.getShort(0) & 0xFFFF;
+            PendingQuery pendingQuery = pending.get(id);
+            if (pendingQuery == null || !pendingQuery.upstream.equals(from)) {
+                continue;
+            }
+            //The view checks the question in place so stray packets are never decoded
+            Message response;
+            try {
+                responseView.wrap(receiveBuffer);
+                if (!responseView.isResponse()
+                        || !responseView.questionMatches(pendingQuery.question())) {
+                    //This looks like a stray or spoofed packet so keep waiting
+                    continue;
+                }
+                if (responseView.isTruncated()) {
+                    retryOverTcp(pendingQuery);
+                    continue;
+                }
+                if (responseView.getReturnCode() == Header.FORMAT_ERROR
+                        && pendingQuery.message.getEdns() != null) {
+                    retryWithoutEdns(pendingQuery);
+                    continue;
+                }
+                response = responseView.toMessage();
+            } catch (RuntimeException e) {
+                //A packet that can't be parsed may be spoofed too, so it is dropped the same way
+                continue;
+            }
+            if (pending.remove(id, pendingQuery)) {
+                pendingQuery.timeout.cancel(false);
+                //Karn's rule, an answer to a query sent more than once can't be timed
+                if (pendingQuery.attempts == 1) {
+                    rttEstimate(pendingQuery.upstream)
+                            .recordSuccess(System.nanoTime() - pendingQuery.sentAt);
+                }
+                if (metrics != null) {
+                    metrics.recordUpstreamAnswer(pendingQuery.upstream,
+                            System.nanoTime() - pendingQuery.sentAt);
+                }
+                pendingQuery.future.complete(response);
+            }
+        }
+    }
+
+    /**
+     * This method asks the same question again over TCP after a truncated
+     * answer, handing the TCP answer to the query's future
+     *
+     * @param pendingQuery the query whose answer was truncated
+     */
+    private void retryOverTcp(PendingQuery pendingQuery) {
+        if (!pending.remove(pendingQuery.id, pendingQuery)) {
+            return;
+        }
+        pendingQuery.timeout.cancel(false);
+        tcpTransport.query(pendingQuery.message, pendingQuery.upstream)
+                .whenComplete((response, error) -> {
+                    if (error != null) {
+                        pendingQuery.future.completeExceptionally(error);
+                    } else {
+                        pendingQuery.future.complete(response);
+                    }
+                });
+    }
+
+    /**
+     * This method asks the same question again without the OPT record, for
+     * servers that answer FORMERR because they don't understand EDNS(0).  The
+     * retry keeps the first attempt's deadline, so a late FORMERR can't
+     * stretch the query past the client's timeout
+     *
+     * @param pendingQuery the query that was refused
+     */
+    private void retryWithoutEdns(PendingQuery pendingQuery) {
+        if (!pending.remove(pendingQuery.id, pendingQuery)) {
+            return;
+        }
+        pendingQuery.timeout.cancel(false);
+        pendingQuery.message.removeEdns();
+        query(pendingQuery.message, pendingQuery.upstream, pendingQuery.deadline)
+                .whenComplete((response, error) -> {
+                    if (error != null) {
+                        pendingQuery.future.completeExceptionally(error);
+                    } else {
+                        pendingQuery.future.complete(response);
+                    }
+                });
+    }
+
+    /**
+     * This method sends as much of the backlog as the channel will take
+     *
+     * @throws IOException when the channel can't be written
+     */
+    private void flushBacklog() throws IOException {
+        PendingQuery pendingQuery;
+        while ((pendingQuery = backlog.peek()) != null) {
+            //A query sent again while queued is in the queue twice with one packet to send
+            ByteBuffer packet = pendingQuery.packet;
+            if (!pendingQuery.future.isDone() && packet.hasRemaining()
+                    && channel.send(packet, pendingQuery.upstream) == 0) {
+                return;
+            }
+            backlog.poll();
+        }
+    }
+
+    /**
+     * This method fails a query that ran out of time
+     *
+     * @param pendingQuery the query that timed out
+     */
+    private void expire(PendingQuery pendingQuery) {
+        if (pending.remove(pendingQuery.id, pendingQuery)) {
+            timeouts.incrementAndGet();
+            rttEstimate(pendingQuery.upstream).recordFailure();
+            if (metrics != null) {
+                metrics.recordUpstreamTimeout(pendingQuery.upstream);
+            }
+            pendingQuery.future.completeExceptionally(new SocketTimeoutException(
+                    "No response from " + pendingQuery.upstream + " after "
+                            + pendingQuery.attempts + " attempts within "
+                            + timeoutMillis + "ms"));
+        }
+    }
+
+    /**
+     * This method fails a single query with the given cause
+     *
+     * @param pendingQuery the query to fail
+     * @param cause why it failed
+     */
+    private void fail(PendingQuery pendingQuery, Throwable cause) {
+        if (pending.remove(pendingQuery.id, pendingQuery)) {
+            if (pendingQuery.timeout != null) {
+                pendingQuery.timeout.cancel(false);
+            }
+            pendingQuery.future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * This method fails every query still waiting
+     *
+     * @param cause why they failed
+     */
+    private void failAll(Throwable cause) {
+        Iterator<PendingQuery> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            fail(iterator.next(), cause);
+        }
+        backlog.clear();
+    }
+
+    /**
+     * This method stops the I/O thread, closes the channel and fails every
+     * query that was still waiting
+     */
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            ioThread.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        timer.shutdownNow();
+        tcpTransport.close();
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException ignored) {
+
+        }
+        failAll(new ClosedChannelException());
+    }
+
+    /**
+     * This class holds everything needed to match a response to the query
+     * that asked for it
+     */
+    private static class PendingQuery {
+        /** This is the query that was sent */
+        private final Message message;
+
+        /** This is the server the query was sent to */
+        private final InetSocketAddress upstream;
+
+        /** This is the future handed back to the caller */
+        private final CompletableFuture<Message> future;
+
+        /** This is the transaction id assigned to the query */
+        private int id;
+
+        /** This is the encoded query, kept in case it has to wait to be sent */
+        private ByteBuffer packet;
+
+        /** This is the task that sends the query again or fails it if it isn't answered */
+        private volatile ScheduledFuture<?> timeout;
+
+        /** This is when the query was first sent, from System.nanoTime */
+        private long sentAt;
+
+        /** This is when the query stops being sent again, from System.nanoTime */
+        private long deadline;
+
+        /** This is how long to wait before the next retransmission in milliseconds */
+        private long retransmitTimeout;
+
+        /** This is how many times the query has been sent */
+        private volatile int attempts = 1;
+
+        private PendingQuery(Message message, InetSocketAddress upstream,
+                             CompletableFuture<Message> future) {
+            this.message = message;
+            this.upstream = upstream;
+            this.future = future;
+        }
+
+        private Query question() {
+            return message.getQuestions().get(0);
+        }
+    }
+}
@@ -2,8 +2,9 @@ package DNS;
 
 import Message.Message;
 import java.io.IOException;
-import java.net.*;
-import java.nio.ByteBuffer;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ExecutionException;
 
 /**
  * This is the main part of the program.  This handles all the other classes that are needed for the Lookup
@@ -21,9 +22,6 @@ public class DNSLookup {
     /** This is the IP of the DNS Server to lookup with */
     private InetAddress dnsIP;
 
-    /** This is the datagram socket for the DNS lookup */
-    private DatagramSocket datagramSocket;
-
     /**
      * This is the constructor that sets an object up to hold the values needed for a DNS Lookup
      *
@@ -34,32 +32,31 @@ public class DNSLookup {
      * @throws UnknownHostException when the dnsIP isn't valid for an InetAddress
      */
     public DNSLookup(String dnsIP, String hostname, String messageType)
-            throws UnknownHostException, SocketException {
+            throws UnknownHostException {
         this.hostname = hostname;
         this.messageType = messageType;
         this.dnsIP = InetAddress.getByName(dnsIP);
-        this.datagramSocket = new DatagramSocket(5053);
-        this.datagramSocket.setSoTimeout(500);
     }
 
     /**
      * This method sends a datagram to the specified DNS Server and then
      * Parses and prints the response to the user
+     *
+     * @throws IOException when the client's channel can't be opened
      */
-    public void queryDNS() {
+    public void queryDNS() throws IOException {
         Message message = new Message(hostname,messageType,true);
-        DatagramPacket datagramPacket = new DatagramPacket(message
-                    .getByteBuffer().array(),message
-                    .getByteBuffer().array().length, dnsIP,53);
-            try {
-                this.datagramSocket.send(datagramPacket);
-                this.datagramSocket.receive(datagramPacket);
-                Message response = new Message(ByteBuffer.wrap(datagramPacket
-                        .getData()));
-                System.out.println(response.toString());
-            } catch (IOException e) {
-
-            }
-
+        message.setUdpPayloadSize(DNSClient.DEFAULT_UDP_PAYLOAD_SIZE);
+        DNSClient client = new DNSClient(dnsIP);
+        try {
+            Message response = client.query(message).get();
+            System.out.println(response.toString());
+        } catch (ExecutionException e) {
+            System.out.println("Lookup failed: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            client.close();
+        }
     }
 }
@@ -1,7 +1,42 @@
 package DNS;
 
-import java.net.SocketException;
+import Cache.AnswerCache;
+import Cache.AnswerStore;
+import Cache.CacheSnapshotter;
+import Cache.DelegationCache;
+import Cache.OffHeapAnswerCache;
+import Cache.ResponseCache;
+import Message.Class;
+import Message.Message;
+import Message.Query;
+import Message.Type;
+import Metrics.MetricsHttpServer;
+import Metrics.MetricsMBean;
+import Metrics.QueryMetrics;
+import Zone.Zone;
+import Zone.ZoneLoader;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
 
 /**
  * This class runs the DNSLookup
@@ -10,23 +45,549 @@ import java.net.UnknownHostException;
  * @version 1.0
  */
 public class DanielDNSDriver {
+    /** This is the number of queries kept in flight by batch mode by default */
+    private static final int DEFAULT_CONCURRENCY = 256;
+
+    /** This is how often authoritative mode checks its zone files for changes */
+    private static final long ZONE_CHECK_MILLIS = 5000;
+
+    /** This is how long load mode sends queries for by default, in seconds */
+    private static final long DEFAULT_LOAD_SECONDS = 10;
+
     /**
      * This method takes in User input to try and resolve a DNS query
      * @param args this takes in the IP for the DNS Server, the lookup name
      *             or domain name to resolve, and the type of DNS query to send
      */
     public static void main(String[] args) {
-        if(args.length < 3) {
-            System.out.println("usage: DNS.DanielDNSDriver <dnsIP> <lookupName> <lookupType>");
+        if(args.length > 0 && args[0].equals("-batch")) {
+            runBatch(args);
+        } else if(args.length > 0 && args[0].equals("-iterative")) {
+            runIterative(args);
+        } else if(args.length > 0 && args[0].equals("-server")) {
+            runServer(args);
+        } else if(args.length > 0 && args[0].equals("-authoritative")) {
+            runAuthoritative(args);
+        } else if(args.length > 0 && args[0].equals("-load")) {
+            runLoad(args);
+        } else if(args.length < 3) {
+            printUsage();
         } else {
             try {
                 DNSLookup dnsLookup = new DNSLookup(args[0],args[1],args[2]);
                 dnsLookup.queryDNS();
             } catch (UnknownHostException e) {
                 System.out.println("Unknown Host Exception: Invalid DNS IP");
-            } catch (SocketException e) {
-                System.out.println("Socket Exception: Couldn't create Socket");
+            } catch (IOException e) {
+                System.out.println("IO Exception: Couldn't create Socket");
+            }
+        }
+    }
+
+    /**
+     * This method resolves every name in a file, or stdin when the file is
+     * "-", and prints the summary of the run to stderr
+     *
+     * @param args -batch, the DNS IPs separated by commas, the file, and
+     *             optionally the default type and the number of queries to
+     *             keep in flight
+     */
+    private static void runBatch(String[] args) {
+        if(args.length < 3) {
+            printUsage();
+            return;
+        }
+        Type type = args.length > 3 ? Type.fromName(args[3]) : Type.A;
+        if (type == null) {
+            System.out.println("Invalid type: " + args[3]);
+            return;
+        }
+        int concurrency = DEFAULT_CONCURRENCY;
+        if(args.length > 4) {
+            try {
+                concurrency = Integer.parseInt(args[4]);
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid concurrency: " + args[4]);
+                return;
+            }
+        }
+        DNSClient client = null;
+        MultiUpstreamResolver multiUpstream = null;
+        try {
+            List<InetSocketAddress> upstreams = parseUpstreams(args[1]);
+            client = new DNSClient(upstreams.get(0), DNSClient.DEFAULT_TIMEOUT_MILLIS);
+            multiUpstream = upstreams.size() > 1
+                    ? new MultiUpstreamResolver(client, upstreams, true) : null;
+            InputStream inputStream = args[2].equals("-")
+                    ? System.in : new FileInputStream(args[2]);
+            PrintWriter out = new PrintWriter(new BufferedWriter(
+                    new OutputStreamWriter(System.out)));
+            try (BufferedReader input = new BufferedReader(
+                    new InputStreamReader(inputStream))) {
+                //Log files repeat names a lot so batch runs go through a cache
+                BatchLookup batchLookup = new BatchLookup(
+                        new CachingResolver(new CoalescingResolver(
+                                multiUpstream != null ? multiUpstream : client),
+                                new AnswerCache()), type, concurrency, out);
+                System.err.println(batchLookup.run(input));
+            }
+        } catch (UnknownHostException e) {
+            System.out.println("Unknown Host Exception: Invalid DNS IP");
+        } catch (IOException e) {
+            System.out.println("IO Exception: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (multiUpstream != null) {
+                multiUpstream.close();
+            }
+            if (client != null) {
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * This method resolves one name starting from the root servers instead of
+     * asking a recursive server, and prints the final response
+     *
+     * @param args -iterative, the lookup name, the lookup type, and
+     *             optionally the IP of a root server to start from instead of
+     *             the built in root hints
+     */
+    private static void runIterative(String[] args) {
+        if(args.length < 3) {
+            printUsage();
+            return;
+        }
+        DNSClient client = null;
+        try {
+            List<InetSocketAddress> roots = args.length > 3
+                    ? Collections.singletonList(new InetSocketAddress(
+                            InetAddress.getByName(args[3]), DNSClient.DNS_PORT))
+                    : IterativeResolver.rootHints();
+            client = new DNSClient(roots.get(0), DNSClient.DEFAULT_TIMEOUT_MILLIS);
+            IterativeResolver resolver = new IterativeResolver(client,
+                    new DelegationCache(roots));
+            Message response = resolver.resolve(
+                    new Query(args[1], Type.parseType(args[2]), Class.IN)).get();
+            System.out.println(response.toString());
+        } catch (UnknownHostException e) {
+            System.out.println("Unknown Host Exception: Invalid root server IP");
+        } catch (IOException e) {
+            System.out.println("IO Exception: Couldn't create Socket");
+        } catch (ExecutionException e) {
+            System.out.println("Lookup failed: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (client != null) {
+                client.close();
             }
         }
     }
+
+    /**
+     * This method runs a caching forwarder that answers queries on a port,
+     * over UDP and TCP, from its cache, asking the given DNS server on a miss, until the
+     * process is stopped
+     *
+     * @param args -server, the DNS IPs to forward to separated by commas,
+     *             and optionally the port to listen on, the number of
+     *             worker threads, a file to keep a snapshot of the cache
+     *             in across restarts or "-" for none, and a port to serve
+     *             metrics over HTTP on
+     */
+    private static void runServer(String[] args) {
+        if(args.length < 2) {
+            printUsage();
+            return;
+        }
+        int port = DNSClient.DNS_PORT;
+        int workers = Runtime.getRuntime().availableProcessors();
+        int metricsPort = -1;
+        try {
+            if(args.length > 2) {
+                port = Integer.parseInt(args[2]);
+            }
+            if(args.length > 3) {
+                workers = Integer.parseInt(args[3]);
+            }
+            if(args.length > 5) {
+                metricsPort = Integer.parseInt(args[5]);
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number: " + e.getMessage());
+            return;
+        }
+        OffHeapAnswerCache cache = new OffHeapAnswerCache(
+                OffHeapAnswerCache.DEFAULT_CAPACITY_BYTES, AnswerCache.DEFAULT_MAX_STALE);
+        CacheSnapshotter snapshotter = null;
+        if(args.length > 4 && !args[4].equals("-")) {
+            Path snapshot = Paths.get(args[4]);
+            if (Files.exists(snapshot)) {
+                try {
+                    System.err.println("Loaded " + cache.loadSnapshot(snapshot)
+                            + " cached answers from " + snapshot);
+                } catch (IOException e) {
+                    System.err.println("Starting with an empty cache: " + e.getMessage());
+                }
+            }
+            snapshotter = new CacheSnapshotter(cache, snapshot,
+                    CacheSnapshotter.DEFAULT_INTERVAL_MILLIS);
+            //The last snapshot is written as the process is stopped
+            Runtime.getRuntime().addShutdownHook(new Thread(snapshotter::close));
+        }
+        DNSClient client = null;
+        MultiUpstreamResolver multiUpstream = null;
+        ForwardingServer server = null;
+        MetricsHttpServer metricsServer = null;
+        try {
+            QueryMetrics metrics = new QueryMetrics();
+            List<InetSocketAddress> upstreams = parseUpstreams(args[1]);
+            client = new DNSClient(upstreams.get(0), DNSClient.DEFAULT_TIMEOUT_MILLIS,
+                    DNSClient.DEFAULT_UDP_PAYLOAD_SIZE, metrics);
+            multiUpstream = upstreams.size() > 1
+                    ? new MultiUpstreamResolver(client, upstreams, true) : null;
+            server = startForwarder(new InetSocketAddress(port), workers, client,
+                    multiUpstream, cache, metrics);
+            MetricsMBean.register(metrics, MetricsMBean.DEFAULT_OBJECT_NAME);
+            if(metricsPort >= 0) {
+                metricsServer = new MetricsHttpServer(new InetSocketAddress(metricsPort), metrics);
+                System.err.println("Serving metrics on http://"
+                        + metricsServer.getLocalAddress() + MetricsHttpServer.PATH);
+            }
+            System.err.println("Listening on " + server.getLocalAddress() + " with "
+                    + workers + " workers on " + server.getChannelCount() + " sockets");
+            server.join();
+        } catch (UnknownHostException e) {
+            System.out.println("Unknown Host Exception: Invalid DNS IP");
+        } catch (IOException e) {
+            System.out.println("IO Exception: " + e.getMessage());
+        } catch (JMException e) {
+            System.out.println("JMX Exception: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (metricsServer != null) {
+                metricsServer.close();
+            }
+            if (server != null) {
+                server.close();
+            }
+            if (multiUpstream != null) {
+                multiUpstream.close();
+            }
+            if (client != null) {
+                client.close();
+            }
+            if (snapshotter != null) {
+                snapshotter.close();
+            }
+        }
+    }
+
+    /**
+     * This method starts the caching forwarder -server runs, answering from
+     * the reply cache and then the answer cache, with coalescing, refresh
+     * ahead and serve stale in front of the upstreams
+     *
+     * @param address the address and port to listen on
+     * @param workers the number of worker threads
+     * @param client the client asking upstream
+     * @param multiUpstream the resolver spreading queries over the upstreams,
+     *                      or null to ask the client's default upstream
+     * @param cache the answer cache
+     * @param metrics where to record each query
+     * @return the running server
+     *
+     * @throws IOException when the server can't be bound
+     */
+    private static ForwardingServer startForwarder(InetSocketAddress address, int workers,
+                                                   DNSClient client,
+                                                   MultiUpstreamResolver multiUpstream,
+                                                   AnswerStore cache, QueryMetrics metrics)
+            throws IOException {
+        CachingResolver resolver = new CachingResolver(new CoalescingResolver(
+                multiUpstream != null ? multiUpstream : client), cache,
+                CachingResolver.DEFAULT_REFRESH_FRACTION,
+                CachingResolver.DEFAULT_REFRESH_MIN_HITS,
+                CachingResolver.DEFAULT_STALE_ANSWER_TIMEOUT_MILLIS, metrics);
+        ForwardingServer server = new ForwardingServer(address, resolver, workers, true,
+                metrics);
+        registerGauges(metrics, client, multiUpstream, resolver, server);
+        return server;
+    }
+
+    /**
+     * This method adds the counters the server's parts already keep to its
+     * metrics, so they are scraped along with the rest
+     *
+     * @param metrics the metrics to add them to
+     * @param client the client asking upstream
+     * @param multiUpstream the resolver spreading queries over the upstreams,
+     *                      or null if there is only one
+     * @param resolver the caching resolver
+     * @param server the server
+     */
+    private static void registerGauges(QueryMetrics metrics, DNSClient client,
+                                       MultiUpstreamResolver multiUpstream,
+                                       CachingResolver resolver, ForwardingServer server) {
+        metrics.registerGauge("client_retransmissions_total", client::getRetransmissions);
+        metrics.registerGauge("client_timeouts_total", client::getTimeouts);
+        metrics.registerGauge("client_in_flight", client::getInFlight);
+        metrics.registerGauge("cache_refreshes_total", resolver::getRefreshes);
+        metrics.registerGauge("cache_stale_answers_total", resolver::getStaleAnswers);
+        metrics.registerGauge("cache_entries", () -> resolver.getCache().size());
+        if (multiUpstream != null) {
+            metrics.registerGauge("upstream_hedges_total", multiUpstream::getHedges);
+        }
+        ResponseCache responseCache = server.getResponseCache();
+        if (responseCache != null) {
+            metrics.registerGauge("response_cache_hits_total", responseCache::getHits);
+            metrics.registerGauge("response_cache_misses_total", responseCache::getMisses);
+            metrics.registerGauge("response_cache_entries", responseCache::size);
+        }
+    }
+
+    /**
+     * This method runs an authoritative server for the zones in some zone
+     * files, forwarding every other question if DNS IPs are given and
+     * refusing it otherwise.  A zone file that changes is loaded again and
+     * put in service without stopping the server
+     *
+     * @param args -authoritative, the zone files separated by commas, and
+     *             optionally the port to listen on, the number of worker
+     *             threads and the DNS IPs to forward to separated by commas
+     */
+    private static void runAuthoritative(String[] args) {
+        if(args.length < 2) {
+            printUsage();
+            return;
+        }
+        int port = DNSClient.DNS_PORT;
+        int workers = Runtime.getRuntime().availableProcessors();
+        try {
+            if(args.length > 2) {
+                port = Integer.parseInt(args[2]);
+            }
+            if(args.length > 3) {
+                workers = Integer.parseInt(args[3]);
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number: " + e.getMessage());
+            return;
+        }
+        List<Path> files = new ArrayList<Path>();
+        List<Zone> zones = new ArrayList<Zone>();
+        long[] modified = new long[args[1].split(",").length];
+        DNSClient client = null;
+        ForwardingServer server = null;
+        ScheduledExecutorService reloader = null;
+        try {
+            for (String name : args[1].split(",")) {
+                Path file = Paths.get(name);
+                modified[files.size()] = Files.getLastModifiedTime(file).toMillis();
+                files.add(file);
+                long start = System.nanoTime();
+                Zone zone = ZoneLoader.load(file, null);
+                zones.add(zone);
+                System.err.printf("Loaded %s from %s in %.1fms%n", zone, file,
+                        (System.nanoTime() - start) / 1e6);
+            }
+            Resolver fallback = null;
+            if(args.length > 4) {
+                List<InetSocketAddress> upstreams = parseUpstreams(args[4]);
+                client = new DNSClient(upstreams.get(0), DNSClient.DEFAULT_TIMEOUT_MILLIS);
+                fallback = new CachingResolver(new CoalescingResolver(client), new AnswerCache());
+            }
+            AuthoritativeResolver resolver = new AuthoritativeResolver(zones, fallback);
+            server = new ForwardingServer(new InetSocketAddress(port), resolver, workers);
+            reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "ZoneReloader");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reloader.scheduleWithFixedDelay(() -> reloadZones(files, modified, resolver),
+                    ZONE_CHECK_MILLIS, ZONE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+            System.err.println("Listening on " + server.getLocalAddress() + " with "
+                    + workers + " workers on " + server.getChannelCount() + " sockets");
+            server.join();
+        } catch (UnknownHostException e) {
+            System.out.println("Unknown Host Exception: Invalid DNS IP");
+        } catch (IOException e) {
+            System.out.println("IO Exception: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (reloader != null) {
+                reloader.shutdownNow();
+            }
+            if (server != null) {
+                server.close();
+            }
+            if (client != null) {
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * This method sends the queries in a file to a DNS server at a target
+     * rate or in a closed loop for a fixed time, and prints the throughput,
+     * losses and latency histogram of the run.  Given "local" instead of an
+     * IP it starts the same caching forwarder -server runs with one upstream
+     * in this process, in front of a StubServer answering from canned
+     * responses, so the whole query path can be measured without a network
+     *
+     * @param args -load, the DNS IP or "local", the file of queries or "-"
+     *             for stdin, and optionally the target rate in queries per
+     *             second with 0 for a closed loop, the seconds to run for,
+     *             the most queries outstanding and the server's port
+     */
+    private static void runLoad(String[] args) {
+        if(args.length < 3) {
+            printUsage();
+            return;
+        }
+        int qps = 0;
+        long seconds = DEFAULT_LOAD_SECONDS;
+        int concurrency = DEFAULT_CONCURRENCY;
+        int port = DNSClient.DNS_PORT;
+        try {
+            if(args.length > 3) {
+                qps = Integer.parseInt(args[3]);
+            }
+            if(args.length > 4) {
+                seconds = Long.parseLong(args[4]);
+            }
+            if(args.length > 5) {
+                concurrency = Integer.parseInt(args[5]);
+            }
+            if(args.length > 6) {
+                port = Integer.parseInt(args[6]);
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number: " + e.getMessage());
+            return;
+        }
+        StubServer stub = null;
+        DNSClient client = null;
+        ForwardingServer server = null;
+        try {
+            List<Query> queries;
+            InputStream inputStream = args[2].equals("-")
+                    ? System.in : new FileInputStream(args[2]);
+            try (BufferedReader input = new BufferedReader(
+                    new InputStreamReader(inputStream))) {
+                queries = LoadGenerator.readQueries(input, Type.A);
+            }
+            if (queries.isEmpty()) {
+                System.out.println("No queries in " + args[2]);
+                return;
+            }
+            InetSocketAddress target;
+            if(args[1].equals("local")) {
+                stub = new StubServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                        CannedResponses.build(), StubServer.DEFAULT_TTL);
+                QueryMetrics metrics = new QueryMetrics();
+                client = new DNSClient(stub.getLocalAddress(), DNSClient.DEFAULT_TIMEOUT_MILLIS,
+                        DNSClient.DEFAULT_UDP_PAYLOAD_SIZE, metrics);
+                server = startForwarder(
+                        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                        Runtime.getRuntime().availableProcessors(), client, null,
+                        new OffHeapAnswerCache(OffHeapAnswerCache.DEFAULT_CAPACITY_BYTES,
+                                AnswerCache.DEFAULT_MAX_STALE), metrics);
+                target = server.getLocalAddress();
+                System.err.println("Testing a local server on " + target
+                        + " forwarding to a stub on " + stub.getLocalAddress());
+            } else {
+                target = new InetSocketAddress(InetAddress.getByName(args[1]), port);
+            }
+            LoadGenerator generator = new LoadGenerator(target, queries, qps, concurrency,
+                    LoadGenerator.DEFAULT_TIMEOUT_MILLIS);
+            System.out.print(generator.run(TimeUnit.SECONDS.toMillis(seconds)));
+            if (stub != null) {
+                System.out.println("The stub answered " + stub.getQueries() + " queries");
+            }
+        } catch (UnknownHostException e) {
+            System.out.println("Unknown Host Exception: Invalid DNS IP");
+        } catch (IOException e) {
+            System.out.println("IO Exception: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+            if (client != null) {
+                client.close();
+            }
+            if (stub != null) {
+                stub.close();
+            }
+        }
+    }
+
+    /**
+     * This method loads every zone file that has changed since it was last
+     * loaded and puts the new zone in service.  A file that fails to load
+     * leaves the old zone serving
+     *
+     * @param files the zone files
+     * @param modified when each file was last loaded from
+     * @param resolver the resolver serving the zones
+     */
+    private static void reloadZones(List<Path> files, long[] modified,
+                                    AuthoritativeResolver resolver) {
+        for (int i = 0; i < files.size(); i++) {
+            Path file = files.get(i);
+            try {
+                long time = Files.getLastModifiedTime(file).toMillis();
+                if (time == modified[i]) {
+                    continue;
+                }
+                modified[i] = time;
+                long start = System.nanoTime();
+                Zone zone = ZoneLoader.load(file, null);
+                resolver.putZone(zone);
+                System.err.printf("Reloaded %s from %s in %.1fms%n", zone, file,
+                        (System.nanoTime() - start) / 1e6);
+            } catch (IOException e) {
+                System.err.println("Keeping the old zone: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * This method reads a comma separated list of DNS server IPs
+     *
+     * @param list the IPs, separated by commas
+     * @return the servers on the DNS port
+     *
+     * @throws UnknownHostException when an IP isn't valid
+     */
+    private static List<InetSocketAddress> parseUpstreams(String list)
+            throws UnknownHostException {
+        List<InetSocketAddress> upstreams = new ArrayList<InetSocketAddress>();
+        for (String ip : list.split(",")) {
+            upstreams.add(new InetSocketAddress(InetAddress.getByName(ip),
+                    DNSClient.DNS_PORT));
+        }
+        return upstreams;
+    }
+
+    /**
+     * This method prints how to run the program
+     */
+    private static void printUsage() {
+        System.out.println("usage: DNS.DanielDNSDriver <dnsIP> <lookupName> <lookupType>");
+        System.out.println("       DNS.DanielDNSDriver -batch <dnsIP[,dnsIP...]> <file|-> [lookupType] [concurrency]");
+        System.out.println("       DNS.DanielDNSDriver -iterative <lookupName> <lookupType> [rootIP]");
+        System.out.println("       DNS.DanielDNSDriver -server <dnsIP[,dnsIP...]> [port] [workers] [snapshotFile|-] [metricsPort]");
+        System.out.println("       DNS.DanielDNSDriver -authoritative <zoneFile[,zoneFile...]> [port] [workers] [dnsIP[,dnsIP...]]");
+        System.out.println("       DNS.DanielDNSDriver -load <dnsIP|local> <file|-> [qps] [seconds] [concurrency] [port]");
+    }
 }
@@ -0,0 +1,659 @@
+package DNS;
+
+import Cache.ResponseCache;
+import Message.Header;
+import Message.Message;
+import Message.MessageEncoder;
+import Message.Query;
+import Message.ResourceRecord;
+import Message.Type;
+import Metrics.QueryMetrics;
+import Metrics.QueryMetrics.CacheOutcome;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This is a DNS server that answers queries arriving over UDP by handing
+ * them to a Resolver, normally a CachingResolver in front of a DNSClient, so
+ * it can sit in front of applications as a local caching forwarder.
+ *
+ * Each worker thread has its own channel bound to the same port with
+ * SO_REUSEPORT, so the kernel spreads queries across the workers and no two
+ * of them ever wait on the same socket.  Where SO_REUSEPORT isn't available
+ * every worker receives from one shared channel instead.  Replies go out on
+ * the channel the query came in on, from whichever thread completes the
+ * answer.
+ *
+ * A TCP listener on the same port takes the queries whose replies were too
+ * large for UDP and came back with the TC bit set.  Each connection is
+ * served by its own thread and may carry many queries, each answered as
+ * soon as the resolver has it, so replies can come back in a different
+ * order than the queries went out
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class ForwardingServer implements Closeable {
+    /** This is the largest reply sent over UDP, however large a payload the client advertises */
+    private static final int MAX_UDP_PAYLOAD_SIZE = 4096;
+
+    /** This is the largest message a TCP frame can hold */
+    private static final int MAX_TCP_MESSAGE_SIZE = 65535;
+
+    /** This is the most TCP connections served at once, further ones being closed */
+    private static final int MAX_TCP_CONNECTIONS = 256;
+
+    /** This is how long a TCP connection may sit without a query before it is closed */
+    private static final int TCP_IDLE_TIMEOUT_MILLIS = 10000;
+
+    /** This is the socket receive buffer size asked of the operating system */
+    private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    /** This is the encoder each replying thread reuses */
+    private static final ThreadLocal<MessageEncoder> ENCODER =
+            ThreadLocal.withInitial(MessageEncoder::new);
+
+    /** This is the buffer each replying thread encodes its replies into */
+    private static final ThreadLocal<ByteBuffer> SEND_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(MAX_UDP_PAYLOAD_SIZE));
+
+    /** This is the buffer each replying thread encodes its TCP replies into */
+    private static final ThreadLocal<ByteBuffer> TCP_SEND_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAX_TCP_MESSAGE_SIZE));
+
+    /** This is the resolver every question is handed to */
+    private final Resolver resolver;
+
+    /** This is true if replies say recursion is available, which is when the resolver offers it */
+    private final boolean recursionAvailable;
+
+    /** This holds encoded replies to answer repeated questions with, or null */
+    private final ResponseCache responseCache;
+
+    /** This is where each query answered is recorded, or null */
+    private final QueryMetrics metrics;
+
+    /** These are the channels the workers receive on, one each or one shared */
+    private final List<DatagramChannel> channels = new ArrayList<DatagramChannel>();
+
+    /** These are the worker threads */
+    private final List<Thread> workers = new ArrayList<Thread>();
+
+    /** This is the socket TCP connections are accepted on */
+    private final ServerSocket tcpSocket;
+
+    /** These are the TCP connections being served */
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+
+    /** This is the address the server ended up listening on */
+    private final InetSocketAddress localAddress;
+
+    /** This is false once the server has been closed */
+    private volatile boolean running = true;
+
+    /**
+     * This constructor binds the server's channels and starts its workers
+     *
+     * @param address the address and port to listen on, port 0 for any
+     * @param resolver the resolver to answer questions with
+     * @param workerCount the number of worker threads
+     *
+     * @throws IOException when a channel can't be opened or bound
+     */
+    public ForwardingServer(InetSocketAddress address, Resolver resolver,
+                            int workerCount) throws IOException {
+        this(address, resolver, workerCount, false);
+    }
+
+    /**
+     * This constructor binds the server's channels and starts its workers,
+     * optionally keeping encoded replies so repeated questions are answered
+     * without going through the resolver
+     *
+     * @param address the address and port to listen on, port 0 for any
+     * @param resolver the resolver to answer questions with
+     * @param workerCount the number of worker threads
+     * @param cacheReplies true to keep encoded replies in a ResponseCache
+     *
+     * @throws IOException when a channel can't be opened or bound
+     */
+    public ForwardingServer(InetSocketAddress address, Resolver resolver,
+                            int workerCount, boolean cacheReplies) throws IOException {
+        this(address, resolver, workerCount, cacheReplies, null);
+    }
+
+    /**
+     * This constructor binds the server's channels and starts its workers,
+     * recording the type, return code and latency of every query answered
+     *
+     * @param address the address and port to listen on, port 0 for any
+     * @param resolver the resolver to answer questions with
+     * @param workerCount the number of worker threads
+     * @param cacheReplies true to keep encoded replies in a ResponseCache
+     * @param metrics where to record each query, or null for nowhere
+     *
+     * @throws IOException when a channel or the TCP socket can't be opened
+     *                     or bound
+     */
+    public ForwardingServer(InetSocketAddress address, Resolver resolver,
+                            int workerCount, boolean cacheReplies, QueryMetrics metrics)
+            throws IOException {
+        this.resolver = resolver;
+        this.recursionAvailable = resolver.offersRecursion();
+        this.metrics = metrics;
+        this.responseCache = cacheReplies ? new ResponseCache(
+                ResponseCache.DEFAULT_MAX_ENTRIES, MAX_UDP_PAYLOAD_SIZE) : null;
+        try {
+            DatagramChannel first = open(address);
+            InetSocketAddress bound = (InetSocketAddress) first.getLocalAddress();
+            this.localAddress = bound;
+            this.tcpSocket = new ServerSocket();
+            tcpSocket.setReuseAddress(true);
+            tcpSocket.bind(bound);
+            Thread acceptor = new Thread(this::accept, "ForwardingServer-tcp");
+            acceptor.setDaemon(true);
+            workers.add(acceptor);
+            boolean shared = findReusePort(first) == null;
+            for (int i = 0; i < workerCount; i++) {
+                DatagramChannel channel = i == 0 || shared ? first : open(bound);
+                Thread worker = new Thread(() -> serve(channel),
+                        "ForwardingServer-worker-" + i);
+                worker.setDaemon(true);
+                workers.add(worker);
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * This method opens a channel on the address, sharing the port with the
+     * other workers' channels when the platform allows it
+     *
+     * @param address the address to bind to
+     * @return the bound channel
+     *
+     * @throws IOException when the channel can't be opened or bound
+     */
+    private DatagramChannel open(InetSocketAddress address) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channels.add(channel);
+        SocketOption<Boolean> reusePort = findReusePort(channel);
+        if (reusePort != null) {
+            channel.setOption(reusePort, true);
+        }
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+        channel.bind(address);
+        return channel;
+    }
+
+    /**
+     * This method finds SO_REUSEPORT among the options a channel supports.
+     * It is looked up by name since the constant only exists in newer JDKs
+     *
+     * @param channel the channel to look at
+     * @return the option, or null if the platform doesn't have it
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> findReusePort(DatagramChannel channel) {
+        for (SocketOption<?> option : channel.supportedOptions()) {
+            if (option.name().equals("SO_REUSEPORT") && option.type() == Boolean.class) {
+                return (SocketOption<Boolean>) option;
+            }
+        }
+        return null;
+    }
+
+    public InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    /**
+     * This method reports how many channels the workers are spread over
+     *
+     * @return the number of channels, 1 when SO_REUSEPORT isn't available
+     */
+    public int getChannelCount() {
+        return channels.size();
+    }
+
+    /**
+     * This method waits until the server has been closed and every worker,
+     * along with the TCP acceptor, has stopped
+     *
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public void join() throws InterruptedException {
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    /**
+     * This is the loop run by each worker.  It receives one query at a time
+     * and hands it off, so a slow upstream never holds up the next query
+     *
+     * @param channel the channel to receive from
+     */
+    private void serve(DatagramChannel channel) {
+        ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_UDP_PAYLOAD_SIZE);
+        while (running) {
+            SocketAddress client;
+            try {
+                receiveBuffer.clear();
+                client = channel.receive(receiveBuffer);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                continue;
+            }
+            receiveBuffer.flip();
+            try {
+                handle(channel, client, receiveBuffer);
+            } catch (RuntimeException e) {
+                //A query that can't be handled is dropped rather than stopping the worker
+            }
+        }
+    }
+
+    /**
+     * This method parses one query and starts answering it
+     *
+     * @param channel the channel the query came in on
+     * @param client the address to reply to
+     * @param packet the query, starting at index 0
+     */
+    private void handle(DatagramChannel channel, SocketAddress client,
+                        ByteBuffer packet) {
+        long start = System.nanoTime();
+        if (responseCache != null && answerFromCache(channel, client, packet, start)) {
+            return;
+        }
+        answer(packet, start, (reply, udpPayloadSize) ->
+                send(channel, client, reply, udpPayloadSize));
+    }
+
+    /**
+     * This method parses one query, over either transport, and starts
+     * answering it
+     *
+     * @param packet the query, starting at index 0
+     * @param start when the query arrived, in System.nanoTime
+     * @param replier where the reply goes
+     */
+    private void answer(ByteBuffer packet, long start, Replier replier) {
+        Message query;
+        try {
+            query = new Message(packet);
+        } catch (RuntimeException e) {
+            //A header is enough to say the rest couldn't be understood
+            if (packet.limit() >= 12 && (packet.get(2) & 0x80) == 0) {
+                replier.send(errorReply(packet.getShort(0) & 0xFFFF, null, false,
+                        recursionAvailable, Header.FORMAT_ERROR), Message.MIN_UDP_PAYLOAD_SIZE);
+            }
+            return;
+        }
+        Header header = query.getHeader();
+        if (header.isResponse()) {
+            return;
+        }
+        int udpPayloadSize = Math.min(query.getUdpPayloadSize(), MAX_UDP_PAYLOAD_SIZE);
+        if (header.getOpCode() != 0) {
+            replier.send(errorReply(header.getId(), null, header.isRecursionDesired(),
+                    recursionAvailable, Header.NOT_IMPLEMENTED), udpPayloadSize);
+            return;
+        }
+        if (query.getQuestions().size() != 1) {
+            replier.send(errorReply(header.getId(), null, header.isRecursionDesired(),
+                    recursionAvailable, Header.FORMAT_ERROR), udpPayloadSize);
+            return;
+        }
+        Query question = query.getQuestions().get(0);
+        //A type Type doesn't know can't be asked upstream, though a zone can still answer it
+        if (question.getType() == null && !resolver.answersUnknownTypes()) {
+            replier.send(errorReply(header.getId(), null, header.isRecursionDesired(),
+                    recursionAvailable, Header.NOT_IMPLEMENTED), udpPayloadSize);
+            return;
+        }
+        CompletableFuture<Message> answer;
+        try {
+            answer = resolver.resolve(question);
+        } catch (RuntimeException e) {
+            answer = new CompletableFuture<Message>();
+            answer.completeExceptionally(e);
+        }
+        answer.whenComplete((response, error) -> {
+            Message reply = error == null ? reply(query, response, recursionAvailable)
+                    : errorReply(header.getId(), question, header.isRecursionDesired(),
+                    recursionAvailable, Header.SERVER_FAILURE);
+            replier.send(reply, udpPayloadSize);
+            if (metrics != null) {
+                metrics.recordQuery(question.getType(), reply.getHeader().getReturnCode(),
+                        System.nanoTime() - start);
+            }
+            //A stale answer would shadow the fresh one the resolver stores when upstream answers
+            if (error == null && responseCache != null && !response.isStale()
+                    && question.getType() != null) {
+                responseCache.put(question, reply, response.getCacheAgeMillis());
+            }
+        });
+    }
+
+    /**
+     * This is where the reply to one query goes, back over the transport
+     * the query came in on
+     */
+    private interface Replier {
+        /**
+         * This method sends a reply
+         *
+         * @param reply the reply
+         * @param udpPayloadSize the largest reply the client can take over UDP
+         */
+        void send(Message reply, int udpPayloadSize);
+    }
+
+    /**
+     * This method accepts TCP connections until the server is closed,
+     * serving each on its own thread
+     */
+    private void accept() {
+        while (running) {
+            Socket connection;
+            try {
+                connection = tcpSocket.accept();
+            } catch (IOException e) {
+                if (tcpSocket.isClosed()) {
+                    return;
+                }
+                continue;
+            }
+            if (connections.size() >= MAX_TCP_CONNECTIONS) {
+                closeQuietly(connection);
+                continue;
+            }
+            connections.add(connection);
+            Thread thread = new Thread(() -> serve(connection), "ForwardingServer-tcp-conn");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * This method reads length prefixed queries off a TCP connection until
+     * the client hangs up or goes quiet, handing each off so later queries
+     * don't wait on earlier answers
+     *
+     * @param connection the connection
+     */
+    private void serve(Socket connection) {
+        try {
+            connection.setSoTimeout(TCP_IDLE_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(connection.getInputStream()));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(connection.getOutputStream()));
+            while (running) {
+                byte[] frame = new byte[in.readUnsignedShort()];
+                in.readFully(frame);
+                try {
+                    answer(ByteBuffer.wrap(frame), System.nanoTime(),
+                            (reply, udpPayloadSize) -> write(out, reply));
+                } catch (RuntimeException e) {
+                    //A query that can't be handled is dropped rather than the connection
+                }
+            }
+        } catch (IOException e) {
+            //The client hung up, went quiet for too long or the server was closed
+        } finally {
+            connections.remove(connection);
+            closeQuietly(connection);
+        }
+    }
+
+    /**
+     * This method encodes a reply and writes it to a TCP connection with
+     * its length in front
+     *
+     * @param out the connection's stream, also locked so replies finishing
+     *            together don't interleave
+     * @param reply the reply
+     */
+    private static void write(DataOutputStream out, Message reply) {
+        ByteBuffer packet = TCP_SEND_BUFFER.get();
+        try {
+            encode(reply, packet, MAX_TCP_MESSAGE_SIZE);
+            synchronized (out) {
+                out.writeShort(packet.remaining());
+                out.write(packet.array(), packet.arrayOffset(), packet.remaining());
+                out.flush();
+            }
+        } catch (IOException | RuntimeException ignored) {
+            //The connection is gone, and the client will ask again if it still cares
+        }
+    }
+
+    /**
+     * This method closes a TCP connection, ignoring any error
+     *
+     * @param connection the connection
+     */
+    private static void closeQuietly(Socket connection) {
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+            //Nothing more can be done about a socket that won't close
+        }
+    }
+
+    /**
+     * This method answers a query with an encoded reply from the response
+     * cache, without parsing the query into a Message
+     *
+     * @param channel the channel the query came in on
+     * @param client the address to reply to
+     * @param packet the query, starting at index 0
+     * @param start when the query arrived, in System.nanoTime
+     * @return true if the query was answered
+     */
+    private boolean answerFromCache(DatagramChannel channel, SocketAddress client,
+                                    ByteBuffer packet, long start) {
+        ByteBuffer out = SEND_BUFFER.get();
+        out.clear();
+        if (!responseCache.answer(packet, out)) {
+            return false;
+        }
+        out.flip();
+        try {
+            channel.send(out, client);
+        } catch (IOException ignored) {
+            //The client will time out and ask again, just as if the reply were lost
+        }
+        if (metrics != null) {
+            long latency = System.nanoTime() - start;
+            //The question was copied from the query, which never compresses it
+            int typeOffset = 12;
+            while (out.get(typeOffset) != 0) {
+                typeOffset += (out.get(typeOffset) & 0xFF) + 1;
+            }
+            metrics.recordQuery(Type.parseType(out.getShort(typeOffset + 1) & 0xFFFF),
+                    out.get(3) & 0x0F, latency);
+            metrics.recordCacheLookup(CacheOutcome.HIT, latency);
+        }
+        return true;
+    }
+
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * This method builds the reply to a query out of the resolver's
+     * response, keeping the query's id, question and recursion flag and
+     * the response's authoritative flag, and replacing the upstream OPT
+     * record with this server's own
+     *
+     * @param query the query being answered
+     * @param response the resolver's response
+     * @param recursionAvailable true if this server offers recursion
+     * @return the reply
+     */
+    private static Message reply(Message query, Message response,
+                                 boolean recursionAvailable) {
+        ArrayList<ResourceRecord> additional = new ArrayList<ResourceRecord>();
+        for (ResourceRecord record : response.getAdditionalResourceRecords()) {
+            if (record.getType() != Type.OPT) {
+                additional.add(record);
+            }
+        }
+        if (query.getEdns() != null) {
+            additional.add(ResourceRecord.opt(MAX_UDP_PAYLOAD_SIZE));
+        }
+        Header header = new Header(true, 0, response.getHeader().isAuthoritative(), false,
+                query.getHeader().isRecursionDesired(), recursionAvailable, 0,
+                response.getHeader().getReturnCode(), 1,
+                response.getAnswerResourceRecords().size(),
+                response.getAuthorityResourceRecords().size(), additional.size());
+        header.setId(query.getHeader().getId());
+        return new Message(header, query.getQuestions(),
+                response.getAnswerResourceRecords(),
+                response.getAuthorityResourceRecords(), additional);
+    }
+
+    /**
+     * This method builds a reply that carries only a return code
+     *
+     * @param id the id of the query
+     * @param question the question to echo, or null for none
+     * @param recursionDesired the recursion flag of the query
+     * @param recursionAvailable true if this server offers recursion
+     * @param returnCode the return code
+     * @return the reply
+     */
+    private static Message errorReply(int id, Query question, boolean recursionDesired,
+                                      boolean recursionAvailable, int returnCode) {
+        ArrayList<Query> questions = new ArrayList<Query>(1);
+        if (question != null) {
+            questions.add(question);
+        }
+        Header header = new Header(true, 0, false, false, recursionDesired,
+                recursionAvailable, 0, returnCode, questions.size(), 0, 0, 0);
+        header.setId(id);
+        return new Message(header, questions, new ArrayList<ResourceRecord>(),
+                new ArrayList<ResourceRecord>(), new ArrayList<ResourceRecord>());
+    }
+
+    /**
+     * This method encodes a reply and sends it.  A reply that doesn't fit in
+     * the client's payload size is replaced by one with the TC bit set and
+     * only the question, so the client asks again over TCP
+     *
+     * @param channel the channel to send on
+     * @param client the address to send to
+     * @param reply the reply
+     * @param udpPayloadSize the largest reply the client can take
+     */
+    private static void send(DatagramChannel channel, SocketAddress client,
+                             Message reply, int udpPayloadSize) {
+        ByteBuffer packet = SEND_BUFFER.get();
+        try {
+            encode(reply, packet, udpPayloadSize);
+            channel.send(packet, client);
+        } catch (IOException | RuntimeException ignored) {
+            //The client will time out and ask again, just as if the reply were lost
+        }
+    }
+
+    /**
+     * This method encodes a reply into a buffer, ready to be read.  A reply
+     * that doesn't fit is replaced by its truncated form, and one that can't
+     * be encoded at all by a bare failure
+     *
+     * @param reply the reply
+     * @param packet the buffer to encode into
+     * @param limit the largest the encoded reply may be
+     */
+    private static void encode(Message reply, ByteBuffer packet, int limit) {
+        packet.clear().limit(limit);
+        try {
+            ENCODER.get().encode(reply, packet);
+        } catch (BufferOverflowException e) {
+            packet.clear().limit(limit);
+            ENCODER.get().encode(truncated(reply), packet);
+        } catch (IllegalArgumentException e) {
+            //A name that can't be written, like one with an empty label, leaves only a failure
+            Header header = reply.getHeader();
+            int returnCode = header.getReturnCode() == Header.NO_ERROR
+                    ? Header.SERVER_FAILURE : header.getReturnCode();
+            packet.clear().limit(limit);
+            ENCODER.get().encode(errorReply(header.getId(), null, header.isRecursionDesired(),
+                    header.isRecursionAvailable(), returnCode), packet);
+        }
+        packet.flip();
+    }
+
+    /**
+     * This method builds the truncated form of a reply
+     *
+     * @param reply the reply that didn't fit
+     * @return the reply with the TC bit set and no records
+     */
+    private static Message truncated(Message reply) {
+        Header header = reply.getHeader();
+        Header truncatedHeader = new Header(true, 0, false, true,
+                header.isRecursionDesired(), header.isRecursionAvailable(), 0,
+                header.getReturnCode(), reply.getQuestions().size(), 0, 0, 0);
+        truncatedHeader.setId(header.getId());
+        return new Message(truncatedHeader, reply.getQuestions(),
+                new ArrayList<ResourceRecord>(), new ArrayList<ResourceRecord>(),
+                new ArrayList<ResourceRecord>());
+    }
+
+    /**
+     * This method stops the workers and closes every channel and TCP
+     * connection
+     */
+    public void close() {
+        running = false;
+        if (tcpSocket != null) {
+            try {
+                tcpSocket.close();
+            } catch (IOException ignored) {
+                //Nothing more can be done about a socket that won't close
+            }
+        }
+        for (Socket connection : connections) {
+            closeQuietly(connection);
+        }
+        for (DatagramChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+
+            }
+        }
+    }
+}
@@ -0,0 +1,397 @@
+package DNS;
+
+import Cache.AnswerCache;
+import Cache.Delegation;
+import Cache.DelegationCache;
+import Message.Class;
+import Message.DomainName;
+import Message.Header;
+import Message.Message;
+import Message.Query;
+import Message.ResourceRecord;
+import Message.Type;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * This resolver answers questions itself, starting at the root servers and
+ * following referrals down to a server that is authoritative for the name.
+ * Each referral's NS records and glue are kept in a DelegationCache so later
+ * lookups under a zone already visited start at that zone's servers instead
+ * of at the root.  CNAME chains are followed and the whole chain is returned
+ * in the answer section
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class IterativeResolver implements Resolver {
+    /** These are the IPv4 addresses of the thirteen root servers, a to m */
+    public static final String[] ROOT_HINTS = {
+            "198.41.0.4", "170.247.170.2", "192.33.4.12", "199.7.91.13",
+            "192.203.230.10", "192.5.5.241", "192.112.36.4", "198.97.190.53",
+            "192.36.148.17", "192.58.128.30", "193.0.14.129", "199.7.83.42",
+            "202.12.27.33"
+    };
+
+    /** This is the most referrals followed for one name before giving up */
+    private static final int MAX_REFERRALS = 16;
+
+    /** This is how deeply lookups may nest, through CNAMEs and nameservers without glue */
+    private static final int MAX_DEPTH = 8;
+
+    /** This is the client every query is sent through */
+    private final DNSClient client;
+
+    /** These are the zone cuts learned so far */
+    private final DelegationCache delegations;
+
+    /** This is the port nameservers found in referrals are asked on */
+    private final int port;
+
+    /**
+     * This constructor creates a resolver that starts from the built in root
+     * hints
+     *
+     * @param client the client to send queries through
+     */
+    public IterativeResolver(DNSClient client) {
+        this(client, new DelegationCache(rootHints()));
+    }
+
+    /**
+     * This constructor creates a resolver that starts from the delegations
+     * already in a cache, which always holds at least the root servers
+     *
+     * @param client the client to send queries through
+     * @param delegations the cache of zone cuts to start from and add to
+     */
+    public IterativeResolver(DNSClient client, DelegationCache delegations) {
+        this(client, delegations, DNSClient.DNS_PORT);
+    }
+
+    /**
+     * This constructor creates a resolver that asks the nameservers it
+     * learns about on a port other than the DNS port, so a set of local
+     * servers can stand in for the real hierarchy
+     *
+     * @param client the client to send queries through
+     * @param delegations the cache of zone cuts to start from and add to
+     * @param port the port to ask nameservers found in referrals on
+     */
+    public IterativeResolver(DNSClient client, DelegationCache delegations, int port) {
+        this.client = client;
+        this.delegations = delegations;
+        this.port = port;
+    }
+
+    /**
+     * This method turns the root hints into server addresses
+     *
+     * @return the addresses of the root servers on the DNS port
+     */
+    public static List<InetSocketAddress> rootHints() {
+        List<InetSocketAddress> servers = new ArrayList<InetSocketAddress>();
+        for (String hint : ROOT_HINTS) {
+            servers.add(address(hint, DNSClient.DNS_PORT));
+        }
+        return servers;
+    }
+
+    /**
+     * This method answers a question by walking down from the closest cached
+     * delegation
+     *
+     * @param question the question to answer
+     * @return the future that completes with the authoritative response
+     */
+    public CompletableFuture<Message> resolve(Query question) {
+        return resolve(question, 0);
+    }
+
+    public DelegationCache getDelegations() {
+        return delegations;
+    }
+
+    /**
+     * This method starts a lookup, which may be nested inside another one
+     *
+     * @param question the question to answer
+     * @param depth how many lookups this one is nested inside
+     * @return the future that completes with the response
+     */
+    private CompletableFuture<Message> resolve(Query question, int depth) {
+        if (depth > MAX_DEPTH) {
+            return failed(new IOException("Lookups nested too deeply resolving "
+                    + question.getName()));
+        }
+        DomainName name;
+        try {
+            name = DomainName.of(question.getName());
+        } catch (IllegalArgumentException e) {
+            return failed(e);
+        }
+        return ask(question, name, delegations.findClosest(name), 0, 0, depth);
+    }
+
+    /**
+     * This method sends the question to one of a zone's servers, moving on
+     * to the next server when one times out or fails
+     *
+     * @param question the question to answer
+     * @param name the name in the question
+     * @param delegation the zone whose servers are being asked
+     * @param serverIndex which of the zone's servers to ask
+     * @param referrals how many referrals have been followed so far
+     * @param depth how many lookups this one is nested inside
+     * @return the future that completes with the response
+     */
+    private CompletableFuture<Message> ask(Query question, DomainName name,
+                                           Delegation delegation, int serverIndex,
+                                           int referrals, int depth) {
+        List<InetSocketAddress> servers = delegation.getServers();
+        if (serverIndex >= servers.size()) {
+            return failed(new IOException("No server for " + delegation.getZone()
+                    + " answered " + question.getName()));
+        }
+        Message query = new Message(question.getName(), question.getType(),
+                question.getDnsClass(), false);
+        if (client.getUdpPayloadSize() > Message.MIN_UDP_PAYLOAD_SIZE) {
+            query.setUdpPayloadSize(client.getUdpPayloadSize());
+        }
+        return client.query(query, servers.get(serverIndex)).handle((response, error) -> {
+            if (error != null || !isUsable(response)) {
+                return ask(question, name, delegation, serverIndex + 1,
+                        referrals, depth);
+            }
+            return follow(question, name, delegation, response, referrals, depth);
+        }).thenCompose(Function.identity());
+    }
+
+    /**
+     * This method decides what a server's response means, an answer, a
+     * referral to a zone further down, or a final negative answer
+     *
+     * @param question the question being answered
+     * @param name the name in the question
+     * @param delegation the zone whose server sent the response
+     * @param response the response
+     * @param referrals how many referrals have been followed so far
+     * @param depth how many lookups this one is nested inside
+     * @return the future that completes with the final response
+     */
+    private CompletableFuture<Message> follow(Query question, DomainName name,
+                                              Delegation delegation, Message response,
+                                              int referrals, int depth) {
+        if (!response.getAnswerResourceRecords().isEmpty()) {
+            return followCname(question, name, response, depth);
+        }
+        if (response.getHeader().getReturnCode() == Header.NAME_ERROR) {
+            return CompletableFuture.completedFuture(response);
+        }
+        //Only a cut below the zone already reached counts, so referrals can't go round in circles
+        DomainName zone = null;
+        List<DomainName> nameservers = new ArrayList<DomainName>();
+        long ttl = AnswerCache.MAX_TTL;
+        for (ResourceRecord record : response.getAuthorityResourceRecords()) {
+            if (record.getType() != Type.NS) {
+                continue;
+            }
+            DomainName owner = DomainName.of(record.getName());
+            if (zone == null && name.isSubdomainOf(owner)
+                    && owner.getLabelCount() > delegation.getZone().getLabelCount()) {
+                zone = owner;
+            }
+            if (owner.equals(zone)) {
+                nameservers.add(DomainName.of(record.getResourceData()));
+                ttl = Math.min(ttl, record.getTtl());
+            }
+        }
+        if (zone == null) {
+            //No referral means this is the authoritative NODATA answer
+            return CompletableFuture.completedFuture(response);
+        }
+        if (referrals >= MAX_REFERRALS) {
+            return failed(new IOException("Too many referrals resolving "
+                    + question.getName()));
+        }
+        List<InetSocketAddress> glue = findGlue(delegation, nameservers,
+                response.getAdditionalResourceRecords(), port);
+        DomainName cut = zone;
+        long expiresAt = System.currentTimeMillis() + ttl * 1000;
+        if (!glue.isEmpty()) {
+            Delegation next = new Delegation(cut, glue, expiresAt);
+            delegations.put(next);
+            return ask(question, name, next, 0, referrals + 1, depth);
+        }
+        return resolveNameservers(nameservers, 0, depth).thenCompose(servers -> {
+            Delegation next = new Delegation(cut, servers, expiresAt);
+            delegations.put(next);
+            return ask(question, name, next, 0, referrals + 1, depth);
+        });
+    }
+
+    /**
+     * This method picks the addresses of the nameservers out of the
+     * additional section.  Only glue inside the zone of the server that sent
+     * it is trusted, so a server can't plant addresses for names it doesn't
+     * serve
+     *
+     * @param delegation the zone whose server sent the referral
+     * @param nameservers the names of the new zone's nameservers
+     * @param additional the additional section of the referral
+     * @param port the port to ask the nameservers on
+     * @return the addresses found, possibly none
+     */
+    private static List<InetSocketAddress> findGlue(Delegation delegation,
+                                                    List<DomainName> nameservers,
+                                                    List<ResourceRecord> additional,
+                                                    int port) {
+        List<InetSocketAddress> servers = new ArrayList<InetSocketAddress>();
+        for (ResourceRecord record : additional) {
+            if (record.getType() != Type.A) {
+                continue;
+            }
+            DomainName owner = DomainName.of(record.getName());
+            if (nameservers.contains(owner)
+                    && owner.isSubdomainOf(delegation.getZone())) {
+                servers.add(address(record.getResourceData(), port));
+            }
+        }
+        return servers;
+    }
+
+    /**
+     * This method looks up the addresses of nameservers that came without
+     * glue, trying one name after another until one has an address
+     *
+     * @param nameservers the names of the nameservers
+     * @param index which name to try
+     * @param depth how many lookups this one is nested inside
+     * @return the future that completes with the addresses found
+     */
+    private CompletableFuture<List<InetSocketAddress>> resolveNameservers(
+            List<DomainName> nameservers, int index, int depth) {
+        if (index >= nameservers.size()) {
+            return failed(new IOException("No address for any of " + nameservers));
+        }
+        Query question = new Query(nameservers.get(index).toString(), Type.A, Class.IN);
+        return resolve(question, depth + 1).handle((response, error) -> {
+            List<InetSocketAddress> servers = new ArrayList<InetSocketAddress>();
+            if (error == null) {
+                for (ResourceRecord record : response.getAnswerResourceRecords()) {
+                    if (record.getType() == Type.A) {
+                        servers.add(address(record.getResourceData(), port));
+                    }
+                }
+            }
+            if (servers.isEmpty()) {
+                return resolveNameservers(nameservers, index + 1, depth);
+            }
+            return CompletableFuture.completedFuture(servers);
+        }).thenCompose(Function.identity());
+    }
+
+    /**
+     * This method follows a CNAME chain in an answer when the chain doesn't
+     * already end in a record of the type asked for, and puts the whole chain
+     * in front of the final answer
+     *
+     * @param question the question being answered
+     * @param name the name in the question
+     * @param response the response holding the answer
+     * @param depth how many lookups this one is nested inside
+     * @return the future that completes with the complete answer
+     */
+    private CompletableFuture<Message> followCname(Query question, DomainName name,
+                                                   Message response, int depth) {
+        if (question.getType() == Type.CNAME) {
+            return CompletableFuture.completedFuture(response);
+        }
+        List<ResourceRecord> answers = response.getAnswerResourceRecords();
+        DomainName target = name;
+        boolean moved = true;
+        //A chain can't be longer than the answer, which stops a loop of CNAMEs
+        for (int links = 0; moved && links <= answers.size(); links++) {
+            moved = false;
+            for (ResourceRecord record : answers) {
+                DomainName owner = DomainName.of(record.getName());
+                if (!owner.equals(target)) {
+                    continue;
+                }
+                if (record.getType() == question.getType()) {
+                    return CompletableFuture.completedFuture(response);
+                }
+                if (record.getType() == Type.CNAME) {
+                    target = DomainName.of(record.getResourceData());
+                    moved = true;
+                    break;
+                }
+            }
+        }
+        if (target.equals(name)) {
+            return CompletableFuture.completedFuture(response);
+        }
+        Query next = new Query(target.toString(), question.getType(),
+                question.getDnsClass());
+        return resolve(next, depth + 1).thenApply(rest -> {
+            ArrayList<ResourceRecord> chain = new ArrayList<ResourceRecord>(answers);
+            chain.addAll(rest.getAnswerResourceRecords());
+            ArrayList<Query> questions = new ArrayList<Query>(1);
+            questions.add(question);
+            Header header = new Header(true, 0, false, false, false, true, 0,
+                    rest.getHeader().getReturnCode(), 1, chain.size(),
+                    rest.getAuthorityResourceRecords().size(), 0);
+            return new Message(header, questions, chain,
+                    rest.getAuthorityResourceRecords(),
+                    new ArrayList<ResourceRecord>());
+        });
+    }
+
+    /**
+     * This method checks whether a response is worth looking at, since a
+     * server that fails or refuses should be skipped for the next one
+     *
+     * @param response the response
+     * @return true for an answer, referral or NXDOMAIN
+     */
+    private static boolean isUsable(Message response) {
+        int returnCode = response.getHeader().getReturnCode();
+        return !response.getHeader().isTruncated()
+                && (returnCode == Header.NO_ERROR || returnCode == Header.NAME_ERROR);
+    }
+
+    /**
+     * This method turns a dotted IPv4 address into a server address without
+     * any lookup
+     *
+     * @param ip the dotted address
+     * @param port the port
+     * @return the address on the port
+     */
+    private static InetSocketAddress address(String ip, int port) {
+        try {
+            return new InetSocketAddress(InetAddress.getByName(ip), port);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Bad address " + ip, e);
+        }
+    }
+
+    /**
+     * This method makes a future that has already failed
+     *
+     * @param cause why it failed
+     * @param <T> the type the future would have completed with
+     * @return the failed future
+     */
+    private static <T> CompletableFuture<T> failed(Throwable cause) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(cause);
+        return future;
+    }
+}
@@ -0,0 +1,436 @@
+package DNS;
+
+import Message.Message;
+import Message.MessageEncoder;
+import Message.Query;
+import Message.Type;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This sends a list of queries to a DNS server over and over for a fixed
+ * time and measures how it keeps up, in the manner of dnsperf.  It runs
+ * either at a target rate, sending on a fixed schedule, or in a closed loop,
+ * sending a new query as soon as one is answered.  Either way no more than a
+ * set number of queries are outstanding at once.
+ *
+ * Queries are encoded once up front and only their ids change, and answers
+ * are matched by id without being parsed, so the generator itself does
+ * little work per query.  A query not answered within the timeout counts as
+ * lost, and an answer arriving after that counts as late
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class LoadGenerator {
+    /** This is how long a query waits for an answer by default, in milliseconds */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 2000;
+
+    /** This is the most queries that can be outstanding, one for each id */
+    public static final int MAX_OUTSTANDING = 65536;
+
+    /** These are the upper bounds of the latency buckets, in microseconds */
+    private static final long[] BUCKET_BOUNDS = {100, 250, 500, 1000, 2500, 5000, 10000,
+            25000, 50000, 100000, 250000, 500000, 1000000, 2500000};
+
+    /** These are the names of the return codes, by value */
+    private static final String[] RETURN_CODE_NAMES = {"NOERROR", "FORMERR", "SERVFAIL",
+            "NXDOMAIN", "NOTIMP", "REFUSED"};
+
+    /** This is how often outstanding queries are checked for timeouts, in milliseconds */
+    private static final long SWEEP_MILLIS = 50;
+
+    /** This is the server queries are sent to */
+    private final InetSocketAddress server;
+
+    /** These are the queries, encoded with an id of 0 */
+    private final byte[][] packets;
+
+    /** This is the rate to send at in queries per second, or 0 for a closed loop */
+    private final int targetQps;
+
+    /** This is the most queries outstanding at once */
+    private final int concurrency;
+
+    /** This is how long a query waits for an answer, in nanoseconds */
+    private final long timeoutNanos;
+
+    /** These are when each id's query was sent, from the start of the run plus 1, or 0 if free */
+    private final AtomicLongArray sentAt = new AtomicLongArray(MAX_OUTSTANDING);
+
+    /** This limits how many queries are outstanding */
+    private final Semaphore window;
+
+    /** This is when the run started, in System.nanoTime */
+    private long origin;
+
+    /** This is how many queries were sent */
+    private long sent;
+
+    /** This is how many queries weren't answered in time */
+    private long timedOut;
+
+    /** This is how many queries couldn't be sent */
+    private long sendErrors;
+
+    /** These are the answers by return code, written only by the receiving thread */
+    private final long[] returnCodes = new long[16];
+
+    /** These are the answers by latency bucket, the last one holding the slowest */
+    private final long[] buckets = new long[BUCKET_BOUNDS.length + 1];
+
+    /** This is how many answers came after their query timed out, or didn't match one */
+    private long late;
+
+    /** This is the sum of the latencies, in nanoseconds */
+    private long latencySum;
+
+    /** This is the shortest latency, in nanoseconds */
+    private long latencyMin = Long.MAX_VALUE;
+
+    /** This is the longest latency, in nanoseconds */
+    private long latencyMax;
+
+    /**
+     * This constructor sets up a run
+     *
+     * @param server the server to send queries to
+     * @param queries the queries to send, in order and then from the start again
+     * @param targetQps the rate to send at in queries per second, or 0 to
+     *                  send in a closed loop
+     * @param concurrency the most queries outstanding at once, up to
+     *                    MAX_OUTSTANDING
+     * @param timeoutMillis how long a query waits for an answer
+     *
+     * @throws IllegalArgumentException when there are no queries or the
+     * concurrency is out of range
+     */
+    public LoadGenerator(InetSocketAddress server, List<Query> queries, int targetQps,
+                         int concurrency, long timeoutMillis) {
+        if (queries.isEmpty()) {
+            throw new IllegalArgumentException("No queries to send");
+        }
+        if (concurrency < 1 || concurrency > MAX_OUTSTANDING) {
+            throw new IllegalArgumentException("Concurrency must be 1 to " + MAX_OUTSTANDING);
+        }
+        this.server = server;
+        this.targetQps = targetQps;
+        this.concurrency = concurrency;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.window = new Semaphore(concurrency);
+        this.packets = new byte[queries.size()][];
+        MessageEncoder encoder = new MessageEncoder();
+        ByteBuffer buffer = ByteBuffer.allocate(Message.MIN_UDP_PAYLOAD_SIZE);
+        for (int i = 0; i < packets.length; i++) {
+            Query query = queries.get(i);
+            Message message = new Message(query.getName(), query.getType(),
+                    query.getDnsClass(), true);
+            message.setUdpPayloadSize(DNSClient.DEFAULT_UDP_PAYLOAD_SIZE);
+            buffer.clear();
+            encoder.encode(message, buffer);
+            buffer.flip();
+            packets[i] = new byte[buffer.remaining()];
+            buffer.get(packets[i]);
+        }
+    }
+
+    /**
+     * This method reads queries in the format BatchLookup takes, a name and
+     * optionally a type on each line, skipping blank lines and comments.  A
+     * line naming a type that isn't implemented stops the read, since
+     * sending it as another type would make the report describe a different
+     * load than the one asked for
+     *
+     * @param input the queries, one per line
+     * @param defaultType the type for lines that don't name one
+     * @return the queries
+     *
+     * @throws IOException when the input can't be read
+     * @throws IllegalArgumentException when a line names a type that isn't
+     *                                  implemented
+     */
+    public static List<Query> readQueries(BufferedReader input, Type defaultType)
+            throws IOException {
+        List<Query> queries = new ArrayList<Query>();
+        String line;
+        for (int lineNumber = 1; (line = input.readLine()) != null; lineNumber++) {
+            Query query;
+            try {
+                query = BatchLookup.parseLine(line, defaultType);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Line " + lineNumber + ": "
+                        + e.getMessage(), e);
+            }
+            if (query != null) {
+                queries.add(query);
+            }
+        }
+        return queries;
+    }
+
+    /**
+     * This method sends queries for a fixed time, then waits for the last
+     * ones to be answered or time out.  A generator runs once
+     *
+     * @param durationMillis how long to send for in milliseconds
+     * @return the report of the run
+     *
+     * @throws IOException when the channel can't be opened
+     * @throws InterruptedException when interrupted during the run
+     */
+    public Report run(long durationMillis) throws IOException, InterruptedException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, 4 << 20);
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, 4 << 20);
+        channel.connect(server);
+        origin = System.nanoTime();
+        Thread receiver = new Thread(() -> receive(channel), "LoadGenerator");
+        receiver.setDaemon(true);
+        receiver.start();
+        long end = origin + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        long interval = targetQps > 0 ? 1000000000L / targetQps : 0;
+        long nextSend = origin;
+        long nextSweep = origin;
+        ByteBuffer out = ByteBuffer.allocateDirect(Message.MIN_UDP_PAYLOAD_SIZE);
+        int id = 0;
+        try {
+            long now = origin;
+            while (now < end) {
+                if (now >= nextSweep) {
+                    sweep(now);
+                    nextSweep = now + TimeUnit.MILLISECONDS.toNanos(SWEEP_MILLIS);
+                }
+                if (!window.tryAcquire(SWEEP_MILLIS, TimeUnit.MILLISECONDS)) {
+                    now = System.nanoTime();
+                    continue;
+                }
+                if (interval > 0) {
+                    //Parking is coarse, so a sender that is behind catches up without parking
+                    while ((now = System.nanoTime()) < nextSend) {
+                        LockSupport.parkNanos(nextSend - now);
+                    }
+                    nextSend += interval;
+                }
+                while (sentAt.get(id) != 0) {
+                    id = (id + 1) & (MAX_OUTSTANDING - 1);
+                }
+                byte[] packet = packets[(int) (sent % packets.length)];
+                out.clear();
+                out.put(packet).putShort(0, (short) id).flip();
+                now = System.nanoTime();
+                sentAt.set(id, now - origin + 1);
+                try {
+                    channel.write(out);
+                    sent++;
+                } catch (IOException e) {
+                    sentAt.set(id, 0);
+                    window.release();
+                    sendErrors++;
+                }
+                id = (id + 1) & (MAX_OUTSTANDING - 1);
+            }
+            long elapsed = now - origin;
+            //The last queries get their full timeout before the run is over
+            long deadline = System.nanoTime() + timeoutNanos;
+            while (window.availablePermits() < concurrency
+                    && (now = System.nanoTime()) < deadline) {
+                Thread.sleep(1);
+                sweep(now);
+            }
+            channel.close();
+            receiver.join();
+            return new Report(elapsed);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * This method counts every outstanding query sent longer ago than the
+     * timeout as lost, and frees its id
+     *
+     * @param now the current System.nanoTime
+     */
+    private void sweep(long now) {
+        long cutoff = now - origin + 1 - timeoutNanos;
+        for (int id = 0; id < MAX_OUTSTANDING; id++) {
+            long sentTime = sentAt.get(id);
+            if (sentTime != 0 && sentTime <= cutoff && sentAt.compareAndSet(id, sentTime, 0)) {
+                timedOut++;
+                window.release();
+            }
+        }
+    }
+
+    /**
+     * This method matches answers to queries until the channel is closed,
+     * recording each one's return code and latency
+     *
+     * @param channel the channel answers arrive on
+     */
+    private void receive(DatagramChannel channel) {
+        ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024);
+        while (channel.isOpen()) {
+            try {
+                in.clear();
+                channel.read(in);
+            } catch (IOException e) {
+                //A closed channel ends the loop, and an unreachable server looks like loss
+                continue;
+            }
+            long now = System.nanoTime() - origin + 1;
+            if (in.position() < 4 || (in.get(2) & 0x80) == 0) {
+                continue;
+            }
+            int id = in.getShort(0) & 0xFFFF;
+            long sentTime = sentAt.get(id);
+            if (sentTime == 0 || !sentAt.compareAndSet(id, sentTime, 0)) {
+                late++;
+                continue;
+            }
+            window.release();
+            long latency = now - sentTime;
+            returnCodes[in.get(3) & 0x0F]++;
+            latencySum += latency;
+            latencyMin = Math.min(latencyMin, latency);
+            latencyMax = Math.max(latencyMax, latency);
+            long micros = latency / 1000;
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS.length && micros > BUCKET_BOUNDS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket]++;
+        }
+    }
+
+    /**
+     * This is what a run measured
+     */
+    public final class Report {
+        /** This is how long queries were sent for, in nanoseconds */
+        private final long elapsedNanos;
+
+        /** This is how many queries were answered */
+        private final long answered;
+
+        /**
+         * This constructor sums up the run once the receiving thread has
+         * stopped
+         *
+         * @param elapsedNanos how long queries were sent for in nanoseconds
+         */
+        private Report(long elapsedNanos) {
+            this.elapsedNanos = elapsedNanos;
+            long total = 0;
+            for (long count : returnCodes) {
+                total += count;
+            }
+            this.answered = total;
+        }
+
+        public long getSent() {
+            return sent;
+        }
+
+        public long getAnswered() {
+            return answered;
+        }
+
+        public long getTimedOut() {
+            return timedOut;
+        }
+
+        public long getLate() {
+            return late;
+        }
+
+        /**
+         * This method returns the rate queries were answered at over the
+         * time they were sent for
+         *
+         * @return the answers per second
+         */
+        public double getQps() {
+            return answered * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * This method returns an upper bound on a latency percentile, the top
+         * of the bucket it falls in
+         *
+         * @param percentile the percentile, from 0 to 100
+         * @return the bound in milliseconds, or infinity if it is past the
+         * last bucket
+         */
+        public double getPercentileMillis(double percentile) {
+            long target = (long) Math.ceil(answered * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+                seen += buckets[i];
+                if (seen >= target) {
+                    return BUCKET_BOUNDS[i] / 1000.0;
+                }
+            }
+            return Double.POSITIVE_INFINITY;
+        }
+
+        public String toString() {
+            StringBuilder report = new StringBuilder();
+            double seconds = elapsedNanos / 1e9;
+            report.append(String.format("Sent %d queries in %.2fs (%.0f qps) %s%n", sent, seconds,
+                    sent / seconds, targetQps > 0 ? "at a target of " + targetQps + " qps"
+                            : "in a closed loop with " + concurrency + " outstanding"));
+            report.append(String.format("Answered %d (%.2f%%) at %.0f qps:", answered,
+                    percent(answered, sent), getQps()));
+            for (int code = 0; code < returnCodes.length; code++) {
+                if (returnCodes[code] > 0) {
+                    report.append(' ').append(code < RETURN_CODE_NAMES.length
+                            ? RETURN_CODE_NAMES[code] : "rcode" + code)
+                            .append(' ').append(returnCodes[code]);
+                }
+            }
+            report.append(String.format("%nLost %d (%.2f%%) after %dms, %d late answers, "
+                            + "%d send errors%n", timedOut, percent(timedOut, sent),
+                    TimeUnit.NANOSECONDS.toMillis(timeoutNanos), late, sendErrors));
+            if (answered == 0) {
+                return report.toString();
+            }
+            report.append(String.format("Latency min %.3fms mean %.3fms max %.3fms, "
+                            + "p50 <= %.2fms p90 <= %.2fms p99 <= %.2fms p99.9 <= %.2fms%n",
+                    latencyMin / 1e6, latencySum / 1e6 / answered, latencyMax / 1e6,
+                    getPercentileMillis(50), getPercentileMillis(90),
+                    getPercentileMillis(99), getPercentileMillis(99.9)));
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                String bound = i < BUCKET_BOUNDS.length
+                        ? String.format("<= %8.2fms", BUCKET_BOUNDS[i] / 1000.0)
+                        : String.format(" > %8.2fms", BUCKET_BOUNDS[i - 1] / 1000.0);
+                report.append(String.format("  %s %10d %7.2f%% %7.2f%%%n", bound, buckets[i],
+                        percent(buckets[i], answered), percent(seen, answered)));
+            }
+            return report.toString();
+        }
+
+        /**
+         * This method works out one count as a percentage of another
+         *
+         * @param count the count
+         * @param total the total, which may be 0
+         * @return the percentage
+         */
+        private double percent(long count, long total) {
+            return total == 0 ? 0 : count * 100.0 / total;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package DNS;
+
+import Message.Header;
+import Message.Message;
+import Message.Query;
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This resolver spreads questions over several upstream servers, always
+ * asking the one with the best score first, which is the one answering
+ * fastest with the fewest failures.  When a server times out or fails the
+ * question goes to the next best server straight away.  With hedging on, a
+ * copy of the question also goes to the next best server if the first
+ * hasn't answered within its 95th percentile RTT, or the initial
+ * retransmission timeout until it has answered once, and whichever answer
+ * comes back first is used, which keeps one slow answer from holding up the
+ * caller.
+ *
+ * Servers are scored from the client's own estimate for each address, which
+ * only takes RTTs from answers to queries the client sent once, so neither
+ * retransmissions nor this class's own waiting end up in the RTT
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class MultiUpstreamResolver implements Resolver, Closeable {
+    /** This is the shortest wait before hedging, so a fast server isn't doubled up on for noise */
+    private static final long MIN_HEDGE_DELAY_MICROS = 1000;
+
+    /** This is the client every query is sent through */
+    private final DNSClient client;
+
+    /** These are the addresses of the servers questions are spread over */
+    private final InetSocketAddress[] servers;
+
+    /** This is true if slow queries are hedged to a second server */
+    private final boolean hedging;
+
+    /** This fires the hedged queries */
+    private final ScheduledExecutorService timer;
+
+    /** This is how many hedged queries have been sent */
+    private final AtomicInteger hedges = new AtomicInteger();
+
+    /**
+     * This constructor creates a resolver over a set of servers
+     *
+     * @param client the client to send queries through
+     * @param servers the addresses of the servers
+     * @param hedging true to send a second query when the first is slow
+     */
+    public MultiUpstreamResolver(DNSClient client, List<InetSocketAddress> servers,
+                                 boolean hedging) {
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("No upstream servers");
+        }
+        this.client = client;
+        this.servers = servers.toArray(new InetSocketAddress[0]);
+        this.hedging = hedging;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "MultiUpstreamResolver-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * This method asks the best server, moving on to the next best when one
+     * fails and hedging to the next best when one is slow
+     *
+     * @param question the question to answer
+     * @return the future that completes with the first good response
+     */
+    public CompletableFuture<Message> resolve(Query question) {
+        Attempt attempt = new Attempt(question, rank());
+        attempt.sendNext();
+        if (hedging && attempt.ranked.length > 1) {
+            long delay = Math.max(MIN_HEDGE_DELAY_MICROS,
+                    client.getUpstream(attempt.ranked[0]).getHedgeDelayMicros());
+            if (delay < TimeUnit.MILLISECONDS.toMicros(client.getTimeoutMillis())) {
+                ScheduledFuture<?> hedge = timer.schedule(() -> {
+                    if (!attempt.result.isDone() && attempt.sendNext()) {
+                        hedges.incrementAndGet();
+                    }
+                }, delay, TimeUnit.MICROSECONDS);
+                attempt.result.whenComplete((response, error) -> hedge.cancel(false));
+            }
+        }
+        return attempt.result;
+    }
+
+    /**
+     * This method orders the servers from best to worst score
+     *
+     * @return the servers' addresses in the order to ask them
+     */
+    private InetSocketAddress[] rank() {
+        InetSocketAddress[] ranked = servers.clone();
+        if (ranked.length > 1) {
+            double[] scores = new double[ranked.length];
+            for (int i = 0; i < ranked.length; i++) {
+                scores[i] = client.getUpstream(ranked[i]).getScore();
+            }
+            //Scores are read once up front since they change while sorting
+            Integer[] order = new Integer[ranked.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingDouble(i -> scores[i]));
+            for (int i = 0; i < order.length; i++) {
+                ranked[i] = servers[order[i]];
+            }
+        }
+        return ranked;
+    }
+
+    /**
+     * This method returns the servers with how each has been doing
+     *
+     * @return the servers
+     */
+    public List<Upstream> getUpstreams() {
+        List<Upstream> upstreams = new ArrayList<Upstream>(servers.length);
+        for (InetSocketAddress server : servers) {
+            upstreams.add(client.getUpstream(server));
+        }
+        return upstreams;
+    }
+
+    public int getHedges() {
+        return hedges.get();
+    }
+
+    /**
+     * This method stops the hedging timer.  The client is left open since it
+     * was handed in
+     */
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * This class tracks one question across every server it has been sent to
+     */
+    private class Attempt {
+        /** This is the question being answered */
+        private final Query question;
+
+        /** These are the servers' addresses in the order to ask them */
+        private final InetSocketAddress[] ranked;
+
+        /** This is the future handed back to the caller */
+        private final CompletableFuture<Message> result = new CompletableFuture<Message>();
+
+        /** This is the index of the next server to ask */
+        private int next;
+
+        /** This is how many queries are still waiting for an answer */
+        private int outstanding;
+
+        /** This is the last SERVFAIL answer, kept in case no server does better */
+        private Message serverFailure;
+
+        private Attempt(Query question, InetSocketAddress[] ranked) {
+            this.question = question;
+            this.ranked = ranked;
+        }
+
+        /**
+         * This method sends the question to the next server that hasn't been
+         * asked yet
+         *
+         * @return false if every server has already been asked
+         */
+        private boolean sendNext() {
+            InetSocketAddress server;
+            synchronized (this) {
+                if (next >= ranked.length) {
+                    return false;
+                }
+                server = ranked[next++];
+                outstanding++;
+            }
+            client.resolve(question, server).whenComplete(this::finish);
+            return true;
+        }
+
+        /**
+         * This method takes the outcome of one query.  A good answer goes to
+         * the caller straight away.  A failure or SERVFAIL moves on to the
+         * next server, and only reaches the caller once every server has
+         * been asked and no query is left that could still do better
+         *
+         * @param response the response, or null if the query failed
+         * @param error why the query failed, or null if it didn't
+         */
+        private void finish(Message response, Throwable error) {
+            if (error == null && response.getHeader().getReturnCode() != Header.SERVER_FAILURE) {
+                result.complete(response);
+                return;
+            }
+            //Asking the next server first keeps the count from reaching 0 while one is left
+            sendNext();
+            Message failure;
+            synchronized (this) {
+                if (response != null) {
+                    serverFailure = response;
+                }
+                if (--outstanding > 0) {
+                    return;
+                }
+                failure = serverFailure;
+            }
+            //A server's SERVFAIL is still an answer, so it beats another server's error
+            if (failure != null) {
+                result.complete(failure);
+            } else {
+                result.completeExceptionally(error);
+            }
+        }
+    }
+}
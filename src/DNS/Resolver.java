@@ -0,0 +1,44 @@
+package DNS;
+
+import Message.Message;
+import Message.Query;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This is anything that can answer a question, whether by asking a server
+ * or by looking in a cache
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public interface Resolver {
+    /**
+     * This method answers a question without blocking
+     *
+     * @param question the question to answer
+     * @return the future that completes with the response
+     */
+    CompletableFuture<Message> resolve(Query question);
+
+    /**
+     * This method says whether the resolver can answer questions about any
+     * name, by recursion or by asking a server that recurses, so replies can
+     * say whether recursion is available
+     *
+     * @return true unless the resolver only answers for names it holds
+     */
+    default boolean offersRecursion() {
+        return true;
+    }
+
+    /**
+     * This method says whether the resolver can answer a question whose type
+     * Type doesn't know.  Resolvers that ask upstream can't, since the
+     * question can't be sent on
+     *
+     * @return true if such questions may be handed to the resolver
+     */
+    default boolean answersUnknownTypes() {
+        return false;
+    }
+}
@@ -0,0 +1,184 @@
+package DNS;
+
+import Cache.CacheKey;
+import Message.Class;
+import Message.DomainName;
+import Message.Message;
+import Message.MessageEncoder;
+import Message.MessageView;
+import Message.Type;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is a stand in for an upstream DNS server that answers from memory, so
+ * the whole query path can be load tested without a network.  Questions
+ * matching one of its canned responses get that response, and every other
+ * question gets a made up answer: an address worked out from the name for
+ * type A, and an empty NOERROR answer for any other type.
+ *
+ * Replies are built by copying bytes, the canned ones being encoded once up
+ * front, so a single thread can answer far faster than the server being
+ * tested and the stub doesn't become the bottleneck
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class StubServer implements Closeable {
+    /** This is the TTL of the made up answers, in seconds */
+    public static final int DEFAULT_TTL = 300;
+
+    /** This is the size of the header */
+    private static final int HEADER_SIZE = 12;
+
+    /** This is the channel queries arrive on */
+    private final DatagramChannel channel;
+
+    /** These are the canned responses by question, each encoded with an id of 0 */
+    private final HashMap<CacheKey, byte[]> canned = new HashMap<CacheKey, byte[]>();
+
+    /** This is the TTL of the made up answers */
+    private final int ttl;
+
+    /** This is the thread answering queries */
+    private final Thread worker;
+
+    /** This is how many queries have been answered */
+    private final AtomicLong queries = new AtomicLong();
+
+    /**
+     * This constructor binds the stub and starts answering
+     *
+     * @param address the address and port to listen on, port 0 for any
+     * @param responses the canned responses, each answering its first question
+     * @param ttl the TTL of the made up answers in seconds
+     *
+     * @throws IOException when the channel can't be opened or bound
+     */
+    public StubServer(InetSocketAddress address, List<Message> responses, int ttl)
+            throws IOException {
+        this.ttl = ttl;
+        MessageEncoder encoder = new MessageEncoder();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        for (Message response : responses) {
+            buffer.clear();
+            encoder.encode(response, buffer);
+            buffer.flip();
+            byte[] wire = new byte[buffer.remaining()];
+            buffer.get(wire);
+            wire[0] = 0;
+            wire[1] = 0;
+            canned.put(new CacheKey(response.getQuestions().get(0)), wire);
+        }
+        this.channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, 4 << 20);
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, 4 << 20);
+        channel.bind(address);
+        this.worker = new Thread(this::serve, "StubServer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    public long getQueries() {
+        return queries.get();
+    }
+
+    /**
+     * This method answers queries until the channel is closed.  Anything
+     * that isn't a query with one question is dropped
+     */
+    private void serve() {
+        ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024);
+        ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+        MessageView view = new MessageView();
+        while (channel.isOpen()) {
+            try {
+                in.clear();
+                SocketAddress client = channel.receive(in);
+                in.flip();
+                out.clear();
+                if (answer(view, in, out)) {
+                    out.flip();
+                    channel.send(out, client);
+                    queries.incrementAndGet();
+                }
+            } catch (IOException | RuntimeException e) {
+                //A closed channel ends the loop, and a bad packet is only dropped
+            }
+        }
+    }
+
+    /**
+     * This method writes the reply to one query
+     *
+     * @param view the view to read the query through
+     * @param query the query from index 0
+     * @param out the buffer to write the reply into
+     * @return false if the query should be dropped
+     */
+    private boolean answer(MessageView view, ByteBuffer query, ByteBuffer out) {
+        view.wrap(query);
+        if (view.isResponse() || view.getQuestionCount() != 1) {
+            return false;
+        }
+        DomainName name = view.getQuestionDomainName(0);
+        Type type = Type.parseType(view.getQuestionType(0));
+        int questionEnd = HEADER_SIZE + name.getWireLength() + 4;
+        byte[] wire = type == null ? null
+                : canned.get(new CacheKey(name, type, Class.parseClass(view.getQuestionClass(0))));
+        if (wire != null) {
+            out.put(wire);
+            out.put(0, query.get(0));
+            out.put(1, query.get(1));
+            out.put(2, (byte) (wire[2] & ~1 | query.get(2) & 1));
+            //The question is copied from the query so its case matches
+            for (int i = HEADER_SIZE; i < questionEnd; i++) {
+                out.put(i, query.get(i));
+            }
+            return true;
+        }
+        for (int i = 0; i < questionEnd; i++) {
+            out.put(query.get(i));
+        }
+        //A response with recursion available and the query's recursion desired bit
+        out.put(2, (byte) (0x80 | query.get(2) & 1));
+        out.put(3, (byte) 0x80);
+        out.putShort(6, (short) (type == Type.A ? 1 : 0));
+        out.putShort(8, (short) 0);
+        out.putShort(10, (short) 0);
+        if (type == Type.A) {
+            out.putShort((short) (0xC000 | HEADER_SIZE));
+            out.putShort((short) Type.A.getValue()).putShort((short) Class.IN.getValue());
+            out.putInt(ttl).putShort((short) 4);
+            //The address is in 10.0.0.0/8 and the same every time a name is asked about
+            out.putInt(0x0A000000 | name.hashCode() & 0xFFFFFF);
+        }
+        return true;
+    }
+
+    /**
+     * This method stops the stub
+     */
+    public void close() {
+        try {
+            channel.close();
+            worker.join();
+        } catch (IOException ignored) {
+            //Nothing more can be done about a channel that won't close
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,460 @@
+package DNS;
+
+import Message.Message;
+import Message.MessageEncoder;
+import Message.MessageView;
+import Message.Query;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This sends queries over DNS-over-TCP as RFC 7766 describes.  One
+ * connection is kept open to each server and reused, many queries can be
+ * written to it without waiting for earlier answers, and answers are matched
+ * back by transaction id in whatever order they come.  Every connection is
+ * driven by one I/O thread so callers never block
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class TcpTransport implements Closeable {
+    /** This is the largest message the two byte length prefix allows */
+    private static final int MAX_TCP_MESSAGE = 65535;
+
+    /** This is the number of different transaction ids a header can hold */
+    private static final int ID_SPACE = 65536;
+
+    /** This is the buffer each sending thread encodes its queries into */
+    private static final ThreadLocal<ByteBuffer> ENCODE_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAX_TCP_MESSAGE + 2));
+
+    /** This is the encoder each sending thread reuses */
+    private static final ThreadLocal<MessageEncoder> ENCODER =
+            ThreadLocal.withInitial(MessageEncoder::new);
+
+    /** This is how long to wait for each answer in milliseconds */
+    private final long timeoutMillis;
+
+    /** This is the selector the I/O thread waits on */
+    private final Selector selector;
+
+    /** These are the open connections by server */
+    private final Map<InetSocketAddress, Connection> connections =
+            new ConcurrentHashMap<InetSocketAddress, Connection>();
+
+    /** These are connections that need registering or have new writes */
+    private final ConcurrentLinkedQueue<Connection> changed =
+            new ConcurrentLinkedQueue<Connection>();
+
+    /** This fires the timeouts for queries that were never answered */
+    private final ScheduledExecutorService timer;
+
+    /** This is the thread that drives every connection */
+    private final Thread ioThread;
+
+    /** This is the view the I/O thread reuses to check each response */
+    private final MessageView responseView = new MessageView();
+
+    /** This is false once the transport has been closed */
+    private volatile boolean running = true;
+
+    /**
+     * This constructor starts the I/O thread.  Connections are only opened
+     * when a query needs one
+     *
+     * @param timeoutMillis how long to wait for each answer
+     *
+     * @throws IOException when the selector can't be opened
+     */
+    public TcpTransport(long timeoutMillis) throws IOException {
+        this.timeoutMillis = timeoutMillis;
+        this.selector = Selector.open();
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "TcpTransport-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ioThread = new Thread(this::ioLoop, "TcpTransport-io");
+        this.ioThread.setDaemon(true);
+        this.ioThread.start();
+    }
+
+    /**
+     * This method sends a query over the connection to a server, opening one
+     * if there isn't one already.  The header id of the message is replaced
+     * with one that isn't in use on that connection
+     *
+     * @param message the query to send
+     * @param upstream the server to send it to
+     * @return the future that completes with the response
+     */
+    public CompletableFuture<Message> query(Message message,
+                                            InetSocketAddress upstream) {
+        CompletableFuture<Message> future = new CompletableFuture<Message>();
+        if (!running) {
+            future.completeExceptionally(new ClosedChannelException());
+            return future;
+        }
+        try {
+            Connection connection = connectionTo(upstream);
+            PendingQuery pendingQuery = new PendingQuery(message, future);
+            if (!connection.assignId(pendingQuery)) {
+                future.completeExceptionally(
+                        new IOException("No free transaction ids"));
+                return future;
+            }
+            pendingQuery.timeout = timer.schedule(
+                    () -> connection.expire(pendingQuery),
+                    timeoutMillis, TimeUnit.MILLISECONDS);
+            ByteBuffer frame = ENCODE_BUFFER.get();
+            frame.clear();
+            frame.position(2);
+            int length = ENCODER.get().encode(message, frame);
+            frame.putShort(0, (short) length);
+            frame.flip();
+            ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+            copy.put(frame).flip();
+            connection.writes.add(copy);
+            changed.add(connection);
+            selector.wakeup();
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * This method finds the open connection to a server or starts a new one
+     *
+     * @param upstream the server
+     * @return the connection
+     *
+     * @throws IOException when a channel can't be opened
+     */
+    private Connection connectionTo(InetSocketAddress upstream)
+            throws IOException {
+        Connection connection = connections.get(upstream);
+        if (connection != null) {
+            return connection;
+        }
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        Connection created = new Connection(upstream, channel);
+        connection = connections.putIfAbsent(upstream, created);
+        if (connection != null) {
+            channel.close();
+            return connection;
+        }
+        channel.connect(upstream);
+        changed.add(created);
+        selector.wakeup();
+        return created;
+    }
+
+    /**
+     * This is the loop run by the I/O thread.  It registers new connections,
+     * then connects, writes and reads whatever is ready
+     */
+    private void ioLoop() {
+        while (running) {
+            try {
+                Connection connection;
+                while ((connection = changed.poll()) != null) {
+                    connection.updateInterest();
+                }
+                selector.select();
+                if (!running) {
+                    break;
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Connection ready = (Connection) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            ready.channel.finishConnect();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            ready.flushWrites();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            ready.readResponses();
+                        }
+                        if (key.isValid()) {
+                            ready.updateInterest();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        ready.fail(e);
+                    }
+                }
+                selector.selectedKeys().clear();
+            } catch (IOException e) {
+                if (running) {
+                    for (Connection connection : connections.values()) {
+                        connection.fail(e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * This method stops the I/O thread, closes every connection and fails
+     * every query still waiting
+     */
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            ioThread.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        timer.shutdownNow();
+        for (Connection connection : connections.values()) {
+            connection.fail(new ClosedChannelException());
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+
+        }
+    }
+
+    /**
+     * This class is one persistent connection with the queries waiting on it
+     */
+    private class Connection {
+        /** This is the server at the other end */
+        private final InetSocketAddress upstream;
+
+        /** This is the channel for the connection */
+        private final SocketChannel channel;
+
+        /** These are the queries waiting for an answer, keyed by transaction id */
+        private final Map<Integer, PendingQuery> pending =
+                new ConcurrentHashMap<Integer, PendingQuery>();
+
+        /** These are the length prefixed queries waiting to be written */
+        private final ConcurrentLinkedQueue<ByteBuffer> writes =
+                new ConcurrentLinkedQueue<ByteBuffer>();
+
+        /** This holds bytes read until a whole response has arrived */
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(MAX_TCP_MESSAGE + 2);
+
+        /** This is the selection key, set once the I/O thread registers it */
+        private SelectionKey key;
+
+        private Connection(InetSocketAddress upstream, SocketChannel channel) {
+            this.upstream = upstream;
+            this.channel = channel;
+        }
+
+        /**
+         * This method picks a random transaction id no other query on this
+         * connection is using
+         *
+         * @param pendingQuery the query needing an id
+         * @return false if every id is already taken
+         */
+        private boolean assignId(PendingQuery pendingQuery) {
+            int id = ThreadLocalRandom.current().nextInt(ID_SPACE);
+            for (int i = 0; i < ID_SPACE; i++) {
+                int candidate = (id + i) & 0xFFFF;
+                if (pending.putIfAbsent(candidate, pendingQuery) == null) {
+                    pendingQuery.id = candidate;
+                    pendingQuery.message.getHeader().setId(candidate);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * This method registers the channel if it hasn't been yet and asks
+         * to be told when it can be written if there is anything to write.
+         * It is only called on the I/O thread
+         *
+         * @throws IOException when the channel can't be registered
+         */
+        private void updateInterest() throws IOException {
+            if (!channel.isOpen()) {
+                return;
+            }
+            if (key == null) {
+                key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            }
+            if (channel.isConnected()) {
+                key.interestOps(writes.isEmpty()
+                        ? SelectionKey.OP_READ
+                        : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        /**
+         * This method writes queued queries until the socket won't take more
+         *
+         * @throws IOException when the channel can't be written
+         */
+        private void flushWrites() throws IOException {
+            ByteBuffer frame;
+            while ((frame = writes.peek()) != null) {
+                channel.write(frame);
+                if (frame.hasRemaining()) {
+                    return;
+                }
+                writes.poll();
+            }
+        }
+
+        /**
+         * This method reads what is available and hands every complete
+         * response to the query waiting on it
+         *
+         * @throws IOException when the channel can't be read or was closed
+         */
+        private void readResponses() throws IOException {
+            if (channel.read(readBuffer) < 0) {
+                throw new EOFException("Connection closed by " + upstream);
+            }
+            readBuffer.flip();
+            while (readBuffer.remaining() >= 2) {
+                int length = readBuffer.getShort(readBuffer.position()) & 0xFFFF;
+                if (readBuffer.remaining() < length + 2) {
+                    break;
+                }
+                int frameEnd = readBuffer.position() + 2 + length;
+                int limit = readBuffer.limit();
+                readBuffer.position(readBuffer.position() + 2);
+                readBuffer.limit(frameEnd);
+                handleResponse(readBuffer);
+                readBuffer.limit(limit);
+                readBuffer.position(frameEnd);
+            }
+            readBuffer.compact();
+        }
+
+        /**
+         * This method matches one response to its query
+         *
+         * @param frame the buffer holding the response from its position to
+         *              its limit
+         */
+        private void handleResponse(ByteBuffer frame) {
+            if (frame.remaining() < 12) {
+                return;
+            }
+            PendingQuery pendingQuery =
+                    pending.get(frame.getShort(frame.position()) & 0xFFFF);
+            if (pendingQuery == null) {
+                return;
+            }
+            Message response;
+            try {
+                responseView.wrap(frame);
+                if (!responseView.isResponse()
+                        || !responseView.questionMatches(pendingQuery.question())) {
+                    return;
+                }
+                response = responseView.toMessage();
+            } catch (RuntimeException e) {
+                finish(pendingQuery, null, new IOException("Malformed response", e));
+                return;
+            }
+            finish(pendingQuery, response, null);
+        }
+
+        /**
+         * This method fails a query that ran out of time
+         *
+         * @param pendingQuery the query that timed out
+         */
+        private void expire(PendingQuery pendingQuery) {
+            finish(pendingQuery, null, new SocketTimeoutException(
+                    "No TCP response from " + upstream + " within "
+                            + timeoutMillis + "ms"));
+        }
+
+        /**
+         * This method completes a query if it is still waiting
+         *
+         * @param pendingQuery the query
+         * @param response the response, or null if it failed
+         * @param cause why it failed, or null if it was answered
+         */
+        private void finish(PendingQuery pendingQuery, Message response,
+                            Throwable cause) {
+            if (!pending.remove(pendingQuery.id, pendingQuery)) {
+                return;
+            }
+            if (pendingQuery.timeout != null) {
+                pendingQuery.timeout.cancel(false);
+            }
+            if (cause == null) {
+                pendingQuery.future.complete(response);
+            } else {
+                pendingQuery.future.completeExceptionally(cause);
+            }
+        }
+
+        /**
+         * This method closes the connection and fails every query on it.  The
+         * next query to the server opens a new connection
+         *
+         * @param cause why the connection failed
+         */
+        private void fail(Throwable cause) {
+            connections.remove(upstream, this);
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+
+            }
+            for (PendingQuery pendingQuery : pending.values()) {
+                finish(pendingQuery, null, cause);
+            }
+            writes.clear();
+        }
+    }
+
+    /**
+     * This class holds a query waiting for its answer on a connection
+     */
+    private static class PendingQuery {
+        /** This is the query that was sent */
+        private final Message message;
+
+        /** This is the future handed back to the caller */
+        private final CompletableFuture<Message> future;
+
+        /** This is the transaction id assigned to the query */
+        private int id;
+
+        /** This is the task that fails the query if it isn't answered */
+        private ScheduledFuture<?> timeout;
+
+        private PendingQuery(Message message, CompletableFuture<Message> future) {
+            this.message = message;
+            this.future = future;
+        }
+
+        private Query question() {
+            return message.getQuestions().get(0);
+        }
+    }
+}
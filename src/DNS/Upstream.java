@@ -0,0 +1,231 @@
+package DNS;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+/**
+ * This is one upstream server along with how it has been doing lately.  The
+ * smoothed RTT is kept the way TCP keeps it in RFC 6298, the failure rate is
+ * a moving average that fades back towards zero while the server isn't being
+ * used, so a server that was down gets tried again later, and the 95th
+ * percentile of recent RTTs is kept to decide when to hedge.  The smoothed
+ * RTT and its variation also give the retransmission timeout
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class Upstream {
+    /** This is how much each new RTT moves the smoothed RTT, 1/8 as in RFC 6298 */
+    private static final double RTT_GAIN = 0.125;
+
+    /** This is how much each new RTT moves the RTT variation, 1/4 as in RFC 6298 */
+    private static final double VARIATION_GAIN = 0.25;
+
+    /** This is how much each result moves the failure rate */
+    private static final double FAILURE_GAIN = 0.1;
+
+    /** This is how long it takes an unused server's failure rate to halve */
+    private static final long FAILURE_HALF_LIFE_MILLIS = 5000;
+
+    /** This is how many recent RTTs the percentile is taken over */
+    private static final int SAMPLE_COUNT = 128;
+
+    /** This is how many new RTTs arrive before the percentile is worked out again */
+    private static final int PERCENTILE_INTERVAL = 16;
+
+    /** This is the retransmission timeout used before the first answer, in milliseconds */
+    public static final long INITIAL_RTO_MILLIS = 250;
+
+    /** This is the shortest retransmission timeout, so a fast server isn't flooded */
+    public static final long MIN_RTO_MILLIS = 50;
+
+    /** This is the longest retransmission timeout */
+    public static final long MAX_RTO_MILLIS = 2000;
+
+    /** This is how many milliseconds a failure rate of 1 adds to the score */
+    private static final double FAILURE_PENALTY_MILLIS = 1000;
+
+    /** This is the address of the server */
+    private final InetSocketAddress address;
+
+    /** These are the most recent RTTs in microseconds, used as a ring */
+    private final long[] samples = new long[SAMPLE_COUNT];
+
+    /** This is how many RTTs have ever been recorded */
+    private long sampleTotal;
+
+    /** This is the smoothed RTT in milliseconds, 0 until the first answer */
+    private double smoothedRtt;
+
+    /** This is the smoothed RTT variation in milliseconds */
+    private double rttVariation;
+
+    /** This is the moving average of failures, between 0 and 1 */
+    private double failureRate;
+
+    /** This is when the failure rate was last updated, in milliseconds */
+    private long failureUpdatedAt = System.currentTimeMillis();
+
+    /** This is the 95th percentile RTT in microseconds as last worked out */
+    private long p95Micros;
+
+    /** This multiplies the retransmission timeout, doubling with every timeout until the next answer */
+    private int backoff = 1;
+
+    /**
+     * This constructor creates an upstream with no history yet
+     *
+     * @param address the address of the server
+     */
+    public Upstream(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * This method records an answer and how long it took
+     *
+     * @param rttNanos the time from sending the query to the answer
+     */
+    public synchronized void recordSuccess(long rttNanos) {
+        double rtt = rttNanos / 1e6;
+        if (sampleTotal == 0) {
+            smoothedRtt = rtt;
+            rttVariation = rtt / 2;
+        } else {
+            rttVariation += VARIATION_GAIN * (Math.abs(smoothedRtt - rtt) - rttVariation);
+            smoothedRtt += RTT_GAIN * (rtt - smoothedRtt);
+        }
+        backoff = 1;
+        samples[(int) (sampleTotal % SAMPLE_COUNT)] = rttNanos / 1000;
+        sampleTotal++;
+        if (sampleTotal <= PERCENTILE_INTERVAL || sampleTotal % PERCENTILE_INTERVAL == 0) {
+            updatePercentile();
+        }
+        updateFailureRate(0);
+    }
+
+    /**
+     * This method backs the retransmission timeout off after a query had to
+     * be sent again, as RFC 6298 does, so an overloaded server isn't sent
+     * more and more copies.  The next answer that can be timed resets it
+     */
+    public synchronized void recordRetransmit() {
+        if (backoff * getBaseRetransmitTimeoutMillis() < MAX_RTO_MILLIS) {
+            backoff *= 2;
+        }
+    }
+
+    /**
+     * This method records a query that timed out or failed
+     */
+    public synchronized void recordFailure() {
+        updateFailureRate(1);
+    }
+
+    /**
+     * This method scores the server for picking which one to ask, lower
+     * being better.  A server that has never answered and never failed
+     * scores 0 so it gets measured straight away
+     *
+     * @return the smoothed RTT in milliseconds plus a penalty for failures
+     */
+    public synchronized double getScore() {
+        return smoothedRtt + FAILURE_PENALTY_MILLIS * getFailureRate();
+    }
+
+    public synchronized double getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    public synchronized double getRttVariation() {
+        return rttVariation;
+    }
+
+    /**
+     * This method works out how long to wait for an answer before sending
+     * the query again, the smoothed RTT plus four times its variation as in
+     * RFC 6298, backed off for any retransmissions since the last answer
+     *
+     * @return the retransmission timeout in milliseconds
+     */
+    public synchronized long getRetransmitTimeoutMillis() {
+        return Math.min(MAX_RTO_MILLIS, backoff * getBaseRetransmitTimeoutMillis());
+    }
+
+    /**
+     * This method works out the retransmission timeout before any backoff
+     *
+     * @return the timeout in milliseconds
+     */
+    private long getBaseRetransmitTimeoutMillis() {
+        if (sampleTotal == 0) {
+            return INITIAL_RTO_MILLIS;
+        }
+        long rto = (long) Math.ceil(smoothedRtt + 4 * rttVariation);
+        return Math.max(MIN_RTO_MILLIS, Math.min(MAX_RTO_MILLIS, rto));
+    }
+
+    /**
+     * This method returns the failure rate faded for the time since it was
+     * last updated
+     *
+     * @return the failure rate between 0 and 1
+     */
+    public synchronized double getFailureRate() {
+        long elapsed = System.currentTimeMillis() - failureUpdatedAt;
+        return failureRate * Math.pow(0.5, (double) elapsed / FAILURE_HALF_LIFE_MILLIS);
+    }
+
+    /**
+     * This method returns the 95th percentile of the recent RTTs
+     *
+     * @return the percentile in microseconds, 0 until the first answer
+     */
+    public synchronized long getP95Micros() {
+        return p95Micros;
+    }
+
+    /**
+     * This method works out how long to wait for an answer before hedging
+     * to another server.  Before the first answer there is no percentile,
+     * so the initial retransmission timeout is used instead of hedging at
+     * once
+     *
+     * @return the delay in microseconds
+     */
+    public synchronized long getHedgeDelayMicros() {
+        return sampleTotal == 0 ? INITIAL_RTO_MILLIS * 1000 : p95Micros;
+    }
+
+    /**
+     * This method fades the failure rate for the time that has passed and
+     * then moves it towards the latest result
+     *
+     * @param result 1 for a failure, 0 for an answer
+     */
+    private void updateFailureRate(int result) {
+        long now = System.currentTimeMillis();
+        failureRate = getFailureRate();
+        failureRate += FAILURE_GAIN * (result - failureRate);
+        failureUpdatedAt = now;
+    }
+
+    /**
+     * This method works out the 95th percentile of the recent RTTs
+     */
+    private void updatePercentile() {
+        int count = (int) Math.min(sampleTotal, SAMPLE_COUNT);
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        p95Micros = sorted[Math.min(count - 1, (int) Math.ceil(0.95 * count) - 1)];
+    }
+
+    public String toString() {
+        return String.format("%s srtt=%.3fms p95=%.3fms failures=%.3f", address,
+                getSmoothedRtt(), getP95Micros() / 1e3, getFailureRate());
+    }
+}
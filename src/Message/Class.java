@@ -7,6 +7,28 @@ package Message;
  * @version 1.0
  */
 public enum Class {
-    IN,
-    CH
+    IN(1),
+    CH(3);
+
+    /** This is the number that stands for the class on the wire */
+    private final int value;
+
+    Class(int value) {
+        this.value = value;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    /**
+     * This method matches the number for a class to a Class.  Anything that
+     * isn't IN is treated as CH
+     *
+     * @param classNum the number to match
+     * @return the Class the number matches to
+     */
+    public static Class parseClass(int classNum) {
+        return classNum == IN.value ? IN : CH;
+    }
 }
@@ -0,0 +1,395 @@
+package Message;
+
+import Utilities.ParserUtility;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This is a domain name held in its uncompressed wire format, length
+ * prefixed labels ending with the root label.  Names compare without regard
+ * to ASCII case, and the hash is worked out once when the name is made, so a
+ * DomainName is cheap to use as a map key.  Parents and suffixes share the
+ * bytes of the name they came from, so walking up towards the root never
+ * copies or builds a String
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public final class DomainName {
+    /** This is the root name, a single empty label */
+    public static final DomainName ROOT = new DomainName(new byte[]{0}, 0, 1, 0);
+
+    /** These are the wire bytes, shared between a name and its suffixes */
+    private final byte[] wire;
+
+    /** This is where this name starts in the bytes */
+    private final int offset;
+
+    /** This is the length of the name on the wire, including the root label */
+    private final int length;
+
+    /** This is the number of labels, not counting the root */
+    private final int labelCount;
+
+    /** This is the hash of the name with every letter in lower case */
+    private final int hash;
+
+    /**
+     * This constructor wraps wire bytes that are already known to be a valid
+     * uncompressed name
+     *
+     * @param wire the bytes holding the name
+     * @param offset where the name starts
+     * @param length the length of the name including the root label
+     * @param labelCount the number of labels
+     */
+    private DomainName(byte[] wire, int offset, int length, int labelCount) {
+        this.wire = wire;
+        this.offset = offset;
+        this.length = length;
+        this.labelCount = labelCount;
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = hash * 31 + lower(wire[i]);
+        }
+        this.hash = hash;
+    }
+
+    /**
+     * This method makes a name from its dotted form.  A trailing dot is
+     * optional and "" or "." is the root
+     *
+     * @param name the dotted name
+     * @return the name
+     *
+     * @throws IllegalArgumentException when a label is empty or too long, or
+     * the name is too long
+     */
+    public static DomainName of(String name) {
+        int end = name.length();
+        if (end > 0 && name.charAt(end - 1) == '.') {
+            end--;
+        }
+        if (end == 0) {
+            return ROOT;
+        }
+        if (end + 2 > MessageEncoder.MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Name too long: " + name);
+        }
+        byte[] wire = new byte[end + 2];
+        int labels = 0;
+        int lengthIndex = 0;
+        int labelLength = 0;
+        for (int i = 0; i < end; i++) {
+            char c = name.charAt(i);
+            if (c == '.') {
+                checkLabel(labelLength, name);
+                wire[lengthIndex] = (byte) labelLength;
+                labels++;
+                lengthIndex = i + 1;
+                labelLength = 0;
+            } else {
+                wire[i + 1] = (byte) c;
+                labelLength++;
+            }
+        }
+        checkLabel(labelLength, name);
+        wire[lengthIndex] = (byte) labelLength;
+        wire[end + 1] = 0;
+        return new DomainName(wire, 0, wire.length, labels + 1);
+    }
+
+    /**
+     * This method reads a name from a message, following compression
+     * pointers, and leaves the buffer's position just past the name
+     *
+     * @param data the buffer holding the message, which must start at index
+     *             0 since pointers count from the start of the message
+     * @return the name
+     *
+     * @throws IllegalArgumentException when the name is malformed
+     */
+    public static DomainName read(ByteBuffer data) {
+        int[] end = new int[1];
+        DomainName name = read(data, data.position(), end);
+        data.position(end[0]);
+        return name;
+    }
+
+    /**
+     * This method reads a name at an offset in a message without moving the
+     * buffer's position
+     *
+     * @param data the buffer holding the message from index 0
+     * @param offset the offset of the name
+     * @return the name
+     *
+     * @throws IllegalArgumentException when the name is malformed
+     */
+    public static DomainName read(ByteBuffer data, int offset) {
+        return read(data, offset, null);
+    }
+
+    /**
+     * This method copies a possibly compressed name out of a message into
+     * its own uncompressed bytes
+     *
+     * @param data the buffer holding the message from index 0
+     * @param offset the offset of the name
+     * @param end if not null, its first element is set to the offset just
+     *            past the name where it started
+     * @return the name
+     */
+    private static DomainName read(ByteBuffer data, int offset, int[] end) {
+        byte[] scratch = new byte[MessageEncoder.MAX_NAME_LENGTH];
+        int written = 0;
+        int labels = 0;
+        int jumps = 0;
+        int position = offset;
+        while (true) {
+            int labelLength = ParserUtility.readByte(data, position);
+            if ((labelLength & 0xC0) == 0xC0) {
+                if (++jumps > ParserUtility.MAX_POINTER_JUMPS) {
+                    throw new IllegalArgumentException("Too many compression pointers");
+                }
+                if (end != null && jumps == 1) {
+                    end[0] = position + 2;
+                }
+                position = ParserUtility.pointerTarget(data, position);
+                continue;
+            }
+            if ((labelLength & 0xC0) != 0) {
+                throw new IllegalArgumentException("Bad label type");
+            }
+            if (written + labelLength + 1 > MessageEncoder.MAX_NAME_LENGTH) {
+                throw new IllegalArgumentException("Name too long");
+            }
+            scratch[written++] = (byte) labelLength;
+            if (labelLength == 0) {
+                break;
+            }
+            for (int i = 1; i <= labelLength; i++) {
+                scratch[written++] = (byte) ParserUtility.readByte(data, position + i);
+            }
+            labels++;
+            position += labelLength + 1;
+        }
+        if (end != null && jumps == 0) {
+            end[0] = position + 1;
+        }
+        if (labels == 0) {
+            return ROOT;
+        }
+        byte[] wire = new byte[written];
+        System.arraycopy(scratch, 0, wire, 0, written);
+        return new DomainName(wire, 0, written, labels);
+    }
+
+    /**
+     * This method makes sure a label has a legal length
+     *
+     * @param labelLength the length of the label
+     * @param name the name, for the error message
+     */
+    private static void checkLabel(int labelLength, String name) {
+        if (labelLength == 0 || labelLength > MessageEncoder.MAX_LABEL_LENGTH) {
+            throw new IllegalArgumentException("Bad label length in " + name);
+        }
+    }
+
+    public int getLabelCount() {
+        return labelCount;
+    }
+
+    /**
+     * This method returns the length of the name on the wire
+     *
+     * @return the number of bytes, including the root label
+     */
+    public int getWireLength() {
+        return length;
+    }
+
+    /**
+     * This method checks whether this is the root name
+     *
+     * @return true for the root
+     */
+    public boolean isRoot() {
+        return labelCount == 0;
+    }
+
+    /**
+     * This method returns the name with its first label removed, sharing
+     * this name's bytes
+     *
+     * @return the parent, or null for the root
+     */
+    public DomainName getParent() {
+        if (labelCount == 0) {
+            return null;
+        }
+        int skip = (wire[offset] & 0xFF) + 1;
+        return new DomainName(wire, offset + skip, length - skip, labelCount - 1);
+    }
+
+    /**
+     * This method returns the last few labels of the name, sharing this
+     * name's bytes
+     *
+     * @param labels the number of labels to keep
+     * @return the suffix with that many labels
+     */
+    public DomainName getSuffix(int labels) {
+        if (labels >= labelCount) {
+            return this;
+        }
+        if (labels <= 0) {
+            return ROOT;
+        }
+        int position = skipLabels(labelCount - labels);
+        return new DomainName(wire, position, offset + length - position, labels);
+    }
+
+    /**
+     * This method checks whether this name is the same as, or falls under,
+     * another name
+     *
+     * @param zone the name to check against
+     * @return true if this name is zone or one of its descendants
+     */
+    public boolean isSubdomainOf(DomainName zone) {
+        if (zone.labelCount > labelCount) {
+            return false;
+        }
+        int position = skipLabels(labelCount - zone.labelCount);
+        return offset + length - position == zone.length
+                && regionEquals(position, zone);
+    }
+
+    /**
+     * This method returns the label at an index, with 0 the leftmost
+     *
+     * @param index the label to return
+     * @return the label's characters
+     */
+    public String getLabel(int index) {
+        int position = skipLabels(index);
+        return new String(wire, position + 1, wire[position] & 0xFF,
+                StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * This method writes the uncompressed name into a buffer
+     *
+     * @param out the buffer to write into
+     */
+    public void writeTo(ByteBuffer out) {
+        out.put(wire, offset, length);
+    }
+
+    /**
+     * This method checks whether an uncompressed name held in a buffer is
+     * this name, ignoring case, without copying it out
+     *
+     * @param data the buffer holding the name
+     * @param position the index the name starts at
+     * @return true if the bytes there are this name
+     */
+    public boolean matches(ByteBuffer data, int position) {
+        if (position + length > data.limit()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (lower(data.get(position + i)) != lower(wire[offset + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * This method returns where the label after skipping a number of labels
+     * starts
+     *
+     * @param labels the number of labels to skip
+     * @return the index into the bytes
+     */
+    private int skipLabels(int labels) {
+        int position = offset;
+        for (int i = 0; i < labels; i++) {
+            position += (wire[position] & 0xFF) + 1;
+        }
+        return position;
+    }
+
+    /**
+     * This method compares the bytes of another name with this name's bytes
+     * at a position, ignoring case
+     *
+     * @param position where in this name to start
+     * @param other the name to compare with
+     * @return true if the bytes are the same
+     */
+    private boolean regionEquals(int position, DomainName other) {
+        for (int i = 0; i < other.length; i++) {
+            if (lower(wire[position + i]) != lower(other.wire[other.offset + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * This method lower cases an ASCII letter, leaving every other byte alone.
+     * Length bytes are below 64 so they are never changed
+     *
+     * @param b the byte
+     * @return the byte in lower case, as an unsigned number
+     */
+    private static int lower(byte b) {
+        int value = b & 0xFF;
+        return value >= 'A' && value <= 'Z' ? value | 0x20 : value;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof DomainName)) {
+            return false;
+        }
+        DomainName name = (DomainName) other;
+        return hash == name.hash && length == name.length
+                && labelCount == name.labelCount && regionEquals(offset, name);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * This method returns the dotted form of the name with a trailing dot,
+     * the same form the parser gives names
+     *
+     * @return the dotted name
+     */
+    public String toString() {
+        if (labelCount == 0) {
+            return ".";
+        }
+        StringBuilder name = new StringBuilder(length);
+        int position = offset;
+        int labelLength;
+        while ((labelLength = wire[position] & 0xFF) != 0) {
+            for (int i = 1; i <= labelLength; i++) {
+                name.append((char) (wire[position + i] & 0xFF));
+            }
+            name.append('.');
+            position += labelLength + 1;
+        }
+        return name.toString();
+    }
+}
@@ -10,6 +10,24 @@ import java.util.Random;
  * @version 1.0
  */
 public class Header {
+    /** This is the return code for a query that was answered without error */
+    public static final int NO_ERROR = 0;
+
+    /** This is the return code for a query the server couldn't understand */
+    public static final int FORMAT_ERROR = 1;
+
+    /** This is the return code for a server that couldn't answer */
+    public static final int SERVER_FAILURE = 2;
+
+    /** This is the return code for a name that doesn't exist (NXDOMAIN) */
+    public static final int NAME_ERROR = 3;
+
+    /** This is the return code for a kind of query the server doesn't support */
+    public static final int NOT_IMPLEMENTED = 4;
+
+    /** This is the return code for a query the server won't answer, such as one for a zone it doesn't serve */
+    public static final int REFUSED = 5;
+
     /**
      * This is the identifier that generates any kind of query
      */
@@ -123,71 +141,41 @@ public class Header {
     }
 
     /**
-     * This method uses the helper methods below to package up the header and return it in a ByteBuffer
+     * This method packages up the header and returns it in a ByteBuffer
      *
      * @return the ByteBuffer of the header
      */
     public ByteBuffer getByteBuffer() {
-        byte[] newByteArray = new byte[12];
-        ByteBuffer byteBuffer = ByteBuffer.wrap(newByteArray);
-        byteBuffer.put(getIDBytes());
-        byteBuffer.put(getFlags());
-        byteBuffer.put(getCounts());
+        ByteBuffer byteBuffer = ByteBuffer.allocate(12);
+        writeTo(byteBuffer);
         return byteBuffer;
     }
 
     /**
-     * This method takes the id and pulls it into two bytes and stores them in a byte[]
+     * This method writes the 12 bytes of the header into a buffer the caller
+     * owns, so nothing has to be allocated to send a message
      *
-     * @return the byte array with the two bytes that comprise the id
+     * @param out the buffer to write into
      */
-    private byte[] getIDBytes() {
-        byte[] IDArray = new byte[2];
-        //This pulls out the first part of the hexidecimal representation of the id
-        IDArray[0] = (byte) ((id >> 8) & 0xFF);
-        //This pulls out the second part of the hexidecimal representation of the id
-        IDArray[1] = (byte) (id & 0xFF);
-        return IDArray;
+    public void writeTo(ByteBuffer out) {
+        out.putShort((short) id);
+        out.putShort((short) getFlagBits());
+        out.putShort((short) totalQuestions);
+        out.putShort((short) totalAnswerResourceRecords);
+        out.putShort((short) totalAuthorityResourceRecords);
+        out.putShort((short) totalAdditionalResourceRecords);
     }
 
     /**
      * This method takes the flags for the header, converts them to 1's or 0's and combines them into an integer
-     * then it separates the ints into two separate bytes and stores them into a byte[]
      *
-     * @return This method returns a byte[] that will contain the bits representing the flags
+     * @return the 16 bits holding the flags
      */
-    private byte[] getFlags() {
-        byte[] returnBytes = new byte[2];
+    int getFlagBits() {
         //Using tertiary operations to convert booleans to numbers and bitwise operations to shift and combine values
         //I create an integer representation of all the values
-        int flags = (qR ? 1 : 0) << 15 | opCode << 14 | (aA ? 1 : 0) << 10 | (truncated ? 1 : 0) << 9 | (recursionDesired ? 1 : 0) << 8
-                | (recursionAvailable ? 1 : 0) << 7 | z << 6 | returnCode;
-        //This section does the same as getIDBytes where I pull out the first byte of the hex and the second byte
-        //of the hex
-        returnBytes[0] = (byte) ((flags >> 8) & 0xFF);
-        returnBytes[1] = (byte) (flags & 0xFF);
-        return returnBytes;
-    }
-
-    /**
-     * This method takes the counts of all the queries and resource records
-     * and converts them to byte[] representation
-     *
-     * @return the byte[] of the counts
-     */
-    private byte[] getCounts() {
-        byte[] returnBytes = new byte[8];
-        //The following is the bitwise operations used to separate the first
-        //and second bytes from the hex of the counts
-        returnBytes[0] = (byte) ((totalQuestions >> 8) & 0xFF);
-        returnBytes[1] = (byte) (totalQuestions & 0xFF);
-        returnBytes[2] = (byte) ((totalAnswerResourceRecords >> 8) & 0xFF);
-        returnBytes[3] = (byte) (totalAnswerResourceRecords & 0xFF);
-        returnBytes[4] = (byte) ((totalAuthorityResourceRecords >> 8) & 0xFF);
-        returnBytes[5] = (byte) (totalAuthorityResourceRecords & 0xFF);
-        returnBytes[6] = (byte) ((totalAdditionalResourceRecords >> 8) & 0xFF);
-        returnBytes[7] = (byte) (totalAdditionalResourceRecords & 0xFF);
-        return returnBytes;
+        return (qR ? 1 : 0) << 15 | opCode << 11 | (aA ? 1 : 0) << 10 | (truncated ? 1 : 0) << 9 | (recursionDesired ? 1 : 0) << 8
+                | (recursionAvailable ? 1 : 0) << 7 | z << 4 | returnCode;
     }
 
     /**
@@ -196,7 +184,7 @@ public class Header {
      * @param data the ByteBuffer with the bytes for the ID
      */
     private void parseID(ByteBuffer data) {
-        this.id = (((data.get() << 8)&0xFF) | (data.get() & 0xFF)) & 0xffff;
+        this.id = data.getShort() & 0xFFFF;
     }
 
     /**
@@ -206,14 +194,15 @@ public class Header {
      * @param data the ByteBuffer with the bytes for parsing
      */
     private void parseFlags(ByteBuffer data) {
-        int oneTwo = (data.get() << 8) | data.get();
+        //Masking with 0xFFFF keeps the sign of the low byte from leaking into the flags
+        int oneTwo = data.getShort() & 0xFFFF;
         this.qR = ((oneTwo >> 15) & 0x1) == 1;
-        this.opCode = ((oneTwo >> 14) & 0xF);
+        this.opCode = ((oneTwo >> 11) & 0xF);
         this.aA = ((oneTwo >> 10) & 0x1) == 1;
         this.truncated = ((oneTwo >> 9) & 0x1) == 1;
         this.recursionDesired = ((oneTwo >> 8) & 0x1) == 1;
         this.recursionAvailable = ((oneTwo >> 7) & 0x1) == 1;
-        this.z = ((oneTwo >> 6) & 0x7);
+        this.z = ((oneTwo >> 4) & 0x7);
         this.returnCode = ((oneTwo) & 0xF);
     }
 
@@ -224,10 +213,52 @@ public class Header {
      * @param data the ByteBuffer with the bytes for total counts
      */
     private void parseCounts(ByteBuffer data) {
-        this.totalQuestions = (data.get() << 8) | data.get();
-        this.totalAnswerResourceRecords = (data.get() << 8) | data.get();
-        this.totalAuthorityResourceRecords = (data.get() << 8) | data.get();
-        this.totalAdditionalResourceRecords = (data.get() << 8) | data.get();
+        this.totalQuestions = data.getShort() & 0xFFFF;
+        this.totalAnswerResourceRecords = data.getShort() & 0xFFFF;
+        this.totalAuthorityResourceRecords = data.getShort() & 0xFFFF;
+        this.totalAdditionalResourceRecords = data.getShort() & 0xFFFF;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * This method replaces the randomly generated id, it is used by clients
+     * that need every id they have in flight to be unique
+     *
+     * @param id the new 16 bit id
+     */
+    public void setId(int id) {
+        this.id = id & 0xFFFF;
+    }
+
+    public boolean isResponse() {
+        return qR;
+    }
+
+    public int getOpCode() {
+        return opCode;
+    }
+
+    public boolean isAuthoritative() {
+        return aA;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public boolean isRecursionDesired() {
+        return recursionDesired;
+    }
+
+    public boolean isRecursionAvailable() {
+        return recursionAvailable;
+    }
+
+    public int getReturnCode() {
+        return returnCode;
     }
 
     public int getTotalQuestions() {
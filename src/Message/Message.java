@@ -10,6 +10,9 @@ import java.util.ArrayList;
  * @version 1.0
  */
 public class Message {
+    /** This is the largest UDP message every DNS implementation has to take */
+    public static final int MIN_UDP_PAYLOAD_SIZE = 512;
+
     /**
      * This is the header to the message that is described in RFC 1035
      */
@@ -35,6 +38,17 @@ public class Message {
      */
     private ArrayList<ResourceRecord> additionalResourceRecords;
 
+    /**
+     * This is how long the answer had been cached when the message was
+     * built from it in milliseconds, 0 for an answer straight from a server
+     */
+    private long cacheAgeMillis;
+
+    /**
+     * This is true for a message built from cached records that had expired
+     */
+    private boolean stale;
+
     /**
      * This is the constructor that initializes every field in the class
      *
@@ -65,11 +79,28 @@ public class Message {
      *                         recursion is desired
      */
     public Message(String name, String type, boolean recursionDesired) {
+        this(name, Type.parseType(type), Class.IN, recursionDesired);
+    }
+
+    /**
+     * This constructor initializes a message that is a query for an already
+     * parsed Type and Class
+     *
+     * @param name the hostname to search
+     * @param type the Type of record to ask for
+     * @param dnsClass the Class of record to ask for
+     * @param recursionDesired a boolean that indicates whether or not
+     *                         recursion is desired
+     */
+    public Message(String name, Type type, Class dnsClass, boolean recursionDesired) {
         this.header = new Header(false, 0, false, false, recursionDesired,
                 false, 0,
                 0, 1, 0, 0, 0);
         this.questions = new ArrayList<Query>();
-        this.questions.add(new Query(name, Type.parseType(type), Class.IN));
+        this.questions.add(new Query(name, type, dnsClass));
+        this.answerResourceRecords = new ArrayList<ResourceRecord>();
+        this.authorityResourceRecords = new ArrayList<ResourceRecord>();
+        this.additionalResourceRecords = new ArrayList<ResourceRecord>();
     }
 
     /**
@@ -105,14 +136,106 @@ public class Message {
      * @return the ByteBuffer representing the Message
      */
     public ByteBuffer getByteBuffer() {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(512);
-        byteBuffer.put(header.getByteBuffer().array());
-        for (Query query : questions) {
-            byteBuffer.put(query.getByteBuffer().array());
-        }
+        ByteBuffer byteBuffer = ByteBuffer.allocate(getUdpPayloadSize());
+        new MessageEncoder().encode(this, byteBuffer);
         return byteBuffer;
     }
 
+    /**
+     * This method adds an EDNS(0) OPT record to the additional section, or
+     * updates the one already there, advertising how large a UDP message
+     * can be sent back
+     *
+     * @param udpPayloadSize the largest UDP message that can be received
+     */
+    public void setUdpPayloadSize(int udpPayloadSize) {
+        removeEdns();
+        additionalResourceRecords.add(ResourceRecord.opt(udpPayloadSize));
+    }
+
+    /**
+     * This method removes the OPT record, for servers that don't understand
+     * EDNS(0)
+     */
+    public void removeEdns() {
+        for (int i = additionalResourceRecords.size() - 1; i >= 0; i--) {
+            if (additionalResourceRecords.get(i).getType() == Type.OPT) {
+                additionalResourceRecords.remove(i);
+            }
+        }
+    }
+
+    /**
+     * This method returns the OPT record from the additional section
+     *
+     * @return the OPT record, or null if the message doesn't use EDNS(0)
+     */
+    public ResourceRecord getEdns() {
+        if (additionalResourceRecords == null) {
+            return null;
+        }
+        for (ResourceRecord record : additionalResourceRecords) {
+            if (record.getType() == Type.OPT) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * This method returns the largest UDP message the sender of this message
+     * can take, which is 512 bytes unless an OPT record says more
+     *
+     * @return the UDP payload size in bytes
+     */
+    public int getUdpPayloadSize() {
+        ResourceRecord edns = getEdns();
+        return edns == null ? MIN_UDP_PAYLOAD_SIZE
+                : Math.max(MIN_UDP_PAYLOAD_SIZE, edns.getClassValue());
+    }
+
+    /**
+     * This method marks the message as built from a cached answer rather
+     * than received from a server, so a cache further along can tell how
+     * fresh it is
+     *
+     * @param cacheAgeMillis how long the answer had been cached in
+     *                       milliseconds
+     * @param stale true if the answer had expired
+     */
+    public void setCached(long cacheAgeMillis, boolean stale) {
+        this.cacheAgeMillis = cacheAgeMillis;
+        this.stale = stale;
+    }
+
+    public long getCacheAgeMillis() {
+        return cacheAgeMillis;
+    }
+
+    public boolean isStale() {
+        return stale;
+    }
+
+    public Header getHeader() {
+        return header;
+    }
+
+    public ArrayList<Query> getQuestions() {
+        return questions;
+    }
+
+    public ArrayList<ResourceRecord> getAnswerResourceRecords() {
+        return answerResourceRecords;
+    }
+
+    public ArrayList<ResourceRecord> getAuthorityResourceRecords() {
+        return authorityResourceRecords;
+    }
+
+    public ArrayList<ResourceRecord> getAdditionalResourceRecords() {
+        return additionalResourceRecords;
+    }
+
     /**
      * This method returns a readable string with the values of the Message
      *
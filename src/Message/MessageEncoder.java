@@ -0,0 +1,437 @@
+package Message;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class writes messages in their wire format straight into a buffer the
+ * caller supplies, which can be direct and reused for every message.  Names
+ * are split into labels while they are copied and resource data is written
+ * from its readable form in place, so encoding allocates nothing.  An encoder
+ * can be reused but not shared between threads
+ *
+ * While a whole message is being encoded every name suffix written is
+ * remembered in a small hash table, and a later name ending in a suffix that
+ * is already in the message is written as a pointer to it, as described in
+ * RFC 1035 section 4.1.4
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class MessageEncoder {
+    /** This is the longest a name can be on the wire */
+    public static final int MAX_NAME_LENGTH = 255;
+
+    /** This is the longest a single label can be */
+    public static final int MAX_LABEL_LENGTH = 63;
+
+    /** This is the most labels a name can have */
+    private static final int MAX_LABELS = 127;
+
+    /** This is the largest offset a compression pointer can hold */
+    private static final int MAX_POINTER_OFFSET = 0x3FFF;
+
+    /** This is the number of slots in the suffix table, a power of two */
+    private static final int TABLE_SIZE = 512;
+
+    /** This is the most suffixes remembered, leaving the table room to probe */
+    private static final int MAX_TABLE_ENTRIES = TABLE_SIZE * 3 / 4;
+
+    /** These are the offsets of remembered suffixes plus one, 0 for empty */
+    private final int[] tableOffsets = new int[TABLE_SIZE];
+
+    /** These are the hashes of the remembered suffixes */
+    private final int[] tableHashes = new int[TABLE_SIZE];
+
+    /** This is how many suffixes are remembered */
+    private int tableEntries;
+
+    /** These are where each label of the name being written starts */
+    private final int[] labelStarts = new int[MAX_LABELS + 1];
+
+    /** These are the hashes of each suffix of the name being written */
+    private final int[] suffixHashes = new int[MAX_LABELS + 1];
+
+    /** This is the buffer the current message is going into */
+    private ByteBuffer messageBuffer;
+
+    /** This is where the current message starts, or -1 outside of encode */
+    private int messageStart = -1;
+
+    /**
+     * This method writes a whole message.  The header counts written are the
+     * number of entries actually in each section, and records of types that
+     * can't be encoded are left out
+     *
+     * @param message the message to write
+     * @param out the buffer to write into, starting at its position
+     * @return the number of bytes written
+     *
+     * @throws java.nio.BufferOverflowException when the message doesn't fit
+     */
+    public int encode(Message message, ByteBuffer out) {
+        int start = out.position();
+        Arrays.fill(tableOffsets, 0);
+        tableEntries = 0;
+        messageBuffer = out;
+        messageStart = start;
+        try {
+            writeMessage(message, out);
+        } finally {
+            messageBuffer = null;
+            messageStart = -1;
+        }
+        return out.position() - start;
+    }
+
+    /**
+     * This method writes the sections of a message with compression turned on
+     *
+     * @param message the message to write
+     * @param out the buffer to write into
+     */
+    private void writeMessage(Message message, ByteBuffer out) {
+        int start = messageStart;
+        message.getHeader().writeTo(out);
+        int questions = 0;
+        if (message.getQuestions() != null) {
+            for (Query query : message.getQuestions()) {
+                writeQuestion(query, out);
+                questions++;
+            }
+        }
+        int answers = writeRecords(message.getAnswerResourceRecords(), out);
+        int authority = writeRecords(message.getAuthorityResourceRecords(), out);
+        int additional = writeRecords(message.getAdditionalResourceRecords(), out);
+        out.putShort(start + 4, (short) questions);
+        out.putShort(start + 6, (short) answers);
+        out.putShort(start + 8, (short) authority);
+        out.putShort(start + 10, (short) additional);
+    }
+
+    /**
+     * This method writes one question
+     *
+     * @param query the question to write
+     * @param out the buffer to write into
+     */
+    public void writeQuestion(Query query, ByteBuffer out) {
+        writeName(query.getName(), out);
+        out.putShort((short) query.getTypeValue());
+        out.putShort((short) query.getDnsClass().getValue());
+    }
+
+    /**
+     * This method writes one resource record, filling in the data length once
+     * the data has been written
+     *
+     * @param record the record to write
+     * @param out the buffer to write into
+     * @return false if the record's type can't be encoded, in which case
+     * nothing is written
+     */
+    public boolean writeRecord(ResourceRecord record, ByteBuffer out) {
+        if (record.getType() == null) {
+            return false;
+        }
+        writeName(record.getName(), out);
+        out.putShort((short) record.getType().getValue());
+        out.putShort((short) record.getClassValue());
+        out.putInt((int) record.getTtl());
+        int lengthPosition = out.position();
+        out.putShort((short) 0);
+        writeResourceData(record.getType(), record.getResourceData(), out);
+        out.putShort(lengthPosition,
+                (short) (out.position() - lengthPosition - 2));
+        return true;
+    }
+
+    /**
+     * This method writes a name as length prefixed labels ending with the
+     * root label, or with a pointer when the rest of the name is already in
+     * the message.  A trailing dot is optional
+     *
+     * @param name the name to write
+     * @param out the buffer to write into
+     */
+    public void writeName(String name, ByteBuffer out) {
+        writeName(name, 0, name.length(), out);
+    }
+
+    /**
+     * This method writes the part of a String between start and end as a name
+     *
+     * @param name the String holding the name
+     * @param start the index of the first character of the name
+     * @param end the index just past the last character of the name
+     * @param out the buffer to write into
+     *
+     * @throws IllegalArgumentException when a label or the name is too long,
+     * or a label is empty
+     */
+    public void writeName(String name, int start, int end, ByteBuffer out) {
+        if (end > start && name.charAt(end - 1) == '.') {
+            end--;
+        }
+        if (end > start && end - start + 2 > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Name too long: "
+                    + name.substring(start, end));
+        }
+        int labels = 0;
+        int labelStart = start;
+        while (labelStart < end) {
+            int labelEnd = name.indexOf('.', labelStart);
+            if (labelEnd < 0 || labelEnd > end) {
+                labelEnd = end;
+            }
+            int length = labelEnd - labelStart;
+            if (length == 0 || length > MAX_LABEL_LENGTH) {
+                throw new IllegalArgumentException("Bad label length in "
+                        + name.substring(start, end));
+            }
+            labelStarts[labels++] = labelStart;
+            labelStart = labelEnd + 1;
+        }
+        labelStarts[labels] = end + 1;
+        boolean compressing = out == messageBuffer;
+        int pointer = -1;
+        int firstShared = labels;
+        if (compressing) {
+            //Hashes are built from the root up so every suffix has one
+            suffixHashes[labels] = 0;
+            for (int i = labels - 1; i >= 0; i--) {
+                suffixHashes[i] = hashLabel(name, labelStarts[i],
+                        labelStarts[i + 1] - 1) * 0x9E3779B1 + suffixHashes[i + 1];
+            }
+            for (int i = 0; i < labels; i++) {
+                pointer = findSuffix(suffixHashes[i], name, labelStarts[i], end);
+                if (pointer >= 0) {
+                    firstShared = i;
+                    break;
+                }
+            }
+        }
+        for (int i = 0; i < firstShared; i++) {
+            if (compressing) {
+                rememberSuffix(suffixHashes[i], out.position() - messageStart);
+            }
+            int labelEnd = labelStarts[i + 1] - 1;
+            out.put((byte) (labelEnd - labelStarts[i]));
+            for (int j = labelStarts[i]; j < labelEnd; j++) {
+                out.put((byte) name.charAt(j));
+            }
+        }
+        if (pointer >= 0) {
+            out.putShort((short) (0xC000 | pointer));
+        } else {
+            out.put((byte) 0);
+        }
+    }
+
+    /**
+     * This method hashes a label without regard to case
+     *
+     * @param name the String holding the label
+     * @param start the index of the label's first character
+     * @param end the index just past the label's last character
+     * @return the hash
+     */
+    private static int hashLabel(String name, int start, int end) {
+        int hash = end - start;
+        for (int i = start; i < end; i++) {
+            hash = hash * 31 + Character.toLowerCase(name.charAt(i));
+        }
+        return hash;
+    }
+
+    /**
+     * This method remembers that a suffix starts at an offset in the message
+     *
+     * @param hash the hash of the suffix
+     * @param offset the offset of the suffix from the start of the message
+     */
+    private void rememberSuffix(int hash, int offset) {
+        if (offset > MAX_POINTER_OFFSET || tableEntries >= MAX_TABLE_ENTRIES) {
+            return;
+        }
+        int slot = hash & (TABLE_SIZE - 1);
+        while (tableOffsets[slot] != 0) {
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        tableOffsets[slot] = offset + 1;
+        tableHashes[slot] = hash;
+        tableEntries++;
+    }
+
+    /**
+     * This method looks for a suffix already written in the message
+     *
+     * @param hash the hash of the suffix
+     * @param name the String holding the suffix
+     * @param start the index of the suffix's first character
+     * @param end the index just past the suffix's last character
+     * @return the offset of the suffix from the start of the message, or -1
+     */
+    private int findSuffix(int hash, String name, int start, int end) {
+        int slot = hash & (TABLE_SIZE - 1);
+        while (tableOffsets[slot] != 0) {
+            if (tableHashes[slot] == hash
+                    && suffixEquals(tableOffsets[slot] - 1, name, start, end)) {
+                return tableOffsets[slot] - 1;
+            }
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        return -1;
+    }
+
+    /**
+     * This method compares a name already in the message with part of a
+     * String, ignoring case
+     *
+     * @param offset the offset of the written name from the start of the
+     *               message
+     * @param name the String holding the other name
+     * @param start the index of its first character
+     * @param end the index just past its last character
+     * @return true if they are the same name
+     */
+    private boolean suffixEquals(int offset, String name, int start, int end) {
+        int position = messageStart + offset;
+        int charIndex = start;
+        while (true) {
+            int length = messageBuffer.get(position) & 0xFF;
+            if ((length & 0xC0) == 0xC0) {
+                //Pointers only ever point backwards to names this encoder wrote
+                position = messageStart + (((length & 0x3F) << 8)
+                        | (messageBuffer.get(position + 1) & 0xFF));
+                continue;
+            }
+            if (length == 0) {
+                return charIndex >= end;
+            }
+            if (charIndex + length > end) {
+                return false;
+            }
+            for (int i = 1; i <= length; i++) {
+                if (Character.toLowerCase((char) (messageBuffer.get(position + i) & 0xFF))
+                        != Character.toLowerCase(name.charAt(charIndex++))) {
+                    return false;
+                }
+            }
+            if (charIndex < end && name.charAt(charIndex++) != '.') {
+                return false;
+            }
+            position += length + 1;
+        }
+    }
+
+    /**
+     * This method writes every record in a section
+     *
+     * @param records the records to write, which may be null
+     * @param out the buffer to write into
+     * @return how many records were written
+     */
+    private int writeRecords(List<ResourceRecord> records, ByteBuffer out) {
+        if (records == null) {
+            return 0;
+        }
+        int written = 0;
+        for (int i = 0; i < records.size(); i++) {
+            if (writeRecord(records.get(i), out)) {
+                written++;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * This method turns the readable form of resource data, as ResourceRecord
+     * holds it, back into its wire format
+     *
+     * @param type the type of the data
+     * @param data the readable data
+     * @param out the buffer to write into
+     */
+    private void writeResourceData(Type type, String data, ByteBuffer out) {
+        switch (type) {
+            case A:
+                writeAddress(data, out);
+                break;
+            case NS:
+            case CNAME:
+            case PTR:
+                writeName(data, out);
+                break;
+            case MX: {
+                int space = data.indexOf(' ');
+                out.putShort((short) parseNumber(data, 0, space));
+                writeName(data, space + 1, data.length(), out);
+                break;
+            }
+            case SOA: {
+                int first = data.indexOf(' ');
+                int second = data.indexOf(' ', first + 1);
+                writeName(data, 0, first, out);
+                writeName(data, first + 1, second, out);
+                int numberStart = second + 1;
+                for (int i = 0; i < 5; i++) {
+                    int numberEnd = data.indexOf(' ', numberStart);
+                    if (numberEnd < 0) {
+                        numberEnd = data.length();
+                    }
+                    out.putInt((int) parseNumber(data, numberStart, numberEnd));
+                    numberStart = numberEnd + 1;
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    /**
+     * This method writes a dotted IPv4 address as four bytes
+     *
+     * @param address the dotted address
+     * @param out the buffer to write into
+     */
+    private void writeAddress(String address, ByteBuffer out) {
+        int partStart = 0;
+        for (int i = 0; i < 4; i++) {
+            int partEnd = address.indexOf('.', partStart);
+            if (partEnd < 0) {
+                partEnd = address.length();
+            }
+            out.put((byte) parseNumber(address, partStart, partEnd));
+            partStart = partEnd + 1;
+        }
+    }
+
+    /**
+     * This method parses the decimal number between two indexes without
+     * creating a substring
+     *
+     * @param text the String holding the number
+     * @param start the index of the first digit
+     * @param end the index just past the last digit
+     * @return the number
+     *
+     * @throws IllegalArgumentException when a character isn't a digit
+     */
+    private static long parseNumber(String text, int start, int end) {
+        if (start >= end) {
+            throw new IllegalArgumentException("Missing number in " + text);
+        }
+        long number = 0;
+        for (int i = start; i < end; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException("Bad number in " + text);
+            }
+            number = number * 10 + digit;
+        }
+        return number;
+    }
+}
@@ -0,0 +1,489 @@
+package Message;
+
+import Utilities.ParserUtility;
+import java.nio.ByteBuffer;
+
+/**
+ * This is a read only view over a message still in its wire format.  Wrapping
+ * a buffer makes one pass that only records where each question and record
+ * starts, and names and resource data are decoded straight from the buffer
+ * when they are asked for.  A view can be wrapped around one buffer after
+ * another so a receive loop can reuse it without allocating.  A view is not
+ * safe to share between threads
+ *
+ * Records are numbered across sections, the answers first, then the
+ * authority records starting at getAuthorityStart, then the additional
+ * records starting at getAdditionalStart
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class MessageView {
+    /** This is the size of the fixed header */
+    private static final int HEADER_SIZE = 12;
+
+    /** This is the size of the type, class, TTL and length after an owner name */
+    private static final int RECORD_FIXED_SIZE = 10;
+
+    /** This is the fewest bytes a question takes, a root name then its type and class */
+    private static final int MIN_QUESTION_SIZE = 5;
+
+    /** This is the fewest bytes a record takes, a root name then its fixed fields */
+    private static final int MIN_RECORD_SIZE = 1 + RECORD_FIXED_SIZE;
+
+    /** This is the private view of the buffer, so positions can be moved freely */
+    private ByteBuffer data;
+
+    /** This is the buffer last wrapped, so its view can be reused */
+    private ByteBuffer source;
+
+    /** This is where the message ends in the view */
+    private int limit;
+
+    /** These are the offsets of each question's name */
+    private int[] questionOffsets = new int[1];
+
+    /** These are the offsets of each record's owner name */
+    private int[] nameOffsets = new int[8];
+
+    /** These are the offsets of each record's type, just past its owner name */
+    private int[] fixedOffsets = new int[8];
+
+    /** This is the number of questions */
+    private int questionCount;
+
+    /** This is the number of answer records */
+    private int answerCount;
+
+    /** This is the number of authority records */
+    private int authorityCount;
+
+    /** This is the number of additional records */
+    private int additionalCount;
+
+    /**
+     * This constructor creates an empty view to be wrapped around buffers
+     * later
+     */
+    public MessageView() {
+    }
+
+    /**
+     * This constructor creates a view over the remaining bytes of a buffer
+     *
+     * @param buffer the buffer holding the message
+     */
+    public MessageView(ByteBuffer buffer) {
+        wrap(buffer);
+    }
+
+    /**
+     * This method points the view at a new message.  The buffer's own
+     * position and limit are not changed, and its contents must not change
+     * while the view is in use
+     *
+     * @param buffer the buffer holding the message from its position to its
+     *               limit
+     * @return this view
+     *
+     * @throws IllegalArgumentException when the message is cut short or
+     * malformed
+     */
+    public MessageView wrap(ByteBuffer buffer) {
+        //Compression pointers count from the start of the message, so the view starts there too
+        if (buffer.position() != 0) {
+            this.data = buffer.slice();
+            this.source = null;
+        } else if (buffer != source) {
+            this.data = buffer.duplicate();
+            this.source = buffer;
+        }
+        this.limit = buffer.remaining();
+        data.clear();
+        data.limit(limit);
+        if (limit < HEADER_SIZE) {
+            throw new IllegalArgumentException("Message shorter than a header");
+        }
+        this.questionCount = unsignedShort(4);
+        this.answerCount = unsignedShort(6);
+        this.authorityCount = unsignedShort(8);
+        this.additionalCount = unsignedShort(10);
+        int recordCount = getRecordCount();
+        //The counts are checked before the arrays grow so a short packet can't claim thousands
+        if (questionCount * MIN_QUESTION_SIZE + recordCount * MIN_RECORD_SIZE
+                > limit - HEADER_SIZE) {
+            throw new IllegalArgumentException("Message claims more entries than it holds");
+        }
+        if (questionOffsets.length < questionCount) {
+            questionOffsets = new int[questionCount];
+        }
+        if (nameOffsets.length < recordCount) {
+            nameOffsets = new int[recordCount];
+            fixedOffsets = new int[recordCount];
+        }
+        int position = HEADER_SIZE;
+        for (int i = 0; i < questionCount; i++) {
+            questionOffsets[i] = position;
+            position = skipName(position) + 4;
+        }
+        for (int i = 0; i < recordCount; i++) {
+            nameOffsets[i] = position;
+            position = skipName(position);
+            fixedOffsets[i] = position;
+            checkBounds(position + RECORD_FIXED_SIZE);
+            position += RECORD_FIXED_SIZE
+                    + (data.getShort(position + 8) & 0xFFFF);
+        }
+        checkBounds(position);
+        return this;
+    }
+
+    public int getId() {
+        return unsignedShort(0);
+    }
+
+    public boolean isResponse() {
+        return (data.get(2) & 0x80) != 0;
+    }
+
+    public boolean isAuthoritative() {
+        return (data.get(2) & 0x04) != 0;
+    }
+
+    public boolean isTruncated() {
+        return (data.get(2) & 0x02) != 0;
+    }
+
+    public int getReturnCode() {
+        return data.get(3) & 0x0F;
+    }
+
+    public int getQuestionCount() {
+        return questionCount;
+    }
+
+    public int getAnswerCount() {
+        return answerCount;
+    }
+
+    public int getAuthorityCount() {
+        return authorityCount;
+    }
+
+    public int getAdditionalCount() {
+        return additionalCount;
+    }
+
+    public int getRecordCount() {
+        return answerCount + authorityCount + additionalCount;
+    }
+
+    public int getAuthorityStart() {
+        return answerCount;
+    }
+
+    public int getAdditionalStart() {
+        return answerCount + authorityCount;
+    }
+
+    /**
+     * This method finds the UDP payload size the sender advertised in an OPT
+     * record, without decoding anything else
+     *
+     * @return the payload size, or 512 if there is no OPT record
+     */
+    public int getUdpPayloadSize() {
+        for (int i = getAdditionalStart(); i < getRecordCount(); i++) {
+            if (getRecordType(i) == Type.OPT.getValue()) {
+                return Math.max(Message.MIN_UDP_PAYLOAD_SIZE, getRecordClass(i));
+            }
+        }
+        return Message.MIN_UDP_PAYLOAD_SIZE;
+    }
+
+    /**
+     * This method decodes the name of a question
+     *
+     * @param index the question to read
+     * @return the name with a trailing dot
+     */
+    public String getQuestionName(int index) {
+        return readName(questionOffsets[index]);
+    }
+
+    /**
+     * This method reads the name of a question as a DomainName, without
+     * building a String
+     *
+     * @param index the question to read
+     * @return the name
+     */
+    public DomainName getQuestionDomainName(int index) {
+        return DomainName.read(data, questionOffsets[index]);
+    }
+
+    /**
+     * This method returns the wire value of a question's type
+     *
+     * @param index the question to read
+     * @return the type number
+     */
+    public int getQuestionType(int index) {
+        return data.getShort(skipName(questionOffsets[index])) & 0xFFFF;
+    }
+
+    /**
+     * This method returns the wire value of a question's class
+     *
+     * @param index the question to read
+     * @return the class number
+     */
+    public int getQuestionClass(int index) {
+        return data.getShort(skipName(questionOffsets[index]) + 2) & 0xFFFF;
+    }
+
+    /**
+     * This method checks whether the first question asks the same thing as a
+     * query, comparing the name byte by byte without decoding it
+     *
+     * @param query the query to compare with
+     * @return true if the name, type and class all match
+     */
+    public boolean questionMatches(Query query) {
+        return questionCount > 0
+                && getQuestionType(0) == query.getType().getValue()
+                && getQuestionClass(0) == query.getDnsClass().getValue()
+                && nameEquals(questionOffsets[0], query.getName());
+    }
+
+    /**
+     * This method decodes the owner name of a record
+     *
+     * @param index the record to read
+     * @return the name with a trailing dot
+     */
+    public String getRecordName(int index) {
+        return readName(nameOffsets[index]);
+    }
+
+    /**
+     * This method reads the owner name of a record as a DomainName, without
+     * building a String
+     *
+     * @param index the record to read
+     * @return the name
+     */
+    public DomainName getRecordDomainName(int index) {
+        return DomainName.read(data, nameOffsets[index]);
+    }
+
+    /**
+     * This method returns the wire value of a record's type
+     *
+     * @param index the record to read
+     * @return the type number
+     */
+    public int getRecordType(int index) {
+        return data.getShort(fixedOffsets[index]) & 0xFFFF;
+    }
+
+    /**
+     * This method returns the wire value of a record's class
+     *
+     * @param index the record to read
+     * @return the class number
+     */
+    public int getRecordClass(int index) {
+        return data.getShort(fixedOffsets[index] + 2) & 0xFFFF;
+    }
+
+    /**
+     * This method returns a record's TTL
+     *
+     * @param index the record to read
+     * @return the TTL in seconds
+     */
+    public long getRecordTtl(int index) {
+        return data.getInt(fixedOffsets[index] + 4) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * This method returns where a record's owner name starts in the buffer
+     *
+     * @param index the record to read
+     * @return the offset of the name from the start of the message
+     */
+    public int getRecordNameOffset(int index) {
+        return nameOffsets[index];
+    }
+
+    /**
+     * This method returns where a record's data starts in the buffer
+     *
+     * @param index the record to read
+     * @return the offset of the data from the start of the message
+     */
+    public int getRecordDataOffset(int index) {
+        return fixedOffsets[index] + RECORD_FIXED_SIZE;
+    }
+
+    /**
+     * This method returns the length of a record's data
+     *
+     * @param index the record to read
+     * @return the number of bytes of data
+     */
+    public int getRecordDataLength(int index) {
+        return data.getShort(fixedOffsets[index] + 8) & 0xFFFF;
+    }
+
+    /**
+     * This method reads the address out of an A record without building a
+     * String
+     *
+     * @param index the record to read
+     * @return the address as a 32 bit number
+     */
+    public int getIPv4Address(int index) {
+        return data.getInt(getRecordDataOffset(index));
+    }
+
+    /**
+     * This method decodes a record's data the same way ResourceRecord does
+     *
+     * @param index the record to read
+     * @return the readable data, or an empty String for unknown types
+     */
+    public String getRecordData(int index) {
+        return toResourceRecord(index).getResourceData();
+    }
+
+    /**
+     * This method fully decodes one record
+     *
+     * @param index the record to decode
+     * @return the decoded record
+     */
+    public ResourceRecord toResourceRecord(int index) {
+        data.position(nameOffsets[index]);
+        return new ResourceRecord(data);
+    }
+
+    /**
+     * This method fully decodes the whole message
+     *
+     * @return the decoded message
+     */
+    public Message toMessage() {
+        data.position(0);
+        return new Message(data);
+    }
+
+    /**
+     * This method returns the buffer the view reads from, which starts at the
+     * first byte of the message
+     *
+     * @return the view's own copy of the wrapped buffer's pointers
+     */
+    public ByteBuffer getBuffer() {
+        return data;
+    }
+
+    /**
+     * This method decodes the name at an offset
+     *
+     * @param offset the offset of the name from the start of the message
+     * @return the name with a trailing dot
+     */
+    private String readName(int offset) {
+        data.position(offset);
+        return ParserUtility.parseName("", data);
+    }
+
+    /**
+     * This method compares the name at an offset with a String, ignoring case
+     * and a trailing dot on either side, and following compression pointers
+     *
+     * @param offset the offset of the name from the start of the message
+     * @param name the name to compare with
+     * @return true if they are the same name
+     */
+    private boolean nameEquals(int offset, String name) {
+        int nameLength = name.endsWith(".") ? name.length() - 1 : name.length();
+        int charIndex = 0;
+        int position = offset;
+        int jumps = 0;
+        while (true) {
+            int length = ParserUtility.readByte(data, position);
+            if ((length & 0xC0) == 0xC0) {
+                if (++jumps > ParserUtility.MAX_POINTER_JUMPS) {
+                    return false;
+                }
+                position = ParserUtility.pointerTarget(data, position);
+                continue;
+            }
+            if (length == 0) {
+                return charIndex == nameLength;
+            }
+            if (charIndex > 0) {
+                if (charIndex >= nameLength || name.charAt(charIndex) != '.') {
+                    return false;
+                }
+                charIndex++;
+            }
+            if (charIndex + length > nameLength) {
+                return false;
+            }
+            for (int i = 1; i <= length; i++) {
+                if (Character.toLowerCase((char) ParserUtility.readByte(data, position + i))
+                        != Character.toLowerCase(name.charAt(charIndex++))) {
+                    return false;
+                }
+            }
+            position += length + 1;
+        }
+    }
+
+    /**
+     * This method finds where the name at an offset ends, without following
+     * compression pointers since a pointer always ends a name
+     *
+     * @param position the offset of the name from the start of the message
+     * @return the offset just past the name
+     */
+    private int skipName(int position) {
+        while (true) {
+            checkBounds(position + 1);
+            int length = data.get(position) & 0xFF;
+            if ((length & 0xC0) == 0xC0) {
+                checkBounds(position + 2);
+                return position + 2;
+            }
+            if (length == 0) {
+                return position + 1;
+            }
+            position += length + 1;
+        }
+    }
+
+    /**
+     * This method makes sure an offset doesn't run past the message
+     *
+     * @param end the offset that has to be in bounds
+     */
+    private void checkBounds(int end) {
+        if (end > limit) {
+            throw new IllegalArgumentException("Message is cut short");
+        }
+    }
+
+    /**
+     * This method reads an unsigned 16 bit number from the message
+     *
+     * @param offset the offset from the start of the message
+     * @return the number
+     */
+    private int unsignedShort(int offset) {
+        return data.getShort(offset) & 0xFFFF;
+    }
+}
@@ -1,8 +1,6 @@
 package Message;
 
 import Utilities.ParserUtility;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
 
 /**
@@ -15,9 +13,12 @@ public class Query {
     /** This is the name of the query */
     private String name;
 
-    /** This is the type of the query */
+    /** This is the type of the query, or null for a type Type doesn't know */
     private Type type;
 
+    /** This is the number of the type on the wire, kept so an unknown type can be echoed */
+    private int typeValue;
+
     /** This is the class of the query */
     private Class dnsClass;
 
@@ -30,6 +31,7 @@ public class Query {
     public Query(String name, Type type, Class dnsClass) {
         this.name = name;
         this.type = type;
+        this.typeValue = type == null ? 0 : type.getValue();
         this.dnsClass = dnsClass;
     }
 
@@ -41,7 +43,8 @@ public class Query {
      */
     public Query(ByteBuffer data) {
         this.name = ParserUtility.parseName("",data);
-        this.type = ParserUtility.parseType(data);
+        this.typeValue = data.getShort() & 0xFFFF;
+        this.type = Type.parseType(typeValue);
         this.dnsClass = ParserUtility.parseClass(data);
     }
 
@@ -52,48 +55,52 @@ public class Query {
      * @return the ByteBuffer holding all the bytes for this class
      */
     public ByteBuffer getByteBuffer() {
-        byte[] newByteArray = new byte[(512-32)/8];
-        ByteBuffer byteBuffer = ByteBuffer.wrap(newByteArray);
-        byteBuffer.put(getNameBytes());
-        switch (type) {
-            case A:
-                byteBuffer.putShort((short) 1);
-                break;
-            case CNAME:
-                byteBuffer.putShort((short) 5);
-                break;
-            case MX:
-                byteBuffer.putShort((short) 15);
-                break;
-            case PTR:
-                byteBuffer.putShort((short) 12);
-                break;
-        }
-        if(dnsClass == Class.IN) {
-            byteBuffer.putShort((short)1);
-        }
+        ByteBuffer byteBuffer = ByteBuffer.allocate(MessageEncoder.MAX_NAME_LENGTH + 4);
+        new MessageEncoder().writeQuestion(this, byteBuffer);
         return byteBuffer;
     }
 
+    public String getName() {
+        return name;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getTypeValue() {
+        return typeValue;
+    }
+
+    public Class getDnsClass() {
+        return dnsClass;
+    }
+
     /**
-     * This method assists in separating the host name into labels and
-     * returning their byte values
+     * This method checks whether another question asks for the same thing as
+     * this one.  Names are compared without case and without the trailing
+     * dot that parsed names carry
      *
-     * @return the byte array that holds the bytes for the hostname labels
+     * @param other the question to compare with
+     * @return true if the name, type and class all match
      */
-    private byte[] getNameBytes() {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        String[] nameArray = this.name.split("\\.");
-        for(int i = 0; i  < nameArray.length; i++) {
-            outputStream.write(nameArray[i].length());
-            try {
-                outputStream.write(nameArray[i].getBytes());
-            } catch (IOException ignored) {
+    public boolean matches(Query other) {
+        return other != null && this.typeValue == other.typeValue
+                && this.dnsClass == other.dnsClass
+                && stripRoot(this.name).equalsIgnoreCase(stripRoot(other.name));
+    }
 
-            }
+    /**
+     * This method removes the trailing dot from a name if it has one
+     *
+     * @param name the name to strip
+     * @return the name without a trailing dot
+     */
+    private static String stripRoot(String name) {
+        if (name.endsWith(".")) {
+            return name.substring(0, name.length() - 1);
         }
-        outputStream.write(0);
-        return outputStream.toByteArray();
+        return name;
     }
 
     /**
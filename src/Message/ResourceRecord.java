@@ -25,6 +25,12 @@ public class ResourceRecord {
      */
     private Class dnsClass;
 
+    /**
+     * This is the class as it is on the wire.  OPT records use this field for
+     * the UDP payload size instead of a class
+     */
+    private int classValue;
+
     /**
      * This is the how long the record should be kept in the cache of the resource record
      */
@@ -54,10 +60,55 @@ public class ResourceRecord {
         this.name = name;
         this.type = type;
         this.dnsClass = dnsClass;
+        this.classValue = dnsClass.getValue();
         this.ttl = ttl;
         this.resourceData = "";
     }
 
+    /**
+     * This constructor creates a Resource Record whose data has already been
+     * parsed
+     *
+     * @param name         domain name searched for
+     * @param type         the type of record
+     * @param dnsClass     the class of the record
+     * @param ttl          how long the record may be cached in seconds
+     * @param resourceData the readable resource data
+     */
+    public ResourceRecord(String name, Type type, Class dnsClass, long ttl, String resourceData) {
+        this(name, type, dnsClass, dnsClass == null ? 0 : dnsClass.getValue(), ttl, resourceData);
+    }
+
+    /**
+     * This constructor sets every field, including the raw class value
+     *
+     * @param name         domain name searched for
+     * @param type         the type of record
+     * @param dnsClass     the class of the record, null for OPT records
+     * @param classValue   the class as it is on the wire
+     * @param ttl          how long the record may be cached in seconds
+     * @param resourceData the readable resource data
+     */
+    private ResourceRecord(String name, Type type, Class dnsClass, int classValue, long ttl, String resourceData) {
+        this.name = name;
+        this.type = type;
+        this.dnsClass = dnsClass;
+        this.classValue = classValue;
+        this.ttl = ttl;
+        this.resourceData = resourceData;
+    }
+
+    /**
+     * This method creates the EDNS(0) OPT pseudo record described in RFC
+     * 6891, which tells the other side how large a UDP message we can take
+     *
+     * @param udpPayloadSize the largest UDP message we can receive
+     * @return the OPT record for the additional section
+     */
+    public static ResourceRecord opt(int udpPayloadSize) {
+        return new ResourceRecord(".", Type.OPT, null, udpPayloadSize, 0, "");
+    }
+
     /**
      * This method creates a new Resource Record using the bytes in a ByteBuffer
      * @param data the ByteBuffer to pull the data from
@@ -65,7 +116,9 @@ public class ResourceRecord {
     public ResourceRecord(ByteBuffer data) {
         parseName(data);
         this.type = ParserUtility.parseType(data);
-        this.dnsClass = ParserUtility.parseClass(data);
+        this.classValue = data.getShort() & 0xFFFF;
+        //OPT records hold the UDP payload size where the class would be
+        this.dnsClass = this.type == Type.OPT ? null : Class.parseClass(classValue);
         parseTTL(data);
         parseData(data);
     }
@@ -86,8 +139,8 @@ public class ResourceRecord {
      * @param data  the ByteBuffer containing the data to parse
      */
     private void parseTTL(ByteBuffer data) {
-        this.ttl = ((data.get() << 24) & 0xFF) | ((data.get() << 16)&0xFF) | ((data.get()<< 8)&0xFF)
-                | (data.get() & 0xFF);
+        //The TTL is an unsigned 32 bit number so it is read into a long
+        this.ttl = data.getInt() & 0xFFFFFFFFL;
     }
 
     /**
@@ -96,9 +149,15 @@ public class ResourceRecord {
      * @param data the ByteBuffer containing the data to parse
      */
     private void parseData(ByteBuffer data) {
-        //This is never used because everything is recursive with the pointers and stuff
-        int temp = ((data.get() << 8) &data.get()) & 0xffff;
-        this.length = temp;
+        this.length = data.getShort() & 0xFFFF;
+        //Names in the data can point elsewhere, so the end is found from the length
+        int end = data.position() + (int) this.length;
+        if (this.type == null) {
+            //Types we don't know are skipped over rather than parsed
+            this.resourceData = "";
+            data.position(end);
+            return;
+        }
         switch(this.type) {
             case A:
                 this.resourceData = ParserUtility.parseAData(data);
@@ -115,15 +174,76 @@ public class ResourceRecord {
             case CNAME:
                 this.resourceData = ParserUtility.parseCnameData(data);
                 break;
+            case SOA:
+                this.resourceData = ParserUtility.parseSoaData(data);
+                break;
+        }
+        data.position(end);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Class getDnsClass() {
+        return dnsClass;
+    }
+
+    public int getClassValue() {
+        return classValue;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public String getResourceData() {
+        return resourceData;
+    }
+
+    /**
+     * This method pulls the minimum field out of an SOA record, which along
+     * with the record's own TTL bounds how long a negative answer is cached
+     *
+     * @return the SOA minimum in seconds, or -1 if this isn't an SOA record
+     */
+    public long getSoaMinimum() {
+        if (type != Type.SOA) {
+            return -1;
+        }
+        int lastSpace = resourceData.lastIndexOf(' ');
+        try {
+            return Long.parseLong(resourceData.substring(lastSpace + 1));
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 
+    /**
+     * This method copies the record with a different TTL, used when handing
+     * out records that have been sitting in a cache
+     *
+     * @param ttl the TTL for the copy in seconds
+     * @return the copy of the record
+     */
+    public ResourceRecord withTtl(long ttl) {
+        return new ResourceRecord(name, type, dnsClass, classValue, ttl, resourceData);
+    }
+
     /**
      * This method returns the string representation of the Resource Record
      * in a way that is easy to read
      * @return the formatted string
      */
     public String toString() {
+        if (this.type == Type.OPT) {
+            return " Name: " + this.name + "\n Type: " + this.type +
+                    "\n UDP Payload Size: " + this.classValue + "\n";
+        }
         return " Name: " + this.name + "\n Type: " + this.type +
                 "\n Class: " + this.dnsClass + "\n TTL: " + this.ttl +
                 "\n " + "Resource Data: " + this.resourceData + "\n";
@@ -7,11 +7,24 @@ package Message;
  * @version 1.0
  */
 public enum Type {
-    A,
-    CNAME,
-    MX,
-    PTR,
-    NS;
+    A(1),
+    CNAME(5),
+    MX(15),
+    PTR(12),
+    NS(2),
+    SOA(6),
+    OPT(41);
+
+    /** This is the number that stands for the type on the wire */
+    private final int value;
+
+    Type(int value) {
+        this.value = value;
+    }
+
+    public int getValue() {
+        return value;
+    }
 
     /**
      * This method parses the string for the type and returns a Type
@@ -32,9 +45,31 @@ public enum Type {
         else if(type.toLowerCase().equals("ns")) {
             returnType = NS;
         }
+        else if(type.toLowerCase().equals("soa")) {
+            returnType = SOA;
+        }
         return returnType;
     }
 
+    /**
+     * This method matches a type's name exactly, ignoring case.  Unlike
+     * parseType it doesn't fall back to A, so a type that isn't implemented
+     * can be turned away instead of being asked about as something else.
+     * OPT is a pseudo type that can't be asked for or stored, so it isn't
+     * matched either
+     *
+     * @param name the name of the type, such as MX
+     * @return the type, or null if there is no such type
+     */
+    public static Type fromName(String name) {
+        for (Type type : values()) {
+            if (type != OPT && type.name().equalsIgnoreCase(name)) {
+                return type;
+            }
+        }
+        return null;
+    }
+
     /**
      * This method takes in an integer and matches it to the corresponding
      * Type value
@@ -60,6 +95,12 @@ public enum Type {
             case 2:
                 type = NS;
                 break;
+            case 6:
+                type = SOA;
+                break;
+            case 41:
+                type = OPT;
+                break;
         }
         return type;
     }
@@ -0,0 +1,137 @@
+package Metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This is a histogram of latencies with fixed bucket bounds, cheap enough to
+ * record into on every query.  Recording finds the bucket with a short scan,
+ * and adds to it and to the running sum without allocating or taking a lock.
+ *
+ * The counts are striped: each thread adds to one of several copies picked
+ * by its id, and the copies are only added up when the histogram is read.
+ * Every copy starts on its own cache line, so threads recording at the same
+ * time on different cores don't fight over the line holding the counts
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class Histogram {
+    /** These are the default upper bounds of the buckets, in microseconds */
+    public static final long[] DEFAULT_BOUNDS_MICROS = {50, 100, 250, 500, 1000, 2500, 5000,
+            10000, 25000, 50000, 100000, 250000, 500000, 1000000, 2500000, 5000000};
+
+    /** This is how many longs fit on a cache line */
+    private static final int LONGS_PER_LINE = 8;
+
+    /** This is how many copies of the counts are kept, a power of two */
+    private static final int STRIPES = stripeCount();
+
+    /** These are the upper bounds of the buckets, in microseconds */
+    private final long[] bounds;
+
+    /** This is how far apart the copies are, holding every bucket, the sum and padding */
+    private final int stride;
+
+    /** These are the copies of the counts, each bucket then the sum in microseconds */
+    private final AtomicLongArray cells;
+
+    /**
+     * This constructor creates a histogram with the default buckets
+     */
+    public Histogram() {
+        this(DEFAULT_BOUNDS_MICROS);
+    }
+
+    /**
+     * This constructor creates a histogram with its own buckets.  Values
+     * above the last bound are counted in a bucket of their own
+     *
+     * @param boundsMicros the upper bounds of the buckets in microseconds,
+     *                     in increasing order
+     */
+    public Histogram(long[] boundsMicros) {
+        this.bounds = boundsMicros.clone();
+        int used = bounds.length + 2;
+        this.stride = (used + LONGS_PER_LINE - 1) / LONGS_PER_LINE * LONGS_PER_LINE;
+        this.cells = new AtomicLongArray(stride * STRIPES);
+    }
+
+    /**
+     * This method records one latency
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = 0;
+        while (bucket < bounds.length && micros > bounds[bucket]) {
+            bucket++;
+        }
+        int base = (int) (Thread.currentThread().getId() & (STRIPES - 1)) * stride;
+        cells.incrementAndGet(base + bucket);
+        cells.addAndGet(base + bounds.length + 1, micros);
+    }
+
+    /**
+     * This method returns the upper bounds of the buckets
+     *
+     * @return the bounds in microseconds, not counting the last bucket which
+     * has none
+     */
+    public long[] getBoundsMicros() {
+        return bounds.clone();
+    }
+
+    /**
+     * This method adds up the copies of the counts
+     *
+     * @return how many latencies fell in each bucket, the last one holding
+     * those above every bound
+     */
+    public long[] getCounts() {
+        long[] counts = new long[bounds.length + 1];
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            for (int bucket = 0; bucket < counts.length; bucket++) {
+                counts[bucket] += cells.get(stripe * stride + bucket);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * This method returns how many latencies have been recorded
+     *
+     * @return the number of latencies
+     */
+    public long getCount() {
+        long count = 0;
+        for (long bucket : getCounts()) {
+            count += bucket;
+        }
+        return count;
+    }
+
+    /**
+     * This method returns the total of every latency recorded
+     *
+     * @return the sum in microseconds
+     */
+    public long getSumMicros() {
+        long sum = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            sum += cells.get(stripe * stride + bounds.length + 1);
+        }
+        return sum;
+    }
+
+    /**
+     * This method works out how many copies of the counts to keep, enough
+     * for every processor to have its own most of the time
+     *
+     * @return the number of copies, a power of two
+     */
+    private static int stripeCount() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        return Integer.highestOneBit(Math.max(1, processors * 2 - 1));
+    }
+}
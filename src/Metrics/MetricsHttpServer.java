@@ -0,0 +1,81 @@
+package Metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This serves QueryMetrics over HTTP in the Prometheus text format, so they
+ * can be scraped or just fetched with curl from /metrics.  It runs on the
+ * JDK's built in HTTP server with one thread, which is plenty for a scrape
+ * every few seconds
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class MetricsHttpServer implements Closeable {
+    /** This is the path the metrics are served on */
+    public static final String PATH = "/metrics";
+
+    /** This is the HTTP server */
+    private final HttpServer server;
+
+    /** This is the metrics served */
+    private final QueryMetrics metrics;
+
+    /**
+     * This constructor binds the server and starts serving
+     *
+     * @param address the address and port to listen on, port 0 for any
+     * @param metrics the metrics to serve
+     *
+     * @throws IOException when the server can't be bound
+     */
+    public MetricsHttpServer(InetSocketAddress address, QueryMetrics metrics)
+            throws IOException {
+        this.metrics = metrics;
+        this.server = HttpServer.create(address, 0);
+        server.createContext(PATH, this::handle);
+        server.start();
+    }
+
+    public InetSocketAddress getLocalAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * This method answers one request with the metrics, or 405 for anything
+     * but GET
+     *
+     * @param exchange the request and its response
+     *
+     * @throws IOException when the response can't be written
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics.toText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * This method stops serving
+     */
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,145 @@
+package Metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * This shows QueryMetrics over JMX, each metric being a read only attribute
+ * named as it is in the text format.  The metrics of an upstream server
+ * appear once the server has been asked something, so the attributes are
+ * listed afresh each time a JMX client asks for them
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class MetricsMBean implements DynamicMBean {
+    /** This is the name the metrics are registered under by default */
+    public static final String DEFAULT_OBJECT_NAME = "DanielDNS:type=QueryMetrics";
+
+    /** This is the metrics shown */
+    private final QueryMetrics metrics;
+
+    /**
+     * This constructor creates a bean over some metrics
+     *
+     * @param metrics the metrics to show
+     */
+    public MetricsMBean(QueryMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * This method registers a bean over some metrics with the platform
+     * MBean server, where JConsole and other JMX clients find it
+     *
+     * @param metrics the metrics to show
+     * @param objectName the name to register them under
+     * @return the name they were registered under
+     *
+     * @throws JMException when the name is malformed or already taken
+     */
+    public static ObjectName register(QueryMetrics metrics, String objectName)
+            throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(objectName);
+        server.registerMBean(new MetricsMBean(metrics), name);
+        return name;
+    }
+
+    /**
+     * This method reads one metric
+     *
+     * @param attribute the metric's name
+     * @return the value
+     *
+     * @throws AttributeNotFoundException when there is no such metric
+     */
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = metrics.snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    /**
+     * This method reads several metrics from one snapshot, leaving out any
+     * that don't exist
+     *
+     * @param attributes the metrics' names
+     * @return the values
+     */
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Long> snapshot = metrics.snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Long value = snapshot.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * This method refuses to change a metric, since they are read only
+     *
+     * @param attribute the attribute that was to be changed
+     *
+     * @throws AttributeNotFoundException always
+     */
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read only");
+    }
+
+    /**
+     * This method changes nothing, since the metrics are read only
+     *
+     * @param attributes the attributes that were to be changed
+     * @return an empty list
+     */
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    /**
+     * This method refuses every operation, since there are none
+     *
+     * @param actionName the operation
+     * @param params its arguments
+     * @param signature the types of its arguments
+     * @return nothing
+     *
+     * @throws UnsupportedOperationException always
+     */
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    /**
+     * This method describes the bean, with an attribute for every metric
+     * there is right now
+     *
+     * @return the description
+     */
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Long> snapshot = metrics.snapshot();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+        int i = 0;
+        for (String name : snapshot.keySet()) {
+            attributes[i++] = new MBeanAttributeInfo(name, Long.class.getName(), name,
+                    true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "DanielDNS query metrics", attributes,
+                null, null, null);
+    }
+}
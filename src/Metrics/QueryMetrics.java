@@ -0,0 +1,269 @@
+package Metrics;
+
+import Message.Type;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * This holds the metrics for the query path: queries answered by Type and
+ * return code with their latency, cache lookups by outcome with the latency
+ * of each outcome, and queries sent to each upstream server with their
+ * latency and timeouts.  Counters that other classes already keep, like the
+ * client's retransmissions, are added as gauges read when the metrics are.
+ *
+ * Recording is meant to sit on the path of every query, so it only adds to
+ * striped counters and histograms and never allocates or locks.  The one
+ * exception is the first query to a new upstream server, which creates that
+ * server's metrics.  Reading the metrics adds up the stripes and builds a
+ * snapshot, which is only done when they are scraped
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class QueryMetrics {
+    /** This is what every metric name starts with */
+    public static final String PREFIX = "danieldns_";
+
+    /** These are the names of the return codes, by value */
+    private static final String[] RETURN_CODE_NAMES = {"NOERROR", "FORMERR", "SERVFAIL",
+            "NXDOMAIN", "NOTIMP", "REFUSED"};
+
+    /** These are the Types counted, with a slot after them for any other type */
+    private static final Type[] TYPES = Type.values();
+
+    /**
+     * This is how a cache lookup turned out
+     */
+    public enum CacheOutcome {
+        /** The answer was in the cache */
+        HIT,
+        /** The answer wasn't in the cache and had to be asked for */
+        MISS,
+        /** The answer had expired and the expired records were served */
+        STALE
+    }
+
+    /** These are the queries answered by Type */
+    private final LongAdder[] queriesByType = adders(TYPES.length + 1);
+
+    /** These are the queries answered by return code */
+    private final LongAdder[] responsesByReturnCode = adders(16);
+
+    /** This is the latency of every query answered */
+    private final Histogram queryLatency = new Histogram();
+
+    /** These are the cache lookups by outcome */
+    private final LongAdder[] cacheLookups = adders(CacheOutcome.values().length);
+
+    /** These are the latencies of cache lookups by outcome, including any upstream query */
+    private final Histogram[] cacheLatency = histograms(CacheOutcome.values().length);
+
+    /** These are the metrics of each upstream server */
+    private final ConcurrentHashMap<InetSocketAddress, UpstreamMetrics> upstreams =
+            new ConcurrentHashMap<InetSocketAddress, UpstreamMetrics>();
+
+    /** These are the gauges read from elsewhere, by name */
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<String, LongSupplier>();
+
+    /**
+     * This method records a query that was answered
+     *
+     * @param type the type asked about, or null for a type not in Type
+     * @param returnCode the return code of the answer
+     * @param latencyNanos how long the query took to answer in nanoseconds
+     */
+    public void recordQuery(Type type, int returnCode, long latencyNanos) {
+        queriesByType[type == null ? TYPES.length : type.ordinal()].increment();
+        responsesByReturnCode[returnCode & 0x0F].increment();
+        queryLatency.record(latencyNanos);
+    }
+
+    /**
+     * This method records a cache lookup
+     *
+     * @param outcome how the lookup turned out
+     * @param latencyNanos how long it took to have an answer in nanoseconds
+     */
+    public void recordCacheLookup(CacheOutcome outcome, long latencyNanos) {
+        cacheLookups[outcome.ordinal()].increment();
+        cacheLatency[outcome.ordinal()].record(latencyNanos);
+    }
+
+    /**
+     * This method records an answer from an upstream server
+     *
+     * @param upstream the server
+     * @param latencyNanos how long the server took to answer in nanoseconds
+     */
+    public void recordUpstreamAnswer(InetSocketAddress upstream, long latencyNanos) {
+        UpstreamMetrics metrics = upstream(upstream);
+        metrics.answers.increment();
+        metrics.latency.record(latencyNanos);
+    }
+
+    /**
+     * This method records a query to an upstream server that was never
+     * answered
+     *
+     * @param upstream the server
+     */
+    public void recordUpstreamTimeout(InetSocketAddress upstream) {
+        upstream(upstream).timeouts.increment();
+    }
+
+    /**
+     * This method adds a value kept elsewhere, read each time the metrics
+     * are, replacing any gauge with the same name
+     *
+     * @param name the name of the metric, without the prefix
+     * @param gauge reads the value
+     */
+    public synchronized void registerGauge(String name, LongSupplier gauge) {
+        gauges.put(PREFIX + name, gauge);
+    }
+
+    /**
+     * This method reads every metric into one map, in the names and labels
+     * of the Prometheus text format.  Each histogram becomes cumulative
+     * bucket counts labelled with their upper bound, a sum and a count
+     *
+     * @return the value of each metric by name, in a stable order
+     */
+    public synchronized Map<String, Long> snapshot() {
+        Map<String, Long> values = new LinkedHashMap<String, Long>();
+        for (int i = 0; i <= TYPES.length; i++) {
+            String type = i < TYPES.length ? TYPES[i].name() : "OTHER";
+            values.put(PREFIX + "queries_total{type=\"" + type + "\"}", queriesByType[i].sum());
+        }
+        for (int code = 0; code < responsesByReturnCode.length; code++) {
+            long count = responsesByReturnCode[code].sum();
+            if (count > 0 || code < RETURN_CODE_NAMES.length) {
+                String name = code < RETURN_CODE_NAMES.length
+                        ? RETURN_CODE_NAMES[code] : "RCODE" + code;
+                values.put(PREFIX + "responses_total{rcode=\"" + name + "\"}", count);
+            }
+        }
+        addHistogram(values, "query_latency_microseconds", "", queryLatency);
+        for (CacheOutcome outcome : CacheOutcome.values()) {
+            String label = "outcome=\"" + outcome.name().toLowerCase() + "\"";
+            values.put(PREFIX + "cache_lookups_total{" + label + "}",
+                    cacheLookups[outcome.ordinal()].sum());
+            addHistogram(values, "cache_latency_microseconds", label,
+                    cacheLatency[outcome.ordinal()]);
+        }
+        for (Map.Entry<InetSocketAddress, UpstreamMetrics> entry : upstreams.entrySet()) {
+            InetSocketAddress address = entry.getKey();
+            String label = "upstream=\"" + address.getAddress().getHostAddress() + ":"
+                    + address.getPort() + "\"";
+            UpstreamMetrics metrics = entry.getValue();
+            values.put(PREFIX + "upstream_answers_total{" + label + "}", metrics.answers.sum());
+            values.put(PREFIX + "upstream_timeouts_total{" + label + "}",
+                    metrics.timeouts.sum());
+            addHistogram(values, "upstream_latency_microseconds", label, metrics.latency);
+        }
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        return values;
+    }
+
+    /**
+     * This method writes every metric in the Prometheus text format, one
+     * line each
+     *
+     * @return the metrics as text
+     */
+    public String toText() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Long> value : snapshot().entrySet()) {
+            text.append(value.getKey()).append(' ').append(value.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * This method adds a histogram's buckets, sum and count to a snapshot
+     *
+     * @param values the snapshot
+     * @param name the name of the histogram, without the prefix
+     * @param labels the labels every line gets, or an empty String for none
+     * @param histogram the histogram
+     */
+    private static void addHistogram(Map<String, Long> values, String name, String labels,
+                                     Histogram histogram) {
+        String separator = labels.isEmpty() ? "" : ",";
+        long[] bounds = histogram.getBoundsMicros();
+        long[] counts = histogram.getCounts();
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            String bound = i < bounds.length ? Long.toString(bounds[i]) : "+Inf";
+            values.put(PREFIX + name + "_bucket{" + labels + separator + "le=\"" + bound + "\"}",
+                    cumulative);
+        }
+        String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+        values.put(PREFIX + name + "_sum" + suffix, histogram.getSumMicros());
+        values.put(PREFIX + name + "_count" + suffix, cumulative);
+    }
+
+    /**
+     * This method returns the metrics of an upstream server, creating them
+     * the first time the server is seen
+     *
+     * @param upstream the server
+     * @return the server's metrics
+     */
+    private UpstreamMetrics upstream(InetSocketAddress upstream) {
+        UpstreamMetrics metrics = upstreams.get(upstream);
+        if (metrics == null) {
+            metrics = upstreams.computeIfAbsent(upstream, address -> new UpstreamMetrics());
+        }
+        return metrics;
+    }
+
+    /**
+     * This method creates counters
+     *
+     * @param count how many to create
+     * @return the counters
+     */
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * This method creates histograms with the default buckets
+     *
+     * @param count how many to create
+     * @return the histograms
+     */
+    private static Histogram[] histograms(int count) {
+        Histogram[] histograms = new Histogram[count];
+        for (int i = 0; i < count; i++) {
+            histograms[i] = new Histogram();
+        }
+        return histograms;
+    }
+
+    /**
+     * This is what is counted for one upstream server
+     */
+    private static final class UpstreamMetrics {
+        /** This is how many queries the server answered */
+        private final LongAdder answers = new LongAdder();
+
+        /** This is how many queries the server never answered */
+        private final LongAdder timeouts = new LongAdder();
+
+        /** This is how long the server took to answer */
+        private final Histogram latency = new Histogram();
+    }
+}
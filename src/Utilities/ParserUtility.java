@@ -1,6 +1,7 @@
 package Utilities;
 
 import Message.Class;
+import Message.MessageEncoder;
 import Message.Type;
 
 import java.net.InetAddress;
@@ -14,51 +15,103 @@ import java.nio.ByteBuffer;
  * @version 1.0
  */
 public class ParserUtility {
+    /**
+     * This is the most compression pointers followed in one name.  A name can
+     * have at most 127 labels so no honest message needs more than that
+     */
+    public static final int MAX_POINTER_JUMPS = 127;
 
     /**
      * This is a helper method that parses a ByteBuffer to get the name in a
-     * query
+     * query.  Compression pointers are followed in a loop rather than by
+     * recursion, and every pointer has to point backwards to somewhere before
+     * itself.  That alone doesn't stop loops, since a label followed by a
+     * pointer back to the start of that label points backwards and repeats
+     * forever, so it is the limits on pointer jumps and on the 255 octet
+     * length of a name that make even a hostile packet get rejected after a
+     * bounded amount of work.  Neither limit can be dropped
      *
      * @param name the name to append this name to
-     * @param data the ByteBuffer to pull the bytes from
+     * @param data the ByteBuffer to pull the bytes from, holding the message
+     *             from index 0, which is left just past the name
+     * @return the name with a trailing dot after every label
+     *
+     * @throws IllegalArgumentException when the name is malformed
      */
     public static String parseName(String name, ByteBuffer data) {
-        byte currentLength = data.get();
-        //>>> adds 0's before the numbers shifted
-       while (currentLength != 0) {
-           //Java is killing me slowly with all the signed things being everywhere
-            if ((currentLength & 0b11000000) == 0b11000000) {
-                int newPosition = ((((currentLength) & 0x3F) << 8) | (data.get() & 0xFF));
-                int oldPos = data.position();
-                data.position(newPosition);
-                //This is a recursive call since the DNS Protocol wanted pointers inside pointers.
-                name = parseName(name, data);
-                data.position(oldPos);
-                currentLength = 0;
-            } else {
-                //Finally a normal Name
-                name = nameParseLength(name, data, currentLength & 0xFF);
-                currentLength = data.get();
+        StringBuilder builder = new StringBuilder(name);
+        int position = data.position();
+        //This is where parsing carries on after the name, set at the first pointer
+        int resume = -1;
+        int jumps = 0;
+        int wireLength = 0;
+        while (true) {
+            int currentLength = readByte(data, position);
+            if ((currentLength & 0xC0) == 0xC0) {
+                if (resume < 0) {
+                    resume = position + 2;
+                }
+                if (++jumps > MAX_POINTER_JUMPS) {
+                    throw new IllegalArgumentException("Too many compression pointers");
+                }
+                position = pointerTarget(data, position);
+                continue;
+            }
+            if ((currentLength & 0xC0) != 0) {
+                throw new IllegalArgumentException("Unknown label type");
+            }
+            wireLength += currentLength + 1;
+            if (wireLength > MessageEncoder.MAX_NAME_LENGTH) {
+                throw new IllegalArgumentException("Name longer than 255 octets");
+            }
+            if (currentLength == 0) {
+                break;
+            }
+            for (int i = 1; i <= currentLength; i++) {
+                builder.append((char) readByte(data, position + i));
             }
+            builder.append('.');
+            position += currentLength + 1;
         }
-        return name;
+        data.position(resume < 0 ? position + 1 : resume);
+        return builder.toString();
     }
 
     /**
-     * This method parses bytes from a byteBuffer for a specified length
-     * @param name the name to append to
-     * @param data the ByteBuffer to parse from
-     * @param currentLength the number of bytes to parse out
-     * @return the String from the bytes read in
+     * This method works out where a compression pointer points, making sure
+     * it points backwards
+     *
+     * @param data the ByteBuffer holding the message from index 0
+     * @param position the index of the pointer
+     * @return the index the pointer points to
+     *
+     * @throws IllegalArgumentException when the pointer doesn't point before
+     * itself
      */
-    private static String nameParseLength(String name, ByteBuffer data,int
-            currentLength) {
-        byte[] bytes = new byte[currentLength];
-        for (int i = 0; i < currentLength; i++) {
-            bytes[i] = data.get();
+    public static int pointerTarget(ByteBuffer data, int position) {
+        int target = ((readByte(data, position) & 0x3F) << 8)
+                | readByte(data, position + 1);
+        if (target >= position) {
+            throw new IllegalArgumentException("Compression pointer doesn't point backwards");
         }
-        name = name + new String(bytes) + ".";
-        return name;
+        return target;
+    }
+
+    /**
+     * This method reads an unsigned byte, checking that it is inside the
+     * message
+     *
+     * @param data the ByteBuffer holding the message
+     * @param index the index of the byte
+     * @return the byte as a number from 0 to 255
+     *
+     * @throws IllegalArgumentException when the index is past the message
+     */
+    public static int readByte(ByteBuffer data, int index) {
+        if (index >= data.limit()) {
+            throw new IllegalArgumentException("Name runs past the end of the message");
+        }
+        return data.get(index) & 0xFF;
     }
 
     /**
@@ -68,7 +121,7 @@ public class ParserUtility {
      * @param data the ByteBuffer to parse
      */
     public static Type parseType(ByteBuffer data) {
-        return Type.parseType((data.get() << 8) | data.get());
+        return Type.parseType(data.getShort() & 0xFFFF);
     }
 
     /**
@@ -78,13 +131,7 @@ public class ParserUtility {
      * @param data the ByteBuffer to parse
      */
     public static Class parseClass(ByteBuffer data) {
-        Class dnsClass;
-        if (((data.get() << 8) | data.get()) == 1) {
-            dnsClass = Class.IN;
-        } else {
-            dnsClass = Class.CH;
-        }
-        return dnsClass;
+        return Class.parseClass(data.getShort() & 0xFFFF);
     }
 
     /**
@@ -135,7 +182,7 @@ public class ParserUtility {
      * @return the String representation of the data
      */
     public static String parseMxData(ByteBuffer data) {
-        int preference = ((data.get() << 8) | data.get());
+        int preference = data.getShort() & 0xFFFF;
         return preference + " " + parseName("", data);
     }
 
@@ -150,4 +197,23 @@ public class ParserUtility {
         return parseName("",data);
     }
 
+    /**
+     * This method takes in the ByteBuffer containing data to parse, the
+     * length of the data and then returns a String with the values contained.
+     * The values are the primary name server, the responsible mailbox, then
+     * the serial, refresh, retry, expire and minimum numbers
+     *
+     * @param data   the ByteBuffer containing the data
+     * @return the String representation of the data
+     */
+    public static String parseSoaData(ByteBuffer data) {
+        String primary = parseName("", data);
+        String mailbox = parseName("", data);
+        StringBuilder soaData = new StringBuilder();
+        soaData.append(primary).append(' ').append(mailbox);
+        for (int i = 0; i < 5; i++) {
+            soaData.append(' ').append(data.getInt() & 0xFFFFFFFFL);
+        }
+        return soaData.toString();
+    }
 }
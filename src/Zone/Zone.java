@@ -0,0 +1,271 @@
+package Zone;
+
+import Message.DomainName;
+import Message.Header;
+import Message.Message;
+import Message.Query;
+import Message.ResourceRecord;
+import Message.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * This is a zone held in memory for answering authoritatively.  Records are
+ * indexed by owner name, and each name holds its RRsets by Type, so
+ * answering a question takes one hash lookup per label between the zone's
+ * origin and the name asked about, however many records the zone holds.
+ *
+ * Every name between a record's owner and the origin is in the index, even
+ * if it owns no records, so a name that only has names below it gets a
+ * NODATA answer rather than NXDOMAIN.  A name below the origin that owns NS
+ * records is a zone cut, and questions at or below it get a referral rather
+ * than an authoritative answer.
+ *
+ * A zone is filled by add, normally from ZoneLoader, and then only read, so
+ * any number of threads can look up in it once it has been handed over
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class Zone {
+    /** This is the longest chain of CNAMEs followed inside the zone */
+    private static final int MAX_CNAME_CHAIN = 8;
+
+    /** This is the name at the top of the zone */
+    private final DomainName origin;
+
+    /** These are the names in the zone with their records */
+    private final HashMap<DomainName, Node> nodes = new HashMap<DomainName, Node>();
+
+    /** This is the SOA record at the origin, or null until it is added */
+    private ResourceRecord soa;
+
+    /** This is how many records the zone holds */
+    private int size;
+
+    /**
+     * This constructor creates an empty zone
+     *
+     * @param origin the name at the top of the zone
+     */
+    public Zone(DomainName origin) {
+        this.origin = origin;
+        nodes.put(origin, new Node());
+    }
+
+    /**
+     * This method adds a record, along with every name between its owner and
+     * the origin
+     *
+     * @param record the record to add
+     *
+     * @throws IllegalArgumentException when the record is outside the zone,
+     * or is an SOA anywhere but the origin
+     */
+    public void add(ResourceRecord record) {
+        add(DomainName.of(record.getName()), record);
+    }
+
+    /**
+     * This method adds a record whose owner has already been made into a
+     * DomainName, which saves parsing it again when loading a large zone
+     *
+     * @param name the owner of the record
+     * @param record the record to add
+     *
+     * @throws IllegalArgumentException when the record is outside the zone,
+     * or is an SOA anywhere but the origin
+     */
+    public void add(DomainName name, ResourceRecord record) {
+        if (!name.isSubdomainOf(origin)) {
+            throw new IllegalArgumentException(name + " is outside " + origin);
+        }
+        if (record.getType() == Type.SOA) {
+            if (!name.equals(origin)) {
+                throw new IllegalArgumentException("SOA for " + name + " isn't at " + origin);
+            }
+            soa = record;
+        }
+        Node node = nodes.get(name);
+        if (node == null) {
+            node = new Node();
+            nodes.put(name, node);
+            for (DomainName parent = name.getParent(); !nodes.containsKey(parent);
+                 parent = parent.getParent()) {
+                nodes.put(parent, new Node());
+            }
+        }
+        node.add(record);
+        size++;
+    }
+
+    public DomainName getOrigin() {
+        return origin;
+    }
+
+    public ResourceRecord getSoa() {
+        return soa;
+    }
+
+    /**
+     * This method returns how many records the zone holds
+     *
+     * @return the number of records
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * This method answers a question about a name in the zone.  Names that
+     * exist get their RRset, or a NODATA answer with the SOA if they have
+     * none of the type asked for.  Names that don't exist get NXDOMAIN with
+     * the SOA.  CNAMEs are followed while their targets stay in the zone, and
+     * names at or below a zone cut get a referral to the cut's servers with
+     * any glue the zone holds for them
+     *
+     * @param question the question to answer, for a name in the zone
+     * @return the response
+     */
+    public Message lookup(Query question) {
+        DomainName name = DomainName.of(question.getName());
+        Type type = question.getType();
+        ArrayList<ResourceRecord> answers = new ArrayList<ResourceRecord>();
+        ArrayList<ResourceRecord> authority = new ArrayList<ResourceRecord>();
+        ArrayList<ResourceRecord> additional = new ArrayList<ResourceRecord>();
+        boolean authoritative = true;
+        int returnCode = Header.NO_ERROR;
+        for (int chain = 0; chain <= MAX_CNAME_CHAIN && name.isSubdomainOf(origin); chain++) {
+            Node node = nodes.get(origin);
+            DomainName cut = null;
+            for (int labels = origin.getLabelCount() + 1;
+                 labels <= name.getLabelCount() && node != null; labels++) {
+                DomainName suffix = name.getSuffix(labels);
+                node = nodes.get(suffix);
+                if (node != null && node.get(Type.NS) != null) {
+                    cut = suffix;
+                    break;
+                }
+            }
+            if (cut != null) {
+                //Below a cut the zone only holds glue, so the answer belongs to the child zone
+                authoritative = false;
+                ResourceRecord[] servers = node.get(Type.NS);
+                authority.addAll(Arrays.asList(servers));
+                addAddresses(servers, additional);
+                break;
+            }
+            if (node == null) {
+                returnCode = Header.NAME_ERROR;
+                addSoa(authority);
+                break;
+            }
+            ResourceRecord[] rrset = node.get(type);
+            if (rrset != null) {
+                answers.addAll(Arrays.asList(rrset));
+                if (type == Type.MX || type == Type.NS) {
+                    addAddresses(rrset, additional);
+                }
+                break;
+            }
+            ResourceRecord[] cname = node.get(Type.CNAME);
+            if (cname == null) {
+                addSoa(authority);
+                break;
+            }
+            answers.add(cname[0]);
+            name = DomainName.of(cname[0].getResourceData());
+        }
+        ArrayList<Query> questions = new ArrayList<Query>(1);
+        questions.add(question);
+        Header header = new Header(true, 0, authoritative, false, false, false, 0,
+                returnCode, 1, answers.size(), authority.size(), additional.size());
+        return new Message(header, questions, answers, authority, additional);
+    }
+
+    /**
+     * This method adds the SOA to a negative answer with the TTL RFC 2308
+     * gives it, the smaller of its own TTL and its minimum field
+     *
+     * @param authority the authority section to add it to
+     */
+    private void addSoa(ArrayList<ResourceRecord> authority) {
+        if (soa != null) {
+            authority.add(soa.withTtl(Math.min(soa.getTtl(), soa.getSoaMinimum())));
+        }
+    }
+
+    /**
+     * This method adds the addresses the zone holds for the names NS or MX
+     * records point to
+     *
+     * @param records the NS or MX records
+     * @param additional the additional section to add the addresses to
+     */
+    private void addAddresses(ResourceRecord[] records, ArrayList<ResourceRecord> additional) {
+        for (ResourceRecord record : records) {
+            String data = record.getResourceData();
+            String target = record.getType() == Type.MX
+                    ? data.substring(data.indexOf(' ') + 1) : data;
+            Node node = nodes.get(DomainName.of(target));
+            if (node != null && node.get(Type.A) != null) {
+                additional.addAll(Arrays.asList(node.get(Type.A)));
+            }
+        }
+    }
+
+    public String toString() {
+        return origin + " (" + size + " records)";
+    }
+
+    /**
+     * This is one name in the zone with its RRsets.  Most names own only one
+     * or two RRsets, so they are kept in a small array searched by type
+     * rather than a slot for every type
+     */
+    private static final class Node {
+        /** These are the RRsets, each holding records of one type, or null for a name with no records */
+        private ResourceRecord[][] rrsets;
+
+        /**
+         * This method returns the RRset of a type
+         *
+         * @param type the type of the RRset
+         * @return the records, or null if there are none
+         */
+        private ResourceRecord[] get(Type type) {
+            if (rrsets != null) {
+                for (ResourceRecord[] rrset : rrsets) {
+                    if (rrset[0].getType() == type) {
+                        return rrset;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * This method adds a record to the RRset of its type
+         *
+         * @param record the record to add
+         */
+        private void add(ResourceRecord record) {
+            if (rrsets == null) {
+                rrsets = new ResourceRecord[][]{{record}};
+                return;
+            }
+            for (int i = 0; i < rrsets.length; i++) {
+                ResourceRecord[] rrset = rrsets[i];
+                if (rrset[0].getType() == record.getType()) {
+                    rrset = Arrays.copyOf(rrset, rrset.length + 1);
+                    rrset[rrset.length - 1] = record;
+                    rrsets[i] = rrset;
+                    return;
+                }
+            }
+            rrsets = Arrays.copyOf(rrsets, rrsets.length + 1);
+            rrsets[rrsets.length - 1] = new ResourceRecord[]{record};
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package Zone;
+
+import Message.Class;
+import Message.DomainName;
+import Message.ResourceRecord;
+import Message.Type;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+/**
+ * This reads a zone file in the master file format of RFC 1035 into a Zone.
+ * It understands $ORIGIN and $TTL, owners left blank to repeat the last
+ * owner, @ for the origin, names relative to the origin, the TTL and class
+ * in either order or left out, parentheses around records that go over
+ * several lines, and comments.  TTLs can be given in seconds or with the
+ * usual units, as in 1h30m.  The first record must be the SOA, whose owner is
+ * the top of the zone.  Records of types this program doesn't know are
+ * skipped and counted
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class ZoneLoader {
+    /** This is where the records are read from */
+    private final BufferedReader input;
+
+    /** This is the name of the source, for error messages */
+    private final String source;
+
+    /** This is the origin relative names are completed with, null until one is known */
+    private DomainName origin;
+
+    /** This is the TTL from $TTL, or -1 if there hasn't been one */
+    private long defaultTtl = -1;
+
+    /** This is the TTL of the last record, used when a record leaves it out */
+    private long lastTtl = -1;
+
+    /** This is the owner of the last record, used when a record leaves it out */
+    private DomainName lastOwner;
+
+    /** This is the number of the line being read */
+    private int lineNumber;
+
+    /** This is how many records of unknown types were skipped */
+    private int skipped;
+
+    /** These are the tokens of the record being read */
+    private final ArrayList<String> tokens = new ArrayList<String>();
+
+    /** This is true if the record being read started with a blank owner */
+    private boolean blankOwner;
+
+    /**
+     * This constructor sets up a loader over a reader
+     *
+     * @param input where the zone file is read from
+     * @param origin the origin to start with, or null to need $ORIGIN or
+     *               absolute names
+     * @param source the name of the file, for error messages
+     */
+    public ZoneLoader(Reader input, DomainName origin, String source) {
+        this.input = input instanceof BufferedReader ? (BufferedReader) input
+                : new BufferedReader(input, 1 << 16);
+        this.origin = origin;
+        this.source = source;
+    }
+
+    /**
+     * This method reads a zone file
+     *
+     * @param file the zone file
+     * @param origin the origin to start with, or null to need $ORIGIN or
+     *               absolute names
+     * @return the zone
+     *
+     * @throws IOException when the file can't be read or isn't a valid zone
+     */
+    public static Zone load(Path file, DomainName origin) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.ISO_8859_1)) {
+            return new ZoneLoader(reader, origin, file.toString()).load();
+        }
+    }
+
+    /**
+     * This method reads every record into a zone
+     *
+     * @return the zone
+     *
+     * @throws IOException when the input can't be read or isn't a valid zone,
+     * with the line the problem is on
+     */
+    public Zone load() throws IOException {
+        Zone zone = null;
+        while (readRecord()) {
+            try {
+                if (tokens.get(0).startsWith("$")) {
+                    directive();
+                    continue;
+                }
+                ResourceRecord record = parseRecord();
+                if (record == null) {
+                    continue;
+                }
+                if (zone == null) {
+                    if (record.getType() != Type.SOA) {
+                        throw new IllegalArgumentException("The first record must be the SOA");
+                    }
+                    zone = new Zone(lastOwner);
+                }
+                zone.add(lastOwner, record);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(source + " line " + lineNumber + ": " + e.getMessage(), e);
+            }
+        }
+        if (zone == null) {
+            throw new IOException(source + ": no SOA record");
+        }
+        return zone;
+    }
+
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * This method splits the next record into tokens, reading more lines
+     * while a parenthesis is open
+     *
+     * @return false at the end of the input
+     *
+     * @throws IOException when the input can't be read or ends inside
+     * parentheses or quotes
+     */
+    private boolean readRecord() throws IOException {
+        tokens.clear();
+        int depth = 0;
+        boolean first = true;
+        do {
+            String line = input.readLine();
+            lineNumber++;
+            if (line == null) {
+                if (depth > 0) {
+                    throw new IOException(source + ": unclosed parenthesis at the end");
+                }
+                return false;
+            }
+            if (first) {
+                blankOwner = !line.isEmpty() && Character.isWhitespace(line.charAt(0));
+            }
+            int i = 0;
+            while (i < line.length()) {
+                char c = line.charAt(i);
+                if (c == ';') {
+                    break;
+                } else if (c == '(') {
+                    depth++;
+                    i++;
+                } else if (c == ')') {
+                    if (--depth < 0) {
+                        throw new IOException(source + " line " + lineNumber
+                                + ": unbalanced parenthesis");
+                    }
+                    i++;
+                } else if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '"') {
+                    int end = line.indexOf('"', i + 1);
+                    if (end < 0) {
+                        throw new IOException(source + " line " + lineNumber
+                                + ": unclosed quote");
+                    }
+                    tokens.add(line.substring(i + 1, end));
+                    i = end + 1;
+                } else {
+                    int start = i;
+                    while (i < line.length() && !Character.isWhitespace(line.charAt(i))
+                            && "();\"".indexOf(line.charAt(i)) < 0) {
+                        i++;
+                    }
+                    tokens.add(line.substring(start, i));
+                }
+            }
+            //Blank and comment lines don't start a record
+            first = tokens.isEmpty();
+        } while (depth > 0 || tokens.isEmpty());
+        return true;
+    }
+
+    /**
+     * This method handles a $ORIGIN or $TTL line
+     */
+    private void directive() {
+        String name = tokens.get(0);
+        if (tokens.size() < 2) {
+            throw new IllegalArgumentException(name + " needs a value");
+        }
+        if (name.equalsIgnoreCase("$ORIGIN")) {
+            origin = parseName(tokens.get(1));
+        } else if (name.equalsIgnoreCase("$TTL")) {
+            defaultTtl = parseTtl(tokens.get(1));
+        } else {
+            throw new IllegalArgumentException(name + " isn't supported");
+        }
+    }
+
+    /**
+     * This method turns the tokens of a record into a ResourceRecord
+     *
+     * @return the record, or null if its type isn't one this program knows
+     */
+    private ResourceRecord parseRecord() {
+        int i = 0;
+        DomainName owner;
+        if (blankOwner) {
+            if (lastOwner == null) {
+                throw new IllegalArgumentException("No owner for the first record");
+            }
+            owner = lastOwner;
+        } else {
+            owner = parseName(tokens.get(i++));
+        }
+        lastOwner = owner;
+        long ttl = -1;
+        Class dnsClass = Class.IN;
+        //The TTL and class can come in either order
+        for (int field = 0; field < 2 && i < tokens.size(); field++) {
+            String token = tokens.get(i);
+            if (Character.isDigit(token.charAt(0))) {
+                ttl = parseTtl(token);
+                i++;
+            } else if (token.equalsIgnoreCase("IN")) {
+                i++;
+            } else if (token.equalsIgnoreCase("CH")) {
+                dnsClass = Class.CH;
+                i++;
+            }
+        }
+        if (i >= tokens.size()) {
+            throw new IllegalArgumentException("Missing type");
+        }
+        String typeName = tokens.get(i++);
+        Type type = parseType(typeName);
+        if (type == null) {
+            skipped++;
+            return null;
+        }
+        String data = parseData(type, i);
+        if (ttl < 0) {
+            ttl = defaultTtl >= 0 ? defaultTtl : lastTtl;
+        }
+        if (ttl < 0 && type == Type.SOA) {
+            ttl = Long.parseLong(data.substring(data.lastIndexOf(' ') + 1));
+        }
+        if (ttl < 0) {
+            throw new IllegalArgumentException("No TTL and no $TTL");
+        }
+        lastTtl = ttl;
+        return new ResourceRecord(owner.toString(), type, dnsClass, ttl, data);
+    }
+
+    /**
+     * This method builds the data of a record in the form ResourceRecord
+     * holds it, from the tokens after the type
+     *
+     * @param type the type of the record
+     * @param start the index of the first data token
+     * @return the data
+     */
+    private String parseData(Type type, int start) {
+        switch (type) {
+            case A: {
+                String address = token(start);
+                if (!isAddress(address)) {
+                    throw new IllegalArgumentException("Bad address " + address);
+                }
+                return address;
+            }
+            case NS:
+            case CNAME:
+            case PTR:
+                return parseName(token(start)).toString();
+            case MX:
+                return parseNumber(token(start), 0xFFFF) + " "
+                        + parseName(token(start + 1));
+            case SOA: {
+                StringBuilder data = new StringBuilder();
+                data.append(parseName(token(start))).append(' ')
+                        .append(parseName(token(start + 1)));
+                for (int i = 0; i < 5; i++) {
+                    //The serial is a plain number and the timers can have units
+                    String value = token(start + 2 + i);
+                    data.append(' ').append(i == 0 ? parseNumber(value, 0xFFFFFFFFL)
+                            : parseTtl(value));
+                }
+                return data.toString();
+            }
+            default:
+                throw new IllegalArgumentException(type + " records can't be loaded");
+        }
+    }
+
+    /**
+     * This method returns a data token, making sure it is there
+     *
+     * @param index the index of the token
+     * @return the token
+     */
+    private String token(int index) {
+        if (index >= tokens.size()) {
+            throw new IllegalArgumentException("Missing data");
+        }
+        return tokens.get(index);
+    }
+
+    /**
+     * This method matches a type's name to a Type, telling a type that
+     * isn't implemented apart from a class or TTL where the type should be
+     *
+     * @param name the name of the type
+     * @return the type, or null if it isn't one that can be loaded
+     */
+    private static Type parseType(String name) {
+        Type type = Type.fromName(name);
+        if (type != null) {
+            return type;
+        }
+        if (name.equalsIgnoreCase("IN") || name.equalsIgnoreCase("CH")
+                || Character.isDigit(name.charAt(0))) {
+            throw new IllegalArgumentException("Missing type");
+        }
+        return null;
+    }
+
+    /**
+     * This method completes a name from a zone file, with @ for the origin
+     * and names without a trailing dot relative to the origin
+     *
+     * @param text the name as written
+     * @return the absolute name
+     */
+    private DomainName parseName(String text) {
+        if (text.equals("@")) {
+            if (origin == null) {
+                throw new IllegalArgumentException("@ used with no origin");
+            }
+            return origin;
+        }
+        if (text.endsWith(".")) {
+            return DomainName.of(text);
+        }
+        if (origin == null) {
+            throw new IllegalArgumentException("Relative name " + text + " with no origin");
+        }
+        return DomainName.of(origin.isRoot() ? text : text + "." + origin);
+    }
+
+    /**
+     * This method parses a TTL in seconds, or made of numbers followed by
+     * w, d, h, m or s
+     *
+     * @param text the TTL as written
+     * @return the TTL in seconds
+     */
+    private static long parseTtl(String text) {
+        if (isDigits(text)) {
+            return parseNumber(text, 0x7FFFFFFFL);
+        }
+        long total = 0;
+        long number = -1;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                number = (number < 0 ? 0 : number * 10) + (c - '0');
+                if (number > 0x7FFFFFFFL) {
+                    throw new IllegalArgumentException("TTL too large: " + text);
+                }
+                continue;
+            }
+            long unit;
+            switch (Character.toLowerCase(c)) {
+                case 'w': unit = 604800; break;
+                case 'd': unit = 86400; break;
+                case 'h': unit = 3600; break;
+                case 'm': unit = 60; break;
+                case 's': unit = 1; break;
+                default: throw new IllegalArgumentException("Bad TTL " + text);
+            }
+            if (number < 0) {
+                throw new IllegalArgumentException("Bad TTL " + text);
+            }
+            total += number * unit;
+            number = -1;
+        }
+        if (number >= 0 || total > 0x7FFFFFFFL) {
+            throw new IllegalArgumentException("Bad TTL " + text);
+        }
+        return total;
+    }
+
+    /**
+     * This method parses a decimal number with an upper limit
+     *
+     * @param text the number as written
+     * @param max the largest value allowed
+     * @return the number
+     */
+    private static long parseNumber(String text, long max) {
+        if (!isDigits(text) || text.length() > 10 || Long.parseLong(text) > max) {
+            throw new IllegalArgumentException("Bad number " + text);
+        }
+        return Long.parseLong(text);
+    }
+
+    /**
+     * This method checks that text is a dotted IPv4 address
+     *
+     * @param text the text to check
+     * @return true if it is four numbers from 0 to 255 separated by dots
+     */
+    private static boolean isAddress(String text) {
+        int octets = 0;
+        int value = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : '.';
+            if (c == '.') {
+                if (value < 0 || ++octets > 4) {
+                    return false;
+                }
+                value = -1;
+            } else if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        }
+        return octets == 4;
+    }
+
+    /**
+     * This method checks that text is only digits
+     *
+     * @param text the text to check
+     * @return true if it is all digits and not empty
+     */
+    private static boolean isDigits(String text) {
+        if (text.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) < '0' || text.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
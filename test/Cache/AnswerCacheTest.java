@@ -0,0 +1,150 @@
+package Cache;
+
+import static Testing.Assert.assertEquals;
+import static Testing.Assert.assertTrue;
+
+import Message.Class;
+import Message.Header;
+import Message.Message;
+import Message.Query;
+import Message.ResourceRecord;
+import Message.Type;
+import java.util.ArrayList;
+
+/**
+ * This tests that the answer cache keeps answers for their smallest TTL,
+ * counts TTLs down when answering, and stays under its size by evicting
+ * entries that haven't been hit before ones that have
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class AnswerCacheTest {
+    public void testKeepsAnswerForSmallestTtl() {
+        AnswerCache cache = new AnswerCache();
+        Query question = question("www.example.com.");
+        CacheEntry entry = cache.put(question, response(question,
+                record("www.example.com.", 300, "192.0.2.1"),
+                record("www.example.com.", 60, "192.0.2.2")));
+        long now = System.currentTimeMillis();
+        assertTrue("expires in about a minute",
+                Math.abs(entry.getExpiresAt() - (now + 60000)) < 1000);
+        assertEquals("stored", entry, cache.get(new CacheKey(question)));
+        assertEquals("found under any spelling", entry,
+                cache.get(new CacheKey(question("WWW.EXAMPLE.COM."))));
+    }
+
+    public void testCountsTtlsDown() {
+        Query question = question("www.example.com.");
+        CacheEntry entry = CacheEntry.fromResponse(question, response(question,
+                record("www.example.com.", 300, "192.0.2.1"),
+                record("www.example.com.", 60, "192.0.2.2")));
+        Message later = entry.toResponse(question, System.currentTimeMillis() + 30000);
+        for (ResourceRecord record : later.getAnswerResourceRecords()) {
+            assertTrue("TTL " + record.getTtl() + " counted down", record.getTtl() <= 30);
+        }
+    }
+
+    public void testDoesNotReturnExpiredEntry() {
+        AnswerCache cache = new AnswerCache(10, 0);
+        CacheKey key = new CacheKey("www.example.com.", Type.A, Class.IN);
+        cache.put(new CacheEntry(key, records(), new ArrayList<ResourceRecord>(),
+                Header.NO_ERROR, System.currentTimeMillis() - 1));
+        assertEquals("expired entry", null, cache.get(key));
+        assertEquals("dropped once too stale", 0, cache.size());
+    }
+
+    public void testDoesNotCacheZeroTtl() {
+        AnswerCache cache = new AnswerCache();
+        Query question = question("www.example.com.");
+        assertEquals("entry", null, cache.put(question, response(question,
+                record("www.example.com.", 0, "192.0.2.1"))));
+        assertEquals("size", 0, cache.size());
+    }
+
+    public void testStaysUnderLimit() {
+        AnswerCache cache = new AnswerCache(8);
+        for (int i = 0; i < 100; i++) {
+            cache.put(entry("name" + i + ".example.com."));
+        }
+        assertEquals("size", 8, cache.size());
+    }
+
+    public void testEvictsEntriesNotHitFirst() {
+        AnswerCache cache = new AnswerCache(4);
+        for (int i = 0; i < 4; i++) {
+            cache.put(entry("name" + i + ".example.com."));
+        }
+        CacheKey hot = new CacheKey("name0.example.com.", Type.A, Class.IN);
+        assertTrue("hit", cache.get(hot) != null);
+        cache.put(entry("new.example.com."));
+        assertTrue("the hit entry got a second chance", cache.get(hot) != null);
+        assertEquals("the next oldest went instead", null,
+                cache.get(new CacheKey("name1.example.com.", Type.A, Class.IN)));
+    }
+
+    /**
+     * This method makes an entry with one address that lasts a minute
+     *
+     * @param name the name the entry answers
+     * @return the entry
+     */
+    private static CacheEntry entry(String name) {
+        return new CacheEntry(new CacheKey(name, Type.A, Class.IN), records(),
+                new ArrayList<ResourceRecord>(), Header.NO_ERROR,
+                System.currentTimeMillis() + 60000);
+    }
+
+    /**
+     * This method makes the answer records of an entry
+     *
+     * @return one address record
+     */
+    private static ArrayList<ResourceRecord> records() {
+        ArrayList<ResourceRecord> records = new ArrayList<ResourceRecord>();
+        records.add(record("www.example.com.", 60, "192.0.2.1"));
+        return records;
+    }
+
+    /**
+     * This method makes an address question
+     *
+     * @param name the name asked about
+     * @return the question
+     */
+    private static Query question(String name) {
+        return new Query(name, Type.A, Class.IN);
+    }
+
+    /**
+     * This method builds a successful response
+     *
+     * @param question the question answered
+     * @param answers the answers
+     * @return the response
+     */
+    private static Message response(Query question, ResourceRecord... answers) {
+        ArrayList<Query> questions = new ArrayList<Query>(1);
+        questions.add(question);
+        ArrayList<ResourceRecord> answerList = new ArrayList<ResourceRecord>();
+        for (ResourceRecord answer : answers) {
+            answerList.add(answer);
+        }
+        Header header = new Header(true, 0, false, false, true, true, 0, Header.NO_ERROR, 1,
+                answerList.size(), 0, 0);
+        return new Message(header, questions, answerList, new ArrayList<ResourceRecord>(),
+                new ArrayList<ResourceRecord>());
+    }
+
+    /**
+     * This method makes an address record
+     *
+     * @param name the owner
+     * @param ttl the TTL in seconds
+     * @param address the address
+     * @return the record
+     */
+    private static ResourceRecord record(String name, long ttl, String address) {
+        return new ResourceRecord(name, Type.A, Class.IN, ttl, address);
+    }
+}
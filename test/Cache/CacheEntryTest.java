@@ -0,0 +1,154 @@
+package Cache;
+
+import static Testing.Assert.assertEquals;
+import static Testing.Assert.assertTrue;
+
+import Message.Class;
+import Message.Header;
+import Message.Message;
+import Message.Query;
+import Message.ResourceRecord;
+import Message.Type;
+import java.util.ArrayList;
+
+/**
+ * This tests how long negative answers are cached, which RFC 2308 sets to
+ * the smaller of the SOA's own TTL and its minimum field, capped so a
+ * mistake in a zone can't keep a name missing for days, and when an entry
+ * is due a refresh
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class CacheEntryTest {
+    /** This is the question every response here answers */
+    private static final Query QUESTION = new Query("missing.example.com.", Type.A, Class.IN);
+
+    public void testUsesSoaTtlWhenSmaller() {
+        CacheEntry entry = negative(Header.NAME_ERROR, soa(120, 3600));
+        assertTtl(120, entry);
+        assertTrue("negative", entry.isNegative());
+        assertEquals("return code", Header.NAME_ERROR, entry.getReturnCode());
+    }
+
+    public void testUsesSoaMinimumWhenSmaller() {
+        assertTtl(300, negative(Header.NAME_ERROR, soa(3600, 300)));
+    }
+
+    public void testCapsNegativeTtl() {
+        assertTtl(AnswerCache.MAX_NEGATIVE_TTL,
+                negative(Header.NAME_ERROR, soa(7 * 86400, 7 * 86400)));
+    }
+
+    public void testCachesNoDataLikeNameError() {
+        CacheEntry entry = negative(Header.NO_ERROR, soa(600, 900));
+        assertTtl(600, entry);
+        assertEquals("return code", Header.NO_ERROR, entry.getReturnCode());
+        assertTrue("no answers", entry.getRecords().isEmpty());
+        assertEquals("the SOA is kept for the authority section", Type.SOA,
+                entry.getAuthorityRecords().get(0).getType());
+    }
+
+    public void testDoesNotCacheWithoutSoa() {
+        ResourceRecord ns = new ResourceRecord("example.com.", Type.NS, Class.IN, 3600,
+                "ns.example.com.");
+        assertEquals("NXDOMAIN without an SOA", null, negative(Header.NAME_ERROR, ns));
+        assertEquals("NODATA without an SOA", null, negative(Header.NO_ERROR));
+    }
+
+    public void testDoesNotCacheServerFailure() {
+        assertEquals("SERVFAIL", null, negative(Header.SERVER_FAILURE, soa(600, 600)));
+    }
+
+    public void testDoesNotCacheZeroMinimum() {
+        assertEquals("entry", null, negative(Header.NAME_ERROR, soa(600, 0)));
+    }
+
+    public void testAnswersWithSoaCountedDown() {
+        CacheEntry entry = negative(Header.NAME_ERROR, soa(600, 600));
+        Message response = entry.toResponse(QUESTION, System.currentTimeMillis() + 500000);
+        assertEquals("return code", Header.NAME_ERROR, response.getHeader().getReturnCode());
+        long ttl = response.getAuthorityResourceRecords().get(0).getTtl();
+        assertTrue("SOA TTL " + ttl + " counted down", ttl <= 100);
+    }
+
+    public void testRefreshesHotEntryInLastPartOfTtl() {
+        long now = System.currentTimeMillis();
+        assertTrue("hot and in its last tenth", aged(now - 55000, now + 5000, 2)
+                .shouldRefresh(now, 0.1, 2));
+        assertTrue("not hit enough", !aged(now - 55000, now + 5000, 1)
+                .shouldRefresh(now, 0.1, 2));
+        assertTrue("too much TTL left", !aged(now - 40000, now + 20000, 2)
+                .shouldRefresh(now, 0.1, 2));
+        assertTrue("expired", !aged(now - 60000, now, 2).shouldRefresh(now, 0.1, 2));
+    }
+
+    public void testClaimsRefreshOnce() {
+        long now = System.currentTimeMillis();
+        CacheEntry entry = aged(now - 55000, now + 5000, 2);
+        assertTrue("first claim", entry.startRefresh());
+        assertTrue("second claim", !entry.startRefresh());
+        assertTrue("not due while refreshing", !entry.shouldRefresh(now, 0.1, 2));
+    }
+
+    /**
+     * This method makes an address entry that was created a while ago
+     *
+     * @param createdAt when it was made, in milliseconds since the epoch
+     * @param expiresAt when it expires, in milliseconds since the epoch
+     * @param hits how many times it has been hit
+     * @return the entry
+     */
+    private static CacheEntry aged(long createdAt, long expiresAt, int hits) {
+        ArrayList<ResourceRecord> records = new ArrayList<ResourceRecord>();
+        records.add(new ResourceRecord("www.example.com.", Type.A, Class.IN, 60, "192.0.2.1"));
+        return new CacheEntry(new CacheKey("www.example.com.", Type.A, Class.IN), records,
+                new ArrayList<ResourceRecord>(), Header.NO_ERROR, createdAt, expiresAt, hits,
+                false, 0);
+    }
+
+    /**
+     * This method checks how long from now an entry lasts
+     *
+     * @param ttl the TTL expected, in seconds
+     * @param entry the entry
+     */
+    private static void assertTtl(long ttl, CacheEntry entry) {
+        long expected = System.currentTimeMillis() + ttl * 1000;
+        assertTrue("expires " + (entry.getExpiresAt() - System.currentTimeMillis())
+                + "ms from now instead of " + ttl + "s",
+                Math.abs(entry.getExpiresAt() - expected) < 1000);
+    }
+
+    /**
+     * This method makes an SOA record for example.com
+     *
+     * @param ttl the record's own TTL
+     * @param minimum the minimum field
+     * @return the record
+     */
+    private static ResourceRecord soa(long ttl, long minimum) {
+        return new ResourceRecord("example.com.", Type.SOA, Class.IN, ttl,
+                "ns.example.com. admin.example.com. 1 7200 3600 1209600 " + minimum);
+    }
+
+    /**
+     * This method caches a response with no answers
+     *
+     * @param returnCode the return code
+     * @param authority the authority section
+     * @return the entry, or null if it couldn't be cached
+     */
+    private static CacheEntry negative(int returnCode, ResourceRecord... authority) {
+        ArrayList<Query> questions = new ArrayList<Query>(1);
+        questions.add(QUESTION);
+        ArrayList<ResourceRecord> authorityList = new ArrayList<ResourceRecord>();
+        for (ResourceRecord record : authority) {
+            authorityList.add(record);
+        }
+        Header header = new Header(true, 0, true, false, true, true, 0, returnCode, 1, 0,
+                authorityList.size(), 0);
+        return CacheEntry.fromResponse(QUESTION, new Message(header, questions,
+                new ArrayList<ResourceRecord>(), authorityList, new ArrayList<ResourceRecord>()));
+    }
+}
@@ -0,0 +1,49 @@
+package Cache;
+
+import static Testing.Assert.assertEquals;
+import static Testing.Assert.assertThrows;
+import static Testing.Assert.assertTrue;
+
+import Message.Class;
+import Message.DomainName;
+import Message.Query;
+import Message.Type;
+
+/**
+ * This tests that keys match every spelling of a name, that a key can't be
+ * made for a type Type doesn't know, and that the hash is built from the
+ * wire values so it means the same thing in every build
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class CacheKeyTest {
+    public void testMatchesAnySpelling() {
+        CacheKey lower = new CacheKey("www.example.com.", Type.A, Class.IN);
+        CacheKey mixed = new CacheKey("WWW.Example.Com", Type.A, Class.IN);
+        assertEquals("keys", lower, mixed);
+        assertEquals("hashes", lower.hashCode(), mixed.hashCode());
+    }
+
+    public void testTellsTypesApart() {
+        assertTrue("A and MX keys differ", !new CacheKey("example.com", Type.A, Class.IN)
+                .equals(new CacheKey("example.com", Type.MX, Class.IN)));
+    }
+
+    public void testHashesWireValues() {
+        DomainName name = DomainName.of("example.com");
+        int expected = (name.hashCode() * 31 + 15) * 31 + 1;
+        assertEquals("hash of example.com MX IN", expected,
+                new CacheKey(name, Type.MX, Class.IN).hashCode());
+    }
+
+    public void testRejectsUnknownType() {
+        Query question = new Query("example.com.", Type.parseType(28), Class.IN);
+        assertThrows(IllegalArgumentException.class, () -> new CacheKey(question));
+    }
+
+    public void testRejectsEmptyLabel() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new CacheKey("www..example.com.", Type.A, Class.IN));
+    }
+}
@@ -0,0 +1,91 @@
+package Cache;
+
+import static Testing.Assert.assertEquals;
+import static Testing.Assert.assertTrue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This tests that the snapshotter keeps failures rather than throwing them,
+ * carries on with its periodic snapshots after any failure, and writes its
+ * last snapshot once however often it is closed
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class CacheSnapshotterTest implements Closeable {
+    /** This is how long to wait for a periodic snapshot before the test fails */
+    private static final long TIMEOUT_MILLIS = 2000;
+
+    /** This is the snapshot file, deleted after the test */
+    private final Path file;
+
+    /**
+     * This constructor makes the snapshot file
+     *
+     * @throws IOException when the file can't be made
+     */
+    public CacheSnapshotterTest() throws IOException {
+        file = Files.createTempFile("CacheSnapshotterTest", ".snapshot");
+    }
+
+    public void testWritesLastSnapshotOnceWhenClosedTwice() {
+        CacheSnapshotter snapshotter = new CacheSnapshotter(new OffHeapAnswerCache(0), file,
+                CacheSnapshotter.DEFAULT_INTERVAL_MILLIS);
+        snapshotter.close();
+        snapshotter.close();
+        assertEquals("snapshots", 1, snapshotter.getSnapshots());
+    }
+
+    public void testKeepsWriteFailure() {
+        Path missing = file.resolveSibling("missing").resolve("cache.snapshot");
+        CacheSnapshotter snapshotter = new CacheSnapshotter(new OffHeapAnswerCache(0), missing,
+                CacheSnapshotter.DEFAULT_INTERVAL_MILLIS);
+        try {
+            assertTrue("written", !snapshotter.snapshot());
+            assertTrue("failure: " + snapshotter.getLastFailure(),
+                    snapshotter.getLastFailure() instanceof IOException);
+        } finally {
+            snapshotter.close();
+        }
+    }
+
+    public void testCarriesOnAfterUncheckedFailure() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        OffHeapAnswerCache cache = new OffHeapAnswerCache(0) {
+            @Override
+            public void writeSnapshot(Path snapshot) throws IOException {
+                if (attempts.incrementAndGet() == 1) {
+                    throw new IllegalStateException("Failed once");
+                }
+                super.writeSnapshot(snapshot);
+            }
+        };
+        CacheSnapshotter snapshotter = new CacheSnapshotter(cache, file, 10);
+        try {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (snapshotter.getSnapshots() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertTrue("snapshot after the failure", snapshotter.getSnapshots() > 0);
+            assertTrue("attempts " + attempts.get(), attempts.get() >= 2);
+            assertEquals("failure cleared", null, snapshotter.getLastFailure());
+        } finally {
+            snapshotter.close();
+        }
+    }
+
+    /**
+     * This method deletes the snapshot file and the one it was written next to
+     *
+     * @throws IOException when a file can't be deleted
+     */
+    public void close() throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".tmp"));
+    }
+}
@@ -0,0 +1,419 @@
+package Cache;
+
+import static Testing.Assert.assertEquals;
+import static Testing.Assert.assertThrows;
+import static Testing.Assert.assertTrue;
+
+import Message.Class;
+import Message.Header;
+import Message.Message;
+import Message.Query;
+import Message.ResourceRecord;
+import Message.Type;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This tests the off-heap cache: entries coming back as they went in,
+ * replaced and dropped records when their buffer is reused, rebuilding an
+ * index full of removed slots, serving expired entries only as long as the
+ * cache keeps them stale, and snapshots that load back what was written,
+ * leaving out records no key points to and refusing files they can't use
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class OffHeapAnswerCacheTest implements Closeable {
+    /** This is the size of each buffer in the smallest cache, in bytes */
+    private static final long SEGMENT_SIZE = 64 * 1024;
+
+    /** These are the names of the filler entries put so far */
+    private final List<String> fillers = new ArrayList<String>();
+
+    /** This is the number of the next filler name to try */
+    private int nextFiller;
+
+    /** This is the snapshot file the test wrote, deleted after it */
+    private Path snapshot;
+
+    public void testReturnsWhatWasPut() {
+        OffHeapAnswerCache cache = new OffHeapAnswerCache(0);
+        Query question = new Query("www.example.com.", Type.A, Class.IN);
+        CacheEntry entry = cache.put(question, response(question,
+                record("www.example.com.", 300, "192.0.2.1"),
+                record("www.example.com.", 60, "192.0.2.2")));
+        assertSame(entry, cache.get(new CacheKey(question)));
+        assertSame(entry, cache.get(new CacheKey("WWW.EXAMPLE.COM.", Type.A, Class.IN)));
+        CacheKey missing = new CacheKey("missing.example.com.", Type.A, Class.IN);
+        ArrayList<ResourceRecord> authority = new ArrayList<ResourceRecord>();
+        authority.add(new ResourceRecord("example.com.", Type.SOA, Class.IN, 300,
+                "ns.example.com. admin.example.com. 1 7200 3600 1209600 60"));
+        CacheEntry negative = new CacheEntry(missing, new ArrayList<ResourceRecord>(), authority,
+                Header.NAME_ERROR, System.currentTimeMillis() + 60000);
+        cache.put(negative);
+        assertSame(negative, cache.get(missing));
+        assertEquals("size", 2, cache.size());
+        cache.remove(missing);
+        assertEquals("removed", null, cache.get(missing));
+        assertEquals("size after removing", 1, cache.size());
+    }
+
+    public void testReplacementSurvivesRecyclingOfOldCopy() {
+        OffHeapAnswerCache cache = new OffHeapAnswerCache(0);
+        CacheKey key = new CacheKey("www.example.com.", Type.A, Class.IN);
+        int stripe = OffHeapAnswerCache.stripeOf(key.hashCode());
+        cache.put(entry(key, "192.0.2.1", 60000));
+        //The replacement goes in as the second buffer is started, the old copy stays in the first
+        fillUntilAllocated(cache, stripe, 2 * SEGMENT_SIZE);
+        cache.put(entry(key, "192.0.2.2", 60000));
+        fillUntilAllocated(cache, stripe, 8 * SEGMENT_SIZE);
+        fillUntilRecycled(cache, stripe);
+        CacheEntry replaced = cache.get(key);
+        assertTrue("replacement kept when the first buffer is reused", replaced != null);
+        assertEquals("replacement's address", "192.0.2.2",
+                replaced.getRecords().get(0).getResourceData());
+        assertConsistent(cache, 1);
+        fillUntilRecycled(cache, stripe);
+        assertEquals("dropped when its own buffer is reused", null, cache.get(key));
+        assertConsistent(cache, 0);
+    }
+
+    public void testRebuildsIndexFullOfRemovedSlots() {
+        OffHeapAnswerCache cache = new OffHeapAnswerCache(0);
+        List<String> previous = new ArrayList<String>();
+        //1500 removed slots are well past the three quarters of 1024 that forces a rebuild
+        for (int round = 0; round < 6; round++) {
+            List<String> current = new ArrayList<String>();
+            for (int i = 0; i < 300; i++) {
+                String name = nextFiller(0);
+                cache.put(entry(new CacheKey(name, Type.A, Class.IN), "192.0.2.1", 60000));
+                current.add(name);
+            }
+            for (String name : previous) {
+                cache.remove(new CacheKey(name, Type.A, Class.IN));
+            }
+            previous = current;
+        }
+        assertEquals("size", 300, cache.size());
+        assertConsistent(cache, 0);
+        for (String name : previous) {
+            CacheEntry entry = cache.get(new CacheKey(name, Type.A, Class.IN));
+            assertEquals("record found for " + name, name,
+                    entry.getRecords().get(0).getName());
+        }
+        String removed = fillers.get(0);
+        cache.put(entry(new CacheKey(removed, Type.A, Class.IN), "192.0.2.2", 60000));
+        assertTrue("removed key put back",
+                cache.get(new CacheKey(removed, Type.A, Class.IN)) != null);
+        assertEquals("size after putting it back", 301, cache.size());
+    }
+
+    public void testServesExpiredEntryWhileStale() {
+        OffHeapAnswerCache cache = new OffHeapAnswerCache(0, 60);
+        CacheKey key = new CacheKey("www.example.com.", Type.A, Class.IN);
+        cache.put(entry(key, "192.0.2.1", -1000));
+        assertEquals("expired entry", null, cache.get(key));
+        CacheEntry stale = cache.getStale(key);
+        assertTrue("stale entry", stale != null);
+        assertTrue("expired", stale.isExpired(System.currentTimeMillis()));
+        assertEquals("kept while stale", 1, cache.size());
+        cache.put(entry(key, "192.0.2.1", -61000));
+        assertEquals("too stale to serve", null, cache.getStale(key));
+        assertEquals("dropped once too stale", 0, cache.size());
+    }
+
+    public void testDropsExpiredEntryWithoutStaleWindow() {
+        OffHeapAnswerCache cache = new OffHeapAnswerCache(0);
+        CacheKey key = new CacheKey("www.example.com.", Type.A, Class.IN);
+        cache.put(entry(key, "192.0.2.1", -1));
+        assertEquals("stale entry", null, cache.getStale(key));
+        assertEquals("dropped", 0, cache.size());
+    }
+
+    public void testLoadsSnapshot() throws IOException {
+        OffHeapAnswerCache cache = new OffHeapAnswerCache(0, 60);
+        List<CacheEntry> entries = new ArrayList<CacheEntry>();
+        for (int i = 0; i < 100; i++) {
+            CacheEntry entry = entry(new CacheKey("name" + i + ".example.com.", Type.A,
+                    Class.IN), "192.0.2." + i, 60000);
+            cache.put(entry);
+            entries.add(entry);
+        }
+        CacheKey stale = new CacheKey("stale.example.com.", Type.A, Class.IN);
+        cache.put(entry(stale, "192.0.2.200", -1000));
+        cache.writeSnapshot(snapshot());
+        OffHeapAnswerCache loaded = new OffHeapAnswerCache(0, 60);
+        assertEquals("entries loaded", 101, loaded.loadSnapshot(snapshot()));
+        assertEquals("size", 101, loaded.size());
+        for (CacheEntry entry : entries) {
+            assertSame(entry, loaded.get(entry.getKey()));
+        }
+        assertEquals("expired entry", null, loaded.get(stale));
+        assertTrue("still served stale", loaded.getStale(stale) != null);
+        CacheKey added = new CacheKey("added.example.com.", Type.A, Class.IN);
+        loaded.put(entry(added, "192.0.2.201", 60000));
+        assertTrue("stores after loading", loaded.get(added) != null);
+        assertEquals("snapshot left as it was", 101,
+                new OffHeapAnswerCache(0, 60).loadSnapshot(snapshot()));
+    }
+
+    public void testLeavesOutRecordsNoKeyPointsTo() throws IOException {
+        OffHeapAnswerCache cache = new OffHeapAnswerCache(0);
+        CacheKey replaced = new CacheKey("replaced.example.com.", Type.A, Class.IN);
+        CacheKey removed = new CacheKey("removed.example.com.", Type.A, Class.IN);
+        cache.put(entry(replaced, "192.0.2.1", 60000));
+        cache.put(entry(replaced, "192.0.2.2", 60000));
+        cache.put(entry(removed, "192.0.2.3", 60000));
+        cache.remove(removed);
+        cache.writeSnapshot(snapshot());
+        OffHeapAnswerCache loaded = new OffHeapAnswerCache(0);
+        assertEquals("entries loaded", 1, loaded.loadSnapshot(snapshot()));
+        assertEquals("size", 1, loaded.size());
+        assertEquals("replacement's address", "192.0.2.2",
+                loaded.get(replaced).getRecords().get(0).getResourceData());
+        assertEquals("removed entry", null, loaded.get(removed));
+    }
+
+    public void testLeavesOutEntriesTooStaleToServe() throws IOException {
+        OffHeapAnswerCache cache = new OffHeapAnswerCache(0, 60);
+        cache.put(entry(new CacheKey("stale.example.com.", Type.A, Class.IN), "192.0.2.1",
+                -1000));
+        cache.writeSnapshot(snapshot());
+        assertEquals("loaded without a stale window", 0,
+                new OffHeapAnswerCache(0).loadSnapshot(snapshot()));
+    }
+
+    public void testRejectsOtherVersion() throws IOException {
+        writeSnapshotOf("www.example.com.");
+        try (FileChannel channel = FileChannel.open(snapshot(), StandardOpenOption.WRITE)) {
+            ByteBuffer version = ByteBuffer.allocate(4);
+            version.putInt(0, OffHeapAnswerCache.SNAPSHOT_VERSION + 1);
+            channel.write(version, 4);
+        }
+        assertRejected("version");
+    }
+
+    public void testRejectsOtherCapacity() throws IOException {
+        writeSnapshotOf("www.example.com.");
+        OffHeapAnswerCache larger =
+                new OffHeapAnswerCache(OffHeapAnswerCache.DEFAULT_CAPACITY_BYTES);
+        IOException e = assertThrows(IOException.class, () -> larger.loadSnapshot(snapshot()));
+        assertTrue("reported: " + e.getMessage(), e.getMessage().contains("capacity"));
+        assertEquals("size", 0, larger.size());
+    }
+
+    public void testRejectsTruncatedSnapshot() throws IOException {
+        writeSnapshotOf("www.example.com.");
+        try (FileChannel channel = FileChannel.open(snapshot(), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() / 2);
+        }
+        assertRejected("truncated");
+        try (FileChannel channel = FileChannel.open(snapshot(), StandardOpenOption.WRITE)) {
+            channel.truncate(100);
+        }
+        assertRejected("truncated");
+    }
+
+    /**
+     * This method deletes the snapshot file and the one it was written next to
+     *
+     * @throws IOException when a file can't be deleted
+     */
+    public void close() throws IOException {
+        if (snapshot != null) {
+            Files.deleteIfExists(snapshot);
+            Files.deleteIfExists(snapshot.resolveSibling(snapshot.getFileName() + ".tmp"));
+        }
+    }
+
+    /**
+     * This method returns the snapshot file, making it the first time
+     *
+     * @return the file
+     *
+     * @throws IOException when the file can't be made
+     */
+    private Path snapshot() throws IOException {
+        if (snapshot == null) {
+            snapshot = Files.createTempFile("OffHeapAnswerCacheTest", ".snapshot");
+        }
+        return snapshot;
+    }
+
+    /**
+     * This method writes a snapshot of a cache holding one entry
+     *
+     * @param name the name the entry answers
+     *
+     * @throws IOException when the snapshot can't be written
+     */
+    private void writeSnapshotOf(String name) throws IOException {
+        OffHeapAnswerCache cache = new OffHeapAnswerCache(0);
+        cache.put(entry(new CacheKey(name, Type.A, Class.IN), "192.0.2.1", 60000));
+        cache.writeSnapshot(snapshot());
+    }
+
+    /**
+     * This method checks that loading the snapshot fails with a message
+     * saying why and leaves the cache's own entries alone
+     *
+     * @param reason what the message should say
+     *
+     * @throws IOException when the snapshot file can't be found
+     */
+    private void assertRejected(String reason) throws IOException {
+        OffHeapAnswerCache cache = new OffHeapAnswerCache(0);
+        CacheKey own = new CacheKey("own.example.com.", Type.A, Class.IN);
+        cache.put(entry(own, "192.0.2.9", 60000));
+        Path file = snapshot();
+        IOException e = assertThrows(IOException.class, () -> cache.loadSnapshot(file));
+        assertTrue("reported: " + e.getMessage(), e.getMessage().contains(reason));
+        assertTrue("own entry kept", cache.get(own) != null);
+        assertEquals("size", 1, cache.size());
+    }
+
+    /**
+     * This method checks that an entry read back matches the one put
+     *
+     * @param expected the entry that was put
+     * @param actual the entry read back
+     */
+    private static void assertSame(CacheEntry expected, CacheEntry actual) {
+        assertTrue("found " + expected.getKey(), actual != null);
+        assertEquals("return code", expected.getReturnCode(), actual.getReturnCode());
+        assertEquals("created at", expected.getCreatedAt(), actual.getCreatedAt());
+        assertEquals("expires at", expected.getExpiresAt(), actual.getExpiresAt());
+        assertEquals("answers", expected.getRecords().toString(),
+                actual.getRecords().toString());
+        assertEquals("authority", expected.getAuthorityRecords().toString(),
+                actual.getAuthorityRecords().toString());
+    }
+
+    /**
+     * This method checks that the cache counts exactly the filler entries
+     * it still returns, plus some others
+     *
+     * @param cache the cache to check
+     * @param others how many entries besides the fillers are held
+     */
+    private void assertConsistent(OffHeapAnswerCache cache, int others) {
+        int found = 0;
+        for (String name : fillers) {
+            if (cache.get(new CacheKey(name, Type.A, Class.IN)) != null) {
+                found++;
+            }
+        }
+        assertEquals("size matches the entries found", found + others, cache.size());
+    }
+
+    /**
+     * This method puts fillers into a stripe until the cache has taken a
+     * number of bytes of buffers
+     *
+     * @param cache the cache to fill
+     * @param stripe the stripe to fill
+     * @param bytes the bytes of buffers to stop at
+     */
+    private void fillUntilAllocated(OffHeapAnswerCache cache, int stripe, long bytes) {
+        while (cache.getAllocatedBytes() < bytes) {
+            fill(cache, stripe);
+        }
+    }
+
+    /**
+     * This method puts fillers into a stripe until one of them reuses a
+     * buffer, which drops the entries in it
+     *
+     * @param cache the cache to fill
+     * @param stripe the stripe to fill
+     */
+    private void fillUntilRecycled(OffHeapAnswerCache cache, int stripe) {
+        int size;
+        do {
+            size = cache.size();
+            fill(cache, stripe);
+        } while (cache.size() == size + 1);
+    }
+
+    /**
+     * This method puts one filler into a stripe
+     *
+     * @param cache the cache to fill
+     * @param stripe the stripe to fill
+     */
+    private void fill(OffHeapAnswerCache cache, int stripe) {
+        cache.put(entry(new CacheKey(nextFiller(stripe), Type.A, Class.IN), "192.0.2.1",
+                60000));
+    }
+
+    /**
+     * This method picks the next filler name whose key falls in a stripe
+     *
+     * @param stripe the stripe
+     * @return the name
+     */
+    private String nextFiller(int stripe) {
+        while (true) {
+            String name = "filler" + nextFiller++ + ".example.com.";
+            CacheKey key = new CacheKey(name, Type.A, Class.IN);
+            if (OffHeapAnswerCache.stripeOf(key.hashCode()) == stripe) {
+                fillers.add(name);
+                return name;
+            }
+        }
+    }
+
+    /**
+     * This method makes an entry with one address
+     *
+     * @param key the key of the entry
+     * @param address the address
+     * @param expiresIn how long from now the entry expires in milliseconds
+     * @return the entry
+     */
+    private static CacheEntry entry(CacheKey key, String address, long expiresIn) {
+        ArrayList<ResourceRecord> records = new ArrayList<ResourceRecord>();
+        records.add(record(key.getName().toString(), 60, address));
+        return new CacheEntry(key, records, new ArrayList<ResourceRecord>(), Header.NO_ERROR,
+                System.currentTimeMillis() + expiresIn);
+    }
+
+    /**
+     * This method builds a successful response
+     *
+     * @param question the question answered
+     * @param answers the answers
+     * @return the response
+     */
+    private static Message response(Query question, ResourceRecord... answers) {
+        ArrayList<Query> questions = new ArrayList<Query>(1);
+        questions.add(question);
+        ArrayList<ResourceRecord> answerList = new ArrayList<ResourceRecord>();
+        for (ResourceRecord answer : answers) {
+            answerList.add(answer);
+        }
+        Header header = new Header(true, 0, false, false, true, true, 0, Header.NO_ERROR, 1,
+                answerList.size(), 0, 0);
+        return new Message(header, questions, answerList, new ArrayList<ResourceRecord>(),
+                new ArrayList<ResourceRecord>());
+    }
+
+    /**
+     * This method makes an address record
+     *
+     * @param name the owner
+     * @param ttl the TTL in seconds
+     * @param address the address
+     * @return the record
+     */
+    private static ResourceRecord record(String name, long ttl, String address) {
+        return new ResourceRecord(name, Type.A, Class.IN, ttl, address);
+    }
+}
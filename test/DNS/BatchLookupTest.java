@@ -0,0 +1,204 @@
+package DNS;
+
+import static Testing.Assert.assertEquals;
+import static Testing.Assert.assertThrows;
+import static Testing.Assert.assertTrue;
+
+import Message.Class;
+import Message.Header;
+import Message.Message;
+import Message.Query;
+import Message.ResourceRecord;
+import Message.Type;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This tests batch runs against a resolver that answers after a delay, so
+ * the window of queries in flight and the summary can be checked without
+ * a network
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class BatchLookupTest implements Closeable {
+    /** This is how long the resolver takes to answer, in milliseconds */
+    private static final long DELAY_MILLIS = 20;
+
+    /** This is the thread the resolver answers on */
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+    /** This is how many queries are in flight */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /** This is the most queries that were ever in flight at once */
+    private final AtomicInteger mostInFlight = new AtomicInteger();
+
+    /** These are the questions the resolver was asked, in order */
+    private final List<Query> asked = new ArrayList<Query>();
+
+    /**
+     * This is a resolver that answers every question with one address after
+     * a delay, and fails questions about names starting with fail
+     */
+    private final Resolver resolver = question -> {
+        synchronized (asked) {
+            asked.add(question);
+        }
+        mostInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        CompletableFuture<Message> future = new CompletableFuture<Message>();
+        timer.schedule(() -> {
+            inFlight.decrementAndGet();
+            if (question.getName().startsWith("fail")) {
+                future.completeExceptionally(new IOException("Timed out"));
+            } else {
+                future.complete(answer(question));
+            }
+        }, DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        return future;
+    };
+
+    public void testKeepsWindowOfQueriesInFlight() throws Exception {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            input.append("name").append(i).append(".example.com\n");
+        }
+        String summary = run(input.toString(), 4, new StringWriter());
+        assertEquals("most in flight", 4, mostInFlight.get());
+        assertEquals("in flight after the run", 0, inFlight.get());
+        assertTrue("summary " + summary, summary.startsWith("Sent: 20 Answered: 20 Failed: 0"));
+    }
+
+    public void testWritesEachResult() throws Exception {
+        StringWriter out = new StringWriter();
+        run("# a comment\n\nwww.example.com\nexample.com MX\nfail.example.com\n", 2, out);
+        List<String> lines = lines(out);
+        assertEquals("lines written", 3, lines.size());
+        assertTrue("A answer", lines.contains("www.example.com A 0 192.0.2.1"));
+        assertTrue("MX answer", lines.contains("example.com MX 0"));
+        assertTrue("failure", lines.contains("fail.example.com A ERROR Timed out"));
+    }
+
+    public void testRejectsUnknownType() throws Exception {
+        StringWriter out = new StringWriter();
+        String summary = run("example.com AAAA\nexample.com txt\nexample.com mx\n", 2, out);
+        assertEquals("questions asked", 1, asked.size());
+        assertEquals("type asked", Type.MX, asked.get(0).getType());
+        assertTrue("AAAA flagged",
+                lines(out).contains("example.com AAAA ERROR Unknown type AAAA"));
+        assertTrue("summary " + summary,
+                summary.startsWith("Sent: 1 Answered: 1 Failed: 0 Rejected: 2 "));
+    }
+
+    public void testSummarizesLatency() throws Exception {
+        String summary = run("a.example.com\nb.example.com\nfail.example.com\n", 3,
+                new StringWriter());
+        Matcher matcher = Pattern.compile(
+                "Throughput: ([0-9.]+) qps p50: ([0-9.]+)ms p99: ([0-9.]+)ms").matcher(summary);
+        assertTrue("summary " + summary, matcher.find());
+        double p50 = Double.parseDouble(matcher.group(2));
+        double p99 = Double.parseDouble(matcher.group(3));
+        assertTrue("p50 of " + p50 + "ms includes the delay", p50 >= DELAY_MILLIS);
+        assertTrue("p99 of " + p99 + "ms is at least p50", p99 >= p50);
+        //Both answers arrive in about one delay, so the rate can't be more than two per delay
+        assertTrue("throughput " + matcher.group(1),
+                Double.parseDouble(matcher.group(1)) <= 2 * 1000.0 / DELAY_MILLIS);
+        assertTrue("summary " + summary, summary.startsWith("Sent: 3 Answered: 2 Failed: 1"));
+    }
+
+    public void testPicksPercentiles() {
+        long[] sorted = new long[100];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = i + 1;
+        }
+        assertEquals("p50", 50L, BatchLookup.percentile(sorted, 0.50));
+        assertEquals("p99", 99L, BatchLookup.percentile(sorted, 0.99));
+        assertEquals("p100", 100L, BatchLookup.percentile(sorted, 1.0));
+        assertEquals("p50 of one", 7L, BatchLookup.percentile(new long[] {7}, 0.50));
+        assertEquals("p99 of none", 0L, BatchLookup.percentile(new long[0], 0.99));
+    }
+
+    public void testParsesLine() {
+        Query query = BatchLookup.parseLine("  example.com   ns ", Type.A);
+        assertEquals("name", "example.com", query.getName());
+        assertEquals("type", Type.NS, query.getType());
+        assertEquals("default type", Type.MX, BatchLookup.parseLine("example.com", Type.MX)
+                .getType());
+        assertEquals("comment", null, BatchLookup.parseLine("# example.com", Type.A));
+        assertEquals("blank", null, BatchLookup.parseLine("   ", Type.A));
+        assertThrows(IllegalArgumentException.class,
+                () -> BatchLookup.parseLine("example.com OPT", Type.A));
+    }
+
+    /**
+     * This method stops the resolver's thread
+     */
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * This method runs a batch
+     *
+     * @param input the lines to read
+     * @param concurrency the most queries to keep in flight
+     * @param out where the results go
+     * @return the summary
+     *
+     * @throws Exception when the run fails
+     */
+    private String run(String input, int concurrency, StringWriter out) throws Exception {
+        return new BatchLookup(resolver, Type.A, concurrency, new PrintWriter(out))
+                .run(new BufferedReader(new StringReader(input)));
+    }
+
+    /**
+     * This method splits what a run wrote into lines
+     *
+     * @param out what the run wrote
+     * @return the lines
+     */
+    private static List<String> lines(StringWriter out) {
+        List<String> lines = new ArrayList<String>();
+        for (String line : out.toString().split("\\R")) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * This method builds an answer with one address for A questions and
+     * nothing for any other type
+     *
+     * @param question the question
+     * @return the answer
+     */
+    private static Message answer(Query question) {
+        ArrayList<Query> questions = new ArrayList<Query>(1);
+        questions.add(question);
+        ArrayList<ResourceRecord> answers = new ArrayList<ResourceRecord>();
+        if (question.getType() == Type.A) {
+            answers.add(new ResourceRecord(question.getName(), Type.A, Class.IN, 300,
+                    "192.0.2.1"));
+        }
+        Header header = new Header(true, 0, false, false, true, true, 0, Header.NO_ERROR, 1,
+                answers.size(), 0, 0);
+        return new Message(header, questions, answers, new ArrayList<ResourceRecord>(),
+                new ArrayList<ResourceRecord>());
+    }
+}
@@ -0,0 +1,338 @@
+package DNS;
+
+import static Testing.Assert.assertEquals;
+import static Testing.Assert.assertThrows;
+import static Testing.Assert.assertTrue;
+
+import Cache.AnswerCache;
+import Cache.CacheEntry;
+import Cache.CacheKey;
+import Message.Class;
+import Message.Header;
+import Message.Message;
+import Message.Query;
+import Message.ResourceRecord;
+import Message.Type;
+import Metrics.QueryMetrics;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This tests answering from the cache in front of an upstream whose answers
+ * the test completes by hand, so a slow or failing upstream can be played
+ * out step by step, both for refreshing hot entries and for serving expired
+ * ones stale
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class CachingResolverTest {
+    /** This is how long to wait for an answer before the test fails */
+    private static final long TIMEOUT_MILLIS = 2000;
+
+    /** This is the question every test asks */
+    private static final Query QUESTION = new Query("www.example.com.", Type.A, Class.IN);
+
+    /** This is the key the question is cached under */
+    private static final CacheKey KEY = new CacheKey(QUESTION);
+
+    /** These are the answers handed out by the upstream, in order */
+    private final List<CompletableFuture<Message>> pending =
+            new ArrayList<CompletableFuture<Message>>();
+
+    /** This is an upstream that never answers until the test says so */
+    private final Resolver upstream = question -> {
+        CompletableFuture<Message> future = new CompletableFuture<Message>();
+        synchronized (pending) {
+            pending.add(future);
+        }
+        return future;
+    };
+
+    /** This is the cache the resolver answers from */
+    private final AnswerCache cache = new AnswerCache(100);
+
+    /** This is a cache that keeps expired entries, for serving them stale */
+    private final AnswerCache staleCache = new AnswerCache(100, AnswerCache.DEFAULT_MAX_STALE);
+
+    public void testAnswersHitWithoutAskingUpstream() throws Exception {
+        cache.put(entry(System.currentTimeMillis() + 60000, "192.0.2.1"));
+        CachingResolver resolver = new CachingResolver(upstream, cache);
+        Message response = resolve(resolver);
+        assertEquals("address", "192.0.2.1", address(response));
+        assertEquals("upstream queries", 0, asked());
+    }
+
+    public void testAsksUpstreamOnMissAndCaches() throws Exception {
+        CachingResolver resolver = new CachingResolver(upstream, cache);
+        CompletableFuture<Message> first = resolver.resolve(QUESTION);
+        pending.get(0).complete(answer(300, "192.0.2.7"));
+        assertEquals("first answer", "192.0.2.7", address(first.get(TIMEOUT_MILLIS,
+                TimeUnit.MILLISECONDS)));
+        assertEquals("second answer", "192.0.2.7", address(resolve(resolver)));
+        assertEquals("upstream queries", 1, asked());
+    }
+
+    public void testRefreshesHotEntryWhileServingIt() throws Exception {
+        cache.put(entry(System.currentTimeMillis() + 60000, "192.0.2.1"));
+        //Every entry is due a refresh at once, so only the hits decide
+        CachingResolver resolver = new CachingResolver(upstream, cache, 1.0, 2);
+        resolve(resolver);
+        assertEquals("upstream queries after one hit", 0, asked());
+        assertEquals("second hit still served", "192.0.2.1", address(resolve(resolver)));
+        assertEquals("upstream queries after two hits", 1, asked());
+        assertEquals("refreshes", 1L, resolver.getRefreshes());
+        pending.get(0).complete(answer(300, "192.0.2.2"));
+        assertEquals("refreshed answer", "192.0.2.2", address(resolve(resolver)));
+    }
+
+    public void testStartsOneRefreshForConcurrentHits() throws Exception {
+        CacheEntry entry = entry(System.currentTimeMillis() + 60000, "192.0.2.1");
+        cache.put(entry);
+        CachingResolver resolver = new CachingResolver(upstream, cache, 1.0, 1);
+        int callers = 16;
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < callers; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    go.await();
+                    resolver.resolve(QUESTION);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("upstream queries", 1, asked());
+        assertEquals("refreshes", 1L, resolver.getRefreshes());
+        assertEquals("hits", callers, entry.getHits());
+    }
+
+    public void testDoesNotRefreshBeforeLastPartOfTtl() throws Exception {
+        cache.put(entry(System.currentTimeMillis() + 60000, "192.0.2.1"));
+        CachingResolver resolver = new CachingResolver(upstream, cache,
+                CachingResolver.DEFAULT_REFRESH_FRACTION, 1);
+        for (int i = 0; i < 5; i++) {
+            resolve(resolver);
+        }
+        assertEquals("upstream queries", 0, asked());
+    }
+
+    public void testFailedRefreshKeepsServingEntry() throws Exception {
+        CacheEntry entry = entry(System.currentTimeMillis() + 60000, "192.0.2.1");
+        cache.put(entry);
+        CachingResolver resolver = new CachingResolver(upstream, cache, 1.0, 1);
+        resolve(resolver);
+        pending.get(0).completeExceptionally(new IOException("Timed out"));
+        assertTrue("failure noted", entry.getRefreshFailedAt() > 0);
+        assertEquals("old answer", "192.0.2.1", address(resolve(resolver)));
+        assertEquals("no second refresh", 1, asked());
+    }
+
+    public void testServerFailureDoesNotReplaceEntry() throws Exception {
+        cache.put(entry(System.currentTimeMillis() + 60000, "192.0.2.1"));
+        CachingResolver resolver = new CachingResolver(upstream, cache, 1.0, 1);
+        resolve(resolver);
+        pending.get(0).complete(ScriptedServer.reply(new Message(QUESTION.getName(),
+                Type.A, Class.IN, true), Header.SERVER_FAILURE,
+                new ArrayList<ResourceRecord>()));
+        assertEquals("old answer", "192.0.2.1", address(resolve(resolver)));
+    }
+
+    public void testServesStaleWhenUpstreamIsSlow() throws Exception {
+        staleCache.put(entry(System.currentTimeMillis() - 1000, "192.0.2.1"));
+        CachingResolver resolver = new CachingResolver(upstream, staleCache, 0.1, 2, 100);
+        long start = System.nanoTime();
+        Message response = resolve(resolver);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("stale", response.isStale());
+        assertEquals("old address", "192.0.2.1", address(response));
+        assertTrue("waited " + elapsedMillis + "ms for upstream", elapsedMillis >= 90);
+        //The timer thread counts the stale answer just after handing it over
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (resolver.getStaleAnswers() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals("stale answers", 1L, resolver.getStaleAnswers());
+        assertEquals("upstream queries", 1, asked());
+        //The late answer is still cached for the next question
+        pending.get(0).complete(answer(300, "192.0.2.9"));
+        Message fresh = resolve(resolver);
+        assertTrue("fresh", !fresh.isStale());
+        assertEquals("new address", "192.0.2.9", address(fresh));
+        assertEquals("upstream queries after", 1, asked());
+    }
+
+    public void testAnswersFreshWhenUpstreamIsInTime() throws Exception {
+        staleCache.put(entry(System.currentTimeMillis() - 1000, "192.0.2.1"));
+        CachingResolver resolver = new CachingResolver(upstream, staleCache, 0.1, 2, 5000);
+        CompletableFuture<Message> future = resolver.resolve(QUESTION);
+        assertTrue("waiting on upstream", !future.isDone());
+        pending.get(0).complete(answer(300, "192.0.2.9"));
+        Message response = future.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertTrue("fresh", !response.isStale());
+        assertEquals("new address", "192.0.2.9", address(response));
+        assertEquals("stale answers", 0L, resolver.getStaleAnswers());
+    }
+
+    public void testServesStaleAtOnceWhenUpstreamFails() {
+        staleCache.put(entry(System.currentTimeMillis() - 1000, "192.0.2.1"));
+        CachingResolver resolver = new CachingResolver(upstream, staleCache, 0.1, 2, 5000);
+        CompletableFuture<Message> future = resolver.resolve(QUESTION);
+        pending.get(0).completeExceptionally(new IOException("Timed out"));
+        assertTrue("answered without waiting out the timeout", future.isDone());
+        assertTrue("stale", future.join().isStale());
+    }
+
+    public void testServesStaleForServerFailure() {
+        staleCache.put(entry(System.currentTimeMillis() - 1000, "192.0.2.1"));
+        CachingResolver resolver = new CachingResolver(upstream, staleCache, 0.1, 2, 5000);
+        CompletableFuture<Message> future = resolver.resolve(QUESTION);
+        pending.get(0).complete(ScriptedServer.reply(new Message(QUESTION.getName(),
+                Type.A, Class.IN, true), Header.SERVER_FAILURE,
+                new ArrayList<ResourceRecord>()));
+        assertTrue("stale", future.join().isStale());
+        assertEquals("old address", "192.0.2.1", address(future.join()));
+    }
+
+    public void testServesStaleWithoutAskingAfterFailure() throws Exception {
+        staleCache.put(entry(System.currentTimeMillis() - 1000, "192.0.2.1"));
+        CachingResolver resolver = new CachingResolver(upstream, staleCache, 0.1, 2, 5000);
+        resolver.resolve(QUESTION);
+        pending.get(0).completeExceptionally(new IOException("Timed out"));
+        CompletableFuture<Message> second = resolver.resolve(QUESTION);
+        assertTrue("answered at once", second.isDone());
+        assertTrue("stale", second.join().isStale());
+        assertEquals("upstream queries", 1, asked());
+        assertEquals("stale answers", 2L, resolver.getStaleAnswers());
+    }
+
+    public void testCapsStaleTtl() throws Exception {
+        ArrayList<ResourceRecord> records = new ArrayList<ResourceRecord>();
+        records.add(new ResourceRecord(QUESTION.getName(), Type.A, Class.IN, 300, "192.0.2.1"));
+        records.add(new ResourceRecord(QUESTION.getName(), Type.A, Class.IN, 10, "192.0.2.2"));
+        staleCache.put(new CacheEntry(KEY, records, new ArrayList<ResourceRecord>(),
+                Header.NO_ERROR, System.currentTimeMillis() - 1000));
+        CachingResolver resolver = new CachingResolver(upstream, staleCache, 0.1, 2, 0);
+        List<ResourceRecord> answers = resolve(resolver).getAnswerResourceRecords();
+        assertEquals("long TTL capped", 30L, answers.get(0).getTtl());
+        assertEquals("short TTL kept", 10L, answers.get(1).getTtl());
+    }
+
+    public void testServesStaleAtOnceWithZeroTimeout() throws Exception {
+        staleCache.put(entry(System.currentTimeMillis() - 1000, "192.0.2.1"));
+        CachingResolver resolver = new CachingResolver(upstream, staleCache, 0.1, 2, 0);
+        CompletableFuture<Message> future = resolver.resolve(QUESTION);
+        assertTrue("answered at once", future.isDone());
+        assertTrue("stale", future.join().isStale());
+        assertEquals("still asked upstream", 1, asked());
+        pending.get(0).complete(answer(300, "192.0.2.9"));
+        assertEquals("new address cached", "192.0.2.9", address(resolve(resolver)));
+    }
+
+    public void testDoesNotServeStaleWhenOff() {
+        staleCache.put(entry(System.currentTimeMillis() - 1000, "192.0.2.1"));
+        CachingResolver resolver = new CachingResolver(upstream, staleCache, 0.1, 2,
+                CachingResolver.NEVER_SERVE_STALE);
+        CompletableFuture<Message> future = resolver.resolve(QUESTION);
+        pending.get(0).completeExceptionally(new IOException("Timed out"));
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> future.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue("upstream failure passed on", e.getCause() instanceof IOException);
+    }
+
+    public void testDoesNotServeStaleFromCacheThatDropsExpired() {
+        cache.put(entry(System.currentTimeMillis() - 1000, "192.0.2.1"));
+        CachingResolver resolver = new CachingResolver(upstream, cache, 0.1, 2, 0);
+        CompletableFuture<Message> future = resolver.resolve(QUESTION);
+        assertTrue("waiting on upstream", !future.isDone());
+        assertEquals("upstream queries", 1, asked());
+    }
+
+    public void testRecordsMissWhenUpstreamFails() {
+        QueryMetrics metrics = new QueryMetrics();
+        CachingResolver resolver = new CachingResolver(upstream, cache, 0.1, 2, 0, metrics);
+        CompletableFuture<Message> future = resolver.resolve(QUESTION);
+        pending.get(0).completeExceptionally(new IOException("Timed out"));
+        assertTrue("failed", future.isCompletedExceptionally());
+        assertEquals("misses", 1L, metrics.snapshot()
+                .get(QueryMetrics.PREFIX + "cache_lookups_total{outcome=\"miss\"}"));
+        assertEquals("cached", null, cache.get(KEY));
+    }
+
+    /**
+     * This method asks the resolver the question and waits for the answer
+     *
+     * @param resolver the resolver
+     * @return the answer
+     *
+     * @throws Exception when the answer doesn't come
+     */
+    private static Message resolve(CachingResolver resolver) throws Exception {
+        return resolver.resolve(QUESTION).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * This method counts the questions that reached the upstream
+     *
+     * @return the number of questions
+     */
+    private int asked() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * This method makes an entry answering the question with one address
+     *
+     * @param expiresAt when the entry expires, in milliseconds since the epoch
+     * @param address the address
+     * @return the entry
+     */
+    private static CacheEntry entry(long expiresAt, String address) {
+        ArrayList<ResourceRecord> records = new ArrayList<ResourceRecord>();
+        records.add(new ResourceRecord(QUESTION.getName(), Type.A, Class.IN, 300, address));
+        return new CacheEntry(KEY, records, new ArrayList<ResourceRecord>(), Header.NO_ERROR,
+                expiresAt);
+    }
+
+    /**
+     * This method builds an upstream answer with one address
+     *
+     * @param ttl the TTL of the address
+     * @param address the address
+     * @return the answer
+     */
+    private static Message answer(long ttl, String address) {
+        ArrayList<Query> questions = new ArrayList<Query>(1);
+        questions.add(QUESTION);
+        ArrayList<ResourceRecord> answers = new ArrayList<ResourceRecord>();
+        answers.add(new ResourceRecord(QUESTION.getName(), Type.A, Class.IN, ttl, address));
+        Header header = new Header(true, 0, false, false, true, true, 0, Header.NO_ERROR, 1,
+                answers.size(), 0, 0);
+        return new Message(header, questions, answers, new ArrayList<ResourceRecord>(),
+                new ArrayList<ResourceRecord>());
+    }
+
+    /**
+     * This method reads the address out of an answer
+     *
+     * @param response the answer
+     * @return the first answer record's address
+     */
+    private static String address(Message response) {
+        return response.getAnswerResourceRecords().get(0).getResourceData();
+    }
+}
@@ -0,0 +1,166 @@
+package DNS;
+
+import static Testing.Assert.assertEquals;
+import static Testing.Assert.assertThrows;
+import static Testing.Assert.assertTrue;
+
+import Message.Class;
+import Message.Header;
+import Message.Message;
+import Message.Query;
+import Message.ResourceRecord;
+import Message.Type;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This tests that identical questions asked while one is in flight share
+ * its answer, against a resolver whose answers the test completes by hand
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class CoalescingResolverTest {
+    /** This is how long to wait for an answer before the test fails */
+    private static final long TIMEOUT_MILLIS = 2000;
+
+    /** This is the question most tests ask */
+    private static final Query QUESTION = new Query("www.example.com.", Type.A, Class.IN);
+
+    /** This is how many questions reached the resolver behind */
+    private final AtomicInteger upstreamQueries = new AtomicInteger();
+
+    /** These are the answers handed out by the resolver behind, in order */
+    private final List<CompletableFuture<Message>> pending =
+            new ArrayList<CompletableFuture<Message>>();
+
+    /** This is the resolver being tested */
+    private final CoalescingResolver resolver = new CoalescingResolver(question -> {
+        upstreamQueries.incrementAndGet();
+        CompletableFuture<Message> future = new CompletableFuture<Message>();
+        synchronized (pending) {
+            pending.add(future);
+        }
+        return future;
+    });
+
+    public void testAsksUpstreamOnceForConcurrentQuestions() throws Exception {
+        int callers = 32;
+        CountDownLatch ready = new CountDownLatch(callers);
+        CountDownLatch go = new CountDownLatch(1);
+        List<CompletableFuture<Message>> answers = new ArrayList<CompletableFuture<Message>>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < callers; i++) {
+            CompletableFuture<Message> answer = new CompletableFuture<Message>();
+            answers.add(answer);
+            Thread thread = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                    resolver.resolve(QUESTION).whenComplete((message, error) -> {
+                        if (error != null) {
+                            answer.completeExceptionally(error);
+                        } else {
+                            answer.complete(message);
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    answer.completeExceptionally(e);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        ready.await();
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("upstream queries", 1, upstreamQueries.get());
+        assertEquals("in flight", 1, resolver.getInFlight());
+        Message response = response();
+        pending.get(0).complete(response);
+        for (CompletableFuture<Message> answer : answers) {
+            assertEquals("answer", response, answer.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        }
+        assertEquals("in flight after", 0, resolver.getInFlight());
+    }
+
+    public void testCancellingOneCallerLeavesOthers() throws Exception {
+        CompletableFuture<Message> first = resolver.resolve(QUESTION);
+        CompletableFuture<Message> second = resolver.resolve(QUESTION);
+        assertTrue("cancelled", first.cancel(true));
+        Message response = response();
+        pending.get(0).complete(response);
+        assertEquals("other caller's answer", response,
+                second.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals("upstream queries", 1, upstreamQueries.get());
+    }
+
+    public void testCompletingOneCallerLeavesOthers() throws Exception {
+        CompletableFuture<Message> first = resolver.resolve(QUESTION);
+        CompletableFuture<Message> second = resolver.resolve(QUESTION);
+        first.completeExceptionally(new IOException("Given up"));
+        Message response = response();
+        pending.get(0).complete(response);
+        assertEquals("other caller's answer", response,
+                second.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    public void testFailureReachesEveryCaller() {
+        CompletableFuture<Message> first = resolver.resolve(QUESTION);
+        CompletableFuture<Message> second = resolver.resolve(QUESTION);
+        pending.get(0).completeExceptionally(new IOException("Timed out"));
+        for (CompletableFuture<Message> answer : Arrays.asList(first, second)) {
+            ExecutionException e = assertThrows(ExecutionException.class,
+                    () -> answer.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            assertTrue("cause " + e.getCause(), e.getCause() instanceof IOException);
+        }
+        assertEquals("in flight after", 0, resolver.getInFlight());
+    }
+
+    public void testSharesAnswerWhateverTheCase() {
+        resolver.resolve(QUESTION);
+        resolver.resolve(new Query("WWW.Example.COM.", Type.A, Class.IN));
+        assertEquals("upstream queries", 1, upstreamQueries.get());
+    }
+
+    public void testAsksSeparatelyForDifferentQuestions() {
+        resolver.resolve(QUESTION);
+        resolver.resolve(new Query("www.example.com.", Type.MX, Class.IN));
+        resolver.resolve(new Query("mail.example.com.", Type.A, Class.IN));
+        assertEquals("upstream queries", 3, upstreamQueries.get());
+        assertEquals("in flight", 3, resolver.getInFlight());
+    }
+
+    public void testAsksAgainAfterAnswer() throws Exception {
+        CompletableFuture<Message> first = resolver.resolve(QUESTION);
+        pending.get(0).complete(response());
+        first.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        resolver.resolve(QUESTION);
+        assertEquals("upstream queries", 2, upstreamQueries.get());
+    }
+
+    /**
+     * This method builds an answer to the question with one address
+     *
+     * @return the answer
+     */
+    private static Message response() {
+        ArrayList<Query> questions = new ArrayList<Query>(1);
+        questions.add(QUESTION);
+        ArrayList<ResourceRecord> answers = new ArrayList<ResourceRecord>();
+        answers.add(new ResourceRecord(QUESTION.getName(), Type.A, Class.IN, 300, "192.0.2.1"));
+        Header header = new Header(true, 0, false, false, true, true, 0, Header.NO_ERROR, 1,
+                answers.size(), 0, 0);
+        return new Message(header, questions, answers, new ArrayList<ResourceRecord>(),
+                new ArrayList<ResourceRecord>());
+    }
+}
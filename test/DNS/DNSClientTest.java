@@ -0,0 +1,266 @@
+package DNS;
+
+import static Testing.Assert.assertEquals;
+import static Testing.Assert.assertThrows;
+import static Testing.Assert.assertTrue;
+
+import Message.Class;
+import Message.Header;
+import Message.Message;
+import Message.Query;
+import Message.ResourceRecord;
+import Message.Type;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This tests the client against scripted servers: sending lost queries
+ * again with backed off and jittered timeouts up to a deadline, timing only
+ * answers to queries sent once, the OPT record it sends, the answers larger
+ * than 512 bytes it can take, and asking again without EDNS(0) when a
+ * server doesn't understand it
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class DNSClientTest implements Closeable {
+    /** This is how long each query may take, in milliseconds */
+    private static final long TIMEOUT_MILLIS = 2000;
+
+    /** This is the question every test asks */
+    private static final Query QUESTION = new Query("www.example.com.", Type.A, Class.IN);
+
+    /** This is the server the test started, closed after it */
+    private ScriptedServer server;
+
+    /** This is the client the test started, closed after it */
+    private DNSClient client;
+
+    /** These are the queries a server has seen by id, only used on its thread */
+    private final Map<Integer, Message> seen = new HashMap<Integer, Message>();
+
+    public void testRetransmitsLostQuery() throws Exception {
+        start(ScriptedServer.dropping(2), TIMEOUT_MILLIS, DNSClient.DEFAULT_UDP_PAYLOAD_SIZE);
+        Message response = resolve();
+        assertEquals("answers", 1, response.getAnswerResourceRecords().size());
+        List<Message> queries = server.getQueries();
+        assertEquals("queries", 3, queries.size());
+        for (Message query : queries) {
+            assertEquals("same id each time", queries.get(0).getHeader().getId(),
+                    query.getHeader().getId());
+        }
+        assertEquals("retransmissions", 2L, client.getRetransmissions());
+        assertEquals("in flight", 0, client.getInFlight());
+    }
+
+    public void testBacksOffEachRetransmission() throws Exception {
+        //The three waits add up to as much as 2.2s with jitter, so the deadline is further off
+        start(ScriptedServer.dropping(3), TIMEOUT_MILLIS + 1000,
+                DNSClient.DEFAULT_UDP_PAYLOAD_SIZE);
+        resolve();
+        List<Long> arrivals = server.getArrivals();
+        long first = TimeUnit.NANOSECONDS.toMillis(arrivals.get(1) - arrivals.get(0));
+        long second = TimeUnit.NANOSECONDS.toMillis(arrivals.get(2) - arrivals.get(1));
+        long third = TimeUnit.NANOSECONDS.toMillis(arrivals.get(3) - arrivals.get(2));
+        //Jitter moves each wait by up to a quarter, so doubled waits still grow
+        assertTrue("first wait " + first + "ms",
+                first >= Upstream.INITIAL_RTO_MILLIS * 3 / 4 - 20);
+        assertTrue("second wait " + second + "ms after " + first + "ms", second > first);
+        assertTrue("third wait " + third + "ms after " + second + "ms", third > second);
+        assertEquals("timeout for the next query", Upstream.INITIAL_RTO_MILLIS * 8,
+                client.getRetransmitTimeoutMillis(server.getLocalAddress()));
+    }
+
+    public void testSpreadsRetransmissionsWithJitter() throws Exception {
+        start((query, number) -> {
+            //Each query is dropped the first time it is seen
+            return seen.put(query.getHeader().getId(), query) == null ? null
+                    : ScriptedServer.address(query, "192.0.2.1");
+        }, TIMEOUT_MILLIS, DNSClient.DEFAULT_UDP_PAYLOAD_SIZE);
+        List<CompletableFuture<Message>> futures =
+                new ArrayList<CompletableFuture<Message>>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(client.resolve(new Query("name" + i + ".example.com.", Type.A,
+                    Class.IN)));
+        }
+        for (CompletableFuture<Message> future : futures) {
+            future.get(TIMEOUT_MILLIS * 2, TimeUnit.MILLISECONDS);
+        }
+        Map<Integer, Long> firstArrival = new HashMap<Integer, Long>();
+        long shortest = Long.MAX_VALUE;
+        long longest = 0;
+        List<Message> queries = server.getQueries();
+        List<Long> arrivals = server.getArrivals();
+        for (int i = 0; i < queries.size(); i++) {
+            Long first = firstArrival.putIfAbsent(queries.get(i).getHeader().getId(),
+                    arrivals.get(i));
+            if (first != null) {
+                long wait = arrivals.get(i) - first;
+                shortest = Math.min(shortest, wait);
+                longest = Math.max(longest, wait);
+            }
+        }
+        long spread = TimeUnit.NANOSECONDS.toMillis(longest - shortest);
+        assertTrue("retransmissions spread over " + spread + "ms", spread >= 10);
+    }
+
+    public void testTimesOnlyAnswersToQueriesSentOnce() throws Exception {
+        start(ScriptedServer.dropping(1), TIMEOUT_MILLIS, DNSClient.DEFAULT_UDP_PAYLOAD_SIZE);
+        resolve();
+        Upstream upstream = client.getUpstream(server.getLocalAddress());
+        assertEquals("smoothed RTT after a retransmitted answer", 0.0,
+                upstream.getSmoothedRtt());
+        assertEquals("backed off timeout", Upstream.INITIAL_RTO_MILLIS * 2,
+                upstream.getRetransmitTimeoutMillis());
+        resolve();
+        assertTrue("timed after an answer to one query", upstream.getSmoothedRtt() > 0);
+        assertTrue("backoff reset", upstream.getRetransmitTimeoutMillis()
+                < Upstream.INITIAL_RTO_MILLIS);
+    }
+
+    public void testTimesOutAtDeadline() throws Exception {
+        long timeoutMillis = 700;
+        start(ScriptedServer.dropping(Integer.MAX_VALUE), timeoutMillis,
+                DNSClient.DEFAULT_UDP_PAYLOAD_SIZE);
+        long start = System.nanoTime();
+        ExecutionException e = assertThrows(ExecutionException.class, this::resolve);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("timed out: " + e.getCause(), e.getCause() instanceof SocketTimeoutException);
+        int attempts = server.getQueries().size();
+        assertTrue("attempts " + attempts, attempts >= 2);
+        assertTrue("reported: " + e.getCause().getMessage(), e.getCause().getMessage()
+                .contains("after " + attempts + " attempts within " + timeoutMillis + "ms"));
+        assertTrue("gave up after " + elapsedMillis + "ms", elapsedMillis >= timeoutMillis - 10
+                && elapsedMillis < timeoutMillis + 250);
+        List<Long> arrivals = server.getArrivals();
+        long lastSent = TimeUnit.NANOSECONDS.toMillis(
+                arrivals.get(arrivals.size() - 1) - start);
+        assertTrue("last sent after " + lastSent + "ms", lastSent < timeoutMillis);
+        assertEquals("timeouts", 1L, client.getTimeouts());
+        assertEquals("in flight", 0, client.getInFlight());
+        assertTrue("failure recorded",
+                client.getUpstream(server.getLocalAddress()).getFailureRate() > 0);
+    }
+
+    public void testAdvertisesPayloadSize() throws Exception {
+        start(ScriptedServer.dropping(0), TIMEOUT_MILLIS, 1400);
+        resolve();
+        Message query = server.getQueries().get(0);
+        assertTrue("OPT record sent", query.getEdns() != null);
+        assertEquals("payload size", 1400, query.getUdpPayloadSize());
+        assertEquals("client payload size", 1400, client.getUdpPayloadSize());
+    }
+
+    public void testLeavesEdnsOffAt512() throws Exception {
+        start(ScriptedServer.dropping(0), TIMEOUT_MILLIS, Message.MIN_UDP_PAYLOAD_SIZE);
+        resolve();
+        assertEquals("OPT record", null, server.getQueries().get(0).getEdns());
+    }
+
+    public void testRaisesSmallPayloadSizeTo512() throws Exception {
+        start(ScriptedServer.dropping(0), TIMEOUT_MILLIS, 100);
+        assertEquals("payload size", Message.MIN_UDP_PAYLOAD_SIZE, client.getUdpPayloadSize());
+        resolve();
+        assertEquals("OPT record", null, server.getQueries().get(0).getEdns());
+    }
+
+    public void testTakesAnswerLargerThan512() throws Exception {
+        start((query, number) -> {
+            List<ResourceRecord> answers = new ArrayList<ResourceRecord>();
+            for (int i = 0; i < 60; i++) {
+                answers.add(new ResourceRecord(QUESTION.getName(), Type.A, Class.IN, 300,
+                        "192.0.2." + i));
+            }
+            return ScriptedServer.reply(query, Header.NO_ERROR, answers);
+        }, TIMEOUT_MILLIS, DNSClient.DEFAULT_UDP_PAYLOAD_SIZE);
+        Message response = resolve();
+        assertTrue("not truncated", !response.getHeader().isTruncated());
+        assertEquals("answers", 60, response.getAnswerResourceRecords().size());
+    }
+
+    public void testRetriesWithoutEdnsOnFormatError() throws Exception {
+        start(withoutEdns(), TIMEOUT_MILLIS, DNSClient.DEFAULT_UDP_PAYLOAD_SIZE);
+        Message response = resolve();
+        assertEquals("return code", Header.NO_ERROR, response.getHeader().getReturnCode());
+        assertEquals("answers", 1, response.getAnswerResourceRecords().size());
+        List<Message> queries = server.getQueries();
+        assertEquals("queries", 2, queries.size());
+        assertTrue("first with OPT", queries.get(0).getEdns() != null);
+        assertEquals("second without OPT", null, queries.get(1).getEdns());
+    }
+
+    public void testRetryWithoutEdnsKeepsDeadline() throws Exception {
+        //The FORMERR comes most of the way through the timeout and the retry is never answered
+        long timeoutMillis = 600;
+        start((query, number) -> query.getEdns() == null ? null
+                : ScriptedServer.reply(query, Header.FORMAT_ERROR,
+                        new ArrayList<ResourceRecord>()),
+                timeoutMillis, DNSClient.DEFAULT_UDP_PAYLOAD_SIZE);
+        server.setDelayMillis(450);
+        long start = System.nanoTime();
+        ExecutionException e = assertThrows(ExecutionException.class, this::resolve);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("timed out: " + e.getCause(), e.getCause() instanceof SocketTimeoutException);
+        assertTrue("retried without OPT", server.getQueries().stream()
+                .anyMatch(query -> query.getEdns() == null));
+        assertTrue("gave up after " + elapsedMillis + "ms", elapsedMillis < timeoutMillis + 250);
+    }
+
+    /**
+     * This method stops the server and client
+     */
+    public void close() {
+        if (client != null) {
+            client.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    /**
+     * This method starts a server and a client that asks it
+     *
+     * @param script how the server answers
+     * @param timeoutMillis how long the client keeps sending each query
+     * @param udpPayloadSize the payload size the client advertises
+     *
+     * @throws IOException when either can't be started
+     */
+    private void start(ScriptedServer.Script script, long timeoutMillis, int udpPayloadSize)
+            throws IOException {
+        server = new ScriptedServer(script);
+        client = new DNSClient(server.getLocalAddress(), timeoutMillis, udpPayloadSize);
+    }
+
+    /**
+     * This method asks the question and waits for the answer
+     *
+     * @return the answer
+     *
+     * @throws Exception when the query fails
+     */
+    private Message resolve() throws Exception {
+        return client.resolve(QUESTION).get(TIMEOUT_MILLIS * 2, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * This method makes a script for a server that doesn't understand
+     * EDNS(0), answering FORMERR to any query with an OPT record
+     *
+     * @return the script
+     */
+    private static ScriptedServer.Script withoutEdns() {
+        return (query, number) -> query.getEdns() != null
+                ? ScriptedServer.reply(query, Header.FORMAT_ERROR, new ArrayList<ResourceRecord>())
+                : ScriptedServer.address(query, "192.0.2.1");
+    }
+}
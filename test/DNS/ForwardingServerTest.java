@@ -0,0 +1,371 @@
+package DNS;
+
+import static Testing.Assert.assertEquals;
+import static Testing.Assert.assertTrue;
+
+import Message.Class;
+import Message.DomainName;
+import Message.Header;
+import Message.Message;
+import Message.Query;
+import Message.ResourceRecord;
+import Message.Type;
+import Zone.Zone;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This tests the server end to end, sending raw queries over loopback to a
+ * server that forwards to a stub upstream, so queries the Message classes
+ * couldn't build themselves can be sent too, over UDP and over TCP, and to
+ * servers answering from a zone
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class ForwardingServerTest implements Closeable {
+    /** This is how long to wait for each reply before the test fails */
+    private static final int TIMEOUT_MILLIS = 2000;
+
+    /** This is the type value of AAAA, which Type doesn't know */
+    private static final int AAAA = 28;
+
+    /** This is the stub the server forwards to */
+    private final StubServer upstream;
+
+    /** This is the client the server forwards through */
+    private final DNSClient client;
+
+    /** This is the server being tested */
+    private final ForwardingServer server;
+
+    /** This is the socket queries are sent from */
+    private final DatagramSocket socket;
+
+    /**
+     * This constructor starts a stub and a server with one worker that
+     * forwards to it and keeps encoded replies
+     *
+     * @throws IOException when a socket can't be bound
+     */
+    public ForwardingServerTest() throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try {
+            upstream = new StubServer(new InetSocketAddress(loopback, 0),
+                    Collections.<Message>emptyList(), StubServer.DEFAULT_TTL);
+            client = new DNSClient(upstream.getLocalAddress(), 500);
+            server = new ForwardingServer(new InetSocketAddress(loopback, 0), client, 1, true);
+            socket = new DatagramSocket(new InetSocketAddress(loopback, 0));
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public void testAnswersWithQueryId() throws IOException {
+        Message reply = ask(query(0x1234, Type.A.getValue(), "www", "example", "com"));
+        assertEquals("id", 0x1234, reply.getHeader().getId());
+        assertEquals("return code", Header.NO_ERROR, reply.getHeader().getReturnCode());
+        assertEquals("answers", 1, reply.getAnswerResourceRecords().size());
+        assertEquals("question", "www.example.com.", reply.getQuestions().get(0).getName());
+        assertTrue("recursion available", reply.getHeader().isRecursionAvailable());
+    }
+
+    public void testUnknownTypeIsNotImplemented() throws IOException {
+        //One worker has to survive every one of these to answer the last query
+        for (int id = 1; id <= 5; id++) {
+            Message reply = ask(query(id, AAAA, "www", "example", "com"));
+            assertEquals("id", id, reply.getHeader().getId());
+            assertEquals("return code", Header.NOT_IMPLEMENTED,
+                    reply.getHeader().getReturnCode());
+        }
+        Message reply = ask(query(6, Type.A.getValue(), "www", "example", "com"));
+        assertEquals("return code after", Header.NO_ERROR, reply.getHeader().getReturnCode());
+    }
+
+    public void testNameThatCantBeForwardedFails() throws IOException {
+        //A dot inside a label reads back as a name with an empty label
+        Message reply = ask(query(7, Type.A.getValue(), ".www", "example", "com"));
+        assertEquals("id", 7, reply.getHeader().getId());
+        assertEquals("return code", Header.SERVER_FAILURE, reply.getHeader().getReturnCode());
+        assertEquals("nothing forwarded", 0L, upstream.getQueries());
+    }
+
+    public void testGarbageIsFormatError() throws IOException {
+        byte[] garbage = new byte[20];
+        garbage[0] = 0x0A;
+        garbage[1] = 0x0B;
+        //One question is claimed, then a label longer than the packet
+        garbage[5] = 1;
+        garbage[12] = 60;
+        Message reply = ask(garbage);
+        assertEquals("id", 0x0A0B, reply.getHeader().getId());
+        assertEquals("return code", Header.FORMAT_ERROR, reply.getHeader().getReturnCode());
+    }
+
+    public void testRepeatedQuestionIsAnsweredFromReplyCache() throws Exception {
+        Message first = ask(query(1, Type.A.getValue(), "www", "example", "com"));
+        //The reply is stored just after it is sent
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (server.getResponseCache().size() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        Message second = ask(query(2, Type.A.getValue(), "WWW", "Example", "COM"));
+        assertEquals("id", 2, second.getHeader().getId());
+        assertEquals("question as asked", "WWW.Example.COM.",
+                second.getQuestions().get(0).getName());
+        assertEquals("same answer", first.getAnswerResourceRecords().get(0).getResourceData(),
+                second.getAnswerResourceRecords().get(0).getResourceData());
+        assertEquals("reply cache hits", 1L, server.getResponseCache().getHits());
+        assertEquals("upstream queries", 1L, upstream.getQueries());
+    }
+
+    public void testDeadUpstreamIsServerFailure() throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        //A socket that never reads stands in for an upstream that never answers
+        try (DatagramSocket silent = new DatagramSocket(new InetSocketAddress(loopback, 0));
+             DNSClient deadClient = new DNSClient(
+                     (InetSocketAddress) silent.getLocalSocketAddress(), 200);
+             ForwardingServer deadServer = new ForwardingServer(
+                     new InetSocketAddress(loopback, 0), deadClient, 1)) {
+            Message reply = ask(query(9, Type.A.getValue(), "www", "example", "com"),
+                    deadServer.getLocalAddress());
+            assertEquals("id", 9, reply.getHeader().getId());
+            assertEquals("return code", Header.SERVER_FAILURE,
+                    reply.getHeader().getReturnCode());
+            assertTrue("question echoed", reply.getQuestions().size() == 1);
+        }
+    }
+
+    public void testAnswersPipelinedQueriesOverTcp() throws IOException {
+        List<Message> replies = askOverTcp(server.getLocalAddress(),
+                query(21, Type.A.getValue(), "www", "example", "com"),
+                query(22, Type.A.getValue(), "mail", "example", "com"));
+        Set<Integer> ids = new HashSet<Integer>();
+        for (Message reply : replies) {
+            ids.add(reply.getHeader().getId());
+            assertEquals("return code", Header.NO_ERROR, reply.getHeader().getReturnCode());
+            assertEquals("answers", 1, reply.getAnswerResourceRecords().size());
+        }
+        assertEquals("ids", new HashSet<Integer>(Arrays.asList(21, 22)), ids);
+    }
+
+    public void testLargeAnswerIsTruncatedOverUdpAndWholeOverTcp() throws IOException {
+        //A resolver with sixty addresses for every name, far more than 512 bytes
+        Resolver large = question -> {
+            ArrayList<ResourceRecord> answers = new ArrayList<ResourceRecord>();
+            for (int i = 0; i < 60; i++) {
+                answers.add(new ResourceRecord(question.getName(), Type.A, Class.IN, 300,
+                        "192.0.2." + i));
+            }
+            ArrayList<Query> questions = new ArrayList<Query>(1);
+            questions.add(question);
+            Header header = new Header(true, 0, false, false, true, true, 0, Header.NO_ERROR,
+                    1, answers.size(), 0, 0);
+            return CompletableFuture.completedFuture(new Message(header, questions, answers,
+                    new ArrayList<ResourceRecord>(), new ArrayList<ResourceRecord>()));
+        };
+        try (ForwardingServer largeServer = new ForwardingServer(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), large, 1)) {
+            byte[] query = query(31, Type.A.getValue(), "www", "example", "com");
+            Message udpReply = ask(query, largeServer.getLocalAddress());
+            assertTrue("truncated over UDP", udpReply.getHeader().isTruncated());
+            assertEquals("answers over UDP", 0, udpReply.getAnswerResourceRecords().size());
+            Message tcpReply = askOverTcp(largeServer.getLocalAddress(), query).get(0);
+            assertTrue("whole over TCP", !tcpReply.getHeader().isTruncated());
+            assertEquals("id", 31, tcpReply.getHeader().getId());
+            assertEquals("answers over TCP", 60, tcpReply.getAnswerResourceRecords().size());
+        }
+    }
+
+    public void testAuthoritativeServerAnswersUnknownTypeFromZone() throws IOException {
+        AuthoritativeResolver resolver = new AuthoritativeResolver(
+                Collections.singletonList(zone()), null);
+        try (ForwardingServer zoneServer = new ForwardingServer(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), resolver, 1)) {
+            Message noData = ask(query(41, AAAA, "www", "example", "com"),
+                    zoneServer.getLocalAddress());
+            assertEquals("return code for a name that exists", Header.NO_ERROR,
+                    noData.getHeader().getReturnCode());
+            assertTrue("authoritative", noData.getHeader().isAuthoritative());
+            assertEquals("answers", 0, noData.getAnswerResourceRecords().size());
+            assertEquals("SOA", Type.SOA,
+                    noData.getAuthorityResourceRecords().get(0).getType());
+            assertEquals("question type echoed", AAAA,
+                    noData.getQuestions().get(0).getTypeValue());
+            assertTrue("no recursion", !noData.getHeader().isRecursionAvailable());
+            Message nameError = ask(query(42, AAAA, "missing", "example", "com"),
+                    zoneServer.getLocalAddress());
+            assertEquals("return code for a name that doesn't", Header.NAME_ERROR,
+                    nameError.getHeader().getReturnCode());
+            Message refused = ask(query(43, Type.A.getValue(), "www", "example", "net"),
+                    zoneServer.getLocalAddress());
+            assertEquals("return code outside the zone", Header.REFUSED,
+                    refused.getHeader().getReturnCode());
+            assertTrue("no recursion when refusing", !refused.getHeader().isRecursionAvailable());
+        }
+    }
+
+    public void testAuthoritativeServerWithFallbackOffersRecursion() throws IOException {
+        AuthoritativeResolver resolver = new AuthoritativeResolver(
+                Collections.singletonList(zone()), client);
+        try (ForwardingServer zoneServer = new ForwardingServer(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), resolver, 1)) {
+            Message answer = ask(query(44, Type.A.getValue(), "www", "example", "com"),
+                    zoneServer.getLocalAddress());
+            assertTrue("recursion available", answer.getHeader().isRecursionAvailable());
+            Message forwarded = ask(query(45, Type.A.getValue(), "www", "example", "net"),
+                    zoneServer.getLocalAddress());
+            assertEquals("forwarded", Header.NO_ERROR, forwarded.getHeader().getReturnCode());
+            assertEquals("upstream queries", 1L, upstream.getQueries());
+            Message unknown = ask(query(46, AAAA, "www", "example", "net"),
+                    zoneServer.getLocalAddress());
+            assertEquals("unknown type outside the zone", Header.NOT_IMPLEMENTED,
+                    unknown.getHeader().getReturnCode());
+            assertEquals("upstream queries after", 1L, upstream.getQueries());
+        }
+    }
+
+    /**
+     * This method stops the server, its client and the stub
+     */
+    public void close() {
+        if (socket != null) {
+            socket.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+        if (client != null) {
+            client.close();
+        }
+        if (upstream != null) {
+            upstream.close();
+        }
+    }
+
+    /**
+     * This method builds a zone for example.com with one address
+     *
+     * @return the zone
+     */
+    private static Zone zone() {
+        Zone zone = new Zone(DomainName.of("example.com."));
+        zone.add(new ResourceRecord("example.com.", Type.SOA, Class.IN, 3600,
+                "ns1.example.com. admin.example.com. 1 7200 3600 1209600 300"));
+        zone.add(new ResourceRecord("www.example.com.", Type.A, Class.IN, 3600, "192.0.2.1"));
+        return zone;
+    }
+
+    /**
+     * This method sends a query to the server and waits for the reply
+     *
+     * @param query the raw query
+     * @return the reply
+     *
+     * @throws IOException when no reply comes in time
+     */
+    private Message ask(byte[] query) throws IOException {
+        return ask(query, server.getLocalAddress());
+    }
+
+    /**
+     * This method sends a query to a server and waits for the reply
+     *
+     * @param query the raw query
+     * @param address the server's address
+     * @return the reply
+     *
+     * @throws IOException when no reply comes in time
+     */
+    private Message ask(byte[] query, InetSocketAddress address) throws IOException {
+        socket.send(new DatagramPacket(query, query.length, address));
+        byte[] buffer = new byte[Message.MIN_UDP_PAYLOAD_SIZE];
+        DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+        socket.receive(reply);
+        return new Message(ByteBuffer.wrap(buffer, 0, reply.getLength()).slice());
+    }
+
+    /**
+     * This method sends queries to a server on one TCP connection, all
+     * before reading any reply, and waits for every reply
+     *
+     * @param address the server's address
+     * @param queries the raw queries
+     * @return the replies, in the order they came back
+     *
+     * @throws IOException when the connection fails or a reply doesn't come in time
+     */
+    private static List<Message> askOverTcp(InetSocketAddress address, byte[]... queries)
+            throws IOException {
+        try (Socket connection = new Socket(address.getAddress(), address.getPort())) {
+            connection.setSoTimeout(TIMEOUT_MILLIS);
+            DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+            for (byte[] query : queries) {
+                out.writeShort(query.length);
+                out.write(query);
+            }
+            out.flush();
+            DataInputStream in = new DataInputStream(connection.getInputStream());
+            List<Message> replies = new ArrayList<Message>();
+            for (int i = 0; i < queries.length; i++) {
+                byte[] frame = new byte[in.readUnsignedShort()];
+                in.readFully(frame);
+                replies.add(new Message(ByteBuffer.wrap(frame)));
+            }
+            return replies;
+        }
+    }
+
+    /**
+     * This method writes a query with recursion desired for one question
+     * in the Internet class, label by label so any bytes can go in a label
+     *
+     * @param id the id of the query
+     * @param type the type value asked for
+     * @param labels the labels of the name
+     * @return the query
+     */
+    private static byte[] query(int id, int type, String... labels) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(id >> 8);
+        out.write(id);
+        out.write(0x01);
+        out.write(0);
+        //One question and no records
+        out.write(0);
+        out.write(1);
+        for (int i = 0; i < 6; i++) {
+            out.write(0);
+        }
+        for (String label : labels) {
+            out.write(label.length());
+            for (char c : label.toCharArray()) {
+                out.write(c);
+            }
+        }
+        out.write(0);
+        out.write(type >> 8);
+        out.write(type);
+        out.write(0);
+        out.write(1);
+        return out.toByteArray();
+    }
+}
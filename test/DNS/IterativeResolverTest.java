@@ -0,0 +1,278 @@
+package DNS;
+
+import static Testing.Assert.assertEquals;
+import static Testing.Assert.assertThrows;
+import static Testing.Assert.assertTrue;
+
+import Cache.DelegationCache;
+import Message.Class;
+import Message.Header;
+import Message.Message;
+import Message.Query;
+import Message.ResourceRecord;
+import Message.Type;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This tests the resolver against a small hierarchy of stub servers on
+ * loopback addresses, all on one port, standing in for the root, com, net
+ * and the zones below them:
+ *
+ * 127.0.0.1 the root, 127.0.0.2 com, 127.0.0.3 example.com, 127.0.0.4 net,
+ * 127.0.0.5 other.com, 127.0.0.6 evil.com and 127.0.0.9 a server that only
+ * a poisoned referral points at
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class IterativeResolverTest implements Closeable {
+    /** This is how long each lookup may take before the test fails */
+    private static final long TIMEOUT_SECONDS = 5;
+
+    /** This is the root server */
+    private final StubServer root;
+
+    /** This is the com server */
+    private final StubServer com;
+
+    /** This is the server a poisoned referral points at */
+    private final StubServer bogus;
+
+    /** These are every stub, so they can all be closed */
+    private final List<StubServer> stubs = new ArrayList<StubServer>();
+
+    /** This is the client the resolver sends through */
+    private final DNSClient client;
+
+    /** This is the resolver being tested */
+    private final IterativeResolver resolver;
+
+    /**
+     * This constructor starts the stubs and a resolver that knows only the
+     * root
+     *
+     * @throws IOException when a stub can't be bound
+     */
+    public IterativeResolverTest() throws IOException {
+        try {
+            root = new StubServer(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0),
+                    Arrays.asList(
+                            referral("www.example.com.", "com.", "ns.com.", "127.0.0.2"),
+                            referral("alias.example.com.", "com.", "ns.com.", "127.0.0.2"),
+                            referral("missing.example.com.", "com.", "ns.com.", "127.0.0.2"),
+                            referral("up.example.com.", "com.", "ns.com.", "127.0.0.2"),
+                            referral("www.other.com.", "com.", "ns.com.", "127.0.0.2"),
+                            referral("www.evil.com.", "com.", "ns.com.", "127.0.0.2"),
+                            referral("ns.example.net.", "net.", "ns.net.", "127.0.0.4")),
+                    StubServer.DEFAULT_TTL);
+            stubs.add(root);
+            int port = root.getLocalAddress().getPort();
+            com = stub("127.0.0.2", port,
+                    referral("www.example.com.", "example.com.", "ns.example.com.", "127.0.0.3"),
+                    referral("alias.example.com.", "example.com.", "ns.example.com.", "127.0.0.3"),
+                    referral("missing.example.com.", "example.com.", "ns.example.com.",
+                            "127.0.0.3"),
+                    referral("up.example.com.", "example.com.", "ns.example.com.", "127.0.0.3"),
+                    referral("www.other.com.", "other.com.", "ns.other.com.", "127.0.0.5"),
+                    //com can't vouch for an address under net, so this glue has to be ignored
+                    referral("www.evil.com.", "evil.com.", "ns.example.net.", "127.0.0.9"));
+            stub("127.0.0.3", port,
+                    answer("www.example.com.", record("www.example.com.", Type.A, "192.0.2.1")),
+                    answer("alias.example.com.",
+                            record("alias.example.com.", Type.CNAME, "www.other.com.")),
+                    response("missing.example.com.", Header.NAME_ERROR,
+                            Collections.<ResourceRecord>emptyList(),
+                            Collections.<ResourceRecord>emptyList(),
+                            Collections.<ResourceRecord>emptyList()),
+                    //A lame server pointing back up at com, which is above example.com
+                    response("up.example.com.", Header.NO_ERROR,
+                            Collections.<ResourceRecord>emptyList(),
+                            Collections.singletonList(record("com.", Type.NS, "ns.com.")),
+                            Collections.<ResourceRecord>emptyList()));
+            stub("127.0.0.4", port,
+                    answer("ns.example.net.", record("ns.example.net.", Type.A, "127.0.0.6")));
+            stub("127.0.0.5", port,
+                    answer("www.other.com.", record("www.other.com.", Type.A, "192.0.2.5")));
+            stub("127.0.0.6", port,
+                    answer("www.evil.com.", record("www.evil.com.", Type.A, "192.0.2.6")));
+            bogus = stub("127.0.0.9", port,
+                    answer("www.evil.com.", record("www.evil.com.", Type.A, "192.0.2.99")));
+            client = new DNSClient(root.getLocalAddress(), 500);
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+        resolver = new IterativeResolver(client,
+                new DelegationCache(Collections.singletonList(root.getLocalAddress())),
+                root.getLocalAddress().getPort());
+    }
+
+    public void testFollowsReferralsWithGlue() throws Exception {
+        Message response = resolve("www.example.com.");
+        assertEquals("return code", Header.NO_ERROR, response.getHeader().getReturnCode());
+        assertEquals("answers", 1, response.getAnswerResourceRecords().size());
+        assertEquals("address", "192.0.2.1",
+                response.getAnswerResourceRecords().get(0).getResourceData());
+    }
+
+    public void testIgnoresGlueOutsideReferringZone() throws Exception {
+        Message response = resolve("www.evil.com.");
+        assertEquals("address", "192.0.2.6",
+                response.getAnswerResourceRecords().get(0).getResourceData());
+        assertEquals("queries to the poisoned address", 0L, bogus.getQueries());
+    }
+
+    public void testFollowsCnameAcrossZones() throws Exception {
+        Message response = resolve("alias.example.com.");
+        List<ResourceRecord> answers = response.getAnswerResourceRecords();
+        assertEquals("answers", 2, answers.size());
+        assertEquals("first the CNAME", Type.CNAME, answers.get(0).getType());
+        assertEquals("then its target's address", "192.0.2.5",
+                answers.get(1).getResourceData());
+        assertEquals("question", "alias.example.com.",
+                response.getQuestions().get(0).getName());
+    }
+
+    public void testReturnsNameError() throws Exception {
+        Message response = resolve("missing.example.com.");
+        assertEquals("return code", Header.NAME_ERROR, response.getHeader().getReturnCode());
+    }
+
+    public void testDoesNotFollowUpwardReferral() throws Exception {
+        long comQueries = com.getQueries();
+        Message response = resolve("up.example.com.");
+        assertEquals("return code", Header.NO_ERROR, response.getHeader().getReturnCode());
+        assertTrue("no answer", response.getAnswerResourceRecords().isEmpty());
+        assertEquals("com asked only on the way down", comQueries + 1, com.getQueries());
+    }
+
+    public void testStartsFromCachedDelegation() throws Exception {
+        resolve("www.example.com.");
+        long rootQueries = root.getQueries();
+        long comQueries = com.getQueries();
+        resolve("missing.example.com.");
+        assertEquals("root queries", rootQueries, root.getQueries());
+        assertEquals("com queries", comQueries, com.getQueries());
+    }
+
+    public void testFailsWhenEveryServerIsDown() throws Exception {
+        root.close();
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> resolve("www.example.com."));
+        assertTrue("fails with an IOException", e.getCause() instanceof IOException);
+    }
+
+    /**
+     * This method stops the client and every stub
+     */
+    public void close() {
+        if (client != null) {
+            client.close();
+        }
+        for (StubServer stub : stubs) {
+            stub.close();
+        }
+    }
+
+    /**
+     * This method looks up the address of a name
+     *
+     * @param name the name
+     * @return the response
+     *
+     * @throws Exception when the lookup fails or takes too long
+     */
+    private Message resolve(String name) throws Exception {
+        return resolver.resolve(new Query(name, Type.A, Class.IN))
+                .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * This method starts a stub on a loopback address
+     *
+     * @param ip the loopback address
+     * @param port the port
+     * @param responses the stub's canned responses
+     * @return the stub
+     *
+     * @throws IOException when the stub can't be bound
+     */
+    private StubServer stub(String ip, int port, Message... responses) throws IOException {
+        StubServer stub = new StubServer(new InetSocketAddress(InetAddress.getByName(ip), port),
+                Arrays.asList(responses), StubServer.DEFAULT_TTL);
+        stubs.add(stub);
+        return stub;
+    }
+
+    /**
+     * This method builds a referral to a zone with one nameserver and its
+     * glue
+     *
+     * @param name the name asked about
+     * @param zone the zone referred to
+     * @param nameserver the zone's nameserver
+     * @param ip the nameserver's address
+     * @return the referral
+     */
+    private static Message referral(String name, String zone, String nameserver, String ip) {
+        return response(name, Header.NO_ERROR, Collections.<ResourceRecord>emptyList(),
+                Collections.singletonList(record(zone, Type.NS, nameserver)),
+                Collections.singletonList(record(nameserver, Type.A, ip)));
+    }
+
+    /**
+     * This method builds an authoritative answer
+     *
+     * @param name the name asked about
+     * @param answer the answer
+     * @return the response
+     */
+    private static Message answer(String name, ResourceRecord answer) {
+        return response(name, Header.NO_ERROR, Collections.singletonList(answer),
+                Collections.<ResourceRecord>emptyList(), Collections.<ResourceRecord>emptyList());
+    }
+
+    /**
+     * This method builds a response to a question for an address
+     *
+     * @param name the name asked about
+     * @param returnCode the return code
+     * @param answers the answer section
+     * @param authority the authority section
+     * @param additional the additional section
+     * @return the response
+     */
+    private static Message response(String name, int returnCode,
+                                    List<ResourceRecord> answers,
+                                    List<ResourceRecord> authority,
+                                    List<ResourceRecord> additional) {
+        ArrayList<Query> questions = new ArrayList<Query>(1);
+        questions.add(new Query(name, Type.A, Class.IN));
+        Header header = new Header(true, 0, answers.size() > 0, false, false, false, 0,
+                returnCode, 1, answers.size(), authority.size(), additional.size());
+        return new Message(header, questions, new ArrayList<ResourceRecord>(answers),
+                new ArrayList<ResourceRecord>(authority),
+                new ArrayList<ResourceRecord>(additional));
+    }
+
+    /**
+     * This method creates an Internet class record
+     *
+     * @param name the owner of the record
+     * @param type the type of the record
+     * @param data the readable data of the record
+     * @return the record
+     */
+    private static ResourceRecord record(String name, Type type, String data) {
+        return new ResourceRecord(name, type, Class.IN, StubServer.DEFAULT_TTL, data);
+    }
+}
@@ -0,0 +1,190 @@
+package DNS;
+
+import static Testing.Assert.assertEquals;
+import static Testing.Assert.assertThrows;
+import static Testing.Assert.assertTrue;
+
+import Message.Class;
+import Message.Message;
+import Message.Query;
+import Message.Type;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This tests the load generator against servers that answer, drop or are
+ * slow on purpose: every query counted once as answered or lost, lost
+ * queries swept so the window keeps moving, late answers kept apart from
+ * answers, ids not reused while their query is outstanding, and query lists
+ * that name types that aren't implemented being turned away
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class LoadGeneratorTest implements Closeable {
+    /** This is the query every run sends */
+    private static final List<Query> QUERIES = Collections.singletonList(
+            new Query("www.example.com.", Type.A, Class.IN));
+
+    /** This is the scripted server the test started, closed after it */
+    private ScriptedServer server;
+
+    public void testCountsEveryQueryAnsweredOrLost() throws Exception {
+        //Every fifth query is dropped
+        server = new ScriptedServer((query, number) -> number % 5 == 0 ? null
+                : ScriptedServer.address(query, "192.0.2.1"));
+        LoadGenerator.Report report = new LoadGenerator(server.getLocalAddress(), QUERIES, 0,
+                4, 200).run(300);
+        int received = server.getQueries().size();
+        long dropped = (received + 4) / 5;
+        assertEquals("every query sent arrived", report.getSent(), (long) received);
+        assertEquals("lost", dropped, report.getTimedOut());
+        assertEquals("answered", report.getSent() - dropped, report.getAnswered());
+        assertEquals("late", 0L, report.getLate());
+        assertTrue("report: " + report, report.toString().contains("Lost " + dropped + " "));
+    }
+
+    public void testSweepsLostQueriesToKeepSending() throws Exception {
+        server = new ScriptedServer(ScriptedServer.dropping(Integer.MAX_VALUE));
+        long start = System.nanoTime();
+        LoadGenerator.Report report = new LoadGenerator(server.getLocalAddress(), QUERIES, 0,
+                2, 100).run(500);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("sent " + report.getSent() + " with the window freed by timeouts",
+                report.getSent() >= 6);
+        assertEquals("lost", report.getSent(), report.getTimedOut());
+        assertEquals("answered", 0L, report.getAnswered());
+        assertTrue("finished after " + elapsedMillis + "ms", elapsedMillis < 500 + 100 + 500);
+    }
+
+    public void testKeepsLateAnswersApart() throws Exception {
+        server = new ScriptedServer(ScriptedServer.dropping(0));
+        server.setDelayMillis(150);
+        LoadGenerator.Report report = new LoadGenerator(server.getLocalAddress(), QUERIES, 0,
+                1, 50).run(500);
+        assertEquals("answered", 0L, report.getAnswered());
+        assertEquals("lost", report.getSent(), report.getTimedOut());
+        assertTrue("late " + report.getLate(), report.getLate() > 0);
+    }
+
+    public void testDoesNotReuseOutstandingId() throws Exception {
+        //The first query goes unanswered while every id is used again after it
+        try (Echo echo = new Echo()) {
+            LoadGenerator.Report report = new LoadGenerator(echo.getLocalAddress(), QUERIES, 0,
+                    64, 2500).run(2000);
+            assertTrue("sent " + report.getSent() + ", enough to use every id",
+                    report.getSent() > LoadGenerator.MAX_OUTSTANDING);
+            assertEquals("queries with the first id sent while it was outstanding", 1,
+                    echo.getFirstIdQueries());
+            assertEquals("lost", 1L, report.getTimedOut());
+            assertEquals("answered", report.getSent() - 1, report.getAnswered());
+            assertEquals("late", 0L, report.getLate());
+        }
+    }
+
+    public void testReadsQueries() throws IOException {
+        List<Query> queries = LoadGenerator.readQueries(new BufferedReader(new StringReader(
+                "www.example.com\n\n# a comment\nexample.com MX\n")), Type.A);
+        assertEquals("queries", 2, queries.size());
+        assertEquals("default type", Type.A, queries.get(0).getType());
+        assertEquals("named type", Type.MX, queries.get(1).getType());
+    }
+
+    public void testRejectsTypeThatIsNotImplemented() {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> LoadGenerator.readQueries(new BufferedReader(new StringReader(
+                        "www.example.com A\nwww.example.com AAAA\n")), Type.A));
+        assertTrue("reported: " + e.getMessage(), e.getMessage().startsWith("Line 2"));
+    }
+
+    /**
+     * This method stops the scripted server
+     */
+    public void close() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    /**
+     * This is a server that sends each query straight back as its own
+     * answer, without parsing it, so it can keep up with the generator.  It
+     * drops the first query it sees and counts the queries after it with the
+     * same id
+     */
+    private static final class Echo implements Closeable {
+        /** This is the channel queries arrive on */
+        private final DatagramChannel channel;
+
+        /** This is the id of the dropped query, or -1 before it arrives */
+        private volatile int firstId = -1;
+
+        /** This is how many queries have had the dropped query's id, counting it */
+        private final AtomicInteger firstIdQueries = new AtomicInteger();
+
+        /**
+         * This constructor binds the server to loopback and starts answering
+         *
+         * @throws IOException when the channel can't be bound
+         */
+        private Echo() throws IOException {
+            channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Thread thread = new Thread(this::serve, "Echo");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * This method answers queries until the channel is closed
+         */
+        private void serve() {
+            ByteBuffer packet = ByteBuffer.allocate(Message.MIN_UDP_PAYLOAD_SIZE);
+            while (channel.isOpen()) {
+                try {
+                    packet.clear();
+                    SocketAddress client = channel.receive(packet);
+                    packet.flip();
+                    int id = packet.getShort(0) & 0xFFFF;
+                    if (firstId < 0) {
+                        firstId = id;
+                    }
+                    if (id == firstId && firstIdQueries.incrementAndGet() == 1) {
+                        continue;
+                    }
+                    packet.put(2, (byte) (packet.get(2) | 0x80));
+                    channel.send(packet, client);
+                } catch (IOException e) {
+                    //A closed channel ends the loop
+                }
+            }
+        }
+
+        private InetSocketAddress getLocalAddress() throws IOException {
+            return (InetSocketAddress) channel.getLocalAddress();
+        }
+
+        private int getFirstIdQueries() {
+            return firstIdQueries.get();
+        }
+
+        /**
+         * This method stops the server
+         *
+         * @throws IOException when the channel can't be closed
+         */
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
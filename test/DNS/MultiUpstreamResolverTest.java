@@ -0,0 +1,172 @@
+package DNS;
+
+import static Testing.Assert.assertEquals;
+import static Testing.Assert.assertThrows;
+import static Testing.Assert.assertTrue;
+
+import Message.Class;
+import Message.Header;
+import Message.Message;
+import Message.Query;
+import Message.Type;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This tests spreading questions over scripted servers: moving on from
+ * failures, waiting on a slow server rather than settling for another's
+ * SERVFAIL, and scoring servers from the client's own estimates
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class MultiUpstreamResolverTest implements Closeable {
+    /** This is how long each query may take, in milliseconds */
+    private static final long TIMEOUT_MILLIS = 2000;
+
+    /** This is the question every test asks */
+    private static final Query QUESTION = new Query("www.example.com.", Type.A, Class.IN);
+
+    /** These are the servers the test started, closed after it */
+    private final List<ScriptedServer> servers = new ArrayList<ScriptedServer>();
+
+    /** This is the client the resolver sends through */
+    private final DNSClient client;
+
+    /** This is the resolver the test started, closed after it */
+    private MultiUpstreamResolver resolver;
+
+    /**
+     * This constructor starts the client the resolvers send through
+     *
+     * @throws IOException when the client can't be started
+     */
+    public MultiUpstreamResolverTest() throws IOException {
+        client = new DNSClient(null, TIMEOUT_MILLIS);
+    }
+
+    public void testMovesOnFromServerFailure() throws Exception {
+        ScriptedServer failing = server(ScriptedServer.answering(Header.SERVER_FAILURE));
+        ScriptedServer answering = server(ScriptedServer.dropping(0));
+        start(false, failing, answering);
+        Message response = resolve();
+        assertEquals("return code", Header.NO_ERROR, response.getHeader().getReturnCode());
+        assertEquals("failing server asked", 1, failing.getQueries().size());
+        assertEquals("answering server asked", 1, answering.getQueries().size());
+    }
+
+    public void testServerFailureWaitsForHedgedQuery() throws Exception {
+        //The slow server is asked first, the hedge goes to the failing one and fails fast
+        ScriptedServer slow = server(ScriptedServer.dropping(0));
+        slow.setDelayMillis(Upstream.INITIAL_RTO_MILLIS * 2);
+        ScriptedServer failing = server(ScriptedServer.answering(Header.SERVER_FAILURE));
+        start(true, slow, failing);
+        Message response = resolve();
+        assertEquals("return code", Header.NO_ERROR, response.getHeader().getReturnCode());
+        assertEquals("answers", 1, response.getAnswerResourceRecords().size());
+        assertEquals("hedges", 1, resolver.getHedges());
+        assertEquals("failing server asked", 1, failing.getQueries().size());
+    }
+
+    public void testServerFailureWhenEveryServerFails() throws Exception {
+        start(false, server(ScriptedServer.answering(Header.SERVER_FAILURE)),
+                server(ScriptedServer.answering(Header.SERVER_FAILURE)));
+        assertEquals("return code", Header.SERVER_FAILURE,
+                resolve().getHeader().getReturnCode());
+    }
+
+    public void testFailsWhenEveryServerTimesOut() throws Exception {
+        try (DNSClient shortClient = new DNSClient(null, 300);
+             MultiUpstreamResolver shortResolver = new MultiUpstreamResolver(shortClient,
+                     Arrays.asList(server(ScriptedServer.dropping(100)).getLocalAddress(),
+                             server(ScriptedServer.dropping(100)).getLocalAddress()), false)) {
+            ExecutionException e = assertThrows(ExecutionException.class,
+                    () -> shortResolver.resolve(QUESTION)
+                            .get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            assertTrue("timed out: " + e.getCause(),
+                    e.getCause() instanceof SocketTimeoutException);
+        }
+    }
+
+    public void testSharesClientEstimates() throws Exception {
+        ScriptedServer answering = server(ScriptedServer.dropping(0));
+        start(false, answering);
+        resolve();
+        InetSocketAddress address = answering.getLocalAddress();
+        Upstream upstream = resolver.getUpstreams().get(0);
+        assertTrue("one estimate per address", upstream == client.getUpstream(address));
+        assertTrue("timed", upstream.getSmoothedRtt() > 0);
+    }
+
+    public void testDoesNotTimeRetransmittedQuery() throws Exception {
+        //The answer only comes to the second copy, so its RTT can't be told apart
+        ScriptedServer lossy = server(ScriptedServer.dropping(1));
+        start(false, lossy);
+        assertEquals("return code", Header.NO_ERROR, resolve().getHeader().getReturnCode());
+        assertEquals("queries", 2, lossy.getQueries().size());
+        Upstream upstream = client.getUpstream(lossy.getLocalAddress());
+        assertEquals("smoothed RTT", 0.0, upstream.getSmoothedRtt());
+        assertEquals("hedge delay", Upstream.INITIAL_RTO_MILLIS * 1000,
+                upstream.getHedgeDelayMicros());
+    }
+
+    /**
+     * This method stops the resolver, the client and every server
+     */
+    public void close() {
+        if (resolver != null) {
+            resolver.close();
+        }
+        client.close();
+        for (ScriptedServer server : servers) {
+            server.close();
+        }
+    }
+
+    /**
+     * This method starts a server that is closed after the test
+     *
+     * @param script how the server answers
+     * @return the server
+     *
+     * @throws IOException when the server can't be bound
+     */
+    private ScriptedServer server(ScriptedServer.Script script) throws IOException {
+        ScriptedServer server = new ScriptedServer(script);
+        servers.add(server);
+        return server;
+    }
+
+    /**
+     * This method starts the resolver over some servers, which rank in the
+     * order given until one has been timed
+     *
+     * @param hedging true to hedge slow queries
+     * @param upstreams the servers
+     */
+    private void start(boolean hedging, ScriptedServer... upstreams) {
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        for (ScriptedServer upstream : upstreams) {
+            addresses.add(upstream.getLocalAddress());
+        }
+        resolver = new MultiUpstreamResolver(client, addresses, hedging);
+    }
+
+    /**
+     * This method asks the question and waits for the answer
+     *
+     * @return the answer
+     *
+     * @throws Exception when the query fails
+     */
+    private Message resolve() throws Exception {
+        return resolver.resolve(QUESTION).get(TIMEOUT_MILLIS * 2, TimeUnit.MILLISECONDS);
+    }
+}
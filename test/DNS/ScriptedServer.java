@@ -0,0 +1,239 @@
+package DNS;
+
+import Message.Class;
+import Message.Header;
+import Message.Message;
+import Message.MessageEncoder;
+import Message.Query;
+import Message.ResourceRecord;
+import Message.Type;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This is a UDP server for tests that decides how to answer each query it
+ * gets, so a test can drop datagrams, answer late or answer with an error.
+ * Unlike StubServer it parses every query and builds every reply, which is
+ * slow but lets a test see exactly what was sent
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class ScriptedServer implements Closeable {
+    /**
+     * This decides the reply to one query
+     */
+    public interface Script {
+        /**
+         * This method decides the reply to a query
+         *
+         * @param query the query
+         * @param number how many queries came before this one
+         * @return the reply, or null to drop the query
+         */
+        Message reply(Message query, int number);
+    }
+
+    /** This is the socket queries arrive on */
+    private final DatagramSocket socket;
+
+    /** This is how each query is answered */
+    private final Script script;
+
+    /** This is the thread replies are sent on, after any delay */
+    private final ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor();
+
+    /** These are the queries received, in order */
+    private final List<Message> queries = new ArrayList<Message>();
+
+    /** This is when each query arrived, from System.nanoTime */
+    private final List<Long> arrivals = new ArrayList<Long>();
+
+    /** This is how many replies have been sent */
+    private final AtomicInteger replies = new AtomicInteger();
+
+    /** This is how long to wait before sending each reply, in milliseconds */
+    private volatile long delayMillis;
+
+    /**
+     * This constructor binds the server to any free loopback port
+     *
+     * @param script how to answer each query
+     *
+     * @throws IOException when the socket can't be bound
+     */
+    public ScriptedServer(Script script) throws IOException {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), script);
+    }
+
+    /**
+     * This constructor binds the server to an address
+     *
+     * @param address the address and port to listen on
+     * @param script how to answer each query
+     *
+     * @throws IOException when the socket can't be bound
+     */
+    public ScriptedServer(InetSocketAddress address, Script script) throws IOException {
+        this.socket = new DatagramSocket(address);
+        this.script = script;
+        Thread receiver = new Thread(this::receive, "ScriptedServer");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * This method makes a script that answers every query with an empty
+     * response carrying a return code
+     *
+     * @param returnCode the return code
+     * @return the script
+     */
+    public static Script answering(int returnCode) {
+        return (query, number) -> reply(query, returnCode, new ArrayList<ResourceRecord>());
+    }
+
+    /**
+     * This method makes a script that drops the first queries and answers
+     * the rest with an address
+     *
+     * @param dropped how many queries to drop
+     * @return the script
+     */
+    public static Script dropping(int dropped) {
+        return (query, number) -> number < dropped ? null : address(query, "192.0.2.1");
+    }
+
+    /**
+     * This method builds a response to a query with the query's id and
+     * question
+     *
+     * @param query the query
+     * @param returnCode the return code
+     * @param answers the answer records
+     * @return the response
+     */
+    public static Message reply(Message query, int returnCode, List<ResourceRecord> answers) {
+        ArrayList<Query> questions = new ArrayList<Query>(query.getQuestions());
+        Header header = new Header(true, 0, false, false, query.getHeader().isRecursionDesired(),
+                true, 0, returnCode, questions.size(), answers.size(), 0, 0);
+        header.setId(query.getHeader().getId());
+        return new Message(header, questions, new ArrayList<ResourceRecord>(answers),
+                new ArrayList<ResourceRecord>(), new ArrayList<ResourceRecord>());
+    }
+
+    /**
+     * This method builds a response to a query with one address
+     *
+     * @param query the query
+     * @param address the address
+     * @return the response
+     */
+    public static Message address(Message query, String address) {
+        List<ResourceRecord> answers = new ArrayList<ResourceRecord>(1);
+        answers.add(new ResourceRecord(query.getQuestions().get(0).getName(),
+                Type.A, Class.IN, 300, address));
+        return reply(query, Header.NO_ERROR, answers);
+    }
+
+    public InetSocketAddress getLocalAddress() {
+        return (InetSocketAddress) socket.getLocalSocketAddress();
+    }
+
+    public void setDelayMillis(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    /**
+     * This method returns the queries received so far
+     *
+     * @return a copy of the queries, in order
+     */
+    public List<Message> getQueries() {
+        synchronized (queries) {
+            return new ArrayList<Message>(queries);
+        }
+    }
+
+    /**
+     * This method returns when each query arrived
+     *
+     * @return a copy of the arrival times from System.nanoTime, in order
+     */
+    public List<Long> getArrivals() {
+        synchronized (queries) {
+            return new ArrayList<Long>(arrivals);
+        }
+    }
+
+    public int getReplies() {
+        return replies.get();
+    }
+
+    /**
+     * This method reads queries until the socket is closed and hands each
+     * one to the script
+     */
+    private void receive() {
+        byte[] buffer = new byte[64 * 1024];
+        while (!socket.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                Message query = new Message(ByteBuffer.wrap(packet.getData(), 0,
+                        packet.getLength()));
+                int number;
+                synchronized (queries) {
+                    number = queries.size();
+                    queries.add(query);
+                    arrivals.add(System.nanoTime());
+                }
+                Message reply = script.reply(query, number);
+                if (reply != null) {
+                    SocketAddress client = packet.getSocketAddress();
+                    sender.schedule(() -> send(reply, client), delayMillis,
+                            TimeUnit.MILLISECONDS);
+                }
+            } catch (IOException | RuntimeException e) {
+                //A closed socket ends the loop, and a bad packet is only dropped
+            }
+        }
+    }
+
+    /**
+     * This method sends a reply
+     *
+     * @param reply the reply
+     * @param client where to send it
+     */
+    private void send(Message reply, SocketAddress client) {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        new MessageEncoder().encode(reply, buffer);
+        try {
+            socket.send(new DatagramPacket(buffer.array(), buffer.position(), client));
+            replies.incrementAndGet();
+        } catch (IOException e) {
+            //The test is over
+        }
+    }
+
+    /**
+     * This method stops the server
+     */
+    public void close() {
+        sender.shutdownNow();
+        socket.close();
+    }
+}
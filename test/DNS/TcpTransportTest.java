@@ -0,0 +1,242 @@
+package DNS;
+
+import static Testing.Assert.assertEquals;
+import static Testing.Assert.assertThrows;
+import static Testing.Assert.assertTrue;
+
+import Message.Class;
+import Message.Header;
+import Message.Message;
+import Message.MessageEncoder;
+import Message.Query;
+import Message.ResourceRecord;
+import Message.Type;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This tests the TCP transport against a server that reads a batch of
+ * pipelined queries off one connection before answering them in reverse
+ * order, and the client's switch to TCP when a UDP answer is truncated
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class TcpTransportTest implements Closeable {
+    /** This is how long each query may take, in milliseconds */
+    private static final long TIMEOUT_MILLIS = 2000;
+
+    /** This is the server the transport connects to */
+    private final ServerSocket server;
+
+    /** This is how many connections the server has accepted */
+    private final AtomicInteger connections = new AtomicInteger();
+
+    /** This is how many queries the server reads before answering */
+    private volatile int batch = 1;
+
+    /** This is true while the server should answer at all */
+    private volatile boolean answering = true;
+
+    /** This is the thread accepting connections */
+    private final Thread acceptor;
+
+    /**
+     * This constructor starts the server on a loopback port
+     *
+     * @throws IOException when the server can't be bound
+     */
+    public TcpTransportTest() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(this::accept, "TcpTransportTest");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public void testMatchesAnswersInAnyOrder() throws Exception {
+        batch = 3;
+        try (TcpTransport transport = new TcpTransport(TIMEOUT_MILLIS)) {
+            List<CompletableFuture<Message>> futures =
+                    new ArrayList<CompletableFuture<Message>>();
+            for (int i = 0; i < 3; i++) {
+                futures.add(transport.query(query("name" + i + ".example.com."), address()));
+            }
+            for (int i = 0; i < 3; i++) {
+                Message response = futures.get(i).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                assertEquals("answer to query " + i, "name" + i + ".example.com.",
+                        response.getAnswerResourceRecords().get(0).getName());
+            }
+            assertEquals("connections", 1, connections.get());
+        }
+    }
+
+    public void testReusesConnection() throws Exception {
+        try (TcpTransport transport = new TcpTransport(TIMEOUT_MILLIS)) {
+            for (int i = 0; i < 3; i++) {
+                transport.query(query("www.example.com."), address())
+                        .get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            assertEquals("connections", 1, connections.get());
+        }
+    }
+
+    public void testTimesOutUnansweredQuery() throws Exception {
+        answering = false;
+        try (TcpTransport transport = new TcpTransport(200)) {
+            ExecutionException e = assertThrows(ExecutionException.class,
+                    () -> transport.query(query("www.example.com."), address())
+                            .get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            assertTrue("timed out: " + e.getCause(),
+                    e.getCause() instanceof SocketTimeoutException);
+        }
+    }
+
+    public void testFallsBackToTcpWhenTruncated() throws Exception {
+        //The UDP stub only ever answers with the TC bit, on the port the TCP server has
+        ArrayList<Query> questions = new ArrayList<Query>(1);
+        questions.add(new Query("www.example.com.", Type.A, Class.IN));
+        Message truncated = new Message(new Header(true, 0, true, true, true, true, 0,
+                Header.NO_ERROR, 1, 0, 0, 0), questions, new ArrayList<ResourceRecord>(),
+                new ArrayList<ResourceRecord>(), new ArrayList<ResourceRecord>());
+        try (StubServer udp = new StubServer(address(), Collections.singletonList(truncated),
+                StubServer.DEFAULT_TTL);
+             DNSClient client = new DNSClient(address(), TIMEOUT_MILLIS)) {
+            Message response = client.resolve(new Query("www.example.com.", Type.A, Class.IN))
+                    .get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            assertTrue("full answer", !response.getHeader().isTruncated());
+            assertEquals("answers", 1, response.getAnswerResourceRecords().size());
+            assertEquals("UDP queries", 1L, udp.getQueries());
+            assertEquals("TCP connections", 1, connections.get());
+        }
+    }
+
+    /**
+     * This method stops the server
+     *
+     * @throws IOException when the server can't be closed
+     */
+    public void close() throws IOException {
+        server.close();
+    }
+
+    /**
+     * This method finds the server's address
+     *
+     * @return the address
+     */
+    private InetSocketAddress address() {
+        return (InetSocketAddress) server.getLocalSocketAddress();
+    }
+
+    /**
+     * This method accepts connections until the server is closed, serving
+     * each on its own thread
+     */
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                connections.incrementAndGet();
+                Thread thread = new Thread(() -> serve(socket), "TcpTransportTest-conn");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * This method reads queries off a connection a batch at a time and
+     * answers each batch last query first
+     *
+     * @param socket the connection
+     */
+    private void serve(Socket socket) {
+        try (Socket connection = socket) {
+            DataInputStream in = new DataInputStream(connection.getInputStream());
+            DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+            while (true) {
+                List<Message> queries = new ArrayList<Message>();
+                while (queries.size() < batch) {
+                    byte[] frame = new byte[in.readUnsignedShort()];
+                    in.readFully(frame);
+                    queries.add(new Message(ByteBuffer.wrap(frame)));
+                }
+                if (!answering) {
+                    continue;
+                }
+                for (int i = queries.size() - 1; i >= 0; i--) {
+                    Message query = queries.get(i);
+                    Query question = query.getQuestions().get(0);
+                    Message response = response(question, Collections.singletonList(
+                            new ResourceRecord(question.getName(), Type.A, Class.IN, 300,
+                                    "192.0.2.1")));
+                    response.getHeader().setId(query.getHeader().getId());
+                    byte[] wire = encode(response);
+                    out.writeShort(wire.length);
+                    out.write(wire);
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            //The client hung up or the test is over
+        }
+    }
+
+    /**
+     * This method builds an address question
+     *
+     * @param name the name asked about
+     * @return the query
+     */
+    private static Message query(String name) {
+        return new Message(name, Type.A, Class.IN, true);
+    }
+
+    /**
+     * This method builds a response to a question
+     *
+     * @param question the question
+     * @param answers the answers
+     * @return the response
+     */
+    private static Message response(Query question, List<ResourceRecord> answers) {
+        ArrayList<Query> questions = new ArrayList<Query>(1);
+        questions.add(question);
+        Header header = new Header(true, 0, true, false, true, true, 0, Header.NO_ERROR, 1,
+                answers.size(), 0, 0);
+        return new Message(header, questions, new ArrayList<ResourceRecord>(answers),
+                new ArrayList<ResourceRecord>(), new ArrayList<ResourceRecord>());
+    }
+
+    /**
+     * This method encodes a message
+     *
+     * @param message the message
+     * @return the wire form
+     */
+    private static byte[] encode(Message message) {
+        ByteBuffer buffer = ByteBuffer.allocate(Message.MIN_UDP_PAYLOAD_SIZE);
+        new MessageEncoder().encode(message, buffer);
+        byte[] wire = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(wire);
+        return wire;
+    }
+}
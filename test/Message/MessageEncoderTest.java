@@ -0,0 +1,211 @@
+package Message;
+
+import static Testing.Assert.assertEquals;
+import static Testing.Assert.assertThrows;
+import static Testing.Assert.assertTrue;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * This tests that what the encoder writes into a caller's buffer parses
+ * back to the same message, that repeated names are compressed with
+ * pointers to where they were first written, and that names that can't be
+ * written are turned away
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class MessageEncoderTest {
+    /** This is the size of the header */
+    private static final int HEADER_SIZE = 12;
+
+    /** This is the size of the wire form of www.example.com */
+    private static final int NAME_SIZE = 17;
+
+    public void testWritesFromBufferPosition() {
+        Message message = response("www.example.com.",
+                record("www.example.com.", Type.A, "192.0.2.1"));
+        ByteBuffer out = ByteBuffer.allocate(Message.MIN_UDP_PAYLOAD_SIZE);
+        out.put((byte) 0x55).put((byte) 0x66);
+        int length = new MessageEncoder().encode(message, out);
+        assertEquals("length returned", out.position() - 2, length);
+        assertEquals("bytes before the message untouched", 0x55, out.get(0) & 0xFF);
+        out.flip().position(2);
+        assertRoundTrip(message, out.slice());
+    }
+
+    public void testThrowsWhenMessageDoesNotFit() {
+        Message message = response("www.example.com.",
+                record("www.example.com.", Type.A, "192.0.2.1"));
+        assertThrows(BufferOverflowException.class,
+                () -> new MessageEncoder().encode(message, ByteBuffer.allocate(20)));
+    }
+
+    public void testReusesEncoder() {
+        MessageEncoder encoder = new MessageEncoder();
+        Message first = response("www.example.com.",
+                record("www.example.com.", Type.A, "192.0.2.1"));
+        Message second = response("mail.example.org.",
+                record("mail.example.org.", Type.A, "192.0.2.2"));
+        ByteBuffer out = ByteBuffer.allocate(Message.MIN_UDP_PAYLOAD_SIZE);
+        encoder.encode(first, out);
+        out.clear();
+        encoder.encode(second, out);
+        out.flip();
+        //Nothing remembered from the first message can leak into the second
+        assertRoundTrip(second, out);
+    }
+
+    public void testRepeatedNameBecomesPointerToQuestion() {
+        ByteBuffer packet = encode(response("www.example.com.",
+                record("www.example.com.", Type.A, "192.0.2.1")));
+        int answer = HEADER_SIZE + NAME_SIZE + 4;
+        assertEquals("first byte of the answer's name", 0xC0, packet.get(answer) & 0xFF);
+        assertEquals("pointer target", HEADER_SIZE, packet.get(answer + 1) & 0xFF);
+        assertEquals("message size", answer + 2 + 10 + 4, packet.limit());
+    }
+
+    public void testSharedSuffixBecomesPointer() {
+        ByteBuffer packet = encode(response("www.example.com.",
+                record("mail.example.com.", Type.A, "192.0.2.1")));
+        int answer = HEADER_SIZE + NAME_SIZE + 4;
+        assertEquals("label kept in full", 4, packet.get(answer) & 0xFF);
+        assertEquals("pointer after the label", 0xC0, packet.get(answer + 5) & 0xFF);
+        //example.com starts just past the 4 octets of the www label
+        assertEquals("pointer target", HEADER_SIZE + 4, packet.get(answer + 6) & 0xFF);
+    }
+
+    public void testCompressionIgnoresCase() {
+        ByteBuffer packet = encode(response("www.example.com.",
+                record("WWW.Example.COM.", Type.A, "192.0.2.1")));
+        int answer = HEADER_SIZE + NAME_SIZE + 4;
+        assertEquals("first byte of the answer's name", 0xC0, packet.get(answer) & 0xFF);
+    }
+
+    public void testNamesInRecordDataAreCompressed() {
+        Message message = response("www.example.com.",
+                record("www.example.com.", Type.CNAME, "web.example.com."),
+                record("example.com.", Type.MX, "10 mail.example.com."));
+        ByteBuffer packet = encode(message);
+        int cname = HEADER_SIZE + NAME_SIZE + 4;
+        //The CNAME's data is the web label then a pointer, after its own pointer and fixed fields
+        int cnameData = cname + 2 + 10;
+        assertEquals("data length of the CNAME", 6, packet.getShort(cname + 10) & 0xFFFF);
+        assertEquals("label kept in full", 3, packet.get(cnameData) & 0xFF);
+        assertEquals("pointer after the label", 0xC0, packet.get(cnameData + 4) & 0xFF);
+        assertRoundTrip(message, packet);
+    }
+
+    public void testRoundTripsNameDifferingOnlyInCase() {
+        Message message = response("www.example.com.",
+                record("WWW.EXAMPLE.COM.", Type.CNAME, "Web.Example.Com."));
+        Message parsed = new Message(encode(message));
+        //A name written as a pointer comes back spelled as the name pointed to
+        assertEquals("owner", "www.example.com.",
+                parsed.getAnswerResourceRecords().get(0).getName());
+        assertEquals("data", "Web.example.com.",
+                parsed.getAnswerResourceRecords().get(0).getResourceData());
+    }
+
+    public void testWritesNoPointerOutsideMessage() {
+        ByteBuffer out = ByteBuffer.allocate(64);
+        MessageEncoder encoder = new MessageEncoder();
+        encoder.writeName("www.example.com.", out);
+        encoder.writeName("www.example.com.", out);
+        assertEquals("both names written in full", NAME_SIZE * 2, out.position());
+    }
+
+    public void testRoundTripsEveryType() {
+        Message message = response("example.com.",
+                record("example.com.", Type.A, "192.0.2.1"),
+                record("example.com.", Type.NS, "ns1.example.net."),
+                record("alias.example.com.", Type.CNAME, "example.com."),
+                record("example.com.", Type.MX, "20 mx.example.org."),
+                record("1.2.0.192.in-addr.arpa.", Type.PTR, "example.com."));
+        assertRoundTrip(message, encode(message));
+    }
+
+    public void testRejectsEmptyLabel() {
+        Message message = response("www..example.com.");
+        assertThrows(IllegalArgumentException.class, () -> encode(message));
+    }
+
+    public void testRejectsLabelLongerThan63() {
+        StringBuilder label = new StringBuilder();
+        for (int i = 0; i < 64; i++) {
+            label.append('a');
+        }
+        Message message = response(label + ".example.com.");
+        assertThrows(IllegalArgumentException.class, () -> encode(message));
+    }
+
+    /**
+     * This method checks that a packet parses back to a message with the
+     * same question and records
+     *
+     * @param expected the message that was encoded
+     * @param packet the packet it was encoded into
+     */
+    private static void assertRoundTrip(Message expected, ByteBuffer packet) {
+        Message parsed = new Message(packet);
+        assertEquals("question", expected.getQuestions().get(0).getName(),
+                parsed.getQuestions().get(0).getName());
+        ArrayList<ResourceRecord> records = expected.getAnswerResourceRecords();
+        assertEquals("answer count", records.size(), parsed.getAnswerResourceRecords().size());
+        for (int i = 0; i < records.size(); i++) {
+            ResourceRecord record = parsed.getAnswerResourceRecords().get(i);
+            assertEquals("owner of record " + i, records.get(i).getName(), record.getName());
+            assertEquals("type of record " + i, records.get(i).getType(), record.getType());
+            assertEquals("data of record " + i, records.get(i).getResourceData(),
+                    record.getResourceData());
+        }
+        assertTrue("nothing left over", !packet.hasRemaining());
+    }
+
+    /**
+     * This method encodes a message the way a server would send it
+     *
+     * @param message the message
+     * @return the packet, from index 0 to its limit
+     */
+    private static ByteBuffer encode(Message message) {
+        ByteBuffer packet = ByteBuffer.allocate(Message.MIN_UDP_PAYLOAD_SIZE);
+        new MessageEncoder().encode(message, packet);
+        packet.flip();
+        return packet;
+    }
+
+    /**
+     * This method builds a response with some answers
+     *
+     * @param name the name asked about
+     * @param answers the answers
+     * @return the response
+     */
+    private static Message response(String name, ResourceRecord... answers) {
+        ArrayList<Query> questions = new ArrayList<Query>(1);
+        questions.add(new Query(name, Type.A, Class.IN));
+        ArrayList<ResourceRecord> answerList = new ArrayList<ResourceRecord>();
+        for (ResourceRecord answer : answers) {
+            answerList.add(answer);
+        }
+        Header header = new Header(true, 0, false, false, true, true, 0, Header.NO_ERROR, 1,
+                answerList.size(), 0, 0);
+        return new Message(header, questions, answerList, new ArrayList<ResourceRecord>(),
+                new ArrayList<ResourceRecord>());
+    }
+
+    /**
+     * This method creates an Internet class record
+     *
+     * @param name the owner of the record
+     * @param type the type of the record
+     * @param data the readable data of the record
+     * @return the record
+     */
+    private static ResourceRecord record(String name, Type type, String data) {
+        return new ResourceRecord(name, type, Class.IN, 300, data);
+    }
+}
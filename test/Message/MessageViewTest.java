@@ -0,0 +1,57 @@
+package Message;
+
+import static Testing.Assert.assertEquals;
+import static Testing.Assert.assertThrows;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This tests that the view reads a well formed message in place and turns
+ * away messages whose header claims more than the packet holds before
+ * doing any work for them
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class MessageViewTest {
+    public void testReadsQuestionInPlace() {
+        ByteBuffer packet = ByteBuffer.allocate(Message.MIN_UDP_PAYLOAD_SIZE);
+        new MessageEncoder().encode(new Message("www.example.com", Type.MX, Class.IN, true),
+                packet);
+        packet.flip();
+        MessageView view = new MessageView(packet);
+        assertEquals("questions", 1, view.getQuestionCount());
+        assertEquals("name", "www.example.com.", view.getQuestionName(0));
+        assertEquals("type", Type.MX.getValue(), view.getQuestionType(0));
+        assertEquals("buffer position untouched", 0, packet.position());
+    }
+
+    public void testRejectsShortPacket() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new MessageView().wrap(ByteBuffer.allocate(11)));
+    }
+
+    public void testRejectsCountsLargerThanPacket() {
+        ByteBuffer packet = ByteBuffer.allocate(12);
+        for (int i = 4; i < 12; i += 2) {
+            packet.putShort(i, (short) 0xFFFF);
+        }
+        assertThrows(IllegalArgumentException.class, () -> new MessageView().wrap(packet));
+    }
+
+    public void testRejectsOneRecordTooMany() {
+        //A root question takes 5 octets, leaving 10, one short of the smallest record
+        ByteBuffer packet = ByteBuffer.allocate(12 + 5 + 10);
+        packet.putShort(4, (short) 1).putShort(6, (short) 1);
+        assertThrows(IllegalArgumentException.class, () -> new MessageView().wrap(packet));
+    }
+
+    public void testRejectsRecordDataPastEnd() {
+        //A root question and a root A record claiming 4 octets of data with none there
+        ByteBuffer packet = ByteBuffer.allocate(12 + 5 + 11);
+        packet.putShort(4, (short) 1).putShort(6, (short) 1);
+        packet.putShort(12 + 5 + 1, (short) Type.A.getValue());
+        packet.putShort(12 + 5 + 9, (short) 4);
+        assertThrows(IllegalArgumentException.class, () -> new MessageView().wrap(packet));
+    }
+}
@@ -0,0 +1,98 @@
+package Metrics;
+
+import static Testing.Assert.assertEquals;
+import static Testing.Assert.assertTrue;
+
+import Message.Header;
+import Message.Type;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.util.Map;
+
+/**
+ * This tests that recording on the query path doesn't allocate once each
+ * upstream server has its metrics, and that what is recorded comes out in
+ * the snapshot under the names it is scraped by
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class QueryMetricsTest {
+    /** This is how many times each kind of recording is made while counting allocations */
+    private static final int RECORDINGS = 1000000;
+
+    /** This is the most a million recordings may allocate, covering the counter's own reads */
+    private static final long MAX_ALLOCATED_BYTES = 1024;
+
+    /** This is the upstream server recorded against */
+    private static final InetSocketAddress UPSTREAM = new InetSocketAddress("192.0.2.1", 53);
+
+    /** These are the metrics recorded into */
+    private final QueryMetrics metrics = new QueryMetrics();
+
+    public void testRecordsWithoutAllocating() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) threads)
+                        .isThreadAllocatedMemorySupported()) {
+            //Allocations can't be counted on this JVM
+            return;
+        }
+        com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+        counter.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+        //The first round creates the upstream's metrics and gets the recording compiled
+        record(RECORDINGS);
+        long before = counter.getThreadAllocatedBytes(threadId);
+        record(RECORDINGS);
+        long allocated = counter.getThreadAllocatedBytes(threadId) - before;
+        assertTrue("allocated " + allocated + " bytes recording " + RECORDINGS + " times",
+                allocated <= MAX_ALLOCATED_BYTES);
+    }
+
+    public void testSnapshotsWhatWasRecorded() {
+        metrics.recordQuery(Type.A, Header.NO_ERROR, 80000);
+        metrics.recordQuery(null, Header.NAME_ERROR, 2000);
+        metrics.recordCacheLookup(QueryMetrics.CacheOutcome.MISS, 80000);
+        metrics.recordUpstreamAnswer(UPSTREAM, 70000);
+        metrics.recordUpstreamTimeout(UPSTREAM);
+        metrics.registerGauge("retransmissions_total", () -> 7);
+        Map<String, Long> values = metrics.snapshot();
+        String prefix = QueryMetrics.PREFIX;
+        assertEquals("A queries", 1L, values.get(prefix + "queries_total{type=\"A\"}"));
+        assertEquals("other queries", 1L, values.get(prefix + "queries_total{type=\"OTHER\"}"));
+        assertEquals("NXDOMAIN", 1L, values.get(prefix + "responses_total{rcode=\"NXDOMAIN\"}"));
+        assertEquals("query latency up to 50us", 1L,
+                values.get(prefix + "query_latency_microseconds_bucket{le=\"50\"}"));
+        assertEquals("query latency count", 2L,
+                values.get(prefix + "query_latency_microseconds_count"));
+        assertEquals("query latency sum", 82L,
+                values.get(prefix + "query_latency_microseconds_sum"));
+        assertEquals("misses", 1L,
+                values.get(prefix + "cache_lookups_total{outcome=\"miss\"}"));
+        assertEquals("hits", 0L, values.get(prefix + "cache_lookups_total{outcome=\"hit\"}"));
+        String upstream = "{upstream=\"192.0.2.1:53\"}";
+        assertEquals("upstream answers", 1L,
+                values.get(prefix + "upstream_answers_total" + upstream));
+        assertEquals("upstream timeouts", 1L,
+                values.get(prefix + "upstream_timeouts_total" + upstream));
+        assertEquals("gauge", 7L, values.get(prefix + "retransmissions_total"));
+        assertTrue("text", metrics.toText()
+                .contains(prefix + "queries_total{type=\"A\"} 1\n"));
+    }
+
+    /**
+     * This method makes every kind of recording the query path makes
+     *
+     * @param times how many times to make each
+     */
+    private void record(int times) {
+        for (int i = 0; i < times; i++) {
+            long latencyNanos = (i & 0xFFFF) * 1000L;
+            metrics.recordQuery(Type.A, Header.NO_ERROR, latencyNanos);
+            metrics.recordCacheLookup(QueryMetrics.CacheOutcome.HIT, latencyNanos);
+            metrics.recordUpstreamAnswer(UPSTREAM, latencyNanos);
+        }
+    }
+}
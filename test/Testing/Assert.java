@@ -0,0 +1,73 @@
+package Testing;
+
+import java.util.Objects;
+
+/**
+ * This holds the checks tests make, each throwing an AssertionError that
+ * says what was expected when the check fails
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public final class Assert {
+    /**
+     * This is something that may throw, for checking that it does
+     */
+    public interface Action {
+        /**
+         * This method does the thing that should throw
+         *
+         * @throws Exception whatever it throws
+         */
+        void run() throws Exception;
+    }
+
+    private Assert() {
+    }
+
+    /**
+     * This method checks that a condition holds
+     *
+     * @param message what the condition means
+     * @param condition the condition
+     */
+    public static void assertTrue(String message, boolean condition) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /**
+     * This method checks that two values are equal
+     *
+     * @param message what the values are
+     * @param expected the value there should be
+     * @param actual the value there is
+     */
+    public static void assertEquals(String message, Object expected, Object actual) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+        }
+    }
+
+    /**
+     * This method checks that an action throws an exception of a type
+     *
+     * @param expected the type of exception, or one of its supertypes
+     * @param action the action
+     * @param <T> the type of exception
+     * @return the exception thrown
+     */
+    public static <T extends Throwable> T assertThrows(java.lang.Class<T> expected,
+                                                       Action action) {
+        try {
+            action.run();
+        } catch (Throwable e) {
+            if (expected.isInstance(e)) {
+                return expected.cast(e);
+            }
+            throw new AssertionError("Expected " + expected.getSimpleName() + " but got " + e, e);
+        }
+        throw new AssertionError("Expected " + expected.getSimpleName() + " but nothing was thrown");
+    }
+}
@@ -0,0 +1,143 @@
+package Testing;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * This runs the tests without needing a test framework on the class path.
+ * A test class is any class with a public no argument constructor, and each
+ * of its public methods whose name starts with "test" and takes no arguments
+ * is one test, run on a new instance so tests can't leak state into each
+ * other.  A test passes if it returns and fails if it throws.  An instance
+ * that is Closeable is closed after its test, so servers a test class
+ * starts in its constructor are stopped either way.
+ *
+ * The tests are compiled alongside the sources and run with
+ * java -cp out Testing.TestRunner, which finds every class whose name ends
+ * in Test in the class path's directories and exits with status 1 if any
+ * test failed
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class TestRunner {
+    /** This is how many tests passed */
+    private int passed;
+
+    /** These are the names of the tests that failed */
+    private final List<String> failures = new ArrayList<String>();
+
+    /**
+     * This method runs every test in a class, printing each result
+     *
+     * @param testClass the class holding the tests
+     */
+    public void run(Class<?> testClass) {
+        Method[] methods = testClass.getMethods();
+        //Reflection returns methods in no set order, so they are sorted for a repeatable run
+        Arrays.sort(methods, Comparator.comparing(Method::getName));
+        for (Method method : methods) {
+            if (!method.getName().startsWith("test") || method.getParameterCount() != 0
+                    || Modifier.isStatic(method.getModifiers())) {
+                continue;
+            }
+            String name = testClass.getName() + "." + method.getName();
+            long start = System.nanoTime();
+            Object instance = null;
+            try {
+                instance = testClass.getConstructor().newInstance();
+                method.invoke(instance);
+                passed++;
+                System.out.printf("PASS %s (%.0fms)%n", name, (System.nanoTime() - start) / 1e6);
+            } catch (InvocationTargetException e) {
+                failures.add(name);
+                System.out.println("FAIL " + name + ": " + e.getCause());
+                e.getCause().printStackTrace(System.out);
+            } catch (ReflectiveOperationException e) {
+                failures.add(name);
+                System.out.println("FAIL " + name + ": couldn't run the test: " + e);
+            } finally {
+                if (instance instanceof Closeable) {
+                    try {
+                        ((Closeable) instance).close();
+                    } catch (IOException ignored) {
+                        //The next test starts its own servers
+                    }
+                }
+            }
+        }
+    }
+
+    public int getPassed() {
+        return passed;
+    }
+
+    public List<String> getFailures() {
+        return failures;
+    }
+
+    /**
+     * This method finds the test classes in the directories on the class
+     * path, which is where the compiled tests are
+     *
+     * @return the names of the test classes, sorted
+     *
+     * @throws IOException when a directory can't be read
+     */
+    public static List<String> findTestClasses() throws IOException {
+        List<String> classNames = new ArrayList<String>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            Path root = Paths.get(entry);
+            if (!Files.isDirectory(root)) {
+                continue;
+            }
+            try (Stream<Path> files = Files.walk(root)) {
+                files.map(file -> root.relativize(file).toString())
+                        .filter(file -> file.endsWith("Test.class") && !file.contains("$"))
+                        .map(file -> file.substring(0, file.length() - ".class".length())
+                                .replace(File.separatorChar, '.'))
+                        .forEach(classNames::add);
+            }
+        }
+        Collections.sort(classNames);
+        return classNames;
+    }
+
+    /**
+     * This method runs the tests in the classes named, or in every test
+     * class if none are named
+     *
+     * @param args the names of the test classes to run, if not all of them
+     *
+     * @throws IOException when the class path can't be searched
+     */
+    public static void main(String[] args) throws IOException {
+        TestRunner runner = new TestRunner();
+        for (String className : args.length > 0 ? Arrays.asList(args) : findTestClasses()) {
+            try {
+                runner.run(Class.forName(className));
+            } catch (ClassNotFoundException e) {
+                runner.failures.add(className);
+                System.out.println("FAIL " + className + ": no such test class");
+            }
+        }
+        System.out.println(runner.passed + " passed, " + runner.failures.size() + " failed");
+        for (String failure : runner.failures) {
+            System.out.println("  " + failure);
+        }
+        System.exit(runner.failures.isEmpty() ? 0 : 1);
+    }
+}
@@ -0,0 +1,140 @@
+package Utilities;
+
+import static Testing.Assert.assertEquals;
+import static Testing.Assert.assertThrows;
+import static Testing.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This tests name decompression, both on names an honest server writes and
+ * on hostile packets built to make the parser loop, recurse or read past
+ * the end of the message
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class ParserUtilityTest {
+    /** This is where names start in these packets, just past a header */
+    private static final int START = 12;
+
+    public void testParsesPlainName() {
+        ByteBuffer data = packet(3, 'w', 'w', 'w', 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e',
+                3, 'c', 'o', 'm', 0, 0xAA);
+        assertEquals("name", "www.example.com.", ParserUtility.parseName("", data));
+        assertEquals("position after the root label", START + 17, data.position());
+    }
+
+    public void testFollowsPointerAndResumesAfterIt() {
+        //example.com at 12, then www and a pointer back to it at 25
+        ByteBuffer data = packet(7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0,
+                3, 'w', 'w', 'w', 0xC0, START, 0xAA);
+        data.position(START + 13);
+        assertEquals("name", "www.example.com.", ParserUtility.parseName("", data));
+        assertEquals("position after the pointer", START + 19, data.position());
+    }
+
+    public void testParsesRootName() {
+        ByteBuffer data = packet(0);
+        assertEquals("name", "", ParserUtility.parseName("", data));
+        assertEquals("position", START + 1, data.position());
+    }
+
+    public void testRejectsPointerToItself() {
+        ByteBuffer data = packet(0xC0, START);
+        assertThrows(IllegalArgumentException.class, () -> ParserUtility.parseName("", data));
+    }
+
+    public void testRejectsForwardPointer() {
+        ByteBuffer data = packet(0xC0, START + 2, 0);
+        assertThrows(IllegalArgumentException.class, () -> ParserUtility.parseName("", data));
+    }
+
+    public void testRejectsPointersToEachOther() {
+        //The second points back to the first, which points forward to the second
+        ByteBuffer data = packet(0xC0, START + 2, 0xC0, START);
+        data.position(START + 2);
+        assertThrows(IllegalArgumentException.class, () -> ParserUtility.parseName("", data));
+    }
+
+    public void testRejectsLabelPointingIntoLoop() {
+        //A label then a pointer back to that same label would repeat forever
+        ByteBuffer data = packet(1, 'a', 0xC0, START);
+        assertThrows(IllegalArgumentException.class, () -> ParserUtility.parseName("", data));
+    }
+
+    public void testRejectsTooManyPointers() {
+        //A root label, then a chain of pointers each pointing at the one before
+        int chain = ParserUtility.MAX_POINTER_JUMPS + 10;
+        int[] bytes = new int[1 + chain * 2];
+        for (int i = 0; i < chain; i++) {
+            int target = i == 0 ? START : START + 1 + (i - 1) * 2;
+            bytes[1 + i * 2] = 0xC0 | target >> 8;
+            bytes[2 + i * 2] = target & 0xFF;
+        }
+        ByteBuffer data = packet(bytes);
+        data.position(START + 1 + (chain - 1) * 2);
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> ParserUtility.parseName("", data));
+        assertTrue("says there were too many pointers", e.getMessage().contains("pointers"));
+    }
+
+    public void testRejectsNameLongerThan255() {
+        //Three 63 octet labels, then a name of two more that points back to them
+        int[] bytes = new int[3 * 64 + 1 + 2 * 64 + 2];
+        int offset = 0;
+        for (int label = 0; label < 3; label++) {
+            bytes[offset++] = 63;
+            for (int i = 0; i < 63; i++) {
+                bytes[offset++] = 'a';
+            }
+        }
+        bytes[offset++] = 0;
+        int second = offset;
+        for (int label = 0; label < 2; label++) {
+            bytes[offset++] = 63;
+            for (int i = 0; i < 63; i++) {
+                bytes[offset++] = 'b';
+            }
+        }
+        bytes[offset++] = 0xC0;
+        bytes[offset] = START;
+        ByteBuffer data = packet(bytes);
+        assertEquals("the first name alone fits", 3 * 64,
+                ParserUtility.parseName("", data).length());
+        data.position(START + second);
+        assertThrows(IllegalArgumentException.class, () -> ParserUtility.parseName("", data));
+    }
+
+    public void testRejectsLabelPastEnd() {
+        ByteBuffer data = packet(10, 'a', 'b');
+        assertThrows(IllegalArgumentException.class, () -> ParserUtility.parseName("", data));
+    }
+
+    public void testRejectsPointerCutShort() {
+        ByteBuffer data = packet(1, 'a', 0xC0);
+        assertThrows(IllegalArgumentException.class, () -> ParserUtility.parseName("", data));
+    }
+
+    public void testRejectsReservedLabelType() {
+        ByteBuffer data = packet(0x40, 'a', 0);
+        assertThrows(IllegalArgumentException.class, () -> ParserUtility.parseName("", data));
+    }
+
+    /**
+     * This method builds a message of a zeroed header and then some bytes,
+     * with the position at the first of those bytes
+     *
+     * @param bytes the bytes after the header, each from 0 to 255
+     * @return the message
+     */
+    private static ByteBuffer packet(int... bytes) {
+        ByteBuffer data = ByteBuffer.allocate(START + bytes.length);
+        data.position(START);
+        for (int b : bytes) {
+            data.put((byte) b);
+        }
+        data.position(START);
+        return data;
+    }
+}
@@ -0,0 +1,150 @@
+package Zone;
+
+import static Testing.Assert.assertEquals;
+import static Testing.Assert.assertThrows;
+import static Testing.Assert.assertTrue;
+
+import Message.Class;
+import Message.DomainName;
+import Message.Message;
+import Message.Query;
+import Message.ResourceRecord;
+import Message.Type;
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * This tests reading zone files: $ORIGIN and $TTL, records spread over
+ * several lines in parentheses, owners left blank, TTLs with units, skipped
+ * types, and the line number given when a file can't be read
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class ZoneLoaderTest {
+    /** This is the zone most tests read, with a second $ORIGIN part way through */
+    static final String FIXTURE = String.join("\n",
+            "; A zone for the tests",
+            "$ORIGIN example.com.",
+            "$TTL 1h",
+            "@       IN SOA ns1 admin (",
+            "                2024010101 ; serial",
+            "                2h         ; refresh",
+            "                1h         ; retry",
+            "                2w         ; expire",
+            "                5m )       ; minimum",
+            "        IN NS   ns1",
+            "        IN MX   10 mail",
+            "ns1             A 192.0.2.1",
+            "mail    300 IN  A 192.0.2.2",
+            "www             CNAME web",
+            "web             CNAME host.a.b",
+            "host.a.b        A 192.0.2.3",
+            "out             CNAME www.example.net.",
+            "sub             NS ns.sub",
+            "ns.sub          A 192.0.2.53",
+            "",
+            "$ORIGIN dev.example.com.",
+            "box     IN 60   A 192.0.2.4",
+            "                AAAA 2001:db8::4",
+            "");
+
+    public void testReadsFixture() throws IOException {
+        ZoneLoader loader = loader(FIXTURE);
+        Zone zone = loader.load();
+        assertEquals("origin", "example.com.", zone.getOrigin().toString());
+        assertEquals("records", 12, zone.size());
+        assertEquals("skipped", 1, loader.getSkipped());
+    }
+
+    public void testReadsRecordOverSeveralLines() throws IOException {
+        ResourceRecord soa = loader(FIXTURE).load().getSoa();
+        assertEquals("SOA data",
+                "ns1.example.com. admin.example.com. 2024010101 7200 3600 1209600 300",
+                soa.getResourceData());
+        assertEquals("SOA TTL from $TTL", 3600L, soa.getTtl());
+    }
+
+    public void testBlankOwnerRepeatsLastOwner() throws IOException {
+        Zone zone = loader(FIXTURE).load();
+        ResourceRecord ns = only(zone, "example.com.", Type.NS);
+        assertEquals("NS data", "ns1.example.com.", ns.getResourceData());
+        ResourceRecord mx = only(zone, "example.com.", Type.MX);
+        assertEquals("MX data", "10 mail.example.com.", mx.getResourceData());
+    }
+
+    public void testTakesTtlFromRecordOrDirective() throws IOException {
+        Zone zone = loader(FIXTURE).load();
+        assertEquals("TTL from $TTL", 3600L, only(zone, "ns1.example.com.", Type.A).getTtl());
+        assertEquals("TTL before the class", 300L,
+                only(zone, "mail.example.com.", Type.A).getTtl());
+        assertEquals("TTL after the class", 60L,
+                only(zone, "box.dev.example.com.", Type.A).getTtl());
+    }
+
+    public void testCompletesNamesWithLatestOrigin() throws IOException {
+        Zone zone = loader(FIXTURE).load();
+        assertEquals("address under the second $ORIGIN", "192.0.2.4",
+                only(zone, "box.dev.example.com.", Type.A).getResourceData());
+        assertEquals("absolute target left alone", "www.example.net.",
+                only(zone, "out.example.com.", Type.CNAME).getResourceData());
+    }
+
+    public void testTakesOriginFromCaller() throws IOException {
+        Zone zone = new ZoneLoader(new StringReader(String.join("\n",
+                "@ 3600 SOA ns1 admin 1 7200 3600 1209600 300",
+                "www A 192.0.2.1")), DomainName.of("example.org."), "test").load();
+        assertEquals("origin", "example.org.", zone.getOrigin().toString());
+        assertEquals("relative owner", "192.0.2.1",
+                only(zone, "www.example.org.", Type.A).getResourceData());
+    }
+
+    public void testRejectsRecordBeforeSoa() {
+        IOException e = assertThrows(IOException.class, () -> loader(String.join("\n",
+                "$ORIGIN example.com.",
+                "www 3600 A 192.0.2.1")).load());
+        assertTrue("reported: " + e.getMessage(), e.getMessage().contains("line 2")
+                && e.getMessage().contains("SOA"));
+    }
+
+    public void testRejectsUnclosedParenthesis() {
+        IOException e = assertThrows(IOException.class, () -> loader(String.join("\n",
+                "$ORIGIN example.com.",
+                "@ 3600 SOA ns1 admin ( 1 7200 3600 1209600 300")).load());
+        assertTrue("reported: " + e.getMessage(), e.getMessage().contains("parenthesis"));
+    }
+
+    public void testRejectsBadAddress() {
+        IOException e = assertThrows(IOException.class, () -> loader(String.join("\n",
+                "$ORIGIN example.com.",
+                "@ 3600 SOA ns1 admin 1 7200 3600 1209600 300",
+                "",
+                "www A 192.0.2.256")).load());
+        assertTrue("reported: " + e.getMessage(), e.getMessage().contains("line 4"));
+    }
+
+    /**
+     * This method makes a loader over the text of a zone file
+     *
+     * @param text the zone file
+     * @return the loader
+     */
+    private static ZoneLoader loader(String text) {
+        return new ZoneLoader(new StringReader(text), null, "test");
+    }
+
+    /**
+     * This method looks up a name's RRset, checking it holds one record
+     *
+     * @param zone the zone to look in
+     * @param name the owner
+     * @param type the type of the RRset
+     * @return the record
+     */
+    private static ResourceRecord only(Zone zone, String name, Type type) {
+        Message response = zone.lookup(new Query(name, type, Class.IN));
+        assertEquals(type + " records for " + name, 1,
+                response.getAnswerResourceRecords().size());
+        return response.getAnswerResourceRecords().get(0);
+    }
+}
@@ -0,0 +1,160 @@
+package Zone;
+
+import static Testing.Assert.assertEquals;
+import static Testing.Assert.assertTrue;
+
+import Message.Class;
+import Message.Header;
+import Message.Message;
+import Message.Query;
+import Message.ResourceRecord;
+import Message.Type;
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * This tests answering from the zone in ZoneLoaderTest's fixture: records
+ * and the addresses that go with them, NODATA for names that exist only
+ * because names below them do, NXDOMAIN for names that don't exist,
+ * referrals with glue at a zone cut, and CNAME chains
+ *
+ * @author Daniel Powell
+ * @version 1.0
+ */
+public class ZoneTest {
+    /** This is the zone being tested */
+    private final Zone zone;
+
+    /**
+     * This constructor loads the fixture
+     *
+     * @throws IOException when the fixture can't be loaded
+     */
+    public ZoneTest() throws IOException {
+        zone = new ZoneLoader(new StringReader(ZoneLoaderTest.FIXTURE), null, "fixture").load();
+    }
+
+    public void testAnswersAuthoritatively() {
+        Message response = lookup("ns1.example.com.", Type.A);
+        assertEquals("return code", Header.NO_ERROR, response.getHeader().getReturnCode());
+        assertTrue("authoritative", response.getHeader().isAuthoritative());
+        assertEquals("answers", 1, response.getAnswerResourceRecords().size());
+        assertEquals("no authority", 0, response.getAuthorityResourceRecords().size());
+    }
+
+    public void testAddsAddressesForMailServers() {
+        Message response = lookup("example.com.", Type.MX);
+        assertEquals("answers", 1, response.getAnswerResourceRecords().size());
+        assertEquals("additional", 1, response.getAdditionalResourceRecords().size());
+        assertEquals("mail server's address", "192.0.2.2",
+                response.getAdditionalResourceRecords().get(0).getResourceData());
+    }
+
+    public void testEmptyNonTerminalIsNoData() {
+        for (String name : new String[]{"a.b.example.com.", "b.example.com.",
+                "dev.example.com."}) {
+            Message response = lookup(name, Type.A);
+            assertEquals("return code for " + name, Header.NO_ERROR,
+                    response.getHeader().getReturnCode());
+            assertEquals("answers for " + name, 0, response.getAnswerResourceRecords().size());
+            assertSoa(response);
+        }
+    }
+
+    public void testMissingNameIsNameError() {
+        for (String name : new String[]{"missing.example.com.", "c.a.b.example.com.",
+                "deeper.box.dev.example.com."}) {
+            Message response = lookup(name, Type.A);
+            assertEquals("return code for " + name, Header.NAME_ERROR,
+                    response.getHeader().getReturnCode());
+            assertTrue("authoritative", response.getHeader().isAuthoritative());
+            assertSoa(response);
+        }
+    }
+
+    public void testMissingTypeIsNoData() {
+        Message response = lookup("ns1.example.com.", Type.MX);
+        assertEquals("return code", Header.NO_ERROR, response.getHeader().getReturnCode());
+        assertEquals("answers", 0, response.getAnswerResourceRecords().size());
+        assertSoa(response);
+    }
+
+    public void testUnknownTypeIsAnsweredFromZone() {
+        Type aaaa = Type.parseType(28);
+        Message noData = zone.lookup(new Query("ns1.example.com.", aaaa, Class.IN));
+        assertEquals("return code for a name that exists", Header.NO_ERROR,
+                noData.getHeader().getReturnCode());
+        assertSoa(noData);
+        Message nameError = zone.lookup(new Query("missing.example.com.", aaaa, Class.IN));
+        assertEquals("return code for a name that doesn't", Header.NAME_ERROR,
+                nameError.getHeader().getReturnCode());
+        assertSoa(nameError);
+    }
+
+    public void testRefersAtCutWithGlue() {
+        for (String name : new String[]{"sub.example.com.", "www.sub.example.com."}) {
+            Message response = lookup(name, Type.A);
+            assertEquals("return code for " + name, Header.NO_ERROR,
+                    response.getHeader().getReturnCode());
+            assertTrue("not authoritative below the cut", !response.getHeader().isAuthoritative());
+            assertEquals("answers", 0, response.getAnswerResourceRecords().size());
+            assertEquals("servers", 1, response.getAuthorityResourceRecords().size());
+            ResourceRecord ns = response.getAuthorityResourceRecords().get(0);
+            assertEquals("server type", Type.NS, ns.getType());
+            assertEquals("server", "ns.sub.example.com.", ns.getResourceData());
+            assertEquals("glue", 1, response.getAdditionalResourceRecords().size());
+            assertEquals("glue address", "192.0.2.53",
+                    response.getAdditionalResourceRecords().get(0).getResourceData());
+        }
+    }
+
+    public void testFollowsCnameChain() {
+        Message response = lookup("www.example.com.", Type.A);
+        assertEquals("return code", Header.NO_ERROR, response.getHeader().getReturnCode());
+        assertEquals("answers", 3, response.getAnswerResourceRecords().size());
+        assertEquals("first link", "web.example.com.",
+                response.getAnswerResourceRecords().get(0).getResourceData());
+        assertEquals("second link", "host.a.b.example.com.",
+                response.getAnswerResourceRecords().get(1).getResourceData());
+        assertEquals("address", "192.0.2.3",
+                response.getAnswerResourceRecords().get(2).getResourceData());
+    }
+
+    public void testAnswersCnameItselfWhenAskedFor() {
+        Message response = lookup("www.example.com.", Type.CNAME);
+        assertEquals("answers", 1, response.getAnswerResourceRecords().size());
+        assertEquals("target", "web.example.com.",
+                response.getAnswerResourceRecords().get(0).getResourceData());
+    }
+
+    public void testStopsCnameChainLeavingZone() {
+        Message response = lookup("out.example.com.", Type.A);
+        assertEquals("return code", Header.NO_ERROR, response.getHeader().getReturnCode());
+        assertEquals("only the CNAME", 1, response.getAnswerResourceRecords().size());
+        assertEquals("no authority", 0, response.getAuthorityResourceRecords().size());
+    }
+
+    /**
+     * This method asks the zone a question
+     *
+     * @param name the name asked about
+     * @param type the type asked for
+     * @return the response
+     */
+    private Message lookup(String name, Type type) {
+        return zone.lookup(new Query(name, type, Class.IN));
+    }
+
+    /**
+     * This method checks a negative answer carries the SOA with the TTL RFC
+     * 2308 gives it, the smaller of its TTL and its minimum field
+     *
+     * @param response the negative answer
+     */
+    private static void assertSoa(Message response) {
+        assertEquals("authority", 1, response.getAuthorityResourceRecords().size());
+        ResourceRecord soa = response.getAuthorityResourceRecords().get(0);
+        assertEquals("SOA", Type.SOA, soa.getType());
+        assertEquals("SOA TTL", 300L, soa.getTtl());
+    }
+}